@@ -0,0 +1,34 @@
+package linq4j.compiler;
+
+import linq4j.expressions.LambdaExpression;
+
+/**
+ * How a lambda is turned into an instance of its functional interface, see
+ * {@link LambdaExpression#compile(Class, Backend)}. {@code linq4j.main.BackendBenchmark} compares
+ * their compile time and throughput.
+ */
+public enum Backend {
+    /**
+     * Generates a class per expression shape through the {@link LambdaCache}: slower to compile,
+     * fastest once warm.
+     */
+    BYTECODE {
+        @Override
+        public <F> F compile(LambdaExpression lambda, Class<F> functionalInterface) {
+            return LambdaCache.getDefault().compile(lambda, functionalInterface);
+        }
+    },
+
+    /**
+     * Builds a method handle tree through {@link MethodHandleCompiler}: fast to compile and no class
+     * defined per lambda, for cold code and deployments restricting class definition.
+     */
+    METHOD_HANDLES {
+        @Override
+        public <F> F compile(LambdaExpression lambda, Class<F> functionalInterface) {
+            return MethodHandleCompiler.compile(lambda, functionalInterface);
+        }
+    };
+
+    public abstract <F> F compile(LambdaExpression lambda, Class<F> functionalInterface);
+}
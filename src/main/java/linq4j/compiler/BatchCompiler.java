@@ -0,0 +1,258 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.BranchEliminator;
+import linq4j.visitors.ByteCodeGenerator;
+import linq4j.visitors.ParameterRebinder;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles lambdas over scalar parameters into kernels evaluating them over a batch of rows in one
+ * generated loop, instead of calling a compiled lambda per row.
+ *
+ * Parameter k of the lambda reads column k, an array of the parameter type such as {@code int[]}
+ * for an {@code int}. A column may have a null bitmap, a {@code long[]} where bit {@code i & 63}
+ * of word {@code i >> 6} is set when row i is null. A row is null when any column is null: filters
+ * do not select it and projections mark it in their output bitmap. Kernels run a loop without null
+ * checks when no column has a bitmap.
+ *
+ * Kernels go through {@link LambdaCache}, so lambdas only differing in constants share a class.
+ */
+public final class BatchCompiler {
+    private BatchCompiler() {
+    }
+
+    public static SelectionKernel filter(LambdaExpression predicate) {
+        return filter(predicate, true);
+    }
+
+    /**
+     * The filter of {@code predicate}, branch-free when {@code speculate} is set and the predicate
+     * allows it.
+     */
+    static SelectionKernel filter(LambdaExpression predicate, boolean speculate) {
+        if (!TypeUtils.isBoolean(predicate.getReturnType()))
+            throw new IllegalArgumentException("Filter must return boolean but returns " + predicate.getReturnType().getName());
+
+        Kernel kernel = new Kernel(predicate, int[].class);
+        ParameterExpression selection = kernel.output;
+        ParameterExpression count = kernel.local("count", Integer.TYPE);
+        Expression row = BranchEliminator.eliminate(kernel.row());
+        Expression store = Expression.assign(Expression.arrayAccess(selection, count), kernel.i);
+
+        Expression dense;
+        Expression nullable;
+        if (speculate && row.getType() == Boolean.TYPE && BranchEliminator.isSpeculable(row)) {
+            //every row is stored and the count only moves past selected ones
+            dense = Expression.block(store, increment(count, row));
+            nullable = Expression.block(store, increment(count, Expression.and(kernel.notNull(), row)));
+        } else {
+            Expression select = Expression.block(store, Expression.assign(count, Expression.add(count, Expression.constant(1))));
+            dense = Expression.condition(row, select, Expression.empty());
+            nullable = Expression.condition(Expression.andAlso(kernel.notNull(), row), select, Expression.empty());
+        }
+
+        Expression body = kernel.build(Integer.TYPE, Expression.assign(count, Expression.constant(0)), dense, nullable, count);
+        return new RangeChecked(Expression.lambda(body, kernel.parameters(selection)).compile(SelectionKernel.class));
+    }
+
+    public static ProjectionKernel project(LambdaExpression projection) {
+        return project(projection, true);
+    }
+
+    /**
+     * The projection of {@code projection}, branch-free when {@code speculate} is set and the
+     * projection allows it.
+     */
+    static ProjectionKernel project(LambdaExpression projection, boolean speculate) {
+        Class<?> type = projection.getReturnType();
+        if (type == Void.TYPE)
+            throw new IllegalArgumentException("Projection must return a value");
+
+        Kernel kernel = new Kernel(projection, Array.newInstance(type, 0).getClass());
+        ParameterExpression outputNulls = Expression.parameter(6, "outputNulls", long[].class);
+        ParameterExpression i = kernel.i;
+
+        Expression row = BranchEliminator.eliminate(kernel.row());
+        Expression store = Expression.assign(Expression.arrayAccess(kernel.output, i), row);
+        Expression word = Expression.arrayAccess(outputNulls, Expression.rightShift(i, Expression.constant(6)));
+        Expression bit = Expression.leftShift(Expression.constant(1L), i);
+
+        Expression nullable;
+        if (speculate && BranchEliminator.isSpeculable(row)) {
+            //null rows get a value too, their bit is copied from the columns
+            Expression nullBit = Expression.and(kernel.nullWords(), bit);
+            nullable = Expression.block(store, Expression.assign(word, Expression.or(word, nullBit)));
+        } else {
+            Expression markNull = Expression.assign(word, Expression.or(word, bit));
+            nullable = Expression.condition(kernel.notNull(), store, markNull, Void.TYPE, BranchHint.Likely);
+        }
+
+        Expression body = kernel.build(Void.TYPE, Expression.empty(), store, nullable, Expression.empty());
+        return Expression.lambda(body, kernel.parameters(kernel.output, outputNulls)).compile(ProjectionKernel.class);
+    }
+
+    private static Expression increment(ParameterExpression count, Expression test) {
+        return Expression.assign(count, Expression.add(count, Expression.condition(test, Expression.constant(1), Expression.constant(0))));
+    }
+
+    /**
+     * Checks the selection has room for every row of the range, whether or not the filter is
+     * branch-free.
+     */
+    private static final class RangeChecked implements SelectionKernel {
+        private final SelectionKernel kernel;
+
+        RangeChecked(SelectionKernel kernel) {
+            this.kernel = kernel;
+        }
+
+        @Override
+        public int select(Object[] columns, long[][] nulls, int from, int to, int[] selection) {
+            if (selection.length < to - from)
+                throw new IllegalArgumentException("Selection has room for " + selection.length + " rows but the range has " + (to - from));
+
+            return kernel.select(columns, nulls, from, to, selection);
+        }
+    }
+
+    /**
+     * The parameters and locals shared by filters and projections.
+     */
+    private static final class Kernel {
+        private final ParameterExpression columns = Expression.parameter(1, "columns", Object[].class);
+        private final ParameterExpression nulls = Expression.parameter(2, "nulls", long[][].class);
+        private final ParameterExpression from = Expression.parameter(3, "from", Integer.TYPE);
+        private final ParameterExpression to = Expression.parameter(4, "to", Integer.TYPE);
+        private final ParameterExpression output;
+        private final ParameterExpression i;
+
+        private final List<ParameterExpression> variables = new ArrayList<>();
+        private final List<Expression> setup = new ArrayList<>();
+        private final List<ParameterExpression> rows = new ArrayList<>();
+        private final List<Expression> loads = new ArrayList<>();
+        private final List<ParameterExpression> columnArrays = new ArrayList<>();
+        private final List<ParameterExpression> bitmaps = new ArrayList<>();
+        private final LambdaExpression lambda;
+        private int nextSlot = 7;
+
+        Kernel(LambdaExpression lambda, Class<?> outputType) {
+            this.lambda = lambda;
+            List<ParameterExpression> parameters = lambda.getParameters();
+
+            output = Expression.parameter(5, "output", outputType);
+            i = local("i", Integer.TYPE);
+
+            for (int k = 0; k < parameters.size(); k++) {
+                ParameterExpression parameter = parameters.get(k);
+                Class<?> arrayType = Array.newInstance(parameter.getType(), 0).getClass();
+
+                ParameterExpression column = local(parameter.getName() + "$column", arrayType);
+                ParameterExpression bitmap = local(parameter.getName() + "$nulls", long[].class);
+                Expression index = Expression.constant(k);
+
+                setup.add(Expression.assign(column, Expression.convert(Expression.arrayAccess(columns, index), arrayType)));
+                setup.add(Expression.assign(bitmap, Expression.condition(Expression.equal(nulls, Expression.constant(null, long[][].class)),
+                        Expression.constant(null, long[].class), Expression.arrayAccess(nulls, index))));
+
+                columnArrays.add(column);
+                bitmaps.add(bitmap);
+            }
+        }
+
+        ParameterExpression local(String name, Class<?> type) {
+            ParameterExpression local = Expression.parameter(nextSlot, name, type);
+            nextSlot += ByteCodeGenerator.typeOf(type).getSize();
+            variables.add(local);
+            return local;
+        }
+
+        /**
+         * The lambda body reading row {@code i}, once every other local is declared: the lambda
+         * parameters become row locals loaded from the columns and its block variables move past them.
+         */
+        Expression row() {
+            List<ParameterExpression> parameters = lambda.getParameters();
+            int offset = nextSlot - 1;
+            Map<Integer, Expression> replacements = new HashMap<>();
+            for (int k = 0; k < parameters.size(); k++) {
+                ParameterExpression parameter = parameters.get(k);
+                ParameterExpression row = Expression.parameter(parameter.getIndex() + offset, parameter.getName(), parameter.getType());
+
+                replacements.put(parameter.getIndex(), row);
+                rows.add(row);
+                loads.add(Expression.assign(row, Expression.arrayAccess(columnArrays.get(k), i)));
+            }
+
+            return ParameterRebinder.rebind(lambda.getBody(), replacements, offset);
+        }
+
+        ParameterExpression[] parameters(ParameterExpression... outputs) {
+            List<ParameterExpression> parameters = new ArrayList<>();
+            Collections.addAll(parameters, columns, nulls, from, to);
+            Collections.addAll(parameters, outputs);
+            return parameters.toArray(new ParameterExpression[0]);
+        }
+
+        /**
+         * The null bitmap words of all columns for row {@code i} or'ed together.
+         */
+        Expression nullWords() {
+            Expression words = Expression.constant(0L);
+
+            for (ParameterExpression bitmap : bitmaps) {
+                Expression word = Expression.condition(Expression.equal(bitmap, Expression.constant(null, long[].class)),
+                        Expression.constant(0L), Expression.arrayAccess(bitmap, Expression.rightShift(i, Expression.constant(6))));
+                words = words instanceof ConstantExpression ? word : Expression.or(words, word);
+            }
+
+            return words;
+        }
+
+        /**
+         * True when no column is null in row {@code i}.
+         */
+        Expression notNull() {
+            Expression bit = Expression.and(Expression.rightShift(nullWords(), i), Expression.constant(1L));
+            return Expression.equal(bit, Expression.constant(0L));
+        }
+
+        /**
+         * {@code setup; if (no bitmaps) for (rows) dense else for (rows) nullable; result}
+         */
+        Expression build(Class<?> type, Expression init, Expression dense, Expression nullable, Expression result) {
+            Expression noBitmaps = Expression.constant(true);
+            for (ParameterExpression bitmap : bitmaps) {
+                Expression isNull = Expression.equal(bitmap, Expression.constant(null, long[].class));
+                noBitmaps = noBitmaps instanceof ConstantExpression ? isNull : Expression.andAlso(noBitmaps, isNull);
+            }
+
+            List<Expression> expressions = new ArrayList<>(setup);
+            expressions.add(init);
+            expressions.add(Expression.condition(noBitmaps, loop(dense), loop(nullable), Void.TYPE, BranchHint.Likely));
+            expressions.add(result);
+
+            return Expression.block(type, variables, expressions.toArray(new Expression[0]));
+        }
+
+        private Expression loop(Expression step) {
+            LabelTarget exit = Expression.label("exit");
+
+            List<Expression> row = new ArrayList<>(loads);
+            row.add(step);
+
+            return Expression.block(
+                    Expression.assign(i, from),
+                    Expression.loop(Expression.block(
+                            Expression.condition(Expression.greaterThanOrEqual(i, to), Expression._break(exit), Expression.empty(), Void.TYPE, BranchHint.Unlikely),
+                            Expression.block(Void.TYPE, rows, row.toArray(new Expression[0])),
+                            Expression.assign(i, Expression.add(i, Expression.constant(1)))), exit));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package linq4j.compiler;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * How generated lambda classes are defined.
+ */
+public enum ClassDefinition {
+    /**
+     * Each class in a {@link GeneratedClassLoader} of its own, child of the context class loader,
+     * unloaded with that loader. Works on every JVM but sets up a loader per class.
+     */
+    CLASS_LOADER {
+        @Override
+        String className(long id) {
+            return "linq4j/generated/Lambda$" + id;
+        }
+
+        @Override
+        ClassLoader classLoader() {
+            return GeneratedClassLoader.defaultParent();
+        }
+
+        @Override
+        Class<?> define(String internalName, byte[] bytes) {
+            return new GeneratedClassLoader(classLoader()).define(internalName, bytes);
+        }
+    },
+
+    /**
+     * Hidden classes in this package, through {@code Lookup.defineHiddenClass} on Java 15 and
+     * later. They need no loader and are unloaded as soon as they are unreachable, but resolve the
+     * classes of expression trees through the loader of linq4j rather than the context one.
+     */
+    HIDDEN {
+        @Override
+        String className(long id) {
+            return "linq4j/compiler/Lambda$" + id;
+        }
+
+        @Override
+        ClassLoader classLoader() {
+            return ClassDefinition.class.getClassLoader();
+        }
+
+        @Override
+        Class<?> define(String internalName, byte[] bytes) {
+            if (DEFINE_HIDDEN == null)
+                throw new IllegalStateException("Hidden classes need Java 15 or later");
+
+            try {
+                Object lookup = DEFINE_HIDDEN.invoke(MethodHandles.lookup(), bytes, true, NO_OPTIONS);
+                return ((MethodHandles.Lookup) lookup).lookupClass();
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final Method DEFINE_HIDDEN;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method defineHidden = null;
+        Object noOptions = null;
+
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noOptions = Array.newInstance(option, 0);
+            defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, Boolean.TYPE, noOptions.getClass());
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            //before Java 15
+        }
+
+        DEFINE_HIDDEN = defineHidden;
+        NO_OPTIONS = noOptions;
+    }
+
+    /**
+     * {@link #HIDDEN} when the JVM supports it, {@link #CLASS_LOADER} otherwise.
+     */
+    public static ClassDefinition preferred() {
+        return DEFINE_HIDDEN != null ? HIDDEN : CLASS_LOADER;
+    }
+
+    /**
+     * This definition, or {@link #CLASS_LOADER} for classes creating nested lambdas: the
+     * {@code LambdaMetafactory} of Java 17 names the class of the methods it links in the classes
+     * it spins, which does not resolve to a hidden class.
+     */
+    ClassDefinition linking(boolean nestedLambdas) {
+        return nestedLambdas ? CLASS_LOADER : this;
+    }
+
+    abstract String className(long id);
+
+    /**
+     * The loader the classes referenced by generated code are resolved through.
+     */
+    abstract ClassLoader classLoader();
+
+    abstract Class<?> define(String internalName, byte[] bytes);
+}
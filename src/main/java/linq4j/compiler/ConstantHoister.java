@@ -0,0 +1,42 @@
+package linq4j.compiler;
+
+import linq4j.expressions.ConstantExpression;
+import linq4j.expressions.Expression;
+import linq4j.visitors.ExpressionVisitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces every constant with a read of a final field of the generated class, so trees that only
+ * differ in their constants can share the same class.
+ */
+class ConstantHoister extends ExpressionVisitor {
+    private final String owner;
+    private final List<Class<?>> types = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+
+    ConstantHoister(String owner) {
+        this.owner = owner;
+    }
+
+    List<Class<?>> getTypes() {
+        return types;
+    }
+
+    List<Object> getValues() {
+        return values;
+    }
+
+    static String fieldName(int index) {
+        return "c" + index;
+    }
+
+    @Override
+    public Expression visitConstant(ConstantExpression constantExpression) {
+        String field = fieldName(types.size());
+        types.add(constantExpression.getType());
+        values.add(constantExpression.getValue());
+        return Expression.makeMemberAccess(Expression._this(), owner, field, constantExpression.getType());
+    }
+}
@@ -0,0 +1,99 @@
+package linq4j.compiler;
+
+import linq4j.expressions.Expression;
+import linq4j.visitors.Children;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Compiles trees deeper than the stack of the calling thread allows. The passes of the compiler
+ * recurse once per level, so a long chain of binary operators or conditionals overflows a default
+ * stack at a depth of about a thousand. Such trees are compiled on a thread of their own with a
+ * stack sized for their depth.
+ */
+final class DeepTrees {
+    static final int MAX_SHALLOW_DEPTH = 256;
+
+    private static final long STACK_PER_LEVEL = 4096;
+    private static final long MIN_STACK = 4L << 20;
+
+    private DeepTrees() {
+    }
+
+    /**
+     * The number of levels of {@code expression}, counted without recursion.
+     */
+    static int depth(Expression expression) {
+        Children children = new Children();
+        Deque<Expression> pending = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        pending.push(expression);
+        depths.push(1);
+
+        int max = 0;
+        while (!pending.isEmpty()) {
+            Expression next = pending.pop();
+            int depth = depths.pop();
+            max = Math.max(max, depth);
+
+            for (Expression child : children.of(next)) {
+                pending.push(child);
+                depths.push(depth + 1);
+            }
+        }
+
+        return max;
+    }
+
+    static <T> T compile(Expression tree, Supplier<T> compilation) {
+        return compile(Collections.singletonList(tree), compilation);
+    }
+
+    static <T> T compile(List<? extends Expression> trees, final Supplier<T> compilation) {
+        int depth = 0;
+        for (Expression tree : trees)
+            depth = Math.max(depth, depth(tree));
+
+        if (depth <= MAX_SHALLOW_DEPTH)
+            return compilation.get();
+
+        final Object[] result = new Object[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = compilation.get();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        }, "linq4j-deep-compilation", Math.max(MIN_STACK, depth * STACK_PER_LEVEL));
+
+        thread.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+
+        @SuppressWarnings("unchecked")
+        T compiled = (T) result[0];
+        return compiled;
+    }
+}
@@ -0,0 +1,233 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.ExpressionVisitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structural key of an expression tree.
+ *
+ * Two trees have equal shapes when they only differ in the values of their constants. The values
+ * are collected in the same order {@link ExpressionVisitor} visits them, which is also the order
+ * {@link ConstantHoister} assigns fields in.
+ */
+public final class ExpressionShape {
+    private final List<Object> tokens;
+    private final int hash;
+
+    private ExpressionShape(List<Object> tokens) {
+        this.tokens = tokens;
+        this.hash = tokens.hashCode();
+    }
+
+    public static ExpressionShape of(Expression expression, Class<?> functionalInterface, List<Object> constants) {
+        Builder builder = new Builder(constants);
+        builder.tokens.add(functionalInterface);
+        builder.visit(expression);
+        return new ExpressionShape(builder.tokens);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+
+        if (!(obj instanceof ExpressionShape))
+            return false;
+
+        ExpressionShape other = (ExpressionShape) obj;
+        return hash == other.hash && tokens.equals(other.tokens);
+    }
+
+    private static class Builder extends ExpressionVisitor {
+        private final List<Object> tokens = new ArrayList<>();
+        private final List<Object> constants;
+        private final Map<LabelTarget, Integer> labels = new IdentityHashMap<>();
+
+        Builder(List<Object> constants) {
+            this.constants = constants;
+        }
+
+        //labels are numbered in the order they are first seen
+        private void label(LabelTarget target) {
+            if (target == null) {
+                tokens.add(null);
+                return;
+            }
+
+            Integer id = labels.get(target);
+            if (id == null) {
+                id = labels.size();
+                labels.put(target, id);
+            }
+
+            tokens.add(id);
+            tokens.add(target.getType());
+        }
+
+        private void parameter(ParameterExpression parameterExpression) {
+            tokens.add(parameterExpression.getIndex());
+            tokens.add(parameterExpression.getType());
+        }
+
+        @Override
+        public Expression visitBinary(BinaryExpression binaryExpression) {
+            tokens.add(binaryExpression.getNodeType());
+            return super.visitBinary(binaryExpression);
+        }
+
+        @Override
+        public Expression visitUnary(UnaryExpression unaryExpression) {
+            tokens.add(unaryExpression.getNodeType());
+            tokens.add(unaryExpression.getType());
+            return super.visitUnary(unaryExpression);
+        }
+
+        @Override
+        public Expression visitConditional(ConditionalExpression conditionalExpression) {
+            tokens.add(conditionalExpression.getNodeType());
+            tokens.add(conditionalExpression.getType());
+            tokens.add(conditionalExpression.getHint());
+            return super.visitConditional(conditionalExpression);
+        }
+
+        @Override
+        public Expression visitSwitch(SwitchExpression switchExpression) {
+            tokens.add(switchExpression.getNodeType());
+            tokens.add(switchExpression.getType());
+            tokens.add(switchExpression.getCases().size());
+            //case values are compiled into the dispatch, so they are part of the shape
+            for (SwitchCase switchCase : switchExpression.getCases()) {
+                List<Object> values = new ArrayList<>();
+                for (ConstantExpression testValue : switchCase.getTestValues())
+                    values.add(testValue.getValue());
+                tokens.add(values);
+            }
+            tokens.add(switchExpression.getDefaultBody() != null);
+            return super.visitSwitch(switchExpression);
+        }
+
+        @Override
+        public Expression visitLoop(LoopExpression loopExpression) {
+            tokens.add(loopExpression.getNodeType());
+            label(loopExpression.getBreakLabel());
+            label(loopExpression.getContinueLabel());
+            return super.visitLoop(loopExpression);
+        }
+
+        @Override
+        public Expression visitGoto(GotoExpression gotoExpression) {
+            tokens.add(gotoExpression.getNodeType());
+            tokens.add(gotoExpression.getKind());
+            tokens.add(gotoExpression.getType());
+            label(gotoExpression.getTarget());
+            return super.visitGoto(gotoExpression);
+        }
+
+        @Override
+        public Expression visitLabel(LabelExpression labelExpression) {
+            tokens.add(labelExpression.getNodeType());
+            label(labelExpression.getTarget());
+            return super.visitLabel(labelExpression);
+        }
+
+        @Override
+        public Expression visitMember(MemberExpression memberExpression) {
+            tokens.add(memberExpression.getNodeType());
+            tokens.add(memberExpression.getOwner());
+            tokens.add(memberExpression.getMember());
+            tokens.add(memberExpression.getType());
+            tokens.add(memberExpression.getExpression() != null);
+            return super.visitMember(memberExpression);
+        }
+
+        @Override
+        public Expression visitParameter(ParameterExpression parameterExpression) {
+            tokens.add(parameterExpression.getNodeType());
+            parameter(parameterExpression);
+            return parameterExpression;
+        }
+
+        @Override
+        public Expression visitConstant(ConstantExpression constantExpression) {
+            tokens.add(constantExpression.getNodeType());
+            tokens.add(constantExpression.getType());
+            constants.add(constantExpression.getValue());
+            return constantExpression;
+        }
+
+        @Override
+        public Expression visitDefault(DefaultExpression defaultExpression) {
+            tokens.add(defaultExpression.getNodeType());
+            tokens.add(defaultExpression.getType());
+            return defaultExpression;
+        }
+
+        @Override
+        public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+            MethodInfo methodInfo = methodCallExpression.getMethodInfo();
+            tokens.add(methodCallExpression.getNodeType());
+            tokens.add(methodInfo.getOwner());
+            tokens.add(methodInfo.getName());
+            tokens.add(methodInfo.getReturnType());
+            tokens.add(Arrays.asList(methodInfo.getTypes()));
+            tokens.add(methodCallExpression.getExpression() != null);
+            tokens.add(methodCallExpression.getParameters().length);
+            return super.visitMethodCall(methodCallExpression);
+        }
+
+        @Override
+        public Expression visitDynamic(DynamicExpression dynamicExpression) {
+            tokens.add(dynamicExpression.getNodeType());
+            tokens.add(dynamicExpression.getName());
+            tokens.add(dynamicExpression.getType());
+            tokens.add(dynamicExpression.getArguments().length);
+            return super.visitDynamic(dynamicExpression);
+        }
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            tokens.add(blockExpression.getNodeType());
+            tokens.add(blockExpression.getType());
+            tokens.add(blockExpression.getVariables().size());
+            for (ParameterExpression variable : blockExpression.getVariables())
+                parameter(variable);
+            tokens.add(blockExpression.getExpressions().size());
+            return super.visitBlock(blockExpression);
+        }
+
+        @Override
+        public Expression visitIndex(IndexExpression indexExpression) {
+            tokens.add(indexExpression.getNodeType());
+            return super.visitIndex(indexExpression);
+        }
+
+        @Override
+        public Expression visitNewArrayInit(NewArrayExpression newArrayExpression) {
+            tokens.add(newArrayExpression.getNodeType());
+            tokens.add(newArrayExpression.getElementType());
+            tokens.add(newArrayExpression.getExpressions().length);
+            return super.visitNewArrayInit(newArrayExpression);
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            tokens.add(lambdaExpression.getNodeType());
+            tokens.add(lambdaExpression.getType());
+            tokens.add(lambdaExpression.getParameters().size());
+            for (ParameterExpression parameter : lambdaExpression.getParameters())
+                parameter(parameter);
+            return super.visitLambda(lambdaExpression);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package linq4j.compiler;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Finds the single abstract method of a functional interface.
+ */
+public final class FunctionalInterfaces {
+    private FunctionalInterfaces() {
+    }
+
+    public static Method findMethod(Class<?> functionalInterface) {
+        if (!functionalInterface.isInterface())
+            throw new IllegalArgumentException(functionalInterface.getName() + " is not an interface");
+
+        Method found = null;
+        for (Method method : functionalInterface.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method))
+                continue;
+
+            if (found != null && !sameSignature(found, method))
+                throw new IllegalArgumentException(functionalInterface.getName() + " has more than one abstract method");
+
+            found = method;
+        }
+
+        if (found == null)
+            throw new IllegalArgumentException(functionalInterface.getName() + " has no abstract method");
+
+        return found;
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean sameSignature(Method a, Method b) {
+        return a.getName().equals(b.getName()) && Arrays.equals(a.getParameterTypes(), b.getParameterTypes());
+    }
+}
@@ -0,0 +1,19 @@
+package linq4j.compiler;
+
+/**
+ * Defines a single generated class, so the class can be unloaded together with its loader.
+ */
+class GeneratedClassLoader extends ClassLoader {
+    GeneratedClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    Class<?> define(String internalName, byte[] bytes) {
+        return defineClass(internalName.replace('/', '.'), bytes, 0, bytes.length);
+    }
+
+    static ClassLoader defaultParent() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : GeneratedClassLoader.class.getClassLoader();
+    }
+}
@@ -0,0 +1,60 @@
+package linq4j.compiler;
+
+import linq4j.visitors.FrameTracker;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * Without {@link ClassWriter#COMPUTE_FRAMES}, writes the frames and maxs of the methods added with
+ * {@link #method} through a {@link FrameTracker}. With it, resolves common super classes through
+ * the loader the generated class will be defined in, treating classes that do not exist yet as
+ * plain objects.
+ */
+class GeneratedClassWriter extends ClassWriter {
+    private final ClassLoader classLoader;
+    private final boolean trackFrames;
+
+    GeneratedClassWriter(int flags, ClassLoader classLoader) {
+        super(flags);
+        this.classLoader = classLoader;
+        this.trackFrames = (flags & (COMPUTE_FRAMES | COMPUTE_MAXS)) == 0;
+    }
+
+    boolean tracksFrames() {
+        return trackFrames;
+    }
+
+    /**
+     * Adds a method to class {@code owner}, tracked if frames are not computed by ASM.
+     */
+    MethodVisitor method(String owner, int access, String name, String desc) {
+        MethodVisitor method = visitMethod(access, name, desc, null, null);
+        return trackFrames ? new FrameTracker(method, access, owner, name, desc) : method;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        Class<?> c;
+        Class<?> d;
+
+        try {
+            c = Class.forName(type1.replace('/', '.'), false, classLoader);
+            d = Class.forName(type2.replace('/', '.'), false, classLoader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return "java/lang/Object";
+        }
+
+        if (c.isAssignableFrom(d))
+            return type1;
+        if (d.isAssignableFrom(c))
+            return type2;
+        if (c.isInterface() || d.isInterface())
+            return "java/lang/Object";
+
+        do {
+            c = c.getSuperclass();
+        } while (!c.isAssignableFrom(d));
+
+        return c.getName().replace('.', '/');
+    }
+}
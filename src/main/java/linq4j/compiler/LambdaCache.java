@@ -0,0 +1,243 @@
+package linq4j.compiler;
+
+import linq4j.expressions.LambdaExpression;
+import linq4j.visitors.ExpressionOptimizer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Concurrent cache of generated lambda classes keyed by {@link ExpressionShape}.
+ *
+ * Constants are passed to the generated constructor, so {@code x > 5} and {@code x > 7} share a
+ * class. Threads asking for a shape that is being compiled wait for that compilation. Trees are
+ * simplified by {@link ExpressionOptimizer} before their shape is taken.
+ *
+ * With {@link Retention#WEAK} the cache does not keep classes alive: a class is unloaded once no
+ * compiled delegate of it is reachable, and its entry is dropped. Either way the class files of
+ * cached classes are kept under a budget, an estimate of their metaspace, by evicting the least
+ * recently used classes; delegates already handed out keep working.
+ */
+public final class LambdaCache {
+    public static final long DEFAULT_METASPACE_BUDGET = 64L << 20;
+
+    private static final LambdaCache DEFAULT = new LambdaCache(ClassDefinition.preferred(), Retention.STRONG, DEFAULT_METASPACE_BUDGET);
+
+    public enum Retention {
+        /**
+         * Cached classes stay loaded until evicted.
+         */
+        STRONG,
+
+        /**
+         * Cached classes are unloaded once their delegates are unreachable.
+         */
+        WEAK
+    }
+
+    private final ClassDefinition definition;
+    private final Retention retention;
+    private final long metaspaceBudget;
+
+    //a FutureTask while compiling, a Compiled once done
+    private final ConcurrentMap<ExpressionShape, Object> entries = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Class<?>> unloaded = new ReferenceQueue<>();
+    private final AtomicLong classBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    public LambdaCache(ClassDefinition definition, Retention retention, long metaspaceBudget) {
+        if (metaspaceBudget < 0)
+            throw new IllegalArgumentException("Negative metaspace budget " + metaspaceBudget);
+
+        this.definition = definition;
+        this.retention = retention;
+        this.metaspaceBudget = metaspaceBudget;
+    }
+
+    public static LambdaCache getDefault() {
+        return DEFAULT;
+    }
+
+    public <F> F compile(final LambdaExpression lambda, final Class<F> functionalInterface) {
+        return DeepTrees.compile(lambda, new Supplier<F>() {
+            @Override
+            public F get() {
+                return compileShallow(lambda, functionalInterface);
+            }
+        });
+    }
+
+    private <F> F compileShallow(LambdaExpression lambda, final Class<F> functionalInterface) {
+        final LambdaExpression optimized = new ExpressionOptimizer().optimize(lambda);
+
+        List<Object> constants = new ArrayList<>();
+        ExpressionShape shape = ExpressionShape.of(optimized, functionalInterface, constants);
+
+        LambdaFactory factory = factory(shape, new Callable<LambdaFactory>() {
+            @Override
+            public LambdaFactory call() {
+                return LambdaCompiler.define(optimized, functionalInterface, definition);
+            }
+        });
+
+        return functionalInterface.cast(factory.newInstance(constants.toArray()));
+    }
+
+    public int size() {
+        expungeUnloaded();
+        return entries.size();
+    }
+
+    /**
+     * The size of the class files of the cached classes.
+     */
+    public long getClassBytes() {
+        expungeUnloaded();
+        return classBytes.get();
+    }
+
+    public void clear() {
+        for (Map.Entry<ExpressionShape, Object> entry : entries.entrySet())
+            remove(entry.getKey(), entry.getValue());
+    }
+
+    private LambdaFactory factory(ExpressionShape shape, Callable<LambdaFactory> compilation) {
+        expungeUnloaded();
+
+        while (true) {
+            Object entry = entries.get(shape);
+
+            if (entry instanceof Compiled) {
+                LambdaFactory factory = ((Compiled) entry).factory(clock.incrementAndGet());
+                if (factory != null)
+                    return factory;
+
+                //unloaded but not yet expunged
+                remove(shape, entry);
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            FutureTask<LambdaFactory> task = (FutureTask<LambdaFactory>) entry;
+
+            if (task == null) {
+                FutureTask<LambdaFactory> created = new FutureTask<>(compilation);
+                Object previous = entries.putIfAbsent(shape, created);
+
+                if (previous != null)
+                    continue;
+
+                created.run();
+                LambdaFactory factory = await(shape, created);
+
+                Compiled compiled = new Compiled(shape, factory, retention == Retention.STRONG, unloaded, clock.incrementAndGet());
+                if (entries.replace(shape, created, compiled)) {
+                    classBytes.addAndGet(compiled.size);
+                    evict();
+                }
+
+                return factory;
+            }
+
+            return await(shape, task);
+        }
+    }
+
+    private LambdaFactory await(ExpressionShape shape, FutureTask<LambdaFactory> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for compilation", e);
+        } catch (ExecutionException e) {
+            entries.remove(shape, task);
+
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void remove(ExpressionShape shape, Object entry) {
+        if (entries.remove(shape, entry) && entry instanceof Compiled)
+            classBytes.addAndGet(-((Compiled) entry).size);
+    }
+
+    private void expungeUnloaded() {
+        Reference<? extends Class<?>> reference;
+        while ((reference = unloaded.poll()) != null) {
+            Compiled compiled = (Compiled) reference;
+            remove(compiled.shape, compiled);
+        }
+    }
+
+    private void evict() {
+        if (classBytes.get() <= metaspaceBudget)
+            return;
+
+        synchronized (this) {
+            List<Compiled> compiled = new ArrayList<>();
+            for (Object entry : entries.values()) {
+                if (entry instanceof Compiled)
+                    compiled.add((Compiled) entry);
+            }
+
+            Collections.sort(compiled, new Comparator<Compiled>() {
+                @Override
+                public int compare(Compiled left, Compiled right) {
+                    return Long.compare(left.lastUsed, right.lastUsed);
+                }
+            });
+
+            for (Compiled entry : compiled) {
+                if (classBytes.get() <= metaspaceBudget)
+                    break;
+                remove(entry.shape, entry);
+            }
+        }
+    }
+
+    /**
+     * A compiled class, referenced weakly so it can be unloaded, and strongly through its factory
+     * when the cache retains it.
+     */
+    private static final class Compiled extends WeakReference<Class<?>> {
+        final ExpressionShape shape;
+        final int size;
+        final LambdaFactory retained;
+        volatile long lastUsed;
+
+        Compiled(ExpressionShape shape, LambdaFactory factory, boolean retain, ReferenceQueue<Class<?>> unloaded, long now) {
+            super(factory.getGeneratedClass(), retain ? null : unloaded);
+            this.shape = shape;
+            this.size = factory.getClassSize();
+            this.retained = retain ? factory : null;
+            this.lastUsed = now;
+        }
+
+        LambdaFactory factory(long now) {
+            lastUsed = now;
+
+            if (retained != null)
+                return retained;
+
+            Class<?> clazz = get();
+            return clazz != null ? new LambdaFactory(clazz, size) : null;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package linq4j.compiler;
+
+import linq4j.expressions.Expression;
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.ParameterExpression;
+import linq4j.visitors.ByteCodeGenerator;
+import linq4j.visitors.ExpressionOptimizer;
+import linq4j.visitors.ExpressionVisitor;
+import linq4j.visitors.FrameTracker;
+import linq4j.visitors.LoopInvariantHoister;
+import linq4j.visitors.MethodSplitter;
+import linq4j.visitors.SlotAllocator;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Compiles a {@link LambdaExpression} into a class implementing a functional interface.
+ *
+ * The body is emitted into a private {@code invoke} method typed after the lambda parameters and the
+ * interface method only adapts its arguments, so primitive interfaces such as {@code IntPredicate}
+ * never box at the call boundary. Constants are hoisted into final fields initialized by the
+ * constructor, see {@link LambdaCache}. Large bodies are split into several methods, see
+ * {@link MethodSplitter}. Stack map frames come from the generator, see {@link FrameTracker}, rather
+ * than from an ASM pass loading the classes the code uses.
+ */
+public final class LambdaCompiler {
+    private static final AtomicLong COUNTER = new AtomicLong();
+    private static final String INVOKE = "invoke";
+    private static final String INITIALIZE = "initialize$";
+
+    //fields a single method can initialize well within the 64KB method limit
+    private static final int CONSTANTS_PER_METHOD = 2048;
+
+    private LambdaCompiler() {
+    }
+
+    /**
+     * Compiles {@code lambda} into a new class without going through {@link LambdaCache}.
+     */
+    public static <F> F compile(final LambdaExpression lambda, final Class<F> functionalInterface) {
+        return DeepTrees.compile(lambda, new Supplier<F>() {
+            @Override
+            public F get() {
+                List<Object> constants = new ArrayList<>();
+                LambdaFactory factory = define(new ExpressionOptimizer().optimize(lambda), functionalInterface, ClassDefinition.preferred(), constants);
+                return functionalInterface.cast(factory.newInstance(constants.toArray()));
+            }
+        });
+    }
+
+    /**
+     * Compiles {@code lambdas} into as few classes as possible, for large sets of small lambdas
+     * where a class each would cost too much time and metaspace. Packed lambdas are not cached.
+     */
+    public static <F> List<F> compileAll(final List<LambdaExpression> lambdas, final Class<F> functionalInterface) {
+        return DeepTrees.compile(lambdas, new Supplier<List<F>>() {
+            @Override
+            public List<F> get() {
+                return LambdaPacker.compile(lambdas, functionalInterface, ClassDefinition.preferred());
+            }
+        });
+    }
+
+    static long nextId() {
+        return COUNTER.incrementAndGet();
+    }
+
+    static LambdaFactory define(LambdaExpression lambda, Class<?> functionalInterface, ClassDefinition definition) {
+        return define(lambda, functionalInterface, definition, new ArrayList<>());
+    }
+
+    private static LambdaFactory define(LambdaExpression lambda, Class<?> functionalInterface, ClassDefinition definition, List<Object> constants) {
+        Method sam = FunctionalInterfaces.findMethod(functionalInterface);
+        checkParameters(lambda, sam);
+
+        definition = definition.linking(nestsLambdas(lambda));
+        String className = definition.className(nextId());
+
+        ConstantHoister hoister = new ConstantHoister(className);
+        Expression body = hoister.visit(lambda.getBody());
+        constants.addAll(hoister.getValues());
+
+        //hoisted constants are final fields, so loops can read them once
+        body = LoopInvariantHoister.hoist(body, lambda.getParameters(), className);
+
+        MethodSplitter splitter = new MethodSplitter(className, INVOKE + "$");
+        body = splitter.split(body, MethodSplitter.entryBudget(body));
+
+        byte[] bytes = generate(className, lambda, body, splitter, hoister.getTypes(), functionalInterface, sam, definition.classLoader());
+
+        return new LambdaFactory(definition.define(className, bytes), bytes.length);
+    }
+
+    /**
+     * True when the body of {@code lambda} creates lambdas.
+     */
+    static boolean nestsLambdas(LambdaExpression lambda) {
+        final boolean[] nested = {false};
+
+        new ExpressionVisitor() {
+            @Override
+            public Expression visitLambda(LambdaExpression lambdaExpression) {
+                nested[0] = true;
+                return lambdaExpression;
+            }
+        }.visit(lambda.getBody());
+
+        return nested[0];
+    }
+
+    static void checkParameters(LambdaExpression lambda, Method sam) {
+        List<ParameterExpression> parameters = lambda.getParameters();
+
+        if (parameters.size() != sam.getParameterTypes().length)
+            throw new IllegalArgumentException("Lambda has " + parameters.size() + " parameters but " + sam + " takes " + sam.getParameterTypes().length);
+
+        int slot = 1;
+        for (ParameterExpression parameter : parameters) {
+            if (parameter.getIndex() != slot)
+                throw new IllegalArgumentException("Parameter " + parameter.getName() + " must use index " + slot);
+
+            slot += ByteCodeGenerator.typeOf(parameter.getType()).getSize();
+        }
+    }
+
+    /**
+     * {@code this.cN = (T) constants[N]} for the constants {@code from} to {@code to}.
+     */
+    private static void initializeConstants(ClassWriter cw, MethodVisitor method, String className, List<Class<?>> constantTypes, int from, int to) {
+        ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, method);
+
+        for (int i = from; i < to; i++) {
+            Class<?> type = constantTypes.get(i);
+
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            method.visitVarInsn(Opcodes.ALOAD, 1);
+            byteCodeGenerator.loadInt(i);
+            method.visitInsn(Opcodes.AALOAD);
+            byteCodeGenerator.convert(Object.class, type);
+            method.visitFieldInsn(Opcodes.PUTFIELD, className, ConstantHoister.fieldName(i), ByteCodeGenerator.typeOf(type).getDescriptor());
+        }
+    }
+
+    private static byte[] generate(String className, LambdaExpression lambda, Expression body, MethodSplitter splitter, List<Class<?>> constantTypes,
+                                   Class<?> functionalInterface, Method sam, ClassLoader classLoader) {
+        GeneratedClassWriter cw = new GeneratedClassWriter(0, classLoader);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null,
+                Type.getInternalName(Object.class), new String[]{Type.getInternalName(functionalInterface)});
+
+        //too many fields for the constructor to initialize are not final, and initialized by helpers
+        boolean split = constantTypes.size() > CONSTANTS_PER_METHOD;
+        int fieldAccess = split ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL;
+
+        for (int i = 0; i < constantTypes.size(); i++) {
+            String descriptor = ByteCodeGenerator.typeOf(constantTypes.get(i)).getDescriptor();
+            cw.visitField(fieldAccess, ConstantHoister.fieldName(i), descriptor, null, null).visitEnd();
+        }
+
+        {
+            String ctorDesc = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(Object[].class));
+            MethodVisitor ctor = cw.method(className, Opcodes.ACC_PUBLIC, "<init>", ctorDesc);
+            ctor.visitCode();
+            ctor.visitVarInsn(Opcodes.ALOAD, 0);
+            ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+
+            if (split) {
+                for (int from = 0; from < constantTypes.size(); from += CONSTANTS_PER_METHOD) {
+                    String name = INITIALIZE + from / CONSTANTS_PER_METHOD;
+                    MethodVisitor initialize = cw.method(className, Opcodes.ACC_PRIVATE, name, ctorDesc);
+                    initialize.visitCode();
+                    initializeConstants(cw, initialize, className, constantTypes, from, Math.min(from + CONSTANTS_PER_METHOD, constantTypes.size()));
+                    initialize.visitInsn(Opcodes.RETURN);
+                    initialize.visitMaxs(0, 0);
+                    initialize.visitEnd();
+
+                    ctor.visitVarInsn(Opcodes.ALOAD, 0);
+                    ctor.visitVarInsn(Opcodes.ALOAD, 1);
+                    ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, className, name, ctorDesc, false);
+                }
+            } else {
+                initializeConstants(cw, ctor, className, constantTypes, 0, constantTypes.size());
+            }
+
+            ctor.visitInsn(Opcodes.RETURN);
+            ctor.visitMaxs(0, 0);
+            ctor.visitEnd();
+        }
+
+        List<ParameterExpression> parameters = lambda.getParameters();
+        Type[] parameterTypes = new Type[parameters.size()];
+        for (int i = 0; i < parameterTypes.length; i++)
+            parameterTypes[i] = ByteCodeGenerator.typeOf(parameters.get(i).getType());
+
+        Class<?> returnType = lambda.getReturnType();
+        String invokeDesc = Type.getMethodDescriptor(ByteCodeGenerator.typeOf(returnType), parameterTypes);
+
+        {
+            MethodVisitor invoke = cw.method(className, Opcodes.ACC_PRIVATE, INVOKE, invokeDesc);
+            invoke.visitCode();
+
+            ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, invoke, className);
+            byteCodeGenerator.visit(SlotAllocator.allocate(body, parameters));
+            byteCodeGenerator.emitReturn(returnType);
+
+            invoke.visitMaxs(0, 0);
+            invoke.visitEnd();
+        }
+
+        splitter.generate(cw, cw.tracksFrames());
+
+        {
+            MethodVisitor bridge = cw.method(className, Opcodes.ACC_PUBLIC, sam.getName(), Type.getMethodDescriptor(sam));
+            bridge.visitCode();
+
+            ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, bridge);
+            Class<?>[] samTypes = sam.getParameterTypes();
+
+            bridge.visitVarInsn(Opcodes.ALOAD, 0);
+
+            int slot = 1;
+            for (int i = 0; i < samTypes.length; i++) {
+                Type type = Type.getType(samTypes[i]);
+                bridge.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+                byteCodeGenerator.convert(samTypes[i], parameters.get(i).getType());
+                slot += type.getSize();
+            }
+
+            bridge.visitMethodInsn(Opcodes.INVOKESPECIAL, className, INVOKE, invokeDesc, false);
+            byteCodeGenerator.convert(returnType, sam.getReturnType());
+            byteCodeGenerator.emitReturn(sam.getReturnType());
+
+            bridge.visitMaxs(0, 0);
+            bridge.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
@@ -0,0 +1,43 @@
+package linq4j.compiler;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Creates instances of a generated lambda class from the constants hoisted out of its tree.
+ */
+final class LambdaFactory {
+    private final Constructor<?> constructor;
+    private final int classSize;
+
+    LambdaFactory(Class<?> clazz, int classSize) {
+        this.classSize = classSize;
+
+        try {
+            this.constructor = clazz.getConstructor(Object[].class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Cannot find constructor of " + clazz.getName(), e);
+        }
+    }
+
+    Class<?> getGeneratedClass() {
+        return constructor.getDeclaringClass();
+    }
+
+    /**
+     * The size of the class file, an estimate of the metaspace the class takes.
+     */
+    int getClassSize() {
+        return classSize;
+    }
+
+    Object newInstance(Object[] constants) {
+        try {
+            return constructor.newInstance((Object) constants);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Constant does not match its declared type", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot instantiate " + constructor.getDeclaringClass().getName(), e);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package linq4j.compiler;
+
+import linq4j.expressions.ConstantExpression;
+import linq4j.expressions.Expression;
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.ParameterExpression;
+import linq4j.visitors.ByteCodeGenerator;
+import linq4j.visitors.CodeSize;
+import linq4j.visitors.ExpressionOptimizer;
+import linq4j.visitors.ExpressionVisitor;
+import linq4j.visitors.LoopInvariantHoister;
+import linq4j.visitors.MethodSplitter;
+import linq4j.visitors.SlotAllocator;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiles many lambdas into few classes, see {@link LambdaCompiler#compileAll}.
+ *
+ * Lambda i of a class becomes a static method {@code invoke$i} taking the constants of the lambda
+ * and its parameters. The class implements the functional interface and its instances hold the
+ * index of their lambda, which the interface method switches on. Primitive and string constants are
+ * loaded from the shared constant pool, other constants are read from the array of the instance.
+ *
+ * A class takes lambdas until its switching method would outgrow
+ * {@link MethodSplitter#HUGE_METHOD_LIMIT}, which the JIT never compiles, each case loading and
+ * converting every parameter, or until its trees have {@link #MAX_NODES} nodes, keeping it well
+ * under the limits of the class file format.
+ */
+final class LambdaPacker {
+    static final int MAX_NODES = 16384;
+
+    private static final String INVOKE = "invoke$";
+    private static final String ID = "id";
+    private static final String CONSTANTS = "constants";
+
+    private final Class<?> functionalInterface;
+    private final Method sam;
+    private final ClassDefinition definition;
+
+    private LambdaPacker(Class<?> functionalInterface, ClassDefinition definition) {
+        this.functionalInterface = functionalInterface;
+        this.sam = FunctionalInterfaces.findMethod(functionalInterface);
+        this.definition = definition;
+    }
+
+    static <F> List<F> compile(List<LambdaExpression> lambdas, Class<F> functionalInterface, ClassDefinition definition) {
+        LambdaPacker packer = new LambdaPacker(functionalInterface, definition);
+
+        List<LambdaExpression> optimized = new ArrayList<>(lambdas.size());
+        for (LambdaExpression lambda : lambdas) {
+            LambdaCompiler.checkParameters(lambda, packer.sam);
+            optimized.add(new ExpressionOptimizer().optimize(lambda));
+        }
+
+        List<F> compiled = new ArrayList<>(lambdas.size());
+        int emptyBridge = bridgeSize(Collections.<LambdaExpression>emptyList(), functionalInterface);
+        int from = 0;
+        while (from < optimized.size()) {
+            int to = from;
+            int nodes = 0;
+            int bridge = emptyBridge;
+            while (to < optimized.size()) {
+                int size = NodeCounter.count(optimized.get(to));
+                int caseSize = packer.caseSize(optimized.get(to));
+                if (to > from && (nodes + size > MAX_NODES || bridge + caseSize > MethodSplitter.HUGE_METHOD_LIMIT))
+                    break;
+
+                nodes += size;
+                bridge += caseSize;
+                to++;
+            }
+
+            packer.define(optimized.subList(from, to), functionalInterface, compiled);
+            from = to;
+        }
+
+        return compiled;
+    }
+
+    private <F> void define(List<LambdaExpression> lambdas, Class<F> type, List<F> compiled) {
+        boolean nestedLambdas = false;
+        for (LambdaExpression lambda : lambdas)
+            nestedLambdas |= LambdaCompiler.nestsLambdas(lambda);
+
+        ClassDefinition definition = this.definition.linking(nestedLambdas);
+        String className = definition.className(LambdaCompiler.nextId());
+        List<Object[]> constants = new ArrayList<>(lambdas.size());
+
+        byte[] bytes = generate(className, definition, lambdas, constants);
+
+        Class<?> clazz = definition.define(className, bytes);
+        try {
+            Constructor<?> constructor = clazz.getConstructor(Integer.TYPE, Object[].class);
+            for (int i = 0; i < lambdas.size(); i++)
+                compiled.add(type.cast(constructor.newInstance(i, constants.get(i))));
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException("Cannot instantiate " + clazz.getName(), e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot instantiate " + clazz.getName(), e.getCause());
+        }
+    }
+
+    private byte[] generate(String className, ClassDefinition definition, List<LambdaExpression> lambdas, List<Object[]> constants) {
+        GeneratedClassWriter cw = new GeneratedClassWriter(0, definition.classLoader());
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null,
+                Type.getInternalName(Object.class), new String[]{Type.getInternalName(functionalInterface)});
+
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, ID, Type.INT_TYPE.getDescriptor(), null, null).visitEnd();
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, CONSTANTS, Type.getDescriptor(Object[].class), null, null).visitEnd();
+        generateConstructor(cw, className);
+
+        String[] descriptors = new String[lambdas.size()];
+        for (int i = 0; i < lambdas.size(); i++) {
+            ConstantReader reader = new ConstantReader();
+            descriptors[i] = generateInvoke(cw, className, i, lambdas.get(i), reader);
+            constants.add(reader.values.toArray());
+        }
+
+        MethodVisitor bridge = cw.method(className, Opcodes.ACC_PUBLIC, sam.getName(), Type.getMethodDescriptor(sam));
+        bridge.visitCode();
+        generateBridge(cw, bridge, className, lambdas, descriptors);
+        bridge.visitMaxs(0, 0);
+        bridge.visitEnd();
+        cw.visitEnd();
+
+        return cw.toByteArray();
+    }
+
+    private static void generateConstructor(GeneratedClassWriter cw, String className) {
+        String ctorDesc = Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE, Type.getType(Object[].class));
+        MethodVisitor ctor = cw.method(className, Opcodes.ACC_PUBLIC, "<init>", ctorDesc);
+        ctor.visitCode();
+        ctor.visitVarInsn(Opcodes.ALOAD, 0);
+        ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+        ctor.visitVarInsn(Opcodes.ALOAD, 0);
+        ctor.visitVarInsn(Opcodes.ILOAD, 1);
+        ctor.visitFieldInsn(Opcodes.PUTFIELD, className, ID, Type.INT_TYPE.getDescriptor());
+        ctor.visitVarInsn(Opcodes.ALOAD, 0);
+        ctor.visitVarInsn(Opcodes.ALOAD, 2);
+        ctor.visitFieldInsn(Opcodes.PUTFIELD, className, CONSTANTS, Type.getDescriptor(Object[].class));
+        ctor.visitInsn(Opcodes.RETURN);
+        ctor.visitMaxs(0, 0);
+        ctor.visitEnd();
+    }
+
+    /**
+     * {@code private static R invoke$i(Object[] constants, parameters...)}, the lambda parameters
+     * keep their slots since the constants take the slot of {@code this}.
+     */
+    private static String generateInvoke(GeneratedClassWriter cw, String className, int index, LambdaExpression lambda, ConstantReader reader) {
+        Expression body = reader.visit(lambda.getBody());
+        body = LoopInvariantHoister.hoist(body, lambda.getParameters(), className);
+
+        MethodSplitter splitter = new MethodSplitter(className, INVOKE + index + "$");
+        body = splitter.split(body, MethodSplitter.entryBudget(body));
+        splitter.generate(cw, cw.tracksFrames());
+
+        List<ParameterExpression> parameters = lambda.getParameters();
+        Type[] types = new Type[parameters.size() + 1];
+        types[0] = Type.getType(Object[].class);
+        for (int i = 0; i < parameters.size(); i++)
+            types[i + 1] = ByteCodeGenerator.typeOf(parameters.get(i).getType());
+
+        String descriptor = Type.getMethodDescriptor(ByteCodeGenerator.typeOf(lambda.getReturnType()), types);
+        MethodVisitor invoke = cw.method(className, Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, INVOKE + index, descriptor);
+        invoke.visitCode();
+
+        ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, invoke, className);
+        byteCodeGenerator.visit(SlotAllocator.allocate(body, parameters));
+        byteCodeGenerator.emitReturn(lambda.getReturnType());
+
+        invoke.visitMaxs(0, 0);
+        invoke.visitEnd();
+        return descriptor;
+    }
+
+    /**
+     * The bytes of code of the method of {@code functionalInterface} switching to {@code lambdas}.
+     */
+    static int bridgeSize(List<LambdaExpression> lambdas, Class<?> functionalInterface) {
+        CodeSize size = new CodeSize();
+        new LambdaPacker(functionalInterface, null).generateBridge(null, size, "", lambdas, new String[lambdas.size()]);
+        return size.getSize();
+    }
+
+    /**
+     * The bytes of code {@code lambda} adds to the interface method, its case and its entry in the
+     * table of the switch.
+     */
+    private int caseSize(LambdaExpression lambda) {
+        CodeSize size = new CodeSize();
+        generateCase(new ByteCodeGenerator(null, size), size, "", 0, lambda, null);
+        return size.getSize() + 4;
+    }
+
+    /**
+     * The interface method, {@code switch (id) { case i: return invoke$i(constants, args...); }}.
+     */
+    private void generateBridge(GeneratedClassWriter cw, MethodVisitor bridge, String className, List<LambdaExpression> lambdas, String[] descriptors) {
+        ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, bridge);
+
+        Label[] cases = new Label[lambdas.size()];
+        for (int i = 0; i < cases.length; i++)
+            cases[i] = new Label();
+        Label unknown = new Label();
+
+        bridge.visitVarInsn(Opcodes.ALOAD, 0);
+        bridge.visitFieldInsn(Opcodes.GETFIELD, className, ID, Type.INT_TYPE.getDescriptor());
+        bridge.visitTableSwitchInsn(0, cases.length - 1, unknown, cases);
+
+        for (int i = 0; i < cases.length; i++) {
+            bridge.visitLabel(cases[i]);
+            generateCase(byteCodeGenerator, bridge, className, i, lambdas.get(i), descriptors[i]);
+        }
+
+        bridge.visitLabel(unknown);
+        bridge.visitTypeInsn(Opcodes.NEW, Type.getInternalName(IllegalStateException.class));
+        bridge.visitInsn(Opcodes.DUP);
+        bridge.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(IllegalStateException.class), "<init>", "()V", false);
+        bridge.visitInsn(Opcodes.ATHROW);
+    }
+
+    private void generateCase(ByteCodeGenerator byteCodeGenerator, MethodVisitor bridge, String className, int index, LambdaExpression lambda, String descriptor) {
+        List<ParameterExpression> parameters = lambda.getParameters();
+        Class<?>[] samTypes = sam.getParameterTypes();
+
+        bridge.visitVarInsn(Opcodes.ALOAD, 0);
+        bridge.visitFieldInsn(Opcodes.GETFIELD, className, CONSTANTS, Type.getDescriptor(Object[].class));
+
+        int slot = 1;
+        for (int k = 0; k < samTypes.length; k++) {
+            Type type = Type.getType(samTypes[k]);
+            bridge.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+            byteCodeGenerator.convert(samTypes[k], parameters.get(k).getType());
+            slot += type.getSize();
+        }
+
+        bridge.visitMethodInsn(Opcodes.INVOKESTATIC, className, INVOKE + index, descriptor, false);
+        byteCodeGenerator.convert(lambda.getReturnType(), sam.getReturnType());
+        byteCodeGenerator.emitReturn(sam.getReturnType());
+    }
+
+    /**
+     * Replaces the constants the constant pool cannot hold with reads of the constants parameter.
+     */
+    private static final class ConstantReader extends ExpressionVisitor {
+        private static final ParameterExpression CONSTANTS = Expression.parameter(0, "constants", Object[].class);
+
+        private final List<Object> values = new ArrayList<>();
+
+        @Override
+        public Expression visitConstant(ConstantExpression constantExpression) {
+            Class<?> type = constantExpression.getType();
+            Object value = constantExpression.getValue();
+
+            //boxing again would lose the identity of boxed constants
+            if (value == null || type.isPrimitive() || type == String.class)
+                return constantExpression;
+
+            Expression index = Expression.constant(values.size());
+            values.add(value);
+            return Expression.convert(Expression.arrayAccess(CONSTANTS, index), type);
+        }
+    }
+
+    private static final class NodeCounter extends ExpressionVisitor {
+        private int count;
+
+        static int count(LambdaExpression lambda) {
+            NodeCounter counter = new NodeCounter();
+            counter.visit(lambda.getBody());
+            return counter.count;
+        }
+
+        @Override
+        public Expression visit(Expression expression) {
+            count++;
+            return super.visit(expression);
+        }
+    }
+}
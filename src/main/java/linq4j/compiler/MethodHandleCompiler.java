@@ -0,0 +1,46 @@
+package linq4j.compiler;
+
+import linq4j.expressions.LambdaExpression;
+import linq4j.visitors.ExpressionOptimizer;
+import linq4j.visitors.MethodHandleGenerator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Compiles lambdas into method handle trees through {@link MethodHandleGenerator}, without
+ * defining classes. Building a handle tree is much cheaper than generating and loading a class,
+ * but the tree is slower once warm unless callers hold the handle in a constant, such as a static
+ * final field, and call it with {@link MethodHandle#invokeExact} so the JIT can inline through it.
+ *
+ * A handle tree nests as deep as the expression tree and is built and invoked recursively on the
+ * calling thread, so unlike classes it is limited to trees about a thousand levels deep.
+ */
+public final class MethodHandleCompiler {
+    private MethodHandleCompiler() {
+    }
+
+    /**
+     * A handle taking the parameters of {@code lambda} and returning its value.
+     */
+    public static MethodHandle compile(LambdaExpression lambda) {
+        return new MethodHandleGenerator().generateLambda(new ExpressionOptimizer().optimize(lambda));
+    }
+
+    /**
+     * The handle of {@code lambda} behind {@code functionalInterface}, through
+     * {@link MethodHandleProxies}, whose proxy class is defined once per interface by the JDK.
+     */
+    public static <F> F compile(LambdaExpression lambda, Class<F> functionalInterface) {
+        Method sam = FunctionalInterfaces.findMethod(functionalInterface);
+        MethodHandle handle = compile(lambda);
+
+        if (sam.getParameterTypes().length != handle.type().parameterCount())
+            throw new IllegalArgumentException(functionalInterface.getName() + "." + sam.getName() + " takes " + sam.getParameterTypes().length + " parameters but the lambda takes " + handle.type().parameterCount());
+
+        MethodType type = MethodType.methodType(sam.getReturnType(), sam.getParameterTypes());
+        return MethodHandleProxies.asInterfaceInstance(functionalInterface, MethodHandleGenerator.cast(handle, type));
+    }
+}
@@ -0,0 +1,13 @@
+package linq4j.compiler;
+
+/**
+ * A projection compiled by {@link BatchCompiler#project}.
+ */
+public interface ProjectionKernel {
+    /**
+     * Writes the value of every row in {@code [from, to)} into the same index of {@code output}, an
+     * array of the projection type. Rows where a column is null are set in {@code outputNulls},
+     * which may only be null when no column has a null bitmap.
+     */
+    void project(Object[] columns, long[][] nulls, int from, int to, Object output, long[] outputNulls);
+}
@@ -0,0 +1,15 @@
+package linq4j.compiler;
+
+/**
+ * A filter compiled by {@link BatchCompiler#filter}.
+ */
+public interface SelectionKernel {
+    /**
+     * Writes the rows in {@code [from, to)} matching the filter into {@code selection}, in order,
+     * and returns how many there are. {@code nulls} may be null when no column has null bitmap.
+     *
+     * @throws IllegalArgumentException if {@code selection} has no room for {@code to - from} rows,
+     * which branch-free filters may write before counting them
+     */
+    int select(Object[] columns, long[][] nulls, int from, int to, int[] selection);
+}
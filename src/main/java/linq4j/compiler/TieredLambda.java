@@ -0,0 +1,225 @@
+package linq4j.compiler;
+
+import linq4j.expressions.LambdaExpression;
+import linq4j.visitors.ByteCodeGenerator;
+import linq4j.visitors.ExpressionOptimizer;
+import linq4j.visitors.Interpreter;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a lambda through the {@link Interpreter} until it was invoked {@code threshold} times, then
+ * compiles it in the background and swaps the compiled instance in.
+ *
+ * Callers use {@link #getDelegate()}, an instance of a small stub class: it calls the compiled
+ * lambda when there is one and falls back to the interpreter otherwise. The code of the stub is
+ * generated once per functional interface, but each lambda defines it as a class of its own, so
+ * the call to the compiled lambda only ever sees one receiver class and stays monomorphic instead
+ * of going through every lambda compiled for the same interface.
+ */
+public final class TieredLambda<F> {
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final String STUB = "linq4j/generated/Tiered";
+    private static final String TIER = "tier";
+
+    private static final ClassValue<byte[]> STUBS = new ClassValue<byte[]>() {
+        @Override
+        protected byte[] computeValue(Class<?> functionalInterface) {
+            return generateStub(functionalInterface);
+        }
+    };
+
+    private final LambdaExpression lambda;
+    private final Class<F> functionalInterface;
+    private final int threshold;
+    private final Executor executor;
+    private final Map<Object, AccessibleObject> resolved = new ConcurrentHashMap<>();
+    private final AtomicReference<Interpreter> idle = new AtomicReference<>();
+    private final AtomicInteger invocations = new AtomicInteger();
+    private final F delegate;
+    private volatile Object compiled;
+    private volatile Throwable failure;
+
+    private TieredLambda(LambdaExpression lambda, Class<F> functionalInterface, int threshold, Executor executor) {
+        this.lambda = new ExpressionOptimizer().optimize(lambda);
+        this.functionalInterface = functionalInterface;
+        this.threshold = threshold;
+        this.executor = executor;
+
+        try {
+            Class<?> stub = new GeneratedClassLoader(GeneratedClassLoader.defaultParent()).define(STUB, STUBS.get(functionalInterface));
+            this.delegate = functionalInterface.cast(stub.getConstructor(TieredLambda.class).newInstance(this));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot instantiate stub for " + functionalInterface.getName(), e);
+        }
+    }
+
+    public static <F> TieredLambda<F> create(LambdaExpression lambda, Class<F> functionalInterface) {
+        return create(lambda, functionalInterface, DEFAULT_THRESHOLD, ForkJoinPool.commonPool());
+    }
+
+    public static <F> TieredLambda<F> create(LambdaExpression lambda, Class<F> functionalInterface, int threshold, Executor executor) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("threshold must not be negative");
+
+        TieredLambda<F> tiered = new TieredLambda<>(lambda, functionalInterface, threshold, executor);
+
+        if (threshold == 0)
+            tiered.compileAsync();
+
+        return tiered;
+    }
+
+    public F getDelegate() {
+        return delegate;
+    }
+
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+
+    public int getInvocations() {
+        return invocations.get();
+    }
+
+    /**
+     * The error of the background compilation, if it failed. The lambda keeps being interpreted.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Called by the stub on every invocation, null until the compiled lambda is available.
+     */
+    public Object compiled() {
+        return compiled;
+    }
+
+    /**
+     * Called by the stub while the lambda is cold. An interpreter holds the state of the evaluation
+     * it runs, so one is reused by the calls that find it idle, while concurrent and reentrant calls
+     * get one of their own.
+     */
+    public Object interpret(Object[] arguments) {
+        if (invocations.incrementAndGet() == threshold)
+            compileAsync();
+
+        Interpreter interpreter = idle.getAndSet(null);
+        if (interpreter == null)
+            interpreter = new Interpreter(GeneratedClassLoader.defaultParent(), resolved);
+
+        try {
+            return interpreter.evaluate(lambda, arguments);
+        } finally {
+            idle.set(interpreter);
+        }
+    }
+
+    private void compileAsync() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compiled = LambdaCache.getDefault().compile(lambda, functionalInterface);
+                } catch (RuntimeException | LinkageError e) {
+                    failure = e;
+                }
+            }
+        });
+    }
+
+    private static byte[] generateStub(Class<?> functionalInterface) {
+        Method sam = FunctionalInterfaces.findMethod(functionalInterface);
+        String className = STUB;
+        String tierName = Type.getInternalName(TieredLambda.class);
+        String tierDesc = Type.getDescriptor(TieredLambda.class);
+        ClassLoader parent = GeneratedClassLoader.defaultParent();
+
+        ClassWriter cw = new GeneratedClassWriter(ClassWriter.COMPUTE_FRAMES, parent);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null,
+                Type.getInternalName(Object.class), new String[]{Type.getInternalName(functionalInterface)});
+
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, TIER, tierDesc, null, null).visitEnd();
+
+        {
+            MethodVisitor ctor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(TieredLambda.class)), null, null);
+            ctor.visitCode();
+            ctor.visitVarInsn(Opcodes.ALOAD, 0);
+            ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
+            ctor.visitVarInsn(Opcodes.ALOAD, 0);
+            ctor.visitVarInsn(Opcodes.ALOAD, 1);
+            ctor.visitFieldInsn(Opcodes.PUTFIELD, className, TIER, tierDesc);
+            ctor.visitInsn(Opcodes.RETURN);
+            ctor.visitMaxs(0, 0);
+            ctor.visitEnd();
+        }
+
+        {
+            MethodVisitor stub = cw.visitMethod(Opcodes.ACC_PUBLIC, sam.getName(), Type.getMethodDescriptor(sam), null, null);
+            stub.visitCode();
+
+            ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, stub);
+            Class<?>[] types = sam.getParameterTypes();
+            Label interpret = new Label();
+
+            //compiled = tier.compiled(); if (compiled != null) return ((F) compiled).sam(args...)
+            stub.visitVarInsn(Opcodes.ALOAD, 0);
+            stub.visitFieldInsn(Opcodes.GETFIELD, className, TIER, tierDesc);
+            stub.visitMethodInsn(Opcodes.INVOKEVIRTUAL, tierName, "compiled", Type.getMethodDescriptor(Type.getType(Object.class)), false);
+            stub.visitInsn(Opcodes.DUP);
+            stub.visitJumpInsn(Opcodes.IFNULL, interpret);
+            stub.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(functionalInterface));
+
+            int slot = 1;
+            for (Class<?> type : types) {
+                stub.visitVarInsn(Type.getType(type).getOpcode(Opcodes.ILOAD), slot);
+                slot += Type.getType(type).getSize();
+            }
+
+            stub.visitMethodInsn(Opcodes.INVOKEINTERFACE, Type.getInternalName(functionalInterface), sam.getName(), Type.getMethodDescriptor(sam), true);
+            byteCodeGenerator.emitReturn(sam.getReturnType());
+
+            //return tier.interpret(new Object[] { args... })
+            stub.visitLabel(interpret);
+            stub.visitInsn(Opcodes.POP);
+            stub.visitVarInsn(Opcodes.ALOAD, 0);
+            stub.visitFieldInsn(Opcodes.GETFIELD, className, TIER, tierDesc);
+            byteCodeGenerator.loadInt(types.length);
+            stub.visitTypeInsn(Opcodes.ANEWARRAY, Type.getInternalName(Object.class));
+
+            slot = 1;
+            for (int i = 0; i < types.length; i++) {
+                stub.visitInsn(Opcodes.DUP);
+                byteCodeGenerator.loadInt(i);
+                stub.visitVarInsn(Type.getType(types[i]).getOpcode(Opcodes.ILOAD), slot);
+                byteCodeGenerator.convert(types[i], Object.class);
+                stub.visitInsn(Opcodes.AASTORE);
+                slot += Type.getType(types[i]).getSize();
+            }
+
+            stub.visitMethodInsn(Opcodes.INVOKEVIRTUAL, tierName, "interpret", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Object[].class)), false);
+            byteCodeGenerator.convert(Object.class, sam.getReturnType());
+            byteCodeGenerator.emitReturn(sam.getReturnType());
+
+            stub.visitMaxs(0, 0);
+            stub.visitEnd();
+        }
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
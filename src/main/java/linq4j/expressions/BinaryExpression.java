@@ -8,6 +8,8 @@ import linq4j.visitors.ExpressionVisitor;
 public class BinaryExpression extends Expression {
     private final Expression left;
     private final Expression right;
+    //computed once, the type of a chain of operators otherwise takes a walk down the chain
+    private Class<?> type;
 
     protected BinaryExpression(ExpressionType nodeType, Expression left, Expression right) {
         super(nodeType);
@@ -23,6 +25,45 @@ public class BinaryExpression extends Expression {
         return right;
     }
 
+    @Override
+    public Class<?> getType() {
+        if (type == null)
+            type = computeType();
+        return type;
+    }
+
+    private Class<?> computeType() {
+        switch (getNodeType()) {
+            case Assign:
+                return Void.TYPE;
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual:
+                return Boolean.TYPE;
+            case LeftShift:
+            case RightShift:
+                return TypeUtils.promote(left.getType());
+            case Power:
+                return Double.TYPE;
+            case AndAlso:
+            case OrElse:
+                return Boolean.TYPE;
+            case Coalesce:
+                return TypeUtils.coalesceType(left.getType(), right.getType());
+            case And:
+            case Or:
+            case ExclusiveOr:
+                if (TypeUtils.isBoolean(left.getType()) && TypeUtils.isBoolean(right.getType()))
+                    return Boolean.TYPE;
+                return TypeUtils.promote(left.getType(), right.getType());
+            default:
+                return TypeUtils.promote(left.getType(), right.getType());
+        }
+    }
+
     @Override
     public Expression accept(ExpressionVisitor visitor) {
         return visitor.visitBinary(this);
@@ -0,0 +1,11 @@
+package linq4j.expressions;
+
+/**
+ * How likely the test of a {@link ConditionalExpression} is to be true. The likely branch is laid
+ * out on the fall-through path of the generated code.
+ */
+public enum BranchHint {
+    None,
+    Likely,
+    Unlikely
+}
@@ -1,7 +1,49 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class ConditionalExpression {
+public class ConditionalExpression extends Expression {
+    private final Expression test;
+    private final Expression ifTrue;
+    private final Expression ifFalse;
+    private final Class<?> type;
+    private final BranchHint hint;
+
+    protected ConditionalExpression(Expression test, Expression ifTrue, Expression ifFalse, Class<?> type, BranchHint hint) {
+        super(ExpressionType.Conditional);
+        this.test = test;
+        this.ifTrue = ifTrue;
+        this.ifFalse = ifFalse;
+        this.type = type;
+        this.hint = hint;
+    }
+
+    public Expression getTest() {
+        return test;
+    }
+
+    public Expression getIfTrue() {
+        return ifTrue;
+    }
+
+    public Expression getIfFalse() {
+        return ifFalse;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    public BranchHint getHint() {
+        return hint;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitConditional(this);
+    }
 }
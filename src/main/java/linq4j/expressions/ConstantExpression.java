@@ -7,16 +7,26 @@ import linq4j.visitors.ExpressionVisitor;
  */
 public class ConstantExpression extends Expression {
     private final Object value;
+    private final Class<?> type;
 
-    protected ConstantExpression(Object value) {
+    protected ConstantExpression(Object value, Class<?> type) {
         super(ExpressionType.Constant);
         this.value = value;
+        this.type = type;
     }
 
     public Object getValue() {
         return value;
     }
 
+    /**
+     * Boxed values report their primitive type, so {@code constant(5)} is an {@code int}.
+     */
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
     @Override
     public Expression accept(ExpressionVisitor visitor) {
         return visitor.visitConstant(this);
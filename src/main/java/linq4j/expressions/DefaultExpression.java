@@ -1,7 +1,28 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class DefaultExpression {
+public class DefaultExpression extends Expression {
+    private final Class<?> type;
+
+    protected DefaultExpression(Class<?> type) {
+        super(ExpressionType.Default);
+        this.type = type;
+    }
+
+    /**
+     * Zero, false or null, nothing when {@code void}.
+     */
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitDefault(this);
+    }
 }
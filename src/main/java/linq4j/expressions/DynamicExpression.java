@@ -1,7 +1,46 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
- * Created by marrony on 6/15/17.
+ * The member {@code name} of an object whose class is only known when the expression runs: the
+ * public method {@code name} taking the arguments, or without arguments the getter
+ * {@code getName} or {@code isName}, or the field {@code name}. The member is looked up by the
+ * class of each object reaching it, and its value converted to {@code type}.
  */
-public class DynamicExpression {
+public class DynamicExpression extends Expression {
+    private final Class<?> type;
+    private final Expression expression;
+    private final String name;
+    private final Expression[] arguments;
+
+    protected DynamicExpression(Class<?> type, Expression expression, String name, Expression... arguments) {
+        super(ExpressionType.Dynamic);
+        this.type = type;
+        this.expression = expression;
+        this.name = name;
+        this.arguments = arguments;
+    }
+
+    public Expression getExpression() {
+        return expression;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Expression[] getArguments() {
+        return arguments;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitDynamic(this);
+    }
 }
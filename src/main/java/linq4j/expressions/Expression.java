@@ -1,8 +1,13 @@
 package linq4j.expressions;
 
 import linq4j.visitors.ExpressionVisitor;
+import linq4j.visitors.NestedLambdas;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public abstract class Expression {
     private final ExpressionType nodeType;
@@ -15,14 +20,12 @@ public abstract class Expression {
         return nodeType;
     }
 
+    public abstract Class<?> getType();
+
     public abstract Expression accept(ExpressionVisitor visitor);
 
-    //public static BinaryExpression add();
     //addAssign
-    //and
-    //arrayAccess
     //arrayIndex
-    //arrayLength
     //
 
     public static BinaryExpression makeBinary(ExpressionType nodeType, Expression left, Expression right) {
@@ -33,12 +36,240 @@ public abstract class Expression {
         return makeBinary(ExpressionType.Assign, left, right);
     }
 
+    public static BinaryExpression add(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Add, left, right);
+    }
+
+    public static BinaryExpression addChecked(Expression left, Expression right) {
+        return makeBinary(ExpressionType.AddChecked, left, right);
+    }
+
+    public static BinaryExpression subtract(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Subtract, left, right);
+    }
+
+    public static BinaryExpression subtractChecked(Expression left, Expression right) {
+        return makeBinary(ExpressionType.SubtractChecked, left, right);
+    }
+
+    public static BinaryExpression multiply(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Multiply, left, right);
+    }
+
+    public static BinaryExpression multiplyChecked(Expression left, Expression right) {
+        return makeBinary(ExpressionType.MultiplyChecked, left, right);
+    }
+
+    public static BinaryExpression divide(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Divide, left, right);
+    }
+
+    public static BinaryExpression modulo(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Modulo, left, right);
+    }
+
+    public static BinaryExpression power(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Power, left, right);
+    }
+
+    public static BinaryExpression and(Expression left, Expression right) {
+        return makeBinary(ExpressionType.And, left, right);
+    }
+
+    public static BinaryExpression or(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Or, left, right);
+    }
+
+    public static BinaryExpression exclusiveOr(Expression left, Expression right) {
+        return makeBinary(ExpressionType.ExclusiveOr, left, right);
+    }
+
+    public static BinaryExpression andAlso(Expression left, Expression right) {
+        return makeBinary(ExpressionType.AndAlso, left, right);
+    }
+
+    public static BinaryExpression orElse(Expression left, Expression right) {
+        return makeBinary(ExpressionType.OrElse, left, right);
+    }
+
+    /**
+     * {@code left != null ? left : right}, evaluating {@code left} once, of the type
+     * {@link TypeUtils#coalesceType} gives both sides.
+     */
+    public static BinaryExpression coalesce(Expression left, Expression right) {
+        if (left.getType().isPrimitive())
+            throw new IllegalArgumentException("Cannot coalesce " + left.getType().getName());
+        TypeUtils.coalesceType(left.getType(), right.getType());
+
+        return makeBinary(ExpressionType.Coalesce, left, right);
+    }
+
+    public static BinaryExpression leftShift(Expression left, Expression right) {
+        return makeBinary(ExpressionType.LeftShift, left, right);
+    }
+
+    public static BinaryExpression rightShift(Expression left, Expression right) {
+        return makeBinary(ExpressionType.RightShift, left, right);
+    }
+
+    public static BinaryExpression equal(Expression left, Expression right) {
+        return makeBinary(ExpressionType.Equal, left, right);
+    }
+
+    public static BinaryExpression notEqual(Expression left, Expression right) {
+        return makeBinary(ExpressionType.NotEqual, left, right);
+    }
+
+    public static BinaryExpression lessThan(Expression left, Expression right) {
+        return makeBinary(ExpressionType.LessThan, left, right);
+    }
+
+    public static BinaryExpression lessThanOrEqual(Expression left, Expression right) {
+        return makeBinary(ExpressionType.LessThanOrEqual, left, right);
+    }
+
+    public static BinaryExpression greaterThan(Expression left, Expression right) {
+        return makeBinary(ExpressionType.GreaterThan, left, right);
+    }
+
+    public static BinaryExpression greaterThanOrEqual(Expression left, Expression right) {
+        return makeBinary(ExpressionType.GreaterThanOrEqual, left, right);
+    }
+
+    public static ConditionalExpression condition(Expression test, Expression ifTrue, Expression ifFalse) {
+        return condition(test, ifTrue, ifFalse, BranchHint.None);
+    }
+
+    public static ConditionalExpression condition(Expression test, Expression ifTrue, Expression ifFalse, BranchHint hint) {
+        Class<?> a = ifTrue.getType();
+        Class<?> b = ifFalse.getType();
+
+        if (a == b)
+            return condition(test, ifTrue, ifFalse, a, hint);
+        if (TypeUtils.isNumeric(a) && TypeUtils.isNumeric(b))
+            return condition(test, ifTrue, ifFalse, TypeUtils.promote(a, b), hint);
+
+        throw new IllegalArgumentException("Branches have different types " + a.getName() + " and " + b.getName());
+    }
+
+    public static ConditionalExpression condition(Expression test, Expression ifTrue, Expression ifFalse, Class<?> type, BranchHint hint) {
+        if (!TypeUtils.isBoolean(test.getType()))
+            throw new IllegalArgumentException("Test must be boolean but is " + test.getType().getName());
+
+        return new ConditionalExpression(test, ifTrue, ifFalse, type, hint);
+    }
+
+    public static SwitchCase switchCase(Expression body, ConstantExpression... testValues) {
+        if (testValues.length == 0)
+            throw new IllegalArgumentException("A case needs at least one test value");
+
+        return new SwitchCase(body, testValues);
+    }
+
+    /**
+     * A switch typed after its bodies, void when there is no default body.
+     */
+    public static SwitchExpression makeSwitch(Expression switchValue, Expression defaultBody, SwitchCase... cases) {
+        Class<?> type = defaultBody != null ? defaultBody.getType() : Void.TYPE;
+
+        for (SwitchCase switchCase : cases) {
+            if (type != Void.TYPE && switchCase.getBody().getType() != type)
+                throw new IllegalArgumentException("Cases have different types " + type.getName() + " and " + switchCase.getBody().getType().getName());
+        }
+
+        return makeSwitch(type, switchValue, defaultBody, cases);
+    }
+
+    /**
+     * Switches over int-like values, strings or enums. Bodies are converted to {@code type}.
+     */
+    public static SwitchExpression makeSwitch(Class<?> type, Expression switchValue, Expression defaultBody, SwitchCase... cases) {
+        Class<?> valueType = switchValue.getType();
+        boolean integral = fitsInt(valueType);
+
+        if (!integral && valueType != String.class && !valueType.isEnum())
+            throw new IllegalArgumentException("Cannot switch over " + valueType.getName());
+        if (defaultBody == null && type != Void.TYPE)
+            throw new IllegalArgumentException("A switch of type " + type.getName() + " needs a default body");
+
+        Set<Object> keys = new HashSet<>();
+        for (SwitchCase switchCase : cases) {
+            for (ConstantExpression testValue : switchCase.getTestValues()) {
+                Object value = testValue.getValue();
+
+                if (value == null)
+                    throw new IllegalArgumentException("Case values cannot be null");
+                if (integral ? !fitsInt(testValue.getType()) || !representable(value, valueType) : !valueType.isInstance(value))
+                    throw new IllegalArgumentException("Case " + value + " does not match " + valueType.getName());
+                if (!keys.add(integral ? TypeUtils.convert(value, Integer.TYPE) : value))
+                    throw new IllegalArgumentException("Duplicate case " + value);
+            }
+        }
+
+        return new SwitchExpression(type, switchValue, Collections.unmodifiableList(Arrays.asList(cases)), defaultBody);
+    }
+
+    private static boolean fitsInt(Class<?> type) {
+        return TypeUtils.isIntegral(type) && TypeUtils.promote(type) == Integer.TYPE;
+    }
+
+    /**
+     * Whether an int-like case value survives a cast to the switch type, so 300 is no byte case.
+     */
+    private static boolean representable(Object value, Class<?> valueType) {
+        Object key = TypeUtils.convert(value, Integer.TYPE);
+        return TypeUtils.convert(TypeUtils.convert(value, TypeUtils.unwrap(valueType)), Integer.TYPE).equals(key);
+    }
+
+    public static UnaryExpression makeUnary(ExpressionType nodeType, Expression operand, Class<?> type) {
+        return new UnaryExpression(nodeType, operand, type);
+    }
+
+    public static UnaryExpression convert(Expression expression, Class<?> type) {
+        return makeUnary(ExpressionType.Convert, expression, type);
+    }
+
+    public static UnaryExpression negate(Expression expression) {
+        return makeUnary(ExpressionType.Negate, expression, TypeUtils.promote(expression.getType()));
+    }
+
+    public static UnaryExpression negateChecked(Expression expression) {
+        return makeUnary(ExpressionType.NegateChecked, expression, TypeUtils.promote(expression.getType()));
+    }
+
+    /**
+     * Logical negation for booleans, bitwise complement for integral types.
+     */
+    public static UnaryExpression not(Expression expression) {
+        Class<?> type = TypeUtils.isBoolean(expression.getType()) ? Boolean.TYPE : TypeUtils.promote(expression.getType());
+        return makeUnary(ExpressionType.Not, expression, type);
+    }
+
+    public static UnaryExpression onesComplement(Expression expression) {
+        return makeUnary(ExpressionType.OnesComplement, expression, TypeUtils.promote(expression.getType()));
+    }
+
     public static MemberExpression makeMemberAccess(Expression expression, String owner, String member, Class<?> type) {
         return new MemberExpression(expression, owner, member, type);
     }
 
     public static ConstantExpression constant(Object value) {
-        return new ConstantExpression(value);
+        return new ConstantExpression(value, TypeUtils.typeOf(value));
+    }
+
+    public static ConstantExpression constant(Object value, Class<?> type) {
+        return new ConstantExpression(value, type);
+    }
+
+    public static DefaultExpression _default(Class<?> type) {
+        return new DefaultExpression(type);
+    }
+
+    /**
+     * A {@code void} expression doing nothing, such as the missing branch of an if statement.
+     */
+    public static DefaultExpression empty() {
+        return _default(Void.TYPE);
     }
 
     public static ParameterExpression parameter(int index, String name, Class<?> type) {
@@ -57,6 +288,17 @@ public abstract class Expression {
         return new MethodCallExpression(null, methodInfo, parameters);
     }
 
+    /**
+     * The member {@code name} of {@code expression} looked up by the class of its value when run,
+     * see {@link DynamicExpression}.
+     */
+    public static DynamicExpression dynamic(Class<?> type, Expression expression, String name, Expression... arguments) {
+        if (expression.getType() != null && expression.getType().isPrimitive())
+            throw new IllegalArgumentException("Cannot look up " + name + " on " + expression.getType().getName());
+
+        return new DynamicExpression(type, expression, name, arguments);
+    }
+
     public static BlockExpression block(Expression... expressions) {
         return new BlockExpression(Void.TYPE, Collections.<ParameterExpression>emptyList(), expressions);
     }
@@ -65,11 +307,110 @@ public abstract class Expression {
         return new BlockExpression(type, Collections.<ParameterExpression>emptyList(), expressions);
     }
 
-    public static NewArrayExpression newArray(Class<Object> type, Expression... expressions) {
+    public static BlockExpression block(Class<?> type, List<ParameterExpression> variables, Expression... expressions) {
+        return new BlockExpression(type, variables, expressions);
+    }
+
+    public static NewArrayExpression newArray(Class<?> type, Expression... expressions) {
         return new NewArrayExpression(type, expressions);
     }
 
     public static IndexExpression arrayAccess(Expression array, Expression index) {
         return new IndexExpression(array, index);
     }
+
+    public static UnaryExpression arrayLength(Expression array) {
+        if (!array.getType().isArray())
+            throw new IllegalArgumentException(array.getType().getName() + " is not an array");
+
+        return makeUnary(ExpressionType.ArrayLength, array, Integer.TYPE);
+    }
+
+    public static LabelTarget label() {
+        return label(Void.TYPE, null);
+    }
+
+    public static LabelTarget label(String name) {
+        return label(Void.TYPE, name);
+    }
+
+    public static LabelTarget label(Class<?> type, String name) {
+        return new LabelTarget(type, name);
+    }
+
+    public static LabelExpression label(LabelTarget target) {
+        return label(target, null);
+    }
+
+    public static LabelExpression label(LabelTarget target, Expression defaultValue) {
+        if ((defaultValue == null) != (target.getType() == Void.TYPE))
+            throw new IllegalArgumentException("Label " + target + " of type " + target.getType().getName() + " needs a default value of that type");
+
+        return new LabelExpression(target, defaultValue);
+    }
+
+    public static GotoExpression makeGoto(GotoExpressionKind kind, LabelTarget target, Expression value, Class<?> type) {
+        if ((value == null) != (target.getType() == Void.TYPE))
+            throw new IllegalArgumentException("Jump to " + target + " of type " + target.getType().getName() + " needs a value of that type");
+
+        return new GotoExpression(kind, target, value, type);
+    }
+
+    public static GotoExpression _goto(LabelTarget target) {
+        return makeGoto(GotoExpressionKind.Goto, target, null, Void.TYPE);
+    }
+
+    public static GotoExpression _return(LabelTarget target) {
+        return makeGoto(GotoExpressionKind.Return, target, null, Void.TYPE);
+    }
+
+    public static GotoExpression _return(LabelTarget target, Expression value) {
+        return makeGoto(GotoExpressionKind.Return, target, value, Void.TYPE);
+    }
+
+    public static GotoExpression _break(LabelTarget target) {
+        return makeGoto(GotoExpressionKind.Break, target, null, Void.TYPE);
+    }
+
+    public static GotoExpression _break(LabelTarget target, Expression value) {
+        return makeGoto(GotoExpressionKind.Break, target, value, Void.TYPE);
+    }
+
+    public static GotoExpression _continue(LabelTarget target) {
+        return makeGoto(GotoExpressionKind.Continue, target, null, Void.TYPE);
+    }
+
+    public static LoopExpression loop(Expression body) {
+        return loop(body, null, null);
+    }
+
+    public static LoopExpression loop(Expression body, LabelTarget breakLabel) {
+        return loop(body, breakLabel, null);
+    }
+
+    /**
+     * Runs {@code body} until a jump to {@code breakLabel}, a jump to {@code continueLabel} starts
+     * the next iteration. Jumps are statements: they must not leave values of enclosing
+     * expressions behind, such as the left operand of an addition.
+     */
+    public static LoopExpression loop(Expression body, LabelTarget breakLabel, LabelTarget continueLabel) {
+        if (continueLabel != null && continueLabel.getType() != Void.TYPE)
+            throw new IllegalArgumentException("Continue label " + continueLabel + " must be void");
+
+        return new LoopExpression(body, breakLabel, continueLabel);
+    }
+
+    public static LambdaExpression lambda(Expression body, ParameterExpression... parameters) {
+        return lambda(null, body, parameters);
+    }
+
+    /**
+     * A lambda may read the variables of the tree it is nested in but not assign them, as they are
+     * captured by value.
+     */
+    public static LambdaExpression lambda(Class<?> type, Expression body, ParameterExpression... parameters) {
+        LambdaExpression lambda = new LambdaExpression(type, body, Arrays.asList(parameters));
+        NestedLambdas.checkAssignments(lambda);
+        return lambda;
+    }
 }
@@ -1,7 +1,49 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class GotoExpression {
+public class GotoExpression extends Expression {
+    private final GotoExpressionKind kind;
+    private final LabelTarget target;
+    private final Expression value;
+    private final Class<?> type;
+
+    protected GotoExpression(GotoExpressionKind kind, LabelTarget target, Expression value, Class<?> type) {
+        super(ExpressionType.Goto);
+        this.kind = kind;
+        this.target = target;
+        this.value = value;
+        this.type = type;
+    }
+
+    public GotoExpressionKind getKind() {
+        return kind;
+    }
+
+    public LabelTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * The value carried to the label, null for labels of type void.
+     */
+    public Expression getValue() {
+        return value;
+    }
+
+    /**
+     * The type of the jump itself, which never completes; void unless it stands where a value is expected.
+     */
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitGoto(this);
+    }
 }
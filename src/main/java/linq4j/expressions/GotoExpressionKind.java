@@ -0,0 +1,8 @@
+package linq4j.expressions;
+
+public enum GotoExpressionKind {
+    Goto,
+    Return,
+    Break,
+    Continue
+}
@@ -23,6 +23,11 @@ public class IndexExpression extends Expression {
         return index;
     }
 
+    @Override
+    public Class<?> getType() {
+        return array.getType().getComponentType();
+    }
+
     @Override
     public Expression accept(ExpressionVisitor visitor) {
         return visitor.visitIndex(this);
@@ -0,0 +1,13 @@
+package linq4j.expressions;
+
+/**
+ * How a {@link MethodCallExpression} invokes its method: a static method, an instance method
+ * dispatched on the class or on an interface of its target, or a constructor or private method
+ * of the target's own class.
+ */
+public enum InvocationKind {
+    Static,
+    Virtual,
+    Interface,
+    Special
+}
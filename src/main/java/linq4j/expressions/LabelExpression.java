@@ -1,7 +1,38 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class LabelExpression {
+public class LabelExpression extends Expression {
+    private final LabelTarget target;
+    private final Expression defaultValue;
+
+    protected LabelExpression(LabelTarget target, Expression defaultValue) {
+        super(ExpressionType.Label);
+        this.target = target;
+        this.defaultValue = defaultValue;
+    }
+
+    public LabelTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * The value of the label when it is reached without a jump, null for labels of type void.
+     */
+    public Expression getDefaultValue() {
+        return defaultValue;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return target.getType();
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitLabel(this);
+    }
 }
@@ -0,0 +1,28 @@
+package linq4j.expressions;
+
+/**
+ * A position {@link GotoExpression}s can jump to. Labels are compared by identity, the name is
+ * only informative. Jumps to a typed label carry a value of that type.
+ */
+public class LabelTarget {
+    private final Class<?> type;
+    private final String name;
+
+    protected LabelTarget(Class<?> type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name != null ? name : "label@" + Integer.toHexString(hashCode());
+    }
+}
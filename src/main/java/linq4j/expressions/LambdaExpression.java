@@ -1,7 +1,66 @@
 package linq4j.expressions;
 
+import linq4j.compiler.Backend;
+import linq4j.compiler.LambdaCache;
+import linq4j.visitors.ExpressionVisitor;
+
+import java.util.List;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class LambdaExpression {
+public class LambdaExpression extends Expression {
+    private final Class<?> type;
+    private final Expression body;
+    private final List<ParameterExpression> parameters;
+
+    protected LambdaExpression(Class<?> type, Expression body, List<ParameterExpression> parameters) {
+        super(ExpressionType.Lambda);
+        this.type = type;
+        this.body = body;
+        this.parameters = parameters;
+    }
+
+    /**
+     * The functional interface this lambda was declared for, or null when it is only known at compile time.
+     */
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Expression getBody() {
+        return body;
+    }
+
+    public List<ParameterExpression> getParameters() {
+        return parameters;
+    }
+
+    public Class<?> getReturnType() {
+        return body.getType();
+    }
+
+    /**
+     * Compiles this lambda through the shared {@link LambdaCache}.
+     */
+    public <F> F compile(Class<F> functionalInterface) {
+        return LambdaCache.getDefault().compile(this, functionalInterface);
+    }
+
+    public <F> F compile(Class<F> functionalInterface, Backend backend) {
+        return backend.compile(this, functionalInterface);
+    }
+
+    public Object compile() {
+        if (type == null)
+            throw new IllegalStateException("Lambda has no functional interface type");
+
+        return compile(type);
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitLambda(this);
+    }
 }
@@ -1,7 +1,47 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class LoopExpression {
+public class LoopExpression extends Expression {
+    private final Expression body;
+    private final LabelTarget breakLabel;
+    private final LabelTarget continueLabel;
+
+    protected LoopExpression(Expression body, LabelTarget breakLabel, LabelTarget continueLabel) {
+        super(ExpressionType.Loop);
+        this.body = body;
+        this.breakLabel = breakLabel;
+        this.continueLabel = continueLabel;
+    }
+
+    public Expression getBody() {
+        return body;
+    }
+
+    /**
+     * The label jumped to in order to leave the loop, may be null.
+     */
+    public LabelTarget getBreakLabel() {
+        return breakLabel;
+    }
+
+    /**
+     * The label jumped to in order to start the next iteration, may be null.
+     */
+    public LabelTarget getContinueLabel() {
+        return continueLabel;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return breakLabel != null ? breakLabel.getType() : Void.TYPE;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitLoop(this);
+    }
 }
@@ -29,6 +29,11 @@ public class MethodCallExpression extends Expression {
         return parameters;
     }
 
+    @Override
+    public Class<?> getType() {
+        return methodInfo.getReturnType();
+    }
+
     @Override
     public Expression accept(ExpressionVisitor visitor) {
         return visitor.visitMethodCall(this);
@@ -1,19 +1,93 @@
 package linq4j.expressions;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
 /**
  * Created by marrony on 6/15/17.
  */
 public class MethodInfo {
+    private static final ClassValue<String> DESCRIPTORS = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            if (type.isArray())
+                return "[" + get(type.getComponentType());
+            if (!type.isPrimitive())
+                return "L" + internalName(type) + ";";
+
+            if (type == Void.TYPE) return "V";
+            if (type == Boolean.TYPE) return "Z";
+            if (type == Byte.TYPE) return "B";
+            if (type == Character.TYPE) return "C";
+            if (type == Short.TYPE) return "S";
+            if (type == Integer.TYPE) return "I";
+            if (type == Long.TYPE) return "J";
+            if (type == Float.TYPE) return "F";
+            return "D";
+        }
+    };
+
     private final String owner;
     private final String name;
     private final Class<?> returnType;
     private final Class<?>[] types;
+    private final boolean pure;
+    private final InvocationKind kind;
+    private final boolean onInterface;
+    private final Method method;
+    private String descriptor;
 
     public MethodInfo(String owner, String name, Class<?> returnType, Class<?>... types) {
+        this(owner, name, returnType, types, false, null, false, null);
+    }
+
+    /**
+     * The method {@code method}, invoked as its modifiers and declaring class require.
+     */
+    public MethodInfo(Method method) {
+        this(method, false);
+    }
+
+    private MethodInfo(Method method, boolean pure) {
+        this(internalName(method.getDeclaringClass()), method.getName(), method.getReturnType(), method.getParameterTypes(), pure,
+                kindOf(method), method.getDeclaringClass().isInterface(), method);
+    }
+
+    private MethodInfo(String owner, String name, Class<?> returnType, Class<?>[] types, boolean pure,
+                       InvocationKind kind, boolean onInterface, Method method) {
         this.owner = owner;
         this.name = name;
         this.returnType = returnType;
         this.types = types;
+        this.pure = pure;
+        this.kind = kind;
+        this.onInterface = onInterface;
+        this.method = method;
+    }
+
+    private static InvocationKind kindOf(Method method) {
+        if (Modifier.isStatic(method.getModifiers()))
+            return InvocationKind.Static;
+        if (Modifier.isPrivate(method.getModifiers()))
+            return InvocationKind.Special;
+
+        return method.getDeclaringClass().isInterface() ? InvocationKind.Interface : InvocationKind.Virtual;
+    }
+
+    private static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    /**
+     * A method without side effects whose result only depends on its arguments, such as
+     * {@code Math.abs}. Calls to it may be evaluated once when repeated.
+     */
+    public static MethodInfo pure(String owner, String name, Class<?> returnType, Class<?>... types) {
+        return new MethodInfo(owner, name, returnType, types, true, null, false, null);
+    }
+
+    public static MethodInfo pure(Method method) {
+        return new MethodInfo(method, true);
     }
 
     public String getOwner() {
@@ -31,4 +105,45 @@ public class MethodInfo {
     public Class<?>[] getTypes() {
         return types;
     }
+
+    public boolean isPure() {
+        return pure;
+    }
+
+    /**
+     * How the method is invoked, or null when only known by name and left to the call to decide.
+     */
+    public InvocationKind getKind() {
+        return kind;
+    }
+
+    public boolean isOnInterface() {
+        return onInterface;
+    }
+
+    /**
+     * The method this was bound from, or null.
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * The method descriptor, built once and interned.
+     */
+    public String getDescriptor() {
+        String descriptor = this.descriptor;
+
+        if (descriptor == null) {
+            StringBuilder builder = new StringBuilder("(");
+            for (Class<?> type : types)
+                builder.append(DESCRIPTORS.get(type));
+            builder.append(')').append(DESCRIPTORS.get(returnType));
+
+            descriptor = builder.toString().intern();
+            this.descriptor = descriptor;
+        }
+
+        return descriptor;
+    }
 }
@@ -2,21 +2,28 @@ package linq4j.expressions;
 
 import linq4j.visitors.ExpressionVisitor;
 
+import java.lang.reflect.Array;
+
 /**
  * Created by marrony on 6/15/17.
  */
 public class NewArrayExpression extends Expression {
-    private final Class<?> type;
+    private final Class<?> elementType;
     private final Expression[] expressions;
 
-    protected NewArrayExpression(Class<?> type, Expression... expressions) {
+    protected NewArrayExpression(Class<?> elementType, Expression... expressions) {
         super(ExpressionType.NewArrayInit);
-        this.type = type;
+        this.elementType = elementType;
         this.expressions = expressions;
     }
 
+    public Class<?> getElementType() {
+        return elementType;
+    }
+
+    @Override
     public Class<?> getType() {
-        return type;
+        return Array.newInstance(elementType, 0).getClass();
     }
 
     public Expression[] getExpressions() {
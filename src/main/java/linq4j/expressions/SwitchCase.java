@@ -0,0 +1,27 @@
+package linq4j.expressions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One case of a {@link SwitchExpression}. Test values are constants and are compiled into the
+ * dispatch itself, so visitors do not visit them.
+ */
+public class SwitchCase {
+    private final List<ConstantExpression> testValues;
+    private final Expression body;
+
+    protected SwitchCase(Expression body, ConstantExpression... testValues) {
+        this.testValues = Collections.unmodifiableList(Arrays.asList(testValues));
+        this.body = body;
+    }
+
+    public List<ConstantExpression> getTestValues() {
+        return testValues;
+    }
+
+    public Expression getBody() {
+        return body;
+    }
+}
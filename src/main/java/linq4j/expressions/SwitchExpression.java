@@ -1,7 +1,67 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
+import java.util.List;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class SwitchExpression {
+public class SwitchExpression extends Expression {
+    private final Class<?> type;
+    private final Expression switchValue;
+    private final List<SwitchCase> cases;
+    private final Expression defaultBody;
+
+    protected SwitchExpression(Class<?> type, Expression switchValue, List<SwitchCase> cases, Expression defaultBody) {
+        super(ExpressionType.Switch);
+        this.type = type;
+        this.switchValue = switchValue;
+        this.cases = cases;
+        this.defaultBody = defaultBody;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Expression getSwitchValue() {
+        return switchValue;
+    }
+
+    public List<SwitchCase> getCases() {
+        return cases;
+    }
+
+    /**
+     * The expression evaluated when no case matches, null for a void switch without default.
+     */
+    public Expression getDefaultBody() {
+        return defaultBody;
+    }
+
+    /**
+     * The body evaluated when the switch value is {@code value}, the default body if no case matches.
+     */
+    public Expression getBody(Object value) {
+        boolean integral = !(value instanceof String) && !(value instanceof Enum);
+        Object key = integral ? TypeUtils.convert(value, Integer.TYPE) : value;
+
+        for (SwitchCase switchCase : cases) {
+            for (ConstantExpression testValue : switchCase.getTestValues()) {
+                Object test = integral ? TypeUtils.convert(testValue.getValue(), Integer.TYPE) : testValue.getValue();
+
+                if (key.equals(test))
+                    return switchCase.getBody();
+            }
+        }
+
+        return defaultBody;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitSwitch(this);
+    }
 }
@@ -0,0 +1,165 @@
+package linq4j.expressions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Static type helpers shared by the expression factories and the code generators.
+ */
+public final class TypeUtils {
+    private static final Map<Class<?>, Class<?>> WRAPPERS = new HashMap<>();
+    private static final Map<Class<?>, Class<?>> PRIMITIVES = new HashMap<>();
+
+    static {
+        register(Boolean.TYPE, Boolean.class);
+        register(Byte.TYPE, Byte.class);
+        register(Character.TYPE, Character.class);
+        register(Short.TYPE, Short.class);
+        register(Integer.TYPE, Integer.class);
+        register(Long.TYPE, Long.class);
+        register(Float.TYPE, Float.class);
+        register(Double.TYPE, Double.class);
+        register(Void.TYPE, Void.class);
+    }
+
+    private TypeUtils() {
+    }
+
+    private static void register(Class<?> primitive, Class<?> wrapper) {
+        WRAPPERS.put(primitive, wrapper);
+        PRIMITIVES.put(wrapper, primitive);
+    }
+
+    public static Class<?> typeOf(Object value) {
+        if (value == null)
+            return Object.class;
+
+        return unwrap(value.getClass());
+    }
+
+    public static Class<?> wrap(Class<?> type) {
+        Class<?> wrapper = WRAPPERS.get(type);
+        return wrapper != null ? wrapper : type;
+    }
+
+    public static Class<?> unwrap(Class<?> type) {
+        Class<?> primitive = PRIMITIVES.get(type);
+        return primitive != null && primitive != Void.TYPE ? primitive : type;
+    }
+
+    public static boolean isWrapper(Class<?> type) {
+        return PRIMITIVES.containsKey(type);
+    }
+
+    public static boolean isNumeric(Class<?> type) {
+        Class<?> primitive = unwrap(type);
+        return primitive.isPrimitive() && primitive != Boolean.TYPE && primitive != Void.TYPE;
+    }
+
+    public static boolean isIntegral(Class<?> type) {
+        Class<?> primitive = unwrap(type);
+        return isNumeric(primitive) && primitive != Float.TYPE && primitive != Double.TYPE;
+    }
+
+    public static boolean isBoolean(Class<?> type) {
+        return unwrap(type) == Boolean.TYPE;
+    }
+
+    /**
+     * Unary numeric promotion: byte, short and char become int, wrappers are unboxed.
+     */
+    public static Class<?> promote(Class<?> type) {
+        if (!isNumeric(type))
+            throw new IllegalArgumentException(type.getName() + " is not numeric");
+
+        Class<?> primitive = unwrap(type);
+        return primitive == Long.TYPE || primitive == Float.TYPE || primitive == Double.TYPE ? primitive : Integer.TYPE;
+    }
+
+    /**
+     * Binary numeric promotion, as in JLS 5.6.2.
+     */
+    public static Class<?> promote(Class<?> left, Class<?> right) {
+        Class<?> a = promote(left);
+        Class<?> b = promote(right);
+
+        if (a == Double.TYPE || b == Double.TYPE)
+            return Double.TYPE;
+        if (a == Float.TYPE || b == Float.TYPE)
+            return Float.TYPE;
+        if (a == Long.TYPE || b == Long.TYPE)
+            return Long.TYPE;
+        return Integer.TYPE;
+    }
+
+    /**
+     * The type both sides of a comparison are converted to: the promoted numeric type, so numeric
+     * wrappers are unboxed as they are for arithmetic, boolean, or Object for reference comparisons.
+     */
+    public static Class<?> comparisonType(Class<?> left, Class<?> right) {
+        if (isNumeric(left) && isNumeric(right))
+            return promote(left, right);
+        if (isBoolean(left) && isBoolean(right) && (left.isPrimitive() || right.isPrimitive()))
+            return Boolean.TYPE;
+        if (!left.isPrimitive() && !right.isPrimitive())
+            return Object.class;
+
+        throw new IllegalArgumentException("Cannot compare " + left.getName() + " and " + right.getName());
+    }
+
+    /**
+     * The type of {@code left ?? right}: the promoted type of two numeric sides, boxed unless the
+     * right side is primitive, otherwise the type of the left side when the right one converts to
+     * it, or the type of the right side when the left one does.
+     */
+    public static Class<?> coalesceType(Class<?> left, Class<?> right) {
+        if (isNumeric(left) && isNumeric(right) && unwrap(left) != unwrap(right)) {
+            Class<?> promoted = promote(left, right);
+            return right.isPrimitive() ? promoted : wrap(promoted);
+        }
+        //Integer ?? int is an int
+        if (right.isPrimitive() && unwrap(left) == right)
+            return right;
+        if (left.isAssignableFrom(wrap(right)))
+            return left;
+        if (right.isAssignableFrom(left))
+            return right;
+
+        throw new IllegalArgumentException("Cannot coalesce " + left.getName() + " and " + right.getName());
+    }
+
+    /**
+     * Converts a boxed value the way a cast to {@code type} would, used where code is interpreted.
+     */
+    public static Object convert(Object value, Class<?> type) {
+        if (type == null || type == Void.TYPE)
+            return type == Void.TYPE ? null : value;
+
+        if (value == null) {
+            if (type.isPrimitive())
+                throw new NullPointerException("Cannot convert null to " + type.getName());
+            return null;
+        }
+
+        Class<?> target = wrap(type);
+        if (target.isInstance(value))
+            return value;
+
+        if (value instanceof Character && target != Boolean.class)
+            value = (int) (Character) value;
+
+        if (value instanceof Number) {
+            Number number = (Number) value;
+
+            if (target == Integer.class) return number.intValue();
+            if (target == Long.class) return number.longValue();
+            if (target == Double.class) return number.doubleValue();
+            if (target == Float.class) return number.floatValue();
+            if (target == Short.class) return number.shortValue();
+            if (target == Byte.class) return number.byteValue();
+            if (target == Character.class) return (char) number.intValue();
+        }
+
+        return target.cast(value);
+    }
+}
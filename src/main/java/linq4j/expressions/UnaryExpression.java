@@ -1,7 +1,31 @@
 package linq4j.expressions;
 
+import linq4j.visitors.ExpressionVisitor;
+
 /**
  * Created by marrony on 6/15/17.
  */
-public class UnaryExpression {
+public class UnaryExpression extends Expression {
+    private final Expression operand;
+    private final Class<?> type;
+
+    protected UnaryExpression(ExpressionType nodeType, Expression operand, Class<?> type) {
+        super(nodeType);
+        this.operand = operand;
+        this.type = type;
+    }
+
+    public Expression getOperand() {
+        return operand;
+    }
+
+    @Override
+    public Class<?> getType() {
+        return type;
+    }
+
+    @Override
+    public Expression accept(ExpressionVisitor visitor) {
+        return visitor.visitUnary(this);
+    }
 }
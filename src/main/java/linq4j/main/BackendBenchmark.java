@@ -0,0 +1,82 @@
+package linq4j.main;
+
+import linq4j.compiler.Backend;
+import linq4j.compiler.LambdaCompiler;
+import linq4j.compiler.MethodHandleCompiler;
+import linq4j.expressions.Expression;
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.ParameterExpression;
+
+import java.lang.invoke.MethodHandle;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Compares the {@link Backend}s on {@code (a, b) -> a > b ? a * 3 + b : (b - a) % 7}: the time to
+ * compile it, bypassing the lambda cache, and the time per call once warm, through the functional
+ * interface and, for method handles, through {@link MethodHandle#invokeExact} on a constant handle.
+ */
+public class BackendBenchmark {
+    private static final int COMPILATIONS = 2000;
+    private static final int CALLS = 50000000;
+
+    private static final MethodHandle CONSTANT = MethodHandleCompiler.compile(lambda());
+
+    public static void main(String[] args) throws Throwable {
+        LambdaExpression lambda = lambda();
+
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < COMPILATIONS; i++)
+                LambdaCompiler.compile(lambda, IntBinaryOperator.class);
+            report("bytecode compile", start, COMPILATIONS, "us", 1e3);
+
+            start = System.nanoTime();
+            for (int i = 0; i < COMPILATIONS; i++)
+                MethodHandleCompiler.compile(lambda);
+            report("method handle compile", start, COMPILATIONS, "us", 1e3);
+
+            start = System.nanoTime();
+            for (int i = 0; i < COMPILATIONS; i++)
+                lambda.compile(IntBinaryOperator.class, Backend.METHOD_HANDLES);
+            report("method handle proxy compile", start, COMPILATIONS, "us", 1e3);
+
+            IntBinaryOperator bytecode = lambda.compile(IntBinaryOperator.class, Backend.BYTECODE);
+            start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < CALLS; i++)
+                sum += bytecode.applyAsInt(i, i & 1023);
+            report("bytecode call", start, CALLS, "ns", 1, sum);
+
+            start = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < CALLS; i++)
+                sum += (int) CONSTANT.invokeExact(i, i & 1023);
+            report("constant method handle call", start, CALLS, "ns", 1, sum);
+
+            IntBinaryOperator proxy = lambda.compile(IntBinaryOperator.class, Backend.METHOD_HANDLES);
+            start = System.nanoTime();
+            sum = 0;
+            for (int i = 0; i < CALLS / 10; i++)
+                sum += proxy.applyAsInt(i, i & 1023);
+            report("method handle proxy call", start, CALLS / 10, "ns", 1, sum);
+        }
+    }
+
+    private static LambdaExpression lambda() {
+        ParameterExpression a = Expression.parameter(1, "a", Integer.TYPE);
+        ParameterExpression b = Expression.parameter(2, "b", Integer.TYPE);
+
+        Expression body = Expression.condition(Expression.greaterThan(a, b),
+                Expression.add(Expression.multiply(a, Expression.constant(3)), b),
+                Expression.modulo(Expression.subtract(b, a), Expression.constant(7)));
+
+        return Expression.lambda(body, a, b);
+    }
+
+    private static void report(String what, long start, int count, String unit, double scale, long... checksum) {
+        double each = (System.nanoTime() - start) / (double) count / scale;
+        System.out.println(String.format("  %-30s %10.3f %s%s", what, each, unit, checksum.length > 0 ? "  (" + checksum[0] + ")" : ""));
+    }
+}
@@ -1,11 +1,17 @@
 package linq4j.main;
 
 import linq4j.visitors.ByteCodeGenerator;
+import linq4j.visitors.FrameTracker;
 import linq4j.expressions.Expression;
 import linq4j.expressions.MethodInfo;
+import linq4j.expressions.ParameterExpression;
+import linq4j.visitors.SlotAllocator;
 import org.objectweb.asm.*;
 import org.objectweb.asm.Type;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 public class Encoder {
 
     public static void main(String[] args) throws Exception {
@@ -13,7 +19,7 @@ public class Encoder {
     }
 
     private static void asmTest() throws Exception {
-        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        ClassWriter cw = new ClassWriter(0);
         cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "User", null, "java/lang/Object", null);
 
         {
@@ -28,7 +34,8 @@ public class Encoder {
 
         {
             String ctorDesc = Type.getMethodDescriptor(Type.VOID_TYPE, Type.getType(String.class), Type.getType(String.class));
-            MethodVisitor ctor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", ctorDesc, null, null);
+            MethodVisitor ctor = new FrameTracker(cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", ctorDesc, null, null),
+                    Opcodes.ACC_PUBLIC, "User", "<init>", ctorDesc);
 
             ctor.visitCode();
 
@@ -64,14 +71,15 @@ public class Encoder {
             Expression block = Expression.block(callSuper, assignUser, assignPwd);
             block.accept(byteCodeGenerator);
 
-            //ctor.visitInsn(Opcodes.RETURN);
+            ctor.visitInsn(Opcodes.RETURN);
             ctor.visitMaxs(0,0);
             ctor.visitEnd();
         }
 
         {
             String toStringDesc = Type.getMethodDescriptor(Type.getType(String.class));
-            MethodVisitor toString = cw.visitMethod(Opcodes.ACC_PUBLIC, "toString", toStringDesc, null, null);
+            MethodVisitor toString = new FrameTracker(cw.visitMethod(Opcodes.ACC_PUBLIC, "toString", toStringDesc, null, null),
+                    Opcodes.ACC_PUBLIC, "User", "toString", toStringDesc);
             toString.visitCode();
 
             Expression _this = Expression._this();
@@ -82,8 +90,8 @@ public class Encoder {
             //constant.accept(byteCodeGenerator);
 //            toString.visitLdcInsn("User(%s, %s)");
 
-            Expression newArray = Expression.parameter(1, "newArray", Object[].class);
-            Expression temp = Expression.parameter(2, "temp", String.class);
+            ParameterExpression newArray = Expression.parameter(1, "newArray", Object[].class);
+            ParameterExpression temp = Expression.parameter(2, "temp", String.class);
 
             Expression assign = Expression.assign(
                     newArray,
@@ -137,9 +145,10 @@ public class Encoder {
 //            String formatDesc = Type.getMethodDescriptor(format);
 //            toString.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(String.class),"format", formatDesc,false);
 
-            Expression.block(String.class, assign, expr0, expr1, expr2, expr3, callToString).accept(byteCodeGenerator);
+            Expression block = Expression.block(String.class, Arrays.asList(newArray, temp), assign, expr0, expr1, expr2, expr3, callToString);
+            SlotAllocator.allocate(block, Collections.<ParameterExpression>emptyList()).accept(byteCodeGenerator);
 
-            //toString.visitInsn(Opcodes.ARETURN);
+            toString.visitInsn(Opcodes.ARETURN);
             toString.visitMaxs(0, 0);
             toString.visitEnd();
         }
@@ -0,0 +1,266 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The last step of a query pipeline, folding the elements it is given into an accumulator.
+ */
+abstract class Aggregate {
+
+    abstract Class<?> resultType(Class<?> elementType);
+
+    abstract Expression initial(Class<?> resultType);
+
+    abstract Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element);
+
+    /**
+     * An aggregate whose partial results over ranges of the source can be combined, so the ranges
+     * can be aggregated apart. Other aggregates run over the whole source on one thread.
+     */
+    abstract static class Splittable extends Aggregate {
+        /**
+         * Combines the partial results of two ranges.
+         */
+        abstract Object merge(Object left, Object right);
+    }
+
+    static final Aggregate SUM = new Splittable() {
+        @Override
+        Class<?> resultType(Class<?> elementType) {
+            Class<?> type = TypeUtils.unwrap(elementType);
+            if (!TypeUtils.isNumeric(type))
+                throw new IllegalArgumentException("Cannot sum " + elementType.getName());
+
+            return TypeUtils.promote(type);
+        }
+
+        @Override
+        Expression initial(Class<?> resultType) {
+            return Expression.constant(TypeUtils.convert(0, resultType), resultType);
+        }
+
+        @Override
+        Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element) {
+            return Expression.assign(accumulator, Expression.add(accumulator, Expression.convert(element, accumulator.getType())));
+        }
+
+        @Override
+        Object merge(Object left, Object right) {
+            if (left instanceof Integer) return (Integer) left + (Integer) right;
+            if (left instanceof Long) return (Long) left + (Long) right;
+            if (left instanceof Float) return (Float) left + (Float) right;
+            return (Double) left + (Double) right;
+        }
+    };
+
+    static final Aggregate COUNT = new Splittable() {
+        @Override
+        Class<?> resultType(Class<?> elementType) {
+            return Integer.TYPE;
+        }
+
+        @Override
+        Expression initial(Class<?> resultType) {
+            return Expression.constant(0);
+        }
+
+        @Override
+        Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element) {
+            return Expression.assign(accumulator, Expression.add(accumulator, Expression.constant(1)));
+        }
+
+        @Override
+        Object merge(Object left, Object right) {
+            return (Integer) left + (Integer) right;
+        }
+    };
+
+    /**
+     * Counts or sums the elements of each key into {@link Groups}.
+     */
+    static final class Group extends Splittable {
+        private static final MethodInfo CREATE = new MethodInfo(Groups.class.getName().replace('.', '/'), "create", Groups.class, Integer.TYPE, Integer.TYPE);
+
+        private final LambdaExpression[] keys;
+        private final LambdaExpression value;
+
+        Group(LambdaExpression[] keys, LambdaExpression value) {
+            this.keys = keys;
+            this.value = value;
+        }
+
+        @Override
+        Class<?> resultType(Class<?> elementType) {
+            return Groups.class;
+        }
+
+        @Override
+        Expression initial(Class<?> resultType) {
+            return Expression.call(CREATE, Expression.constant(keys.length), Expression.constant(kind()));
+        }
+
+        @Override
+        Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element) {
+            Expression[] columns = new Expression[keys.length];
+            for (int i = 0; i < keys.length; i++)
+                columns[i] = compiler.inline(keys[i], element);
+
+            Keys key = new Keys(compiler, columns);
+            Expression update;
+
+            switch (kind()) {
+                case Groups.COUNT:
+                    update = add(accumulator, "counts", int[].class, key.entry(), Expression.constant(1));
+                    break;
+                case Groups.LONG_SUM:
+                    update = add(accumulator, "longs", long[].class, key.entry(), Expression.convert(compiler.inline(value, element), Long.TYPE));
+                    break;
+                default:
+                    update = add(accumulator, "doubles", double[].class, key.entry(), Expression.convert(compiler.inline(value, element), Double.TYPE));
+            }
+
+            return Expression.block(key.load(), key.findOrAdd(accumulator), update);
+        }
+
+        @Override
+        Object merge(Object left, Object right) {
+            return ((Groups) left).merge((Groups) right);
+        }
+
+        private int kind() {
+            if (value == null)
+                return Groups.COUNT;
+
+            return TypeUtils.isIntegral(value.getReturnType()) ? Groups.LONG_SUM : Groups.DOUBLE_SUM;
+        }
+
+        private static Expression add(ParameterExpression groups, String field, Class<?> type, Expression entry, Expression value) {
+            Expression slot = Expression.arrayAccess(Expression.makeMemberAccess(groups, Groups.class.getName().replace('.', '/'), field, type), entry);
+            return Expression.assign(slot, Expression.add(slot, value));
+        }
+    }
+
+    /**
+     * Indexes the rows of the join inner side by key into a {@link JoinIndex}.
+     */
+    static final class Index extends Aggregate {
+        private static final String OWNER = JoinIndex.class.getName().replace('.', '/');
+        private static final MethodInfo CREATE = new MethodInfo(OWNER, "create", JoinIndex.class, Integer.TYPE, Integer.TYPE);
+        private static final MethodInfo LINK = new MethodInfo(OWNER, "link", Void.TYPE, JoinIndex.class, Integer.TYPE, Integer.TYPE);
+
+        private final LambdaExpression key;
+        private final int rows;
+
+        Index(LambdaExpression key, int rows) {
+            this.key = key;
+            this.rows = rows;
+        }
+
+        @Override
+        Class<?> resultType(Class<?> elementType) {
+            return JoinIndex.class;
+        }
+
+        @Override
+        Expression initial(Class<?> resultType) {
+            return Expression.call(CREATE, Expression.constant(1), Expression.constant(rows));
+        }
+
+        @Override
+        Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element) {
+            Keys keys = new Keys(compiler, compiler.inline(key, element));
+            return Expression.block(keys.load(), keys.findOrAdd(accumulator), Expression.call(LINK, accumulator, keys.entry(), compiler.index()));
+        }
+
+    }
+
+    /**
+     * Appends the elements, and the radix keys of {@code keys} for them, to an {@link ElementBuffer}.
+     */
+    static final class Collect extends Aggregate {
+        private static final String OWNER = ElementBuffer.class.getName().replace('.', '/');
+        private static final MethodInfo CREATE = new MethodInfo(OWNER, "create", ElementBuffer.class, Class.class, Integer.TYPE);
+        private static final MethodInfo GROW = new MethodInfo(OWNER, "grow", Void.TYPE, ElementBuffer.class);
+
+        private final Class<?> elementType;
+        private final List<SortKey> keys;
+
+        Collect(Class<?> elementType, List<SortKey> keys) {
+            this.elementType = elementType;
+            this.keys = keys;
+        }
+
+        @Override
+        Class<?> resultType(Class<?> elementType) {
+            return ElementBuffer.class;
+        }
+
+        @Override
+        Expression initial(Class<?> resultType) {
+            return Expression.call(CREATE, Expression.constant(elementType, Class.class), Expression.constant(keys.size()));
+        }
+
+        @Override
+        Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element) {
+            Class<?> arrayType = Array.newInstance(element.getType(), 0).getClass();
+            Expression size = field(accumulator, "size", Integer.TYPE);
+            Expression elements = Expression.convert(field(accumulator, "elements", Object.class), arrayType);
+            Expression keyArrays = field(accumulator, "keys", long[][].class);
+
+            List<Expression> expressions = new ArrayList<>();
+            expressions.add(Expression.condition(Expression.equal(size, field(accumulator, "capacity", Integer.TYPE)), Expression.call(GROW, accumulator), Expression.empty(), Void.TYPE, BranchHint.Unlikely));
+            expressions.add(Expression.assign(Expression.arrayAccess(elements, size), element));
+            for (int k = 0; k < keys.size(); k++) {
+                SortKey key = keys.get(k);
+                Expression radixKey = SortCompiler.radixKey(compiler, compiler.inline(key.selector, element), key.descending);
+                expressions.add(Expression.assign(Expression.arrayAccess(Expression.arrayAccess(keyArrays, Expression.constant(k)), size), radixKey));
+            }
+            expressions.add(Expression.assign(size, Expression.add(size, Expression.constant(1))));
+
+            return Expression.block(expressions.toArray(new Expression[0]));
+        }
+
+
+        private static Expression field(Expression buffer, String name, Class<?> type) {
+            return Expression.makeMemberAccess(buffer, OWNER, name, type);
+        }
+    }
+
+    /**
+     * Keeps the first {@code limit} elements in the order of {@code comparator} in a {@link TopK}.
+     */
+    static final class Top extends Aggregate {
+        private static final String OWNER = TopK.class.getName().replace('.', '/');
+        private static final MethodInfo CREATE = new MethodInfo(OWNER, "create", TopK.class, Comparator.class, Integer.TYPE);
+        private static final MethodInfo OFFER = new MethodInfo(OWNER, "offer", Void.TYPE, TopK.class, Object.class);
+
+        private final Comparator<?> comparator;
+        private final int limit;
+
+        Top(Comparator<?> comparator, int limit) {
+            this.comparator = comparator;
+            this.limit = limit;
+        }
+
+        @Override
+        Class<?> resultType(Class<?> elementType) {
+            return TopK.class;
+        }
+
+        @Override
+        Expression initial(Class<?> resultType) {
+            return Expression.call(CREATE, Expression.constant(comparator, Comparator.class), Expression.constant(limit));
+        }
+
+        @Override
+        Expression accumulate(QueryCompiler compiler, ParameterExpression accumulator, ParameterExpression element) {
+            return Expression.call(OFFER, accumulator, Expression.convert(element, Object.class));
+        }
+
+    }
+}
@@ -0,0 +1,24 @@
+package linq4j.query;
+
+/**
+ * Comparison of reference sort keys, called by generated comparators.
+ */
+public final class Comparables {
+    private Comparables() {
+    }
+
+    /**
+     * Compares {@code left} with {@code right}, {@code null} first.
+     */
+    public static int compare(Comparable<?> left, Comparable<?> right) {
+        if (left == null)
+            return right == null ? 0 : -1;
+        if (right == null)
+            return 1;
+
+        //both keys come from the same key selector, so they compare with each other
+        @SuppressWarnings("unchecked")
+        Comparable<Object> comparable = (Comparable<Object>) left;
+        return comparable.compareTo(right);
+    }
+}
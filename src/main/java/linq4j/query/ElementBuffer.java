@@ -0,0 +1,93 @@
+package linq4j.query;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * The elements of a query collected in order into an array of their type, with the radix keys of
+ * each element in {@link #keys}, one array per key. Generated code appends elements itself and
+ * calls {@link #grow} when full, so fields are public for generated classes.
+ */
+public final class ElementBuffer {
+    private static final int INITIAL_CAPACITY = 16;
+
+    public Object elements;
+    public long[][] keys;
+    public int capacity;
+    public int size;
+
+    private ElementBuffer(Class<?> elementType, int keyCount) {
+        this.elements = Array.newInstance(elementType, INITIAL_CAPACITY);
+        this.keys = new long[keyCount][INITIAL_CAPACITY];
+        this.capacity = INITIAL_CAPACITY;
+    }
+
+    public static ElementBuffer create(Class<?> elementType, int keyCount) {
+        return new ElementBuffer(elementType, keyCount);
+    }
+
+    /**
+     * Doubles the capacity of the arrays.
+     */
+    public static void grow(ElementBuffer buffer) {
+        int capacity = buffer.capacity * 2;
+        Object elements = Array.newInstance(buffer.elements.getClass().getComponentType(), capacity);
+        System.arraycopy(buffer.elements, 0, elements, 0, buffer.size);
+
+        buffer.elements = elements;
+        for (int k = 0; k < buffer.keys.length; k++)
+            buffer.keys[k] = Arrays.copyOf(buffer.keys[k], capacity);
+        buffer.capacity = capacity;
+    }
+
+    /**
+     * The elements, trimmed to {@link #size}.
+     */
+    Object toArray() {
+        Object array = Array.newInstance(elements.getClass().getComponentType(), size);
+        System.arraycopy(elements, 0, array, 0, size);
+        return array;
+    }
+
+    /**
+     * The elements at the positions listed in {@code order}.
+     */
+    Object toArray(int[] order) {
+        if (elements instanceof Object[]) {
+            Object[] source = (Object[]) elements;
+            Object[] array = (Object[]) Array.newInstance(source.getClass().getComponentType(), size);
+            for (int i = 0; i < size; i++)
+                array[i] = source[order[i]];
+            return array;
+        }
+
+        if (elements instanceof int[]) {
+            int[] source = (int[]) elements;
+            int[] array = new int[size];
+            for (int i = 0; i < size; i++)
+                array[i] = source[order[i]];
+            return array;
+        }
+
+        if (elements instanceof long[]) {
+            long[] source = (long[]) elements;
+            long[] array = new long[size];
+            for (int i = 0; i < size; i++)
+                array[i] = source[order[i]];
+            return array;
+        }
+
+        if (elements instanceof double[]) {
+            double[] source = (double[]) elements;
+            double[] array = new double[size];
+            for (int i = 0; i < size; i++)
+                array[i] = source[order[i]];
+            return array;
+        }
+
+        Object array = Array.newInstance(elements.getClass().getComponentType(), size);
+        for (int i = 0; i < size; i++)
+            Array.set(array, i, Array.get(elements, order[i]));
+        return array;
+    }
+}
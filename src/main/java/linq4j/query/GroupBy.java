@@ -0,0 +1,43 @@
+package linq4j.query;
+
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.TypeUtils;
+
+/**
+ * A query grouped by one or more primitive keys, see {@link Query#groupBy}. Groups are kept in a
+ * {@link KeyTable} updated by the generated loop, so neither keys nor aggregates are boxed.
+ */
+public final class GroupBy {
+    private final Query query;
+    private final LambdaExpression[] keys;
+
+    GroupBy(Query query, LambdaExpression[] keys) {
+        this.query = query;
+        this.keys = keys;
+    }
+
+    public Groups count() {
+        return run(null);
+    }
+
+    /**
+     * Sums {@code value}, taking an element and returning a number, over the elements of each group.
+     */
+    public Groups sum(LambdaExpression value) {
+        if (!TypeUtils.isNumeric(value.getReturnType()))
+            throw new IllegalArgumentException("Cannot sum " + value.getReturnType().getName());
+
+        return run(value);
+    }
+
+    private Groups run(LambdaExpression value) {
+        Groups groups = (Groups) query.run(new Aggregate.Group(keys, value));
+
+        Class<?>[] keyTypes = new Class<?>[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            keyTypes[i] = keys[i].getReturnType();
+        groups.setKeyTypes(keyTypes);
+
+        return groups;
+    }
+}
@@ -0,0 +1,92 @@
+package linq4j.query;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * The result of a {@link GroupBy}: one entry per distinct key, in the order keys were first seen,
+ * with the count or sum of its elements. Counts are {@code int}, integral sums {@code long} and
+ * floating point sums {@code double}.
+ */
+public final class Groups extends KeyTable {
+    static final int COUNT = 0;
+    static final int LONG_SUM = 1;
+    static final int DOUBLE_SUM = 2;
+
+    private final int kind;
+    private Class<?>[] keyTypes;
+    public int[] counts;
+    public long[] longs;
+    public double[] doubles;
+
+    private Groups(int arity, int kind) {
+        super(arity);
+        this.kind = kind;
+
+        if (kind == COUNT)
+            counts = new int[hashes.length];
+        else if (kind == LONG_SUM)
+            longs = new long[hashes.length];
+        else
+            doubles = new double[hashes.length];
+    }
+
+    public static Groups create(int arity, int kind) {
+        return new Groups(arity, kind);
+    }
+
+    /**
+     * The keys of column {@code column}, an array of the type of that key selector.
+     */
+    public Object getKeys(int column) {
+        Class<?> type = keyTypes[column];
+        Object array = Array.newInstance(type, size);
+
+        for (int entry = 0; entry < size; entry++)
+            Array.set(array, entry, Keys.fromLong(keys[entry * arity + column], type));
+
+        return array;
+    }
+
+    /**
+     * An {@code int[]}, {@code long[]} or {@code double[]} of the aggregate of each entry.
+     */
+    public Object getValues() {
+        if (kind == COUNT)
+            return Arrays.copyOf(counts, size);
+        if (kind == LONG_SUM)
+            return Arrays.copyOf(longs, size);
+        return Arrays.copyOf(doubles, size);
+    }
+
+    void setKeyTypes(Class<?>[] keyTypes) {
+        this.keyTypes = keyTypes;
+    }
+
+    @Override
+    protected void grow(int capacity) {
+        super.grow(capacity);
+
+        if (counts != null) counts = Arrays.copyOf(counts, capacity);
+        if (longs != null) longs = Arrays.copyOf(longs, capacity);
+        if (doubles != null) doubles = Arrays.copyOf(doubles, capacity);
+    }
+
+    /**
+     * Adds the entries of {@code other}, computed over another part of the source, to these ones.
+     */
+    Groups merge(Groups other) {
+        for (int entry = 0; entry < other.size; entry++) {
+            int merged = findOrAdd(other.hashes[entry], other.keys, entry * arity);
+
+            if (kind == COUNT)
+                counts[merged] += other.counts[entry];
+            else if (kind == LONG_SUM)
+                longs[merged] += other.longs[entry];
+            else
+                doubles[merged] += other.doubles[entry];
+        }
+
+        return this;
+    }
+}
@@ -0,0 +1,49 @@
+package linq4j.query;
+
+import java.util.Arrays;
+
+/**
+ * The inner side of a join: one entry per distinct key, chaining the rows of the inner array with
+ * that key in their order. Generated code walks a chain from {@link #heads} through {@link #next}
+ * until -1.
+ */
+public final class JoinIndex extends KeyTable {
+    public int[] heads;
+    public final int[] next;
+    private int[] tails;
+
+    private JoinIndex(int arity, int rows) {
+        super(arity);
+        this.heads = new int[hashes.length];
+        this.tails = new int[hashes.length];
+        this.next = new int[rows];
+        Arrays.fill(heads, -1);
+    }
+
+    public static JoinIndex create(int arity, int rows) {
+        return new JoinIndex(arity, rows);
+    }
+
+    /**
+     * Appends {@code row} to the rows of {@code entry}.
+     */
+    public static void link(JoinIndex index, int entry, int row) {
+        index.next[row] = -1;
+
+        if (index.heads[entry] < 0)
+            index.heads[entry] = row;
+        else
+            index.next[index.tails[entry]] = row;
+
+        index.tails[entry] = row;
+    }
+
+    @Override
+    protected void grow(int capacity) {
+        int length = heads.length;
+        super.grow(capacity);
+        heads = Arrays.copyOf(heads, capacity);
+        Arrays.fill(heads, length, capacity, -1);
+        tails = Arrays.copyOf(tails, capacity);
+    }
+}
@@ -0,0 +1,106 @@
+package linq4j.query;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table of primitive keys, each key made of {@code arity} longs stored inline in
+ * {@link #keys}, so no key is ever boxed. Generated code hashes, compares and copies keys itself,
+ * see {@link Keys}; the table only manages its arrays, which are public for generated classes.
+ *
+ * Entries are numbered in insertion order and buckets hold the entry plus one, zero being empty.
+ * Buckets are kept at most half full.
+ */
+public class KeyTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    public final int arity;
+    public long[] keys;
+    public int[] hashes;
+    public int[] buckets;
+    public int mask;
+    public int size;
+
+    protected KeyTable(int arity) {
+        this.arity = arity;
+        this.keys = new long[INITIAL_CAPACITY * arity];
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.buckets = new int[INITIAL_CAPACITY * 2];
+        this.mask = buckets.length - 1;
+    }
+
+    /**
+     * Adds an entry with {@code hash} in the empty bucket at {@code position} and returns it. The
+     * caller then copies the key into {@link #keys}, which may have been reallocated.
+     */
+    public static int add(KeyTable table, int hash, int position) {
+        return table.add(hash, position);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Grows the arrays indexed by entry to hold {@code capacity} entries.
+     */
+    protected void grow(int capacity) {
+        keys = Arrays.copyOf(keys, capacity * arity);
+        hashes = Arrays.copyOf(hashes, capacity);
+    }
+
+    /**
+     * The entry with the key at {@code offset} of {@code source}, added when missing.
+     */
+    int findOrAdd(int hash, long[] source, int offset) {
+        for (int position = hash & mask; ; position = (position + 1) & mask) {
+            int entry = buckets[position] - 1;
+
+            if (entry < 0) {
+                entry = add(hash, position);
+                System.arraycopy(source, offset, keys, entry * arity, arity);
+                return entry;
+            }
+
+            if (hashes[entry] == hash && equals(entry, source, offset))
+                return entry;
+        }
+    }
+
+    private boolean equals(int entry, long[] source, int offset) {
+        for (int i = 0; i < arity; i++) {
+            if (keys[entry * arity + i] != source[offset + i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private int add(int hash, int position) {
+        int entry = size;
+
+        if (entry == hashes.length)
+            grow(entry * 2);
+
+        hashes[entry] = hash;
+        size++;
+
+        if (size * 2 > buckets.length)
+            rehash(buckets.length * 2);
+        else
+            buckets[position] = entry + 1;
+
+        return entry;
+    }
+
+    private void rehash(int length) {
+        buckets = new int[length];
+        mask = length - 1;
+
+        for (int entry = 0; entry < size; entry++) {
+            int position = hashes[entry] & mask;
+            while (buckets[position] != 0)
+                position = (position + 1) & mask;
+            buckets[position] = entry + 1;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+
+/**
+ * Generates the code hashing a key, looking it up in a {@link KeyTable} and copying it into the
+ * table, specialized for the number and types of its columns.
+ *
+ * Each column is widened to a long: integral values and chars by conversion, booleans as 0 or 1
+ * and floating point values by their bits, so {@code NaN} equals itself and {@code -0.0} differs
+ * from {@code 0.0}, as with {@link Double#equals}.
+ */
+final class Keys {
+    private static final String TABLE = KeyTable.class.getName().replace('.', '/');
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final MethodInfo ADD = new MethodInfo(TABLE, "add", Integer.TYPE, KeyTable.class, Integer.TYPE, Integer.TYPE);
+    private static final MethodInfo DOUBLE_BITS = MethodInfo.pure("java/lang/Double", "doubleToLongBits", Long.TYPE, Double.TYPE);
+    private static final MethodInfo FLOAT_BITS = MethodInfo.pure("java/lang/Float", "floatToIntBits", Integer.TYPE, Float.TYPE);
+
+    private final Expression[] columns;
+    private final ParameterExpression[] values;
+    private final ParameterExpression hash;
+    private final ParameterExpression position;
+    private final ParameterExpression entry;
+
+    Keys(QueryCompiler compiler, Expression... columns) {
+        this.columns = columns;
+        this.values = new ParameterExpression[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            check(columns[i].getType());
+            values[i] = compiler.local("key" + i, Long.TYPE);
+        }
+
+        this.hash = compiler.local("hash", Integer.TYPE);
+        this.position = compiler.local("position", Integer.TYPE);
+        this.entry = compiler.local("entry", Integer.TYPE);
+    }
+
+    static void check(Class<?> type) {
+        if (!type.isPrimitive() || type == Void.TYPE)
+            throw new IllegalArgumentException("Key must be primitive but is " + type.getName());
+    }
+
+    /**
+     * The entry found by {@link #find} or {@link #findOrAdd}, -1 when the key is missing.
+     */
+    ParameterExpression entry() {
+        return entry;
+    }
+
+    /**
+     * Evaluates the key columns and hashes them.
+     */
+    Expression load() {
+        Expression[] expressions = new Expression[columns.length + 1];
+        Expression h = Expression.constant(0L);
+
+        for (int i = 0; i < columns.length; i++) {
+            expressions[i] = Expression.assign(values[i], toLong(columns[i]));
+            h = Expression.multiply(Expression.add(h, values[i]), Expression.constant(MULTIPLIER));
+        }
+
+        //the high bits of the product are the best mixed ones
+        expressions[columns.length] = Expression.assign(hash, Expression.convert(Expression.rightShift(h, Expression.constant(32)), Integer.TYPE));
+        return Expression.block(expressions);
+    }
+
+    Expression find(Expression table) {
+        return probe(table, false);
+    }
+
+    Expression findOrAdd(Expression table) {
+        return probe(table, true);
+    }
+
+    /**
+     * Linear probing from {@code hash & mask} until the key or an empty bucket, where a missing key
+     * is added and copied when {@code add} is set.
+     */
+    private Expression probe(Expression table, boolean add) {
+        LabelTarget done = Expression.label("done");
+        Expression mask = field(table, "mask", Integer.TYPE);
+        Expression keys = field(table, "keys", long[].class);
+
+        Expression matches = Expression.equal(Expression.arrayAccess(field(table, "hashes", int[].class), entry), hash);
+        for (int i = 0; i < values.length; i++)
+            matches = Expression.andAlso(matches, Expression.equal(Expression.arrayAccess(keys, index(i)), values[i]));
+
+        Expression missing = Expression._break(done);
+        if (add) {
+            Expression[] expressions = new Expression[values.length + 2];
+            expressions[0] = Expression.assign(entry, Expression.call(ADD, table, hash, position));
+            for (int i = 0; i < values.length; i++)
+                expressions[i + 1] = Expression.assign(Expression.arrayAccess(keys, index(i)), values[i]);
+            expressions[values.length + 1] = Expression._break(done);
+            missing = Expression.block(expressions);
+        }
+
+        return Expression.block(
+                Expression.assign(position, Expression.and(hash, mask)),
+                Expression.loop(Expression.block(
+                        Expression.assign(entry, Expression.subtract(Expression.arrayAccess(field(table, "buckets", int[].class), position), Expression.constant(1))),
+                        Expression.condition(Expression.lessThan(entry, Expression.constant(0)), missing, Expression.empty()),
+                        Expression.condition(matches, Expression._break(done), Expression.empty()),
+                        Expression.assign(position, Expression.and(Expression.add(position, Expression.constant(1)), mask))), done));
+    }
+
+    private Expression index(int column) {
+        return Expression.add(Expression.multiply(entry, Expression.constant(values.length)), Expression.constant(column));
+    }
+
+    private static Expression field(Expression table, String name, Class<?> type) {
+        return Expression.makeMemberAccess(table, TABLE, name, type);
+    }
+
+    private static Expression toLong(Expression column) {
+        Class<?> type = column.getType();
+
+        if (type == Boolean.TYPE)
+            return Expression.condition(column, Expression.constant(1L), Expression.constant(0L));
+        if (type == Double.TYPE)
+            return Expression.call(DOUBLE_BITS, column);
+        if (type == Float.TYPE)
+            return Expression.convert(Expression.call(FLOAT_BITS, column), Long.TYPE);
+
+        return Expression.convert(column, Long.TYPE);
+    }
+
+    static Object fromLong(long value, Class<?> type) {
+        if (type == Boolean.TYPE) return value != 0;
+        if (type == Double.TYPE) return Double.longBitsToDouble(value);
+        if (type == Float.TYPE) return Float.intBitsToFloat((int) value);
+        if (type == Character.TYPE) return (char) value;
+
+        return TypeUtils.convert(value, type);
+    }
+}
@@ -0,0 +1,61 @@
+package linq4j.query;
+
+import linq4j.expressions.Expression;
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.ParameterExpression;
+import linq4j.visitors.ByteCodeGenerator;
+import linq4j.visitors.ParameterRebinder;
+import linq4j.visitors.Slots;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The locals of a generated lambda, allocated past its parameters, and the bodies of the lambdas
+ * inlined into it, whose block variables are moved past those locals.
+ */
+final class Locals {
+    private final List<ParameterExpression> variables = new ArrayList<>();
+    private int nextSlot;
+
+    Locals(int firstSlot) {
+        this.nextSlot = firstSlot;
+    }
+
+    List<ParameterExpression> variables() {
+        return variables;
+    }
+
+    ParameterExpression local(String name, Class<?> type) {
+        ParameterExpression local = Expression.parameter(nextSlot, name, type);
+        nextSlot += ByteCodeGenerator.typeOf(type).getSize();
+        variables.add(local);
+        return local;
+    }
+
+    /**
+     * The body of {@code lambda} reading {@code arguments} for its parameters.
+     */
+    Expression inline(LambdaExpression lambda, ParameterExpression... arguments) {
+        List<ParameterExpression> parameters = lambda.getParameters();
+
+        if (parameters.size() != arguments.length)
+            throw new IllegalArgumentException("Lambda must take " + arguments.length + " parameters but takes " + parameters.size());
+
+        Map<Integer, Expression> replacements = new HashMap<>();
+        for (int k = 0; k < arguments.length; k++) {
+            if (parameters.get(k).getType() != arguments[k].getType())
+                throw new IllegalArgumentException("Lambda parameter must be " + arguments[k].getType().getName() + " but is " + parameters.get(k).getType().getName());
+
+            replacements.put(parameters.get(k).getIndex(), arguments[k]);
+        }
+
+        int offset = nextSlot - Slots.firstFree(parameters, Expression.empty());
+        Expression body = ParameterRebinder.rebind(lambda.getBody(), replacements, offset);
+        nextSlot = Math.max(nextSlot, Slots.firstFree(parameters, lambda.getBody()) + offset);
+
+        return body;
+    }
+}
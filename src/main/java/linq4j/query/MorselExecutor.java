@@ -0,0 +1,78 @@
+package linq4j.query;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a {@link QueryKernel} over fixed-size morsels of its source on a {@link ForkJoinPool}.
+ *
+ * One worker per pool thread claims the next morsel from a shared counter until there is none
+ * left, so fast workers take over the morsels of slow ones. The results of the morsels are merged
+ * in the order of the morsels, whichever worker ran them, so that a parallel query sees its
+ * elements in the order of the source: groups are in the order their keys were first seen and
+ * floating point sums do not change from one run to the next.
+ */
+final class MorselExecutor {
+    static final int MORSEL_SIZE = 1 << 14;
+
+    private MorselExecutor() {
+    }
+
+    static Object run(ForkJoinPool pool, final QueryKernel kernel, final Object source, Aggregate.Splittable aggregate) {
+        final int length = Array.getLength(source);
+        final int morsels = (length + MORSEL_SIZE - 1) / MORSEL_SIZE;
+        int workers = Math.min(pool.getParallelism(), morsels);
+
+        if (workers <= 1)
+            return kernel.run(source, 0, length);
+
+        final AtomicInteger next = new AtomicInteger();
+        final Object[] results = new Object[morsels];
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int i = 0; i < workers; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int morsel = next.getAndIncrement(); morsel < morsels; morsel = next.getAndIncrement()) {
+                        int from = morsel * MORSEL_SIZE;
+                        results[morsel] = kernel.run(source, from, Math.min(length, from + MORSEL_SIZE));
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        //waiting for every worker also makes their results visible here
+        for (Future<Void> future : pool.invokeAll(tasks))
+            get(future);
+
+        Object total = results[0];
+        for (int morsel = 1; morsel < morsels; morsel++)
+            total = aggregate.merge(total, results[morsel]);
+
+        return total;
+    }
+
+    private static Object get(Future<?> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a morsel", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+
+import java.lang.reflect.Array;
+import java.util.Collections;
+
+/**
+ * A step of a query pipeline. Operators are fused: each one generates the code consuming one
+ * element and hands its output element to the code of the next one.
+ */
+abstract class Operator {
+
+    Class<?> outputType(Class<?> inputType) {
+        return inputType;
+    }
+
+    /**
+     * False when the operator depends on the elements before the current one, so the source cannot
+     * be split into ranges aggregated independently.
+     */
+    boolean isSplittable() {
+        return true;
+    }
+
+    /**
+     * The code consuming {@code element}, which calls {@link QueryCompiler#next} for what it emits.
+     */
+    abstract Expression fuse(QueryCompiler compiler, ParameterExpression element);
+
+    static final class Where extends Operator {
+        private final LambdaExpression predicate;
+
+        Where(LambdaExpression predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        Expression fuse(QueryCompiler compiler, ParameterExpression element) {
+            Expression test = compiler.inline(predicate, element);
+            return Expression.condition(test, compiler.next(element), Expression.empty());
+        }
+    }
+
+    static final class Select extends Operator {
+        private final LambdaExpression selector;
+
+        Select(LambdaExpression selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        Class<?> outputType(Class<?> inputType) {
+            return selector.getReturnType();
+        }
+
+        @Override
+        Expression fuse(QueryCompiler compiler, ParameterExpression element) {
+            Expression value = compiler.inline(selector, element);
+            ParameterExpression selected = compiler.local("selected", value.getType());
+            return Expression.block(Expression.assign(selected, value), compiler.next(selected));
+        }
+    }
+
+    static final class Take extends Operator {
+        private final int count;
+
+        Take(int count) {
+            this.count = count;
+        }
+
+        @Override
+        boolean isSplittable() {
+            return false;
+        }
+
+        /**
+         * {@code if (taken < count) { taken++; next; if (taken >= count) break; } else break;} so no
+         * element past the last one taken is pulled from the source.
+         */
+        @Override
+        Expression fuse(QueryCompiler compiler, ParameterExpression element) {
+            ParameterExpression taken = compiler.local("taken", Integer.TYPE);
+            Expression limit = Expression.constant(count);
+            compiler.initialize(Expression.assign(taken, Expression.constant(0)));
+
+            Expression take = Expression.block(
+                    Expression.assign(taken, Expression.add(taken, Expression.constant(1))),
+                    compiler.next(element),
+                    Expression.condition(Expression.greaterThanOrEqual(taken, limit), compiler.exit(), Expression.empty()));
+
+            return Expression.condition(Expression.lessThan(taken, limit), take, compiler.exit(), Void.TYPE, BranchHint.Likely);
+        }
+    }
+
+    /**
+     * Indexes the inner array by key when the query runs and, for each element, walks the inner
+     * rows with the same key, handing the result of {@code resultSelector} on both to the next
+     * operator.
+     */
+    static final class Join extends Operator {
+        private static final String OWNER = JoinIndex.class.getName().replace('.', '/');
+
+        private final Object inner;
+        private final LambdaExpression outerKey;
+        private final LambdaExpression innerKey;
+        private final LambdaExpression resultSelector;
+
+        Join(Object inner, LambdaExpression outerKey, LambdaExpression innerKey, LambdaExpression resultSelector) {
+            this.inner = inner;
+            this.outerKey = outerKey;
+            this.innerKey = innerKey;
+            this.resultSelector = resultSelector;
+        }
+
+        @Override
+        Class<?> outputType(Class<?> inputType) {
+            return resultSelector.getReturnType();
+        }
+
+        @Override
+        Expression fuse(QueryCompiler compiler, ParameterExpression element) {
+            int rows = Array.getLength(inner);
+            LambdaExpression build = QueryCompiler.compile(inner.getClass(), Collections.<Operator>emptyList(), new Aggregate.Index(innerKey, rows));
+            JoinIndex index = (JoinIndex) build.compile(QueryKernel.class).run(inner, 0, rows);
+
+            Expression indexConstant = Expression.constant(index, JoinIndex.class);
+            Expression innerConstant = Expression.constant(inner, inner.getClass());
+
+            Keys key = new Keys(compiler, compiler.inline(outerKey, element));
+            ParameterExpression row = compiler.local("row", Integer.TYPE);
+            ParameterExpression matched = compiler.local("matched", inner.getClass().getComponentType());
+            ParameterExpression selected = compiler.local("selected", resultSelector.getReturnType());
+            LabelTarget end = Expression.label("end");
+
+            Expression first = Expression.arrayAccess(Expression.makeMemberAccess(indexConstant, OWNER, "heads", int[].class), key.entry());
+            Expression next = Expression.arrayAccess(Expression.makeMemberAccess(indexConstant, OWNER, "next", int[].class), row);
+
+            return Expression.block(
+                    key.load(),
+                    key.find(indexConstant),
+                    Expression.assign(row, Expression.condition(Expression.lessThan(key.entry(), Expression.constant(0)), Expression.constant(-1), first)),
+                    Expression.loop(Expression.block(
+                            Expression.condition(Expression.lessThan(row, Expression.constant(0)), Expression._break(end), Expression.empty()),
+                            Expression.assign(matched, Expression.arrayAccess(innerConstant, row)),
+                            Expression.assign(selected, compiler.inline(resultSelector, element, matched)),
+                            compiler.next(selected),
+                            Expression.assign(row, next)), end));
+        }
+    }
+}
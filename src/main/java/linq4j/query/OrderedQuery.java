@@ -0,0 +1,97 @@
+package linq4j.query;
+
+import linq4j.expressions.LambdaExpression;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A query ordered by one or more keys, see {@link Query#orderBy}. Sorting is stable: elements with
+ * equal keys keep their query order.
+ *
+ * When every key is primitive, the pipeline collects the elements along with a radix key per sort
+ * key, which are then radix sorted, see {@link RadixSort}. Otherwise the elements are sorted with a
+ * comparator generated from the key selectors, see {@link SortCompiler}. With {@link #take}, only
+ * the first elements are kept while the pipeline runs, in a {@link TopK}.
+ */
+public final class OrderedQuery {
+    private final Query query;
+    private final List<SortKey> keys;
+    private final int limit;
+
+    OrderedQuery(Query query, List<SortKey> keys, int limit) {
+        this.query = query;
+        this.keys = keys;
+        this.limit = limit;
+    }
+
+    /**
+     * Orders the elements with equal previous keys by the value of {@code key}.
+     */
+    public OrderedQuery thenBy(LambdaExpression key) {
+        return then(new SortKey(key, false));
+    }
+
+    public OrderedQuery thenByDescending(LambdaExpression key) {
+        return then(new SortKey(key, true));
+    }
+
+    /**
+     * Keeps the first {@code count} elements in order.
+     */
+    public OrderedQuery take(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("Count must not be negative");
+
+        return new OrderedQuery(query, keys, limit < 0 ? count : Math.min(limit, count));
+    }
+
+    /**
+     * The elements in order, in an array of the element type of the query.
+     */
+    public Object toArray() {
+        Class<?> elementType = query.getElementType();
+
+        if (limit >= 0) {
+            TopK top = (TopK) query.run(new Aggregate.Top(comparator(), limit));
+            return top.toArray(elementType);
+        }
+
+        if (SortCompiler.isRadixSortable(keys)) {
+            ElementBuffer buffer = (ElementBuffer) query.run(new Aggregate.Collect(elementType, keys));
+            return buffer.toArray(RadixSort.sort(buffer.keys, buffer.size));
+        }
+
+        ElementBuffer buffer = (ElementBuffer) query.run(new Aggregate.Collect(elementType, new ArrayList<SortKey>()));
+        Object array = buffer.toArray();
+
+        if (array instanceof Object[]) {
+            Arrays.sort((Object[]) array, comparator());
+            return array;
+        }
+
+        Object[] boxed = new Object[buffer.size];
+        for (int i = 0; i < boxed.length; i++)
+            boxed[i] = Array.get(array, i);
+        Arrays.sort(boxed, comparator());
+        for (int i = 0; i < boxed.length; i++)
+            Array.set(array, i, boxed[i]);
+        return array;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Comparator<Object> comparator() {
+        return SortCompiler.comparator(query.getElementType(), keys).compile(Comparator.class);
+    }
+
+    private OrderedQuery then(SortKey key) {
+        SortCompiler.check(key.getType());
+
+        List<SortKey> chain = new ArrayList<>(keys);
+        chain.add(key);
+        return new OrderedQuery(query, chain, limit);
+    }
+}
@@ -0,0 +1,178 @@
+package linq4j.query;
+
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.TypeUtils;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A query over the elements of an array, built from operators taking expression trees:
+ * <pre>
+ * Query.from(prices).where(p -> p > 10).select(p -> p * 2).take(100).sum()
+ * </pre>
+ * Queries are immutable and lazy. Aggregating one compiles the whole operator chain into a single
+ * loop over the source, see {@link QueryCompiler}, through {@link linq4j.compiler.LambdaCache} so
+ * queries only differing in constants share a class.
+ *
+ * Parallel queries run that loop over morsels of the source on a {@link ForkJoinPool} and merge
+ * the partial aggregates, see {@link MorselExecutor}. Floating point sums may then differ in their
+ * last bits from sequential ones, since they are added in another order.
+ */
+public final class Query {
+    private final Object source;
+    private final Class<?> elementType;
+    private final List<Operator> operators;
+    private final ForkJoinPool pool;
+
+    private Query(Object source, Class<?> elementType, List<Operator> operators, ForkJoinPool pool) {
+        this.source = source;
+        this.elementType = elementType;
+        this.operators = operators;
+        this.pool = pool;
+    }
+
+    public static Query from(Object array) {
+        if (array == null || !array.getClass().isArray())
+            throw new IllegalArgumentException("Source must be an array");
+
+        return new Query(array, array.getClass().getComponentType(), Collections.<Operator>emptyList(), null);
+    }
+
+    public Class<?> getElementType() {
+        return elementType;
+    }
+
+    /**
+     * Keeps the elements {@code predicate}, taking one element and returning a boolean, is true for.
+     */
+    public Query where(LambdaExpression predicate) {
+        if (!TypeUtils.isBoolean(predicate.getReturnType()))
+            throw new IllegalArgumentException("Predicate must return boolean but returns " + predicate.getReturnType().getName());
+
+        return then(new Operator.Where(predicate));
+    }
+
+    /**
+     * Replaces each element with the value of {@code selector} for it.
+     */
+    public Query select(LambdaExpression selector) {
+        if (selector.getReturnType() == Void.TYPE)
+            throw new IllegalArgumentException("Selector must return a value");
+
+        return then(new Operator.Select(selector));
+    }
+
+    /**
+     * Keeps the first {@code count} elements. No element past them is evaluated.
+     */
+    public Query take(int count) {
+        return then(new Operator.Take(count));
+    }
+
+    /**
+     * Pairs each element with the elements of {@code inner}, an array, having the same key, as
+     * {@code resultSelector(element, innerElement)}. Keys are primitive; the inner array is indexed
+     * in a {@link JoinIndex} each time the query runs.
+     */
+    public Query join(Object inner, LambdaExpression outerKey, LambdaExpression innerKey, LambdaExpression resultSelector) {
+        if (inner == null || !inner.getClass().isArray())
+            throw new IllegalArgumentException("Inner side must be an array");
+
+        Class<?> outerType = outerKey.getReturnType();
+        Class<?> innerType = innerKey.getReturnType();
+        Keys.check(outerType);
+        Keys.check(innerType);
+
+        if (outerType != innerType && !(TypeUtils.isIntegral(outerType) && TypeUtils.isIntegral(innerType)))
+            throw new IllegalArgumentException("Cannot join " + outerType.getName() + " keys with " + innerType.getName() + " keys");
+
+        return then(new Operator.Join(inner, outerKey, innerKey, resultSelector));
+    }
+
+    /**
+     * Groups the elements by the values of {@code keys}, each taking an element and returning a
+     * primitive.
+     */
+    public GroupBy groupBy(LambdaExpression... keys) {
+        if (keys.length == 0)
+            throw new IllegalArgumentException("Group by needs a key");
+
+        for (LambdaExpression key : keys)
+            Keys.check(key.getReturnType());
+
+        return new GroupBy(this, keys.clone());
+    }
+
+    /**
+     * Orders the elements by the value of {@code key}, taking an element and returning a primitive
+     * or a {@link Comparable}, see {@link OrderedQuery}.
+     */
+    public OrderedQuery orderBy(LambdaExpression key) {
+        return new OrderedQuery(this, Collections.<SortKey>emptyList(), -1).thenBy(key);
+    }
+
+    public OrderedQuery orderByDescending(LambdaExpression key) {
+        return new OrderedQuery(this, Collections.<SortKey>emptyList(), -1).thenByDescending(key);
+    }
+
+    /**
+     * Runs on the common pool, see {@link #parallel(ForkJoinPool)}.
+     */
+    public Query parallel() {
+        return parallel(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Aggregates morsels of the source on the threads of {@code pool}. Queries with {@code take}
+     * still run sequentially, which elements they keep depends on the ones before them, and so do
+     * ordered queries.
+     */
+    public Query parallel(ForkJoinPool pool) {
+        return new Query(source, elementType, operators, pool);
+    }
+
+    public Query sequential() {
+        return new Query(source, elementType, operators, null);
+    }
+
+    /**
+     * The sum of the elements, of their promoted type: {@code int} for {@code short}, {@code long}
+     * for {@code long}. Integral sums wrap around on overflow.
+     */
+    public Number sum() {
+        return (Number) run(Aggregate.SUM);
+    }
+
+    public int count() {
+        return (Integer) run(Aggregate.COUNT);
+    }
+
+    private Query then(Operator operator) {
+        List<Operator> chain = new ArrayList<>(operators);
+        chain.add(operator);
+        return new Query(source, operator.outputType(elementType), chain, pool);
+    }
+
+    Object run(Aggregate aggregate) {
+        LambdaExpression lambda = QueryCompiler.compile(source.getClass(), operators, aggregate);
+        QueryKernel kernel = lambda.compile(QueryKernel.class);
+
+        if (pool != null && aggregate instanceof Aggregate.Splittable && isSplittable())
+            return MorselExecutor.run(pool, kernel, source, (Aggregate.Splittable) aggregate);
+
+        return kernel.run(source, 0, Array.getLength(source));
+    }
+
+    private boolean isSplittable() {
+        for (Operator operator : operators) {
+            if (!operator.isSplittable())
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,107 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fuses a pipeline into one {@link QueryKernel} lambda aggregating a range of the source array:
+ * <pre>
+ * for (i = from; i < to; i++) { element = source[i]; operators...; accumulate }
+ * </pre>
+ * Each operator inlines its lambda arguments into the loop body, so elements flow from one
+ * operator to the next through locals instead of iterator calls. Everything the loop changes is
+ * a local, so a kernel can run on several ranges at once.
+ */
+final class QueryCompiler {
+    private final List<Operator> operators;
+    private final Aggregate aggregate;
+    private final Locals locals = new Locals(4);
+    private final List<Expression> initializers = new ArrayList<>();
+    private final LabelTarget exit = Expression.label("exit");
+    private ParameterExpression i;
+    private ParameterExpression accumulator;
+    private int stage;
+
+    private QueryCompiler(List<Operator> operators, Aggregate aggregate) {
+        this.operators = operators;
+        this.aggregate = aggregate;
+    }
+
+    static LambdaExpression compile(Class<?> sourceType, List<Operator> operators, Aggregate aggregate) {
+        return new QueryCompiler(operators, aggregate).compile(sourceType);
+    }
+
+    private LambdaExpression compile(Class<?> sourceType) {
+        Class<?> elementType = sourceType.getComponentType();
+        for (Operator operator : operators)
+            elementType = operator.outputType(elementType);
+        Class<?> resultType = aggregate.resultType(elementType);
+
+        ParameterExpression source = Expression.parameter(1, "source", sourceType);
+        ParameterExpression from = Expression.parameter(2, "from", Integer.TYPE);
+        ParameterExpression to = Expression.parameter(3, "to", Integer.TYPE);
+        i = local("i", Integer.TYPE);
+        ParameterExpression element = local("element", sourceType.getComponentType());
+        accumulator = local("accumulator", resultType);
+
+        Expression pipeline = next(element);
+
+        List<Expression> expressions = new ArrayList<>(initializers);
+        expressions.add(Expression.assign(accumulator, aggregate.initial(resultType)));
+        expressions.add(Expression.assign(i, from));
+        expressions.add(Expression.loop(Expression.block(
+                Expression.condition(Expression.greaterThanOrEqual(i, to), exit(), Expression.empty(), Void.TYPE, BranchHint.Unlikely),
+                Expression.assign(element, Expression.arrayAccess(source, i)),
+                pipeline,
+                Expression.assign(i, Expression.add(i, Expression.constant(1)))), exit));
+        expressions.add(accumulator);
+
+        Expression body = Expression.block(resultType, locals.variables(), expressions.toArray(new Expression[0]));
+        return Expression.lambda(body, source, from, to);
+    }
+
+    /**
+     * The code of the operators after the current one, consuming {@code element}.
+     */
+    Expression next(ParameterExpression element) {
+        if (stage < operators.size())
+            return operators.get(stage++).fuse(this, element);
+
+        return aggregate.accumulate(this, accumulator, element);
+    }
+
+    /**
+     * The index of the current source element.
+     */
+    ParameterExpression index() {
+        return i;
+    }
+
+    ParameterExpression local(String name, Class<?> type) {
+        return locals.local(name, type);
+    }
+
+    /**
+     * Runs before the loop, such as resetting a counter.
+     */
+    void initialize(Expression expression) {
+        initializers.add(expression);
+    }
+
+    /**
+     * Stops the loop, the query result is what has been accumulated so far.
+     */
+    Expression exit() {
+        return Expression._break(exit);
+    }
+
+    /**
+     * The body of {@code lambda} reading {@code arguments} for its parameters, its block variables
+     * moved past the locals of the pipeline.
+     */
+    Expression inline(LambdaExpression lambda, ParameterExpression... arguments) {
+        return locals.inline(lambda, arguments);
+    }
+}
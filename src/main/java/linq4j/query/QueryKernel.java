@@ -0,0 +1,12 @@
+package linq4j.query;
+
+/**
+ * A query compiled by {@link QueryCompiler}. Kernels hold no mutable state and can be called from
+ * several threads at once.
+ */
+public interface QueryKernel {
+    /**
+     * The aggregate of the elements of {@code source} in {@code [from, to)}.
+     */
+    Object run(Object source, int from, int to);
+}
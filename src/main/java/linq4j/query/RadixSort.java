@@ -0,0 +1,76 @@
+package linq4j.query;
+
+import java.util.Arrays;
+
+/**
+ * Stable least significant digit radix sort of rows by unsigned long keys, a byte per pass. Keys
+ * are sorted from the last one to the first, so rows end up ordered by the first key, then the
+ * second and so on. Passes over a byte all rows share are skipped, which leaves a few passes for
+ * keys of a small range such as most ints.
+ */
+final class RadixSort {
+    private static final int PASSES = 8;
+    private static final int RADIX = 256;
+
+    private RadixSort() {
+    }
+
+    /**
+     * The rows {@code 0..size-1} in the order of their keys, equal keys in row order.
+     */
+    static int[] sort(long[][] keys, int size) {
+        int[] order = new int[size];
+        int[] buffer = new int[size];
+        int[][] counts = new int[PASSES][RADIX];
+
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+
+        for (int k = keys.length - 1; k >= 0; k--) {
+            long[] key = keys[k];
+
+            for (int[] count : counts)
+                Arrays.fill(count, 0);
+
+            for (int i = 0; i < size; i++) {
+                long value = key[i];
+                for (int pass = 0; pass < PASSES; pass++)
+                    counts[pass][(int) (value >>> (pass * 8)) & 0xFF]++;
+            }
+
+            for (int pass = 0; pass < PASSES; pass++) {
+                int[] count = counts[pass];
+                if (isConstant(count, size))
+                    continue;
+
+                int offset = 0;
+                for (int digit = 0; digit < RADIX; digit++) {
+                    int n = count[digit];
+                    count[digit] = offset;
+                    offset += n;
+                }
+
+                int shift = pass * 8;
+                for (int i = 0; i < size; i++) {
+                    int row = order[i];
+                    buffer[count[(int) (key[row] >>> shift) & 0xFF]++] = row;
+                }
+
+                int[] swap = order;
+                order = buffer;
+                buffer = swap;
+            }
+        }
+
+        return order;
+    }
+
+    private static boolean isConstant(int[] count, int size) {
+        for (int n : count) {
+            if (n != 0)
+                return n == size;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+import linq4j.visitors.ByteCodeGenerator;
+
+import java.util.List;
+
+/**
+ * Generates the code ordering elements by their {@link SortKey}s: a comparator evaluating the keys
+ * one after the other, and the radix keys of primitive keys.
+ *
+ * A radix key is a long whose unsigned order is the order of the key: signed values have their
+ * sign bit flipped, floating point values are ordered as {@link Double#compare} orders them, with
+ * {@code -0.0} before {@code 0.0} and {@code NaN} last, and descending keys are complemented.
+ */
+final class SortCompiler {
+    private static final MethodInfo COMPARE_BOOLEAN = MethodInfo.pure("java/lang/Boolean", "compare", Integer.TYPE, Boolean.TYPE, Boolean.TYPE);
+    private static final MethodInfo COMPARE_INT = MethodInfo.pure("java/lang/Integer", "compare", Integer.TYPE, Integer.TYPE, Integer.TYPE);
+    private static final MethodInfo COMPARE_LONG = MethodInfo.pure("java/lang/Long", "compare", Integer.TYPE, Long.TYPE, Long.TYPE);
+    private static final MethodInfo COMPARE_FLOAT = MethodInfo.pure("java/lang/Float", "compare", Integer.TYPE, Float.TYPE, Float.TYPE);
+    private static final MethodInfo COMPARE_DOUBLE = MethodInfo.pure("java/lang/Double", "compare", Integer.TYPE, Double.TYPE, Double.TYPE);
+    private static final MethodInfo COMPARE_OBJECT = MethodInfo.pure(Comparables.class.getName().replace('.', '/'), "compare", Integer.TYPE, Comparable.class, Comparable.class);
+    private static final MethodInfo DOUBLE_BITS = MethodInfo.pure("java/lang/Double", "doubleToLongBits", Long.TYPE, Double.TYPE);
+    private static final MethodInfo FLOAT_BITS = MethodInfo.pure("java/lang/Float", "floatToIntBits", Integer.TYPE, Float.TYPE);
+
+    private SortCompiler() {
+    }
+
+    static void check(Class<?> type) {
+        if (type == Void.TYPE || !type.isPrimitive() && !Comparable.class.isAssignableFrom(type))
+            throw new IllegalArgumentException("Sort key must be primitive or comparable but is " + type.getName());
+    }
+
+    static boolean isRadixSortable(List<SortKey> keys) {
+        for (SortKey key : keys) {
+            if (!key.getType().isPrimitive())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * A lambda taking two elements and returning their order, for {@link java.util.Comparator}:
+     * <pre>
+     * c0 = compare(key0(left), key0(right)); c0 != 0 ? c0 : (c1 = ...; c1 != 0 ? c1 : ... 0)
+     * </pre>
+     */
+    static LambdaExpression comparator(Class<?> elementType, List<SortKey> keys) {
+        int size = ByteCodeGenerator.typeOf(elementType).getSize();
+        ParameterExpression left = Expression.parameter(1, "left", elementType);
+        ParameterExpression right = Expression.parameter(1 + size, "right", elementType);
+        Locals locals = new Locals(1 + 2 * size);
+
+        Expression[] comparisons = new Expression[keys.size()];
+        ParameterExpression[] results = new ParameterExpression[keys.size()];
+        for (int k = 0; k < keys.size(); k++) {
+            SortKey key = keys.get(k);
+            ParameterExpression a = locals.local("left" + k, key.getType());
+            ParameterExpression b = locals.local("right" + k, key.getType());
+            results[k] = locals.local("order" + k, Integer.TYPE);
+
+            comparisons[k] = Expression.block(
+                    Expression.assign(a, locals.inline(key.selector, left)),
+                    Expression.assign(b, locals.inline(key.selector, right)),
+                    Expression.assign(results[k], key.descending ? compare(b, a) : compare(a, b)));
+        }
+
+        Expression order = Expression.constant(0);
+        for (int k = keys.size() - 1; k >= 0; k--) {
+            Expression decided = Expression.notEqual(results[k], Expression.constant(0));
+            order = Expression.block(Integer.TYPE, comparisons[k], Expression.condition(decided, results[k], order));
+        }
+
+        return Expression.lambda(Expression.block(Integer.TYPE, locals.variables(), order), left, right);
+    }
+
+    private static Expression compare(Expression left, Expression right) {
+        Class<?> type = left.getType();
+
+        if (type == Boolean.TYPE)
+            return Expression.call(COMPARE_BOOLEAN, left, right);
+        if (type == Long.TYPE)
+            return Expression.call(COMPARE_LONG, left, right);
+        if (type == Float.TYPE)
+            return Expression.call(COMPARE_FLOAT, left, right);
+        if (type == Double.TYPE)
+            return Expression.call(COMPARE_DOUBLE, left, right);
+        if (type.isPrimitive())
+            return Expression.call(COMPARE_INT, Expression.convert(left, Integer.TYPE), Expression.convert(right, Integer.TYPE));
+
+        return Expression.call(COMPARE_OBJECT, Expression.convert(left, Comparable.class), Expression.convert(right, Comparable.class));
+    }
+
+    /**
+     * The radix key of {@code key}, a primitive.
+     */
+    static Expression radixKey(QueryCompiler compiler, Expression key, boolean descending) {
+        Class<?> type = key.getType();
+        Expression value;
+
+        if (type == Boolean.TYPE) {
+            value = Expression.condition(key, Expression.constant(1L), Expression.constant(0L));
+        } else if (type == Double.TYPE || type == Float.TYPE) {
+            //negative values have all their bits flipped, positive ones only the sign
+            ParameterExpression bits = compiler.local("bits", Long.TYPE);
+            Expression load = type == Double.TYPE
+                    ? Expression.call(DOUBLE_BITS, key)
+                    : Expression.convert(Expression.call(FLOAT_BITS, key), Long.TYPE);
+            Expression flip = Expression.or(Expression.rightShift(bits, Expression.constant(63)), Expression.constant(Long.MIN_VALUE));
+            value = Expression.block(Long.TYPE, Expression.assign(bits, load), Expression.exclusiveOr(bits, flip));
+        } else {
+            value = Expression.exclusiveOr(Expression.convert(key, Long.TYPE), Expression.constant(Long.MIN_VALUE));
+        }
+
+        return descending ? Expression.exclusiveOr(value, Expression.constant(-1L)) : value;
+    }
+}
@@ -0,0 +1,20 @@
+package linq4j.query;
+
+import linq4j.expressions.LambdaExpression;
+
+/**
+ * A key selector of an {@link OrderedQuery} and its direction.
+ */
+final class SortKey {
+    final LambdaExpression selector;
+    final boolean descending;
+
+    SortKey(LambdaExpression selector, boolean descending) {
+        this.selector = selector;
+        this.descending = descending;
+    }
+
+    Class<?> getType() {
+        return selector.getReturnType();
+    }
+}
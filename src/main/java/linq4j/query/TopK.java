@@ -0,0 +1,104 @@
+package linq4j.query;
+
+import java.lang.reflect.Array;
+import java.util.Comparator;
+
+/**
+ * The first {@code limit} elements of a query in the order of a comparator, kept in a bounded
+ * max-heap whose root is the last of them, so each element costs one comparison against the root
+ * unless it makes the cut. Elements comparing equal keep their query order.
+ */
+public final class TopK {
+    private final Comparator<Object> comparator;
+    private final Object[] elements;
+    private final long[] sequences;
+    private long sequence;
+    private int size;
+
+    private TopK(Comparator<Object> comparator, int limit) {
+        this.comparator = comparator;
+        this.elements = new Object[limit];
+        this.sequences = new long[limit];
+    }
+
+    public static TopK create(Comparator<Object> comparator, int limit) {
+        return new TopK(comparator, limit);
+    }
+
+    public static void offer(TopK top, Object element) {
+        top.offer(element);
+    }
+
+    private void offer(Object element) {
+        long arrival = sequence++;
+
+        if (size < elements.length) {
+            siftUp(size++, element, arrival);
+        } else if (size > 0 && comparator.compare(element, elements[0]) < 0) {
+            //equal elements arrived first, so only strictly smaller ones replace the root
+            siftDown(0, element, arrival, size);
+        }
+    }
+
+    /**
+     * The elements kept, in order, as an array of {@code elementType}.
+     */
+    Object toArray(Class<?> elementType) {
+        int count = size;
+
+        //popping the root moves the last of the remaining elements to the end
+        while (size > 1) {
+            Object root = elements[0];
+            long arrival = sequences[0];
+            size--;
+            siftDown(0, elements[size], sequences[size], size);
+            elements[size] = root;
+            sequences[size] = arrival;
+        }
+
+        Object array = Array.newInstance(elementType, count);
+        for (int i = 0; i < count; i++)
+            Array.set(array, i, elements[i]);
+        return array;
+    }
+
+    private int compare(Object left, long leftArrival, Object right, long rightArrival) {
+        int order = comparator.compare(left, right);
+        return order != 0 ? order : Long.compare(leftArrival, rightArrival);
+    }
+
+    private void siftUp(int position, Object element, long arrival) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (compare(element, arrival, elements[parent], sequences[parent]) <= 0)
+                break;
+
+            elements[position] = elements[parent];
+            sequences[position] = sequences[parent];
+            position = parent;
+        }
+
+        elements[position] = element;
+        sequences[position] = arrival;
+    }
+
+    private void siftDown(int position, Object element, long arrival, int end) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= end)
+                break;
+
+            if (child + 1 < end && compare(elements[child + 1], sequences[child + 1], elements[child], sequences[child]) > 0)
+                child++;
+            if (compare(element, arrival, elements[child], sequences[child]) >= 0)
+                break;
+
+            elements[position] = elements[child];
+            sequences[position] = sequences[child];
+            position = child;
+        }
+
+        elements[position] = element;
+        sequences[position] = arrival;
+    }
+}
@@ -0,0 +1,48 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+/**
+ * Rewrites {@code &&} and {@code ||} whose right side can neither throw nor have side effects into
+ * {@code &} and {@code |}, which evaluate both sides without branching, so a predicate over data
+ * does not depend on the branch predictor.
+ */
+public final class BranchEliminator extends ExpressionVisitor {
+
+    private BranchEliminator() {
+    }
+
+    public static Expression eliminate(Expression expression) {
+        return new BranchEliminator().visit(expression);
+    }
+
+    /**
+     * True when {@code expression} can be evaluated even where it would not have been, such as for
+     * a row whose result is discarded: it can neither throw nor change any state.
+     */
+    public static boolean isSpeculable(Expression expression) {
+        return ExpressionOptimizer.canDrop(expression);
+    }
+
+    @Override
+    public Expression visitBinary(BinaryExpression binaryExpression) {
+        Expression visited = super.visitBinary(binaryExpression);
+
+        if (visited.getNodeType() != ExpressionType.AndAlso && visited.getNodeType() != ExpressionType.OrElse)
+            return visited;
+
+        BinaryExpression binary = (BinaryExpression) visited;
+        Expression left = binary.getLeft();
+        Expression right = binary.getRight();
+
+        if (left.getType() != Boolean.TYPE || right.getType() != Boolean.TYPE || !isSpeculable(right))
+            return visited;
+
+        return binary.getNodeType() == ExpressionType.AndAlso ? Expression.and(left, right) : Expression.or(left, right);
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return lambdaExpression;
+    }
+}
@@ -2,67 +2,90 @@ package linq4j.visitors;
 
 import linq4j.expressions.*;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Created by marrony on 6/15/17.
  */
 public class ByteCodeGenerator extends ExpressionVisitor {
+    private static final Handle BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC, Type.getInternalName(DynamicMembers.class), "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;");
+    private static final Handle METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;"
+                    + "Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;");
+    private static final AtomicLong LAMBDAS = new AtomicLong();
+
+    private static final ClassValue<Type> TYPES = new ClassValue<Type>() {
+        @Override
+        protected Type computeValue(Class<?> type) {
+            return Type.getType(type);
+        }
+    };
+
     private final ClassWriter cw;
     private final MethodVisitor method;
+    private final String owner;
+    private final FrameTracker frames;
+    private final Map<LabelTarget, Label> labels = new IdentityHashMap<>();
 
     public ByteCodeGenerator(ClassWriter cw, MethodVisitor method) {
+        this(cw, method, null);
+    }
+
+    /**
+     * Generates into a method of class {@code owner}, an internal name, which nested lambdas are
+     * added to.
+     */
+    public ByteCodeGenerator(ClassWriter cw, MethodVisitor method, String owner) {
         this.cw = cw;
         this.method = method;
+        this.owner = owner;
+        this.frames = method instanceof FrameTracker ? (FrameTracker) method : null;
     }
 
     @Override
     public Expression visitBinary(BinaryExpression binaryExpression) {
-        System.out.printf("visitBinary: %s\n", binaryExpression.getNodeType());
-
         if (binaryExpression.getNodeType() == ExpressionType.Assign) {
             if (binaryExpression.getLeft().getNodeType() == ExpressionType.MemberAccess) {
                 //obj.field = value
                 MemberExpression member = (MemberExpression) binaryExpression.getLeft();
 
-                visit(member.getExpression());        //load obj
-                visit(binaryExpression.getRight());   //load value
+                if (member.getExpression() != null)
+                    visit(member.getExpression());                    //load obj
+                emit(binaryExpression.getRight(), member.getType());  //load value
 
-                method.visitFieldInsn(Opcodes.PUTFIELD, member.getOwner(), member.getMember(), Type.getDescriptor(member.getType()));
+                int opcode = member.getExpression() != null ? Opcodes.PUTFIELD : Opcodes.PUTSTATIC;
+                method.visitFieldInsn(opcode, member.getOwner(), member.getMember(), Type.getDescriptor(member.getType()));
             } else if (binaryExpression.getLeft().getNodeType() == ExpressionType.ArrayIndex) {
                 //array[index] = value
-                visit(binaryExpression.getLeft());    //load array+index
-                visit(binaryExpression.getRight());   //load value
-
                 IndexExpression index = (IndexExpression) binaryExpression.getLeft();
 
-                method.visitInsn(Opcodes.AASTORE);
-//            } else if (binaryExpression.getRight().getNodeType() == ExpressionType.MemberAccess) {
-//                //variable = obj.field
-//                MemberExpression member = (MemberExpression) binaryExpression.getRight();
-//
-//                visit(binaryExpression.getLeft());
-//                //visit(binaryExpression.getRight());
-//
-//                method.visitFieldInsn(Opcodes.GETFIELD, member.getOwner(), member.getMember(), Type.getDescriptor(member.getType()));
-//
-//                //throw new IllegalStateException("variable = obj.field");
+                visit(index.getArray());                            //load array
+                emit(index.getIndex(), Integer.TYPE);               //load index
+                emit(binaryExpression.getRight(), index.getType()); //load value
+
+                method.visitInsn(typeOf(index.getType()).getOpcode(Opcodes.IASTORE));
             } else if (binaryExpression.getLeft().getNodeType() == ExpressionType.Parameter) {
                 //variable = value
                 ParameterExpression parameterExpression = (ParameterExpression) binaryExpression.getLeft();
 
-//                if (binaryExpression.getRight().getNodeType() == ExpressionType.MemberAccess) {
-//                    MemberExpression member = (MemberExpression) binaryExpression.getRight();
-//
-//                    visit(member.getExpression());
-//                    method.visitFieldInsn(Opcodes.GETFIELD, member.getOwner(), member.getMember(), Type.getDescriptor(member.getType()));
-//                } else {
-                    visit(binaryExpression.getRight());
-//                }
+                emit(binaryExpression.getRight(), parameterExpression.getType());
 
-                method.visitVarInsn(Opcodes.ASTORE, parameterExpression.getIndex());
+                method.visitVarInsn(typeOf(parameterExpression.getType()).getOpcode(Opcodes.ISTORE), parameterExpression.getIndex());
             } else {
                 throw new IllegalStateException("What?");
             }
@@ -70,111 +93,753 @@ public class ByteCodeGenerator extends ExpressionVisitor {
             return binaryExpression;
         }
 
-        return super.visitBinary(binaryExpression);
+        Class<?> type = binaryExpression.getType();
+
+        switch (binaryExpression.getNodeType()) {
+            case Add:
+            case Subtract:
+            case Multiply:
+            case Divide:
+            case Modulo:
+            case And:
+            case Or:
+            case ExclusiveOr:
+                emit(binaryExpression.getLeft(), type);
+                emit(binaryExpression.getRight(), type);
+                method.visitInsn(typeOf(type).getOpcode(opcode(binaryExpression.getNodeType())));
+                break;
+            case AddChecked:
+            case SubtractChecked:
+            case MultiplyChecked:
+                emit(binaryExpression.getLeft(), type);
+                emit(binaryExpression.getRight(), type);
+                if (type == Integer.TYPE || type == Long.TYPE) {
+                    String name = binaryExpression.getNodeType() == ExpressionType.AddChecked ? "addExact"
+                            : binaryExpression.getNodeType() == ExpressionType.SubtractChecked ? "subtractExact" : "multiplyExact";
+                    String descriptor = Type.getMethodDescriptor(typeOf(type), typeOf(type), typeOf(type));
+                    method.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(Math.class), name, descriptor, false);
+                } else {
+                    method.visitInsn(typeOf(type).getOpcode(opcode(binaryExpression.getNodeType())));
+                }
+                break;
+            case LeftShift:
+            case RightShift:
+                emit(binaryExpression.getLeft(), type);
+                emit(binaryExpression.getRight(), Integer.TYPE);
+                method.visitInsn(typeOf(type).getOpcode(opcode(binaryExpression.getNodeType())));
+                break;
+            case Power:
+                emit(binaryExpression.getLeft(), Double.TYPE);
+                emit(binaryExpression.getRight(), Double.TYPE);
+                method.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(Math.class), "pow", "(DD)D", false);
+                break;
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual:
+            case AndAlso:
+            case OrElse:
+                materialize(binaryExpression);
+                break;
+            case Coalesce: {
+                Label isNull = new Label();
+                Label end = new Label();
+
+                visit(binaryExpression.getLeft());
+                method.visitInsn(Opcodes.DUP);
+                method.visitJumpInsn(Opcodes.IFNULL, isNull);
+                Class<?> leftType = binaryExpression.getLeft().getType();
+                //Integer ?? Long is a Long, converted through long
+                if (TypeUtils.isWrapper(type) && leftType != type) {
+                    convert(leftType, TypeUtils.unwrap(type));
+                    leftType = TypeUtils.unwrap(type);
+                }
+                convert(leftType, type);
+                declare(type);
+                method.visitJumpInsn(Opcodes.GOTO, end);
+                method.visitLabel(isNull);
+                method.visitInsn(Opcodes.POP);
+                emit(binaryExpression.getRight(), type);
+                method.visitLabel(end);
+                break;
+            }
+            default:
+                throw new UnsupportedOperationException("Cannot generate code for " + binaryExpression.getNodeType());
+        }
+
+        return binaryExpression;
+    }
+
+    private static int opcode(ExpressionType nodeType) {
+        switch (nodeType) {
+            case Add: case AddChecked: return Opcodes.IADD;
+            case Subtract: case SubtractChecked: return Opcodes.ISUB;
+            case Multiply: case MultiplyChecked: return Opcodes.IMUL;
+            case Divide: return Opcodes.IDIV;
+            case Modulo: return Opcodes.IREM;
+            case And: return Opcodes.IAND;
+            case Or: return Opcodes.IOR;
+            case ExclusiveOr: return Opcodes.IXOR;
+            case LeftShift: return Opcodes.ISHL;
+            case RightShift: return Opcodes.ISHR;
+            case Negate: case NegateChecked: return Opcodes.INEG;
+            default: throw new IllegalArgumentException(nodeType.name());
+        }
+    }
+
+    /**
+     * Turns a condition into 0 or 1 on the stack.
+     */
+    private void materialize(Expression test) {
+        Label isTrue = new Label();
+        Label end = new Label();
+
+        jump(test, true, isTrue);
+        method.visitInsn(Opcodes.ICONST_0);
+        method.visitJumpInsn(Opcodes.GOTO, end);
+        method.visitLabel(isTrue);
+        method.visitInsn(Opcodes.ICONST_1);
+        method.visitLabel(end);
+    }
+
+    /**
+     * Emits a jump to {@code target} taken when {@code test} evaluates to {@code condition}.
+     * Comparisons branch directly on their operands instead of producing a boolean first, and
+     * {@code &&}, {@code ||} and conditionals only evaluate the operands they need.
+     */
+    public void jump(Expression test, boolean condition, Label target) {
+        switch (test.getNodeType()) {
+            case AndAlso:
+            case OrElse: {
+                BinaryExpression binary = (BinaryExpression) test;
+
+                //a && b is known to be false once a is false, a || b is known to be true once a is true
+                boolean decided = test.getNodeType() == ExpressionType.OrElse;
+
+                if (condition == decided) {
+                    jump(binary.getLeft(), condition, target);
+                    jump(binary.getRight(), condition, target);
+                } else {
+                    Label skip = new Label();
+                    jump(binary.getLeft(), decided, skip);
+                    jump(binary.getRight(), condition, target);
+                    method.visitLabel(skip);
+                }
+                break;
+            }
+            case Conditional: {
+                ConditionalExpression conditional = (ConditionalExpression) test;
+                Label ifFalse = new Label();
+                Label end = new Label();
+
+                jump(conditional.getTest(), false, ifFalse);
+                jump(conditional.getIfTrue(), condition, target);
+                method.visitJumpInsn(Opcodes.GOTO, end);
+                method.visitLabel(ifFalse);
+                jump(conditional.getIfFalse(), condition, target);
+                method.visitLabel(end);
+                break;
+            }
+            case Constant:
+                if (test.getType() != Boolean.TYPE)
+                    jumpOnValue(test, condition, target);
+                else if (Boolean.valueOf(condition).equals(((ConstantExpression) test).getValue()))
+                    method.visitJumpInsn(Opcodes.GOTO, target);
+                break;
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual:
+                compare((BinaryExpression) test, condition, target);
+                break;
+            case Not:
+                if (TypeUtils.isBoolean(test.getType()))
+                    jump(((UnaryExpression) test).getOperand(), !condition, target);
+                else
+                    jumpOnValue(test, condition, target);
+                break;
+            default:
+                jumpOnValue(test, condition, target);
+        }
+    }
+
+    private void jumpOnValue(Expression test, boolean condition, Label target) {
+        emit(test, Boolean.TYPE);
+        method.visitJumpInsn(condition ? Opcodes.IFNE : Opcodes.IFEQ, target);
+    }
+
+    private void compare(BinaryExpression comparison, boolean condition, Label target) {
+        Expression left = comparison.getLeft();
+        Expression right = comparison.getRight();
+        Class<?> type = TypeUtils.comparisonType(left.getType(), right.getType());
+        ExpressionType nodeType = condition ? comparison.getNodeType() : inverse(comparison.getNodeType());
+
+        if (type == Object.class) {
+            boolean equal = nodeType == ExpressionType.Equal;
+
+            if (!equal && nodeType != ExpressionType.NotEqual)
+                throw new IllegalArgumentException("Cannot order references with " + comparison.getNodeType());
+
+            if (isNull(right) || isNull(left)) {
+                visit(isNull(right) ? left : right);
+                method.visitJumpInsn(equal ? Opcodes.IFNULL : Opcodes.IFNONNULL, target);
+            } else {
+                visit(left);
+                visit(right);
+                method.visitJumpInsn(equal ? Opcodes.IF_ACMPEQ : Opcodes.IF_ACMPNE, target);
+            }
+            return;
+        }
+
+        emit(left, type);
+        emit(right, type);
+
+        switch (typeOf(type).getSort()) {
+            case Type.LONG:
+                method.visitInsn(Opcodes.LCMP);
+                method.visitJumpInsn(ifOpcode(nodeType, Opcodes.IFEQ), target);
+                break;
+            case Type.FLOAT:
+            case Type.DOUBLE: {
+                //NaN compares as 1 for < and <=, as -1 for > and >=, so those comparisons are false
+                ExpressionType original = comparison.getNodeType();
+                boolean greater = original == ExpressionType.LessThan || original == ExpressionType.LessThanOrEqual;
+
+                if (type == Float.TYPE)
+                    method.visitInsn(greater ? Opcodes.FCMPG : Opcodes.FCMPL);
+                else
+                    method.visitInsn(greater ? Opcodes.DCMPG : Opcodes.DCMPL);
+
+                method.visitJumpInsn(ifOpcode(nodeType, Opcodes.IFEQ), target);
+                break;
+            }
+            default:
+                method.visitJumpInsn(ifOpcode(nodeType, Opcodes.IF_ICMPEQ), target);
+        }
+    }
+
+    private static boolean isNull(Expression expression) {
+        return expression.getNodeType() == ExpressionType.Constant && ((ConstantExpression) expression).getValue() == null;
+    }
+
+    /**
+     * Maps a comparison to the IFxx or IF_ICMPxx opcode, {@code base} being IFEQ or IF_ICMPEQ.
+     */
+    private static int ifOpcode(ExpressionType nodeType, int base) {
+        switch (nodeType) {
+            case Equal: return base;
+            case NotEqual: return base + 1;
+            case LessThan: return base + 2;
+            case GreaterThanOrEqual: return base + 3;
+            case GreaterThan: return base + 4;
+            case LessThanOrEqual: return base + 5;
+            default: throw new IllegalArgumentException(nodeType.name());
+        }
+    }
+
+    private static ExpressionType inverse(ExpressionType nodeType) {
+        switch (nodeType) {
+            case Equal: return ExpressionType.NotEqual;
+            case NotEqual: return ExpressionType.Equal;
+            case LessThan: return ExpressionType.GreaterThanOrEqual;
+            case GreaterThanOrEqual: return ExpressionType.LessThan;
+            case GreaterThan: return ExpressionType.LessThanOrEqual;
+            case LessThanOrEqual: return ExpressionType.GreaterThan;
+            default: throw new IllegalArgumentException(nodeType.name());
+        }
+    }
+
+    /**
+     * The likely branch, the true one unless hinted otherwise, falls through and the other one is
+     * reached by a jump.
+     */
+    @Override
+    public Expression visitConditional(ConditionalExpression conditionalExpression) {
+        boolean unlikely = conditionalExpression.getHint() == BranchHint.Unlikely;
+        Expression fallThrough = unlikely ? conditionalExpression.getIfFalse() : conditionalExpression.getIfTrue();
+        Expression jumped = unlikely ? conditionalExpression.getIfTrue() : conditionalExpression.getIfFalse();
+        Label other = new Label();
+        Label end = new Label();
+
+        jump(conditionalExpression.getTest(), unlikely, other);
+        emit(fallThrough, conditionalExpression.getType());
+        method.visitJumpInsn(Opcodes.GOTO, end);
+        method.visitLabel(other);
+        emit(jumped, conditionalExpression.getType());
+        method.visitLabel(end);
+
+        return conditionalExpression;
+    }
+
+    @Override
+    public Expression visitLoop(LoopExpression loopExpression) {
+        Label start = loopExpression.getContinueLabel() != null ? label(loopExpression.getContinueLabel()) : new Label();
+
+        if (frames != null)
+            frames.backwardTarget(start, LoopWrites.of(loopExpression.getBody()));
+
+        method.visitLabel(start);
+        emit(loopExpression.getBody(), Void.TYPE);
+        method.visitJumpInsn(Opcodes.GOTO, start);
+
+        if (loopExpression.getBreakLabel() != null)
+            method.visitLabel(label(loopExpression.getBreakLabel()));
+
+        return loopExpression;
+    }
+
+    @Override
+    public Expression visitGoto(GotoExpression gotoExpression) {
+        if (gotoExpression.getValue() != null)
+            emit(gotoExpression.getValue(), gotoExpression.getTarget().getType());
+
+        method.visitJumpInsn(Opcodes.GOTO, label(gotoExpression.getTarget()));
+
+        //never reached, keeps the stack of a jump standing where a value is expected consistent
+        if (gotoExpression.getType() != Void.TYPE)
+            loadDefault(gotoExpression.getType());
+
+        return gotoExpression;
+    }
+
+    @Override
+    public Expression visitLabel(LabelExpression labelExpression) {
+        if (labelExpression.getDefaultValue() != null)
+            emit(labelExpression.getDefaultValue(), labelExpression.getType());
+
+        //gotos may jump back to it, with the locals of the fall through
+        if (frames != null)
+            frames.backwardTarget(label(labelExpression.getTarget()), Collections.<Integer, Class<?>>emptyMap());
+
+        method.visitLabel(label(labelExpression.getTarget()));
+
+        return labelExpression;
+    }
+
+    private Label label(LabelTarget target) {
+        Label label = labels.get(target);
+
+        if (label == null) {
+            label = new Label();
+            labels.put(target, label);
+        }
+
+        return label;
+    }
+
+    private void loadDefault(Class<?> type) {
+        switch (typeOf(type).getSort()) {
+            case Type.LONG: method.visitInsn(Opcodes.LCONST_0); break;
+            case Type.FLOAT: method.visitInsn(Opcodes.FCONST_0); break;
+            case Type.DOUBLE: method.visitInsn(Opcodes.DCONST_0); break;
+            case Type.OBJECT: case Type.ARRAY: method.visitInsn(Opcodes.ACONST_NULL); break;
+            default: method.visitInsn(Opcodes.ICONST_0);
+        }
+    }
+
+    /**
+     * Int-like values use TABLESWITCH when their keys are dense and LOOKUPSWITCH otherwise, enums
+     * switch over their ordinal and strings over their hash code, calling equals on each string
+     * of the matched bucket.
+     */
+    @Override
+    public Expression visitSwitch(SwitchExpression switchExpression) {
+        Expression switchValue = switchExpression.getSwitchValue();
+        List<SwitchCase> cases = switchExpression.getCases();
+        Label[] bodies = new Label[cases.size()];
+        Label defaultBody = new Label();
+        Label end = new Label();
+
+        for (int i = 0; i < bodies.length; i++)
+            bodies[i] = new Label();
+
+        if (switchValue.getType() == String.class) {
+            switchString(switchExpression, bodies, defaultBody);
+        } else {
+            TreeMap<Integer, Label> keys = new TreeMap<>();
+
+            for (int i = 0; i < bodies.length; i++) {
+                for (ConstantExpression testValue : cases.get(i).getTestValues()) {
+                    Object value = testValue.getValue();
+                    keys.put(value instanceof Enum ? ((Enum<?>) value).ordinal() : (Integer) TypeUtils.convert(value, Integer.TYPE), bodies[i]);
+                }
+            }
+
+            if (switchValue.getType().isEnum()) {
+                visit(switchValue);
+                method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(switchValue.getType()), "ordinal", "()I", false);
+            } else {
+                emit(switchValue, Integer.TYPE);
+            }
+
+            dispatch(keys, defaultBody);
+        }
+
+        for (int i = 0; i < bodies.length; i++) {
+            method.visitLabel(bodies[i]);
+            emit(cases.get(i).getBody(), switchExpression.getType());
+            method.visitJumpInsn(Opcodes.GOTO, end);
+        }
+
+        method.visitLabel(defaultBody);
+        if (switchExpression.getDefaultBody() != null)
+            emit(switchExpression.getDefaultBody(), switchExpression.getType());
+        method.visitLabel(end);
+
+        return switchExpression;
+    }
+
+    private void switchString(SwitchExpression switchExpression, Label[] bodies, Label defaultBody) {
+        List<SwitchCase> cases = switchExpression.getCases();
+        TreeMap<Integer, List<String>> buckets = new TreeMap<>();
+        TreeMap<Integer, Label> hashes = new TreeMap<>();
+        Map<String, Label> targets = new HashMap<>();
+
+        for (int i = 0; i < bodies.length; i++) {
+            for (ConstantExpression testValue : cases.get(i).getTestValues()) {
+                String value = (String) testValue.getValue();
+                targets.put(value, bodies[i]);
+
+                if (!buckets.containsKey(value.hashCode())) {
+                    buckets.put(value.hashCode(), new ArrayList<String>());
+                    hashes.put(value.hashCode(), new Label());
+                }
+                buckets.get(value.hashCode()).add(value);
+            }
+        }
+
+        //the string stays on the stack until its case is found
+        visit(switchExpression.getSwitchValue());
+        method.visitInsn(Opcodes.DUP);
+        method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(String.class), "hashCode", "()I", false);
+
+        Label noMatch = new Label();
+        dispatch(hashes, noMatch);
+
+        for (Map.Entry<Integer, List<String>> bucket : buckets.entrySet()) {
+            method.visitLabel(hashes.get(bucket.getKey()));
+
+            for (String value : bucket.getValue()) {
+                Label next = new Label();
+
+                method.visitInsn(Opcodes.DUP);
+                method.visitLdcInsn(value);
+                method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(String.class), "equals", "(Ljava/lang/Object;)Z", false);
+                method.visitJumpInsn(Opcodes.IFEQ, next);
+                method.visitInsn(Opcodes.POP);
+                method.visitJumpInsn(Opcodes.GOTO, targets.get(value));
+                method.visitLabel(next);
+            }
+
+            method.visitJumpInsn(Opcodes.GOTO, noMatch);
+        }
+
+        method.visitLabel(noMatch);
+        method.visitInsn(Opcodes.POP);
+        method.visitJumpInsn(Opcodes.GOTO, defaultBody);
+    }
+
+    /**
+     * Jumps to the label of the int on top of the stack, or to {@code defaultLabel}. Uses the cost
+     * model of javac to choose between a table and a lookup switch.
+     */
+    private void dispatch(TreeMap<Integer, Label> keys, Label defaultLabel) {
+        if (keys.isEmpty()) {
+            method.visitInsn(Opcodes.POP);
+            method.visitJumpInsn(Opcodes.GOTO, defaultLabel);
+            return;
+        }
+
+        int low = keys.firstKey();
+        int high = keys.lastKey();
+        long range = (long) high - low + 1;
+
+        long tableCost = 4 + range + 3 * 3;
+        long lookupCost = 3 + 2L * keys.size() + 3L * keys.size();
+
+        if (tableCost <= lookupCost) {
+            Label[] labels = new Label[(int) range];
+
+            for (int i = 0; i < labels.length; i++) {
+                Label label = keys.get(low + i);
+                labels[i] = label != null ? label : defaultLabel;
+            }
+
+            method.visitTableSwitchInsn(low, high, defaultLabel, labels);
+        } else {
+            int[] values = new int[keys.size()];
+            Label[] labels = new Label[keys.size()];
+
+            int i = 0;
+            for (Map.Entry<Integer, Label> entry : keys.entrySet()) {
+                values[i] = entry.getKey();
+                labels[i] = entry.getValue();
+                i++;
+            }
+
+            method.visitLookupSwitchInsn(defaultLabel, values, labels);
+        }
+    }
+
+    @Override
+    public Expression visitUnary(UnaryExpression unaryExpression) {
+        Class<?> type = unaryExpression.getType();
+
+        switch (unaryExpression.getNodeType()) {
+            case Convert:
+            case UnaryPlus:
+                emit(unaryExpression.getOperand(), type);
+                break;
+            case ArrayLength:
+                visit(unaryExpression.getOperand());
+                method.visitInsn(Opcodes.ARRAYLENGTH);
+                break;
+            case Negate:
+                emit(unaryExpression.getOperand(), type);
+                method.visitInsn(typeOf(type).getOpcode(Opcodes.INEG));
+                break;
+            case NegateChecked:
+                emit(unaryExpression.getOperand(), type);
+                if (type == Integer.TYPE || type == Long.TYPE)
+                    method.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(Math.class), "negateExact", Type.getMethodDescriptor(typeOf(type), typeOf(type)), false);
+                else
+                    method.visitInsn(typeOf(type).getOpcode(Opcodes.INEG));
+                break;
+            case Not:
+            case OnesComplement:
+                emit(unaryExpression.getOperand(), type);
+                if (type == Boolean.TYPE) {
+                    method.visitInsn(Opcodes.ICONST_1);
+                    method.visitInsn(Opcodes.IXOR);
+                } else if (type == Long.TYPE) {
+                    method.visitLdcInsn(-1L);
+                    method.visitInsn(Opcodes.LXOR);
+                } else {
+                    method.visitInsn(Opcodes.ICONST_M1);
+                    method.visitInsn(Opcodes.IXOR);
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Cannot generate code for " + unaryExpression.getNodeType());
+        }
+
+        return unaryExpression;
     }
 
     @Override
     public Expression visitMember(MemberExpression memberExpression) {
-        System.out.printf("visitMember: %s\n", memberExpression.getMember());
+        String descriptor = Type.getDescriptor(memberExpression.getType());
 
-        visit(memberExpression.getExpression());
-        method.visitFieldInsn(Opcodes.GETFIELD, memberExpression.getOwner(), memberExpression.getMember(), Type.getDescriptor(memberExpression.getType()));
+        if (memberExpression.getExpression() != null) {
+            visit(memberExpression.getExpression());
+            method.visitFieldInsn(Opcodes.GETFIELD, memberExpression.getOwner(), memberExpression.getMember(), descriptor);
+        } else {
+            method.visitFieldInsn(Opcodes.GETSTATIC, memberExpression.getOwner(), memberExpression.getMember(), descriptor);
+        }
 
         return memberExpression;
     }
 
     @Override
     public Expression visitParameter(ParameterExpression parameterExpression) {
-        System.out.printf("visitParameter: %d %s\n", parameterExpression.getIndex(), parameterExpression.getName());
-        method.visitVarInsn(Opcodes.ALOAD, parameterExpression.getIndex());
+        method.visitVarInsn(typeOf(parameterExpression.getType()).getOpcode(Opcodes.ILOAD), parameterExpression.getIndex());
         return parameterExpression;
     }
 
+    @Override
+    public Expression visitDefault(DefaultExpression defaultExpression) {
+        if (defaultExpression.getType() != Void.TYPE)
+            loadDefault(defaultExpression.getType());
+
+        return defaultExpression;
+    }
+
     @Override
     public Expression visitConstant(ConstantExpression constantExpression) {
-        System.out.printf("visitConstant: %s\n", constantExpression.getValue());
-        method.visitLdcInsn(constantExpression.getValue());
+        Object value = constantExpression.getValue();
+        Class<?> type = constantExpression.getType();
+
+        if (value == null) {
+            if (type.isPrimitive())
+                throw new IllegalArgumentException("Null constant of type " + type.getName());
+            method.visitInsn(Opcodes.ACONST_NULL);
+        } else if (value instanceof Boolean) {
+            method.visitInsn((Boolean) value ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+            convert(Boolean.TYPE, type);
+        } else if (value instanceof Character) {
+            loadInt((Character) value);
+            convert(Character.TYPE, type);
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            loadInt(((Number) value).intValue());
+            convert(Integer.TYPE, type);
+        } else if (value instanceof Long) {
+            long l = (Long) value;
+            if (l == 0L || l == 1L)
+                method.visitInsn(Opcodes.LCONST_0 + (int) l);
+            else
+                method.visitLdcInsn(l);
+            convert(Long.TYPE, type);
+        } else if (value instanceof Float) {
+            float f = (Float) value;
+            if (Float.floatToRawIntBits(f) == 0 || f == 1.0f || f == 2.0f)
+                method.visitInsn(Opcodes.FCONST_0 + (int) f);
+            else
+                method.visitLdcInsn(f);
+            convert(Float.TYPE, type);
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.doubleToRawLongBits(d) == 0L || d == 1.0)
+                method.visitInsn(Opcodes.DCONST_0 + (int) d);
+            else
+                method.visitLdcInsn(d);
+            convert(Double.TYPE, type);
+        } else if (value instanceof String) {
+            method.visitLdcInsn(value);
+        } else if (value instanceof Class && !((Class<?>) value).isPrimitive()) {
+            method.visitLdcInsn(Type.getType((Class<?>) value));
+        } else {
+            throw new IllegalArgumentException("Cannot load constant " + value + " of type " + value.getClass().getName());
+        }
+
         return constantExpression;
     }
 
     @Override
     public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
-        System.out.printf("visitMethodCall: %s\n", methodCallExpression.getMethodInfo().getOwner());
-
 //            ctor.visitVarInsn(Opcodes.ALOAD, 0);
 //            ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, Type.getInternalName(Object.class), "<init>", "()V", false);
 
+        MethodInfo methodInfo = methodCallExpression.getMethodInfo();
+
         if (methodCallExpression.getExpression() != null)
             visit(methodCallExpression.getExpression());
 
-        for (Expression parameter : methodCallExpression.getParameters())
-            visit(parameter);
+        Expression[] parameters = methodCallExpression.getParameters();
+        for (int i = 0; i < parameters.length; i++)
+            emit(parameters[i], methodInfo.getTypes()[i]);
 
-        MethodInfo methodInfo = methodCallExpression.getMethodInfo();
-        Type[] types = new Type[methodInfo.getTypes().length];
-        for (int i = 0; i < types.length; i++)
-            types[i] = Type.getType(methodInfo.getTypes()[i]);
+        InvocationKind kind = kindOf(methodCallExpression);
+        int invoke;
+        switch (kind) {
+            case Static: invoke = Opcodes.INVOKESTATIC; break;
+            case Interface: invoke = Opcodes.INVOKEINTERFACE; break;
+            case Special: invoke = Opcodes.INVOKESPECIAL; break;
+            default: invoke = Opcodes.INVOKEVIRTUAL; break;
+        }
 
-        String methodDescriptor = Type.getMethodDescriptor(Type.getType(methodInfo.getReturnType()), types);
-        int invoke = methodCallExpression.getExpression() != null ? Opcodes.INVOKESPECIAL : Opcodes.INVOKESTATIC;
-        method.visitMethodInsn(invoke, methodInfo.getOwner(), methodInfo.getName(), methodDescriptor, false);
+        boolean onInterface = kind == InvocationKind.Interface || methodInfo.isOnInterface();
+        method.visitMethodInsn(invoke, methodInfo.getOwner(), methodInfo.getName(), methodInfo.getDescriptor(), onInterface);
 
         return methodCallExpression;
     }
 
+    /**
+     * An {@code invokedynamic} linked by {@link DynamicMembers}, taking the target as an
+     * {@code Object} and the arguments as their static types.
+     */
     @Override
-    public Expression visitBlock(BlockExpression blockExpression) {
-        System.out.printf("visitBlock\n");
+    public Expression visitDynamic(DynamicExpression dynamicExpression) {
+        emit(dynamicExpression.getExpression(), Object.class);
+        for (Expression argument : dynamicExpression.getArguments())
+            emit(argument, argument.getType());
 
-        for (Expression expression : blockExpression.getExpressions())
-            visit(expression);
+        String descriptor = DynamicMembers.typeOf(dynamicExpression).toMethodDescriptorString();
+        method.visitInvokeDynamicInsn(dynamicExpression.getName(), descriptor, BOOTSTRAP);
+
+        return dynamicExpression;
+    }
 
-        visit(blockExpression.getResult());
+    /**
+     * The kind of a method known only by name follows from its call: static without a target,
+     * special for constructors and methods of {@code this}, the generated class's own private
+     * methods, which has no static type, and otherwise dispatched on the static type of the target.
+     */
+    private static InvocationKind kindOf(MethodCallExpression methodCallExpression) {
+        MethodInfo methodInfo = methodCallExpression.getMethodInfo();
+        Expression target = methodCallExpression.getExpression();
 
-        if (blockExpression.getType() != Void.TYPE)
-            method.visitInsn(Opcodes.ARETURN);
-        else
-            method.visitInsn(Opcodes.RETURN);
+        if (methodInfo.getKind() != null)
+            return methodInfo.getKind();
+        if (target == null)
+            return InvocationKind.Static;
+        if (target.getType() == null || "<init>".equals(methodInfo.getName()))
+            return InvocationKind.Special;
+
+        return target.getType().isInterface() ? InvocationKind.Interface : InvocationKind.Virtual;
+    }
+
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        for (Expression expression : blockExpression.getExpressions())
+            emit(expression, Void.TYPE);
+
+        emit(blockExpression.getResult(), blockExpression.getType());
 
         return blockExpression;
     }
 
     @Override
     public Expression visitIndex(IndexExpression indexExpression) {
-        System.out.printf("visitIndex\n");
-
         visit(indexExpression.getArray());
-        visit(indexExpression.getIndex());
+        emit(indexExpression.getIndex(), Integer.TYPE);
+        method.visitInsn(typeOf(indexExpression.getType()).getOpcode(Opcodes.IALOAD));
 
         return indexExpression;
     }
 
-    private void loadInt(int i) {
+    public void loadInt(int i) {
         switch (i) {
+            case -1: method.visitInsn(Opcodes.ICONST_M1); break;
             case 0: method.visitInsn(Opcodes.ICONST_0); break;
             case 1: method.visitInsn(Opcodes.ICONST_1); break;
             case 2: method.visitInsn(Opcodes.ICONST_2); break;
             case 3: method.visitInsn(Opcodes.ICONST_3); break;
             case 4: method.visitInsn(Opcodes.ICONST_4); break;
             case 5: method.visitInsn(Opcodes.ICONST_5); break;
-            default: method.visitLdcInsn(i);
+            default:
+                if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE)
+                    method.visitIntInsn(Opcodes.BIPUSH, i);
+                else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE)
+                    method.visitIntInsn(Opcodes.SIPUSH, i);
+                else
+                    method.visitLdcInsn(i);
+        }
+    }
+
+    private static int arrayTypeCode(Class<?> elementType) {
+        switch (Type.getType(elementType).getSort()) {
+            case Type.BOOLEAN: return Opcodes.T_BOOLEAN;
+            case Type.CHAR: return Opcodes.T_CHAR;
+            case Type.BYTE: return Opcodes.T_BYTE;
+            case Type.SHORT: return Opcodes.T_SHORT;
+            case Type.INT: return Opcodes.T_INT;
+            case Type.FLOAT: return Opcodes.T_FLOAT;
+            case Type.LONG: return Opcodes.T_LONG;
+            case Type.DOUBLE: return Opcodes.T_DOUBLE;
+            default: throw new IllegalArgumentException(elementType.getName());
         }
     }
 
     @Override
     public Expression visitNewArrayInit(NewArrayExpression newArrayExpression) {
-        System.out.printf("visitNewArrayInit\n");
-
         Expression[] expressions = newArrayExpression.getExpressions();
+        Class<?> elementType = newArrayExpression.getElementType();
 
         loadInt(expressions.length);
-        method.visitTypeInsn(Opcodes.ANEWARRAY, Type.getInternalName(newArrayExpression.getType()));
+        if (elementType.isPrimitive())
+            method.visitIntInsn(Opcodes.NEWARRAY, arrayTypeCode(elementType));
+        else
+            method.visitTypeInsn(Opcodes.ANEWARRAY, Type.getInternalName(elementType));
 
         for (int i = 0; i < expressions.length; i++) {
             method.visitInsn(Opcodes.DUP);
             loadInt(i);
-            visit(expressions[i]);
-            method.visitInsn(Opcodes.AASTORE);
+            emit(expressions[i], elementType);
+            method.visitInsn(typeOf(elementType).getOpcode(Opcodes.IASTORE));
         }
 
 //        toString.visitInsn(Opcodes.ICONST_2);
@@ -194,4 +859,281 @@ public class ByteCodeGenerator extends ExpressionVisitor {
 
         return newArrayExpression;
     }
+
+    /**
+     * A nested lambda becomes a private synthetic method of the owner taking the captured variables
+     * followed by the arguments of the interface method, linked through {@code LambdaMetafactory}.
+     * The call site of a lambda capturing nothing returns the same instance every time, the method
+     * of a lambda using {@code this} is an instance one.
+     */
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        if (owner == null)
+            throw new UnsupportedOperationException("Nested lambdas need the class they are generated into");
+
+        Method sam = NestedLambdas.functionalMethod(lambdaExpression);
+        List<ParameterExpression> captures = new ArrayList<>();
+        boolean usesThis = false;
+        for (ParameterExpression capture : NestedLambdas.captures(lambdaExpression)) {
+            if (capture.getType() != null)
+                captures.add(capture);
+            else
+                usesThis = true;
+        }
+
+        List<Type> captured = new ArrayList<>();
+        if (usesThis) {
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            captured.add(Type.getObjectType(owner));
+        }
+        for (ParameterExpression capture : captures) {
+            visit(capture);
+            captured.add(typeOf(capture.getType()));
+        }
+
+        Type samType = Type.getType(sam);
+        List<Type> implementation = new ArrayList<>(captured.subList(usesThis ? 1 : 0, captured.size()));
+        Collections.addAll(implementation, samType.getArgumentTypes());
+        String implementationDesc = Type.getMethodDescriptor(samType.getReturnType(), implementation.toArray(new Type[0]));
+
+        //the size of the code does not depend on the body of the lambda
+        String name = "lambda$" + LAMBDAS.incrementAndGet();
+        if (cw != null)
+            generateLambda(lambdaExpression, sam, captures, usesThis, name, implementationDesc);
+
+        Handle handle = new Handle(usesThis ? Opcodes.H_INVOKESPECIAL : Opcodes.H_INVOKESTATIC, owner, name, implementationDesc);
+        String desc = Type.getMethodDescriptor(typeOf(lambdaExpression.getType()), captured.toArray(new Type[0]));
+        method.visitInvokeDynamicInsn(sam.getName(), desc, METAFACTORY, samType, handle, samType);
+
+        return lambdaExpression;
+    }
+
+    /**
+     * The body of a nested lambda, its parameters converted from the arguments of the interface
+     * method as the bridge of a compiled lambda converts them.
+     */
+    private void generateLambda(LambdaExpression lambda, Method sam, List<ParameterExpression> captures, boolean usesThis, String name, String desc) {
+        Map<Integer, Expression> replacements = new HashMap<>();
+        List<ParameterExpression> parameters = new ArrayList<>();
+        int slot = usesThis ? 1 : 0;
+
+        for (ParameterExpression capture : captures) {
+            ParameterExpression parameter = Expression.parameter(slot, capture.getName(), capture.getType());
+            replacements.put(capture.getIndex(), parameter);
+            parameters.add(parameter);
+            slot += typeOf(capture.getType()).getSize();
+        }
+
+        Class<?>[] samTypes = sam.getParameterTypes();
+        List<ParameterExpression> arguments = new ArrayList<>();
+        for (int i = 0; i < samTypes.length; i++) {
+            ParameterExpression parameter = lambda.getParameters().get(i);
+            ParameterExpression argument = Expression.parameter(slot, parameter.getName(), samTypes[i]);
+            if (parameter.getType() == samTypes[i])
+                replacements.put(parameter.getIndex(), argument);
+            arguments.add(argument);
+            slot += typeOf(samTypes[i]).getSize();
+        }
+        parameters.addAll(arguments);
+
+        //the other variables move past the arguments
+        Expression body = ParameterRebinder.rebind(lambda.getBody(), replacements, slot);
+
+        List<ParameterExpression> variables = new ArrayList<>();
+        List<Expression> expressions = new ArrayList<>();
+        for (int i = 0; i < samTypes.length; i++) {
+            ParameterExpression parameter = lambda.getParameters().get(i);
+            if (parameter.getType() != samTypes[i]) {
+                ParameterExpression variable = Expression.parameter(parameter.getIndex() + slot, parameter.getName(), parameter.getType());
+                variables.add(variable);
+                expressions.add(Expression.assign(variable, Expression.convert(arguments.get(i), parameter.getType())));
+            }
+        }
+        expressions.add(body);
+        body = Expression.block(sam.getReturnType(), variables, expressions.toArray(new Expression[0]));
+
+        int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC | (usesThis ? 0 : Opcodes.ACC_STATIC);
+        MethodVisitor lambdaMethod = cw.visitMethod(access, name, desc, null, null);
+        if (frames != null)
+            lambdaMethod = new FrameTracker(lambdaMethod, access, owner, name, desc);
+        lambdaMethod.visitCode();
+
+        ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, lambdaMethod, owner);
+        byteCodeGenerator.visit(SlotAllocator.allocate(body, parameters));
+        byteCodeGenerator.emitReturn(sam.getReturnType());
+
+        lambdaMethod.visitMaxs(0, 0);
+        lambdaMethod.visitEnd();
+    }
+
+    /**
+     * Loads {@code expression} converted to {@code type}, which is where boxing and unboxing happen.
+     */
+    public void emit(Expression expression, Class<?> type) {
+        visit(expression);
+        convert(expression.getType(), type);
+        declare(type);
+    }
+
+    /**
+     * Tells the {@link FrameTracker} writing the method, if any, the static type of the value on
+     * top of the stack, so the paths reaching a merge agree on it.
+     */
+    private void declare(Class<?> type) {
+        if (frames != null)
+            frames.declare(type);
+    }
+
+    /**
+     * Emits the return instruction matching {@code type}.
+     */
+    public void emitReturn(Class<?> type) {
+        method.visitInsn(typeOf(type).getOpcode(Opcodes.IRETURN));
+    }
+
+    /**
+     * Converts the value on top of the stack from {@code from} to {@code to}, boxing, unboxing,
+     * widening/narrowing or casting as needed.
+     */
+    public void convert(Class<?> from, Class<?> to) {
+        if (from == to || from == null)
+            return;
+
+        if (to == Void.TYPE) {
+            method.visitInsn(typeOf(from).getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+        } else if (from == Void.TYPE) {
+            throw new IllegalArgumentException("Cannot convert void to " + to.getName());
+        } else if (from.isPrimitive() && to.isPrimitive()) {
+            convertPrimitive(from, to);
+        } else if (from.isPrimitive()) {
+            Class<?> primitive = TypeUtils.unwrap(to);
+
+            if (primitive.isPrimitive()) {
+                convertPrimitive(from, primitive);
+                box(primitive);
+            } else {
+                box(from);
+                convert(TypeUtils.wrap(from), to);
+            }
+        } else if (to.isPrimitive()) {
+            unbox(from, to);
+        } else if (!to.isAssignableFrom(from)) {
+            method.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(to));
+        }
+    }
+
+    private void box(Class<?> primitive) {
+        Class<?> wrapper = TypeUtils.wrap(primitive);
+        String descriptor = Type.getMethodDescriptor(Type.getType(wrapper), Type.getType(primitive));
+        method.visitMethodInsn(Opcodes.INVOKESTATIC, Type.getInternalName(wrapper), "valueOf", descriptor, false);
+    }
+
+    private void unbox(Class<?> from, Class<?> primitive) {
+        Class<?> wrapper = TypeUtils.wrap(primitive);
+
+        if (from == Character.class && primitive != Character.TYPE) {
+            unbox(from, Character.TYPE);
+            convertPrimitive(Character.TYPE, primitive);
+            return;
+        }
+
+        Class<?> owner = wrapper;
+        if (from != wrapper && primitive != Boolean.TYPE && primitive != Character.TYPE)
+            owner = Number.class;
+
+        if (!owner.isAssignableFrom(from))
+            method.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(owner));
+
+        String descriptor = Type.getMethodDescriptor(Type.getType(primitive));
+        method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, Type.getInternalName(owner), primitive.getName() + "Value", descriptor, false);
+    }
+
+    private void convertPrimitive(Class<?> from, Class<?> to) {
+        if (from == Boolean.TYPE || to == Boolean.TYPE)
+            throw new IllegalArgumentException("Cannot convert " + from.getName() + " to " + to.getName());
+        if (from == to)
+            return;
+
+        Type source = typeOf(from);
+        Type target = typeOf(to);
+
+        if (source.getSort() <= Type.INT && target.getSort() > Type.INT) {
+            //byte, char and short are ints on the stack
+            source = Type.INT_TYPE;
+        }
+
+        switch (source.getSort()) {
+            case Type.LONG:
+                if (target.getSort() == Type.FLOAT) method.visitInsn(Opcodes.L2F);
+                else if (target.getSort() == Type.DOUBLE) method.visitInsn(Opcodes.L2D);
+                else {
+                    method.visitInsn(Opcodes.L2I);
+                    narrow(target);
+                }
+                break;
+            case Type.FLOAT:
+                if (target.getSort() == Type.LONG) method.visitInsn(Opcodes.F2L);
+                else if (target.getSort() == Type.DOUBLE) method.visitInsn(Opcodes.F2D);
+                else {
+                    method.visitInsn(Opcodes.F2I);
+                    narrow(target);
+                }
+                break;
+            case Type.DOUBLE:
+                if (target.getSort() == Type.LONG) method.visitInsn(Opcodes.D2L);
+                else if (target.getSort() == Type.FLOAT) method.visitInsn(Opcodes.D2F);
+                else {
+                    method.visitInsn(Opcodes.D2I);
+                    narrow(target);
+                }
+                break;
+            default:
+                if (target.getSort() == Type.LONG) method.visitInsn(Opcodes.I2L);
+                else if (target.getSort() == Type.FLOAT) method.visitInsn(Opcodes.I2F);
+                else if (target.getSort() == Type.DOUBLE) method.visitInsn(Opcodes.I2D);
+                else if (target.getSort() < source.getSort() || source.getSort() == Type.CHAR) narrow(target);
+        }
+    }
+
+    private void narrow(Type target) {
+        switch (target.getSort()) {
+            case Type.BYTE: method.visitInsn(Opcodes.I2B); break;
+            case Type.CHAR: method.visitInsn(Opcodes.I2C); break;
+            case Type.SHORT: method.visitInsn(Opcodes.I2S); break;
+        }
+    }
+
+    public static Type typeOf(Class<?> type) {
+        return TYPES.get(type != null ? type : Object.class);
+    }
+
+    /**
+     * The slots and types of the variables a loop body assigns, nested lambdas aside.
+     */
+    private static final class LoopWrites extends ExpressionVisitor {
+        private final Map<Integer, Class<?>> writes = new HashMap<>();
+
+        static Map<Integer, Class<?>> of(Expression body) {
+            LoopWrites loopWrites = new LoopWrites();
+            loopWrites.visit(body);
+            return loopWrites.writes;
+        }
+
+        @Override
+        public Expression visitBinary(BinaryExpression binaryExpression) {
+            if (binaryExpression.getNodeType() == ExpressionType.Assign && binaryExpression.getLeft() instanceof ParameterExpression) {
+                ParameterExpression variable = (ParameterExpression) binaryExpression.getLeft();
+                Class<?> previous = writes.put(variable.getIndex(), variable.getType());
+                if (previous != null && previous != variable.getType())
+                    writes.put(variable.getIndex(), Void.TYPE);
+            }
+
+            return super.visitBinary(binaryExpression);
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            return lambdaExpression;
+        }
+    }
 }
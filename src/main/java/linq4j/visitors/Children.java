@@ -0,0 +1,29 @@
+package linq4j.visitors;
+
+import linq4j.expressions.Expression;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The direct children of an expression, collected by visiting it without descending, for passes
+ * that walk trees deeper than the stack allows.
+ */
+public final class Children extends ExpressionVisitor {
+    private List<Expression> children;
+    private Expression parent;
+
+    public List<Expression> of(Expression expression) {
+        children = new ArrayList<>();
+        parent = expression;
+        expression.accept(this);
+        return children;
+    }
+
+    @Override
+    public Expression visit(Expression expression) {
+        if (expression != null && expression != parent)
+            children.add(expression);
+        return expression;
+    }
+}
@@ -0,0 +1,87 @@
+package linq4j.visitors;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Counts the bytes of code a method would take, assuming the widest encoding where the exact one
+ * depends on the constant pool.
+ */
+public final class CodeSize extends MethodVisitor {
+    private int size;
+
+    public CodeSize() {
+        super(Opcodes.ASM5);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        size += 1;
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        size += opcode == Opcodes.SIPUSH ? 3 : 2;
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        size += var < 4 && opcode != Opcodes.RET ? 1 : var < 256 ? 2 : 4;
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        size += 3;
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        size += 3;
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        size += opcode == Opcodes.INVOKEINTERFACE ? 5 : 3;
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        size += 5;
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        size += 3;
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        size += 3;
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        size += var < 256 && increment >= Byte.MIN_VALUE && increment <= Byte.MAX_VALUE ? 3 : 6;
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        size += 16 + 4 * labels.length;
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        size += 12 + 8 * keys.length;
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        size += 4;
+    }
+}
@@ -0,0 +1,238 @@
+package linq4j.visitors;
+
+import linq4j.expressions.DynamicExpression;
+import linq4j.expressions.Expression;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Links the call sites of {@link DynamicExpression}s, the {@code invokedynamic} instructions of
+ * generated code as well as the nodes of the other backends. A call site starts at a lookup of
+ * the member for the class of its receiver, and puts each class it sees in front of its target
+ * behind a test of the receiver's class, so a site seeing one class calls the member directly.
+ * Sites seeing more than {@link #MAX_RECEIVERS} classes look the member up by class instead.
+ */
+public final class DynamicMembers {
+    public static final int MAX_RECEIVERS = 4;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle SELECT;
+    private static final MethodHandle IS_CLASS;
+
+    private static final ClassValue<ConcurrentMap<List<Object>, MethodHandle>> MEMBERS = new ClassValue<ConcurrentMap<List<Object>, MethodHandle>>() {
+        @Override
+        protected ConcurrentMap<List<Object>, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    static {
+        try {
+            FALLBACK = LOOKUP.findVirtual(InlineCache.class, "fallback", MethodType.methodType(Object.class, Object[].class));
+            SELECT = LOOKUP.findVirtual(InlineCache.class, "select", MethodType.methodType(MethodHandle.class, Object.class));
+            IS_CLASS = LOOKUP.findStatic(DynamicMembers.class, "isClass", MethodType.methodType(Boolean.TYPE, Class.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private DynamicMembers() {
+    }
+
+    /**
+     * The bootstrap method of the call sites {@link ByteCodeGenerator} emits, {@code type} taking
+     * the receiver as an {@code Object} followed by the arguments.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type) {
+        return callSite(name, type);
+    }
+
+    static CallSite callSite(String name, MethodType type) {
+        return new InlineCache(name, type);
+    }
+
+    /**
+     * The type of the call site of {@code dynamicExpression}.
+     */
+    static MethodType typeOf(DynamicExpression dynamicExpression) {
+        Expression[] arguments = dynamicExpression.getArguments();
+        Class<?>[] types = new Class<?>[arguments.length + 1];
+
+        types[0] = Object.class;
+        for (int i = 0; i < arguments.length; i++)
+            types[i + 1] = arguments[i].getType();
+
+        return MethodType.methodType(dynamicExpression.getType(), types);
+    }
+
+    /**
+     * The member {@code name} of {@code receiver} as a handle of {@code type}, looked up once for
+     * the callers without a call site of their own.
+     */
+    static MethodHandle member(Class<?> receiver, String name, MethodType type) {
+        List<Object> key = Arrays.<Object>asList(name, type);
+        MethodHandle member = MEMBERS.get(receiver).get(key);
+
+        if (member == null) {
+            member = resolve(receiver, name, type);
+            MEMBERS.get(receiver).put(key, member);
+        }
+
+        return member;
+    }
+
+    private static MethodHandle resolve(Class<?> receiver, String name, MethodType type) {
+        int arity = type.parameterCount() - 1;
+        List<String> names = Collections.singletonList(name);
+        if (arity == 0) {
+            String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            names = Arrays.asList(name, "get" + property, "is" + property);
+        }
+
+        for (String candidate : names) {
+            MethodHandle adaptable = null;
+
+            for (Method method : receiver.getMethods()) {
+                if (!method.getName().equals(candidate) || method.getParameterCount() != arity || Modifier.isStatic(method.getModifiers()))
+                    continue;
+
+                MethodHandle handle = adapt(unreflect(receiver, method), type);
+                if (handle != null && Arrays.equals(method.getParameterTypes(), type.dropParameterTypes(0, 1).parameterArray()))
+                    return handle;
+                if (adaptable == null)
+                    adaptable = handle;
+            }
+
+            if (adaptable != null)
+                return adaptable;
+        }
+
+        if (arity == 0) {
+            MethodHandle getter = adapt(getter(receiver, name), type);
+            if (getter != null)
+                return getter;
+        }
+
+        throw new IllegalStateException("Cannot find member " + name + " taking " + arity + " arguments in " + receiver.getName());
+    }
+
+    private static MethodHandle adapt(MethodHandle handle, MethodType type) {
+        if (handle == null)
+            return null;
+
+        try {
+            return handle.asType(type);
+        } catch (WrongMethodTypeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@code method} through the first public class or interface of {@code receiver} declaring
+     * it, as members of classes that are not public are not accessible through their own class.
+     */
+    private static MethodHandle unreflect(Class<?> receiver, Method method) {
+        Deque<Class<?>> types = new ArrayDeque<>();
+        types.add(receiver);
+
+        while (!types.isEmpty()) {
+            Class<?> type = types.poll();
+
+            if (Modifier.isPublic(type.getModifiers())) {
+                try {
+                    return LOOKUP.unreflect(type.getMethod(method.getName(), method.getParameterTypes()));
+                } catch (NoSuchMethodException | IllegalAccessException e) {
+                    //try the supertypes
+                }
+            }
+
+            if (type.getSuperclass() != null)
+                types.add(type.getSuperclass());
+            types.addAll(Arrays.asList(type.getInterfaces()));
+        }
+
+        try {
+            method.setAccessible(true);
+            return LOOKUP.unreflect(method);
+        } catch (RuntimeException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle getter(Class<?> receiver, String name) {
+        Field field;
+
+        try {
+            field = Members.field(receiver, name);
+        } catch (IllegalStateException e) {
+            return null;
+        }
+
+        if (Modifier.isStatic(field.getModifiers()))
+            return null;
+
+        try {
+            return LOOKUP.unreflectGetter(field);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static boolean isClass(Class<?> type, Object value) {
+        return value != null && value.getClass() == type;
+    }
+
+    private static final class InlineCache extends MutableCallSite {
+        private final String name;
+        private final ClassValue<MethodHandle> members = new ClassValue<MethodHandle>() {
+            @Override
+            protected MethodHandle computeValue(Class<?> receiver) {
+                return resolve(receiver, name, type());
+            }
+        };
+        private int receivers;
+
+        InlineCache(String name, MethodType type) {
+            super(type);
+            this.name = name;
+            setTarget(FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+        }
+
+        Object fallback(Object[] arguments) throws Throwable {
+            MethodHandle member = select(arguments[0]);
+            Class<?> receiver = arguments[0].getClass();
+
+            synchronized (this) {
+                if (receivers < MAX_RECEIVERS) {
+                    MethodType type = type();
+                    MethodHandle test = MethodHandles.dropArguments(IS_CLASS.bindTo(receiver), 1, type.dropParameterTypes(0, 1).parameterList());
+                    setTarget(MethodHandles.guardWithTest(test, member, getTarget()));
+                } else if (receivers == MAX_RECEIVERS) {
+                    setTarget(MethodHandles.foldArguments(MethodHandles.exactInvoker(type()), SELECT.bindTo(this)));
+                }
+
+                receivers++;
+            }
+
+            return member.invokeWithArguments(arguments);
+        }
+
+        MethodHandle select(Object receiver) {
+            if (receiver == null)
+                throw new NullPointerException("Cannot read " + name + " of null");
+
+            return members.get(receiver.getClass());
+        }
+    }
+}
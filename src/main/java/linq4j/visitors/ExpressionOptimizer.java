@@ -0,0 +1,363 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+/**
+ * Simplifies a tree before code generation: folds operators whose operands are constants, removes
+ * identities such as {@code x * 1}, {@code x + 0} or {@code x && true} and double negations, and
+ * strength-reduces multiplications, divisions and remainders by powers of two.
+ *
+ * Subtrees are only dropped (as in {@code x * 0}) when they can neither throw nor have side effects.
+ * Repeated subtrees are then evaluated once, see {@link SubexpressionEliminator}.
+ */
+public class ExpressionOptimizer extends ExpressionVisitor {
+
+    public LambdaExpression optimize(LambdaExpression lambda) {
+        return SubexpressionEliminator.eliminate((LambdaExpression) visit(lambda));
+    }
+
+    @Override
+    public Expression visitBinary(BinaryExpression binaryExpression) {
+        Expression visited = super.visitBinary(binaryExpression);
+
+        if (visited.getNodeType() == ExpressionType.Assign)
+            return visited;
+
+        return simplify((BinaryExpression) visited);
+    }
+
+    @Override
+    public Expression visitUnary(UnaryExpression unaryExpression) {
+        UnaryExpression visited = (UnaryExpression) super.visitUnary(unaryExpression);
+        Expression operand = visited.getOperand();
+        Class<?> type = visited.getType();
+
+        if (isConstant(operand))
+            return fold(visited);
+
+        switch (visited.getNodeType()) {
+            case Convert:
+            case UnaryPlus:
+                if (operand.getType() == type)
+                    return operand;
+                break;
+            case Negate:
+            case Not:
+            case OnesComplement:
+                //-(-x), !!x, ~~x
+                if (operand.getNodeType() == visited.getNodeType())
+                    return convert(((UnaryExpression) operand).getOperand(), type);
+
+                //!(a < b) is a >= b, except for floating point where NaN makes both false
+                if (visited.getNodeType() == ExpressionType.Not && type == Boolean.TYPE && isComparison(operand)) {
+                    BinaryExpression comparison = (BinaryExpression) operand;
+                    Class<?> compared = TypeUtils.comparisonType(comparison.getLeft().getType(), comparison.getRight().getType());
+
+                    if (compared != Float.TYPE && compared != Double.TYPE)
+                        return Expression.makeBinary(inverse(comparison.getNodeType()), comparison.getLeft(), comparison.getRight());
+                }
+                break;
+        }
+
+        return visited;
+    }
+
+    @Override
+    public Expression visitConditional(ConditionalExpression conditionalExpression) {
+        ConditionalExpression visited = (ConditionalExpression) super.visitConditional(conditionalExpression);
+        Expression test = visited.getTest();
+
+        //a null test unboxes at run time
+        if (isConstant(test) && ((ConstantExpression) test).getValue() != null)
+            return convert((Boolean) ((ConstantExpression) test).getValue() ? visited.getIfTrue() : visited.getIfFalse(), visited.getType());
+
+        return visited;
+    }
+
+    @Override
+    public Expression visitSwitch(SwitchExpression switchExpression) {
+        SwitchExpression visited = (SwitchExpression) super.visitSwitch(switchExpression);
+        Expression switchValue = visited.getSwitchValue();
+
+        if (isConstant(switchValue) && ((ConstantExpression) switchValue).getValue() != null) {
+            Expression body = visited.getBody(((ConstantExpression) switchValue).getValue());
+            if (body != null)
+                return convert(body, visited.getType());
+        }
+
+        return visited;
+    }
+
+    private Expression simplify(BinaryExpression binaryExpression) {
+        Expression left = binaryExpression.getLeft();
+        Expression right = binaryExpression.getRight();
+        Class<?> type = binaryExpression.getType();
+
+        if (isConstant(left) && isConstant(right))
+            return fold(binaryExpression);
+
+        switch (binaryExpression.getNodeType()) {
+            case Add:
+                if (TypeUtils.isIntegral(type)) {
+                    if (isValue(right, 0)) return convert(left, type);
+                    if (isValue(left, 0)) return convert(right, type);
+                }
+                break;
+            case Subtract:
+                if (isValue(right, 0)) return convert(left, type);
+                break;
+            case Multiply:
+                if (isValue(right, 1)) return convert(left, type);
+                if (isValue(left, 1)) return convert(right, type);
+
+                if (TypeUtils.isIntegral(type)) {
+                    if (isValue(right, 0) && canDrop(left)) return constant(0, type);
+                    if (isValue(left, 0) && canDrop(right)) return constant(0, type);
+
+                    //x * 2^n is x << n
+                    int shift = powerOfTwo(right);
+                    if (shift > 0)
+                        return Expression.leftShift(convert(left, type), Expression.constant(shift));
+
+                    shift = powerOfTwo(left);
+                    if (shift > 0)
+                        return Expression.leftShift(convert(right, type), Expression.constant(shift));
+                }
+                break;
+            case Divide:
+                if (isValue(right, 1)) return convert(left, type);
+
+                //x / 2^n is x >> n when x is not negative
+                if (TypeUtils.isIntegral(type) && isNonNegative(left)) {
+                    int shift = powerOfTwo(right);
+                    if (shift > 0)
+                        return Expression.rightShift(convert(left, type), Expression.constant(shift));
+                }
+                break;
+            case Modulo:
+                //x % 2^n is x & (2^n - 1) when x is not negative
+                if (TypeUtils.isIntegral(type) && isNonNegative(left)) {
+                    int shift = powerOfTwo(right);
+                    if (shift >= 0) {
+                        long mask = (1L << shift) - 1;
+                        return Expression.and(convert(left, type), constant(mask, type));
+                    }
+                }
+                break;
+            case And:
+                if (type == Boolean.TYPE) {
+                    if (isValue(right, true)) return convert(left, type);
+                    if (isValue(left, true)) return convert(right, type);
+                    if (isValue(right, false) && canDrop(left)) return convert(right, type);
+                    if (isValue(left, false) && canDrop(right)) return convert(left, type);
+                } else {
+                    if (isValue(right, -1)) return convert(left, type);
+                    if (isValue(left, -1)) return convert(right, type);
+                    if (isValue(right, 0) && canDrop(left)) return constant(0, type);
+                    if (isValue(left, 0) && canDrop(right)) return constant(0, type);
+                }
+                break;
+            case Or:
+                if (type == Boolean.TYPE) {
+                    if (isValue(right, false)) return convert(left, type);
+                    if (isValue(left, false)) return convert(right, type);
+                    if (isValue(right, true) && canDrop(left)) return convert(right, type);
+                    if (isValue(left, true) && canDrop(right)) return convert(left, type);
+                } else {
+                    if (isValue(right, 0)) return convert(left, type);
+                    if (isValue(left, 0)) return convert(right, type);
+                }
+                break;
+            case ExclusiveOr:
+                if (type == Boolean.TYPE) {
+                    if (isValue(right, false)) return convert(left, type);
+                    if (isValue(left, false)) return convert(right, type);
+                } else {
+                    if (isValue(right, 0)) return convert(left, type);
+                    if (isValue(left, 0)) return convert(right, type);
+                }
+                break;
+            case LeftShift:
+            case RightShift:
+                if (isValue(right, 0)) return convert(left, type);
+                break;
+            case AndAlso:
+                //the right side is only evaluated when the left one is true, a boxed side is still unboxed
+                if (isValue(left, true)) return convert(right, type);
+                if (isValue(left, false)) return convert(left, type);
+                if (isValue(right, true)) return convert(left, type);
+                if (isValue(right, false) && canDrop(left)) return convert(right, type);
+                break;
+            case OrElse:
+                if (isValue(left, false)) return convert(right, type);
+                if (isValue(left, true)) return convert(left, type);
+                if (isValue(right, false)) return convert(left, type);
+                if (isValue(right, true) && canDrop(left)) return convert(right, type);
+                break;
+            case Coalesce:
+                if (isConstant(left))
+                    return convert(((ConstantExpression) left).getValue() != null ? left : right, type);
+                break;
+        }
+
+        return binaryExpression;
+    }
+
+    private static Expression fold(Expression expression) {
+        if (expression.getType() == Void.TYPE)
+            return expression;
+
+        try {
+            return Expression.constant(new Interpreter().evaluate(expression), expression.getType());
+        } catch (RuntimeException e) {
+            //leave division by zero, overflows and null unboxing to run time
+            return expression;
+        }
+    }
+
+    private static Expression convert(Expression expression, Class<?> type) {
+        return expression.getType() == type ? expression : Expression.convert(expression, type);
+    }
+
+    private static Expression constant(long value, Class<?> type) {
+        return Expression.constant(TypeUtils.convert(value, type), type);
+    }
+
+    private static boolean isConstant(Expression expression) {
+        return expression.getNodeType() == ExpressionType.Constant;
+    }
+
+    private static boolean isValue(Expression expression, long value) {
+        if (!isConstant(expression))
+            return false;
+
+        Object constant = ((ConstantExpression) expression).getValue();
+
+        //-0.0 is not the zero x - 0 and x + 0 keep x with
+        if (constant instanceof Double || constant instanceof Float)
+            return Double.doubleToRawLongBits(((Number) constant).doubleValue()) == Double.doubleToRawLongBits(value);
+        if (constant instanceof Number)
+            return ((Number) constant).longValue() == value;
+        if (constant instanceof Character)
+            return (Character) constant == value;
+
+        return false;
+    }
+
+    private static boolean isValue(Expression expression, boolean value) {
+        return isConstant(expression) && Boolean.valueOf(value).equals(((ConstantExpression) expression).getValue());
+    }
+
+    /**
+     * The exponent n when {@code expression} is the integral constant 2^n, -1 otherwise.
+     */
+    private static int powerOfTwo(Expression expression) {
+        if (!isConstant(expression) || !TypeUtils.isIntegral(expression.getType()))
+            return -1;
+
+        Object value = ((ConstantExpression) expression).getValue();
+        if (value == null)
+            return -1;
+
+        long l = value instanceof Character ? (Character) value : ((Number) value).longValue();
+
+        return l > 0 && Long.bitCount(l) == 1 ? Long.numberOfTrailingZeros(l) : -1;
+    }
+
+    private static boolean isNonNegative(Expression expression) {
+        switch (expression.getNodeType()) {
+            case Constant:
+                Object value = ((ConstantExpression) expression).getValue();
+                return value instanceof Character || value instanceof Number && TypeUtils.isIntegral(expression.getType()) && ((Number) value).longValue() >= 0;
+            case Convert:
+                //only widening keeps the sign
+                Class<?> from = TypeUtils.unwrap(((UnaryExpression) expression).getOperand().getType());
+                Class<?> to = TypeUtils.unwrap(expression.getType());
+                boolean widening = to == Long.TYPE || to == Integer.TYPE && from != Long.TYPE;
+                return widening && TypeUtils.isIntegral(from) && isNonNegative(((UnaryExpression) expression).getOperand());
+            case And:
+                BinaryExpression and = (BinaryExpression) expression;
+                return isNonNegative(and.getLeft()) || isNonNegative(and.getRight());
+            case RightShift:
+                return isNonNegative(((BinaryExpression) expression).getLeft());
+            default:
+                return TypeUtils.unwrap(expression.getType()) == Character.TYPE;
+        }
+    }
+
+    /**
+     * True when evaluating {@code expression} can neither throw nor change any state.
+     */
+    static boolean canDrop(Expression expression) {
+        switch (expression.getNodeType()) {
+            case Constant:
+            case Default:
+            case Parameter:
+                return true;
+            case Convert:
+            case UnaryPlus:
+            case Negate:
+            case Not:
+            case OnesComplement:
+                UnaryExpression unary = (UnaryExpression) expression;
+                return unary.getType().isPrimitive() && unary.getOperand().getType().isPrimitive() && canDrop(unary.getOperand());
+            case Add:
+            case Subtract:
+            case Multiply:
+            case And:
+            case Or:
+            case ExclusiveOr:
+            case LeftShift:
+            case RightShift:
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual:
+            case AndAlso:
+            case OrElse:
+                BinaryExpression binary = (BinaryExpression) expression;
+                return binary.getLeft().getType().isPrimitive() && binary.getRight().getType().isPrimitive()
+                        && canDrop(binary.getLeft()) && canDrop(binary.getRight());
+            case Divide:
+            case Modulo:
+                //only integral division throws
+                BinaryExpression division = (BinaryExpression) expression;
+                Class<?> type = division.getType();
+                return (type == Float.TYPE || type == Double.TYPE) && division.getLeft().getType().isPrimitive() && division.getRight().getType().isPrimitive()
+                        && canDrop(division.getLeft()) && canDrop(division.getRight());
+            case Conditional:
+                ConditionalExpression conditional = (ConditionalExpression) expression;
+                return conditional.getType().isPrimitive() && conditional.getIfTrue().getType().isPrimitive() && conditional.getIfFalse().getType().isPrimitive()
+                        && canDrop(conditional.getTest()) && canDrop(conditional.getIfTrue()) && canDrop(conditional.getIfFalse());
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isComparison(Expression expression) {
+        switch (expression.getNodeType()) {
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static ExpressionType inverse(ExpressionType nodeType) {
+        switch (nodeType) {
+            case Equal: return ExpressionType.NotEqual;
+            case NotEqual: return ExpressionType.Equal;
+            case LessThan: return ExpressionType.GreaterThanOrEqual;
+            case GreaterThanOrEqual: return ExpressionType.LessThan;
+            case GreaterThan: return ExpressionType.LessThanOrEqual;
+            default: return ExpressionType.GreaterThan;
+        }
+    }
+}
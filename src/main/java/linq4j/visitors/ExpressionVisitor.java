@@ -2,11 +2,29 @@ package linq4j.visitors;
 
 import linq4j.expressions.*;
 
+import java.util.List;
+
 public abstract class ExpressionVisitor {
     public Expression visit(Expression expression) {
         return expression.accept(this);
     }
 
+    protected Expression[] visit(Expression[] expressions) {
+        Expression[] result = expressions;
+
+        for (int i = 0; i < expressions.length; i++) {
+            Expression expression = visit(expressions[i]);
+
+            if (expression != expressions[i]) {
+                if (result == expressions)
+                    result = expressions.clone();
+                result[i] = expression;
+            }
+        }
+
+        return result;
+    }
+
     public Expression visitBinary(BinaryExpression binaryExpression) {
         Expression left = visit(binaryExpression.getLeft());
         Expression right = visit(binaryExpression.getRight());
@@ -17,8 +35,83 @@ public abstract class ExpressionVisitor {
         return binaryExpression;
     }
 
+    public Expression visitUnary(UnaryExpression unaryExpression) {
+        Expression operand = visit(unaryExpression.getOperand());
+
+        if (operand != unaryExpression.getOperand())
+            return Expression.makeUnary(unaryExpression.getNodeType(), operand, unaryExpression.getType());
+
+        return unaryExpression;
+    }
+
+    public Expression visitConditional(ConditionalExpression conditionalExpression) {
+        Expression test = visit(conditionalExpression.getTest());
+        Expression ifTrue = visit(conditionalExpression.getIfTrue());
+        Expression ifFalse = visit(conditionalExpression.getIfFalse());
+
+        if (test != conditionalExpression.getTest() || ifTrue != conditionalExpression.getIfTrue() || ifFalse != conditionalExpression.getIfFalse())
+            return Expression.condition(test, ifTrue, ifFalse, conditionalExpression.getType(), conditionalExpression.getHint());
+
+        return conditionalExpression;
+    }
+
+    public Expression visitSwitch(SwitchExpression switchExpression) {
+        Expression switchValue = visit(switchExpression.getSwitchValue());
+        boolean changed = switchValue != switchExpression.getSwitchValue();
+
+        List<SwitchCase> cases = switchExpression.getCases();
+        SwitchCase[] visited = new SwitchCase[cases.size()];
+
+        for (int i = 0; i < visited.length; i++) {
+            SwitchCase switchCase = cases.get(i);
+            Expression body = visit(switchCase.getBody());
+
+            if (body != switchCase.getBody()) {
+                visited[i] = Expression.switchCase(body, switchCase.getTestValues().toArray(new ConstantExpression[0]));
+                changed = true;
+            } else {
+                visited[i] = switchCase;
+            }
+        }
+
+        Expression defaultBody = switchExpression.getDefaultBody() != null ? visit(switchExpression.getDefaultBody()) : null;
+        changed |= defaultBody != switchExpression.getDefaultBody();
+
+        if (changed)
+            return Expression.makeSwitch(switchExpression.getType(), switchValue, defaultBody, visited);
+
+        return switchExpression;
+    }
+
+    public Expression visitLoop(LoopExpression loopExpression) {
+        Expression body = visit(loopExpression.getBody());
+
+        if (body != loopExpression.getBody())
+            return Expression.loop(body, loopExpression.getBreakLabel(), loopExpression.getContinueLabel());
+
+        return loopExpression;
+    }
+
+    public Expression visitGoto(GotoExpression gotoExpression) {
+        Expression value = gotoExpression.getValue() != null ? visit(gotoExpression.getValue()) : null;
+
+        if (value != gotoExpression.getValue())
+            return Expression.makeGoto(gotoExpression.getKind(), gotoExpression.getTarget(), value, gotoExpression.getType());
+
+        return gotoExpression;
+    }
+
+    public Expression visitLabel(LabelExpression labelExpression) {
+        Expression defaultValue = labelExpression.getDefaultValue() != null ? visit(labelExpression.getDefaultValue()) : null;
+
+        if (defaultValue != labelExpression.getDefaultValue())
+            return Expression.label(labelExpression.getTarget(), defaultValue);
+
+        return labelExpression;
+    }
+
     public Expression visitMember(MemberExpression memberExpression) {
-        Expression expression = visit(memberExpression.getExpression());
+        Expression expression = memberExpression.getExpression() != null ? visit(memberExpression.getExpression()) : null;
 
         if (expression != memberExpression.getExpression())
             return Expression.makeMemberAccess(expression, memberExpression.getOwner(), memberExpression.getMember(), memberExpression.getType());
@@ -34,19 +127,75 @@ public abstract class ExpressionVisitor {
         return constantExpression;
     }
 
+    public Expression visitDefault(DefaultExpression defaultExpression) {
+        return defaultExpression;
+    }
+
     public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+        Expression expression = methodCallExpression.getExpression() != null ? visit(methodCallExpression.getExpression()) : null;
+        Expression[] parameters = visit(methodCallExpression.getParameters());
+
+        if (expression != methodCallExpression.getExpression() || parameters != methodCallExpression.getParameters())
+            return Expression.call(expression, methodCallExpression.getMethodInfo(), parameters);
+
         return methodCallExpression;
     }
 
+    public Expression visitDynamic(DynamicExpression dynamicExpression) {
+        Expression expression = visit(dynamicExpression.getExpression());
+        Expression[] arguments = visit(dynamicExpression.getArguments());
+
+        if (expression != dynamicExpression.getExpression() || arguments != dynamicExpression.getArguments())
+            return Expression.dynamic(dynamicExpression.getType(), expression, dynamicExpression.getName(), arguments);
+
+        return dynamicExpression;
+    }
+
     public Expression visitBlock(BlockExpression blockExpression) {
+        Expression[] expressions = new Expression[blockExpression.getExpressions().size() + 1];
+        boolean changed = false;
+
+        for (int i = 0; i < expressions.length - 1; i++) {
+            expressions[i] = visit(blockExpression.getExpressions().get(i));
+            changed |= expressions[i] != blockExpression.getExpressions().get(i);
+        }
+
+        expressions[expressions.length - 1] = visit(blockExpression.getResult());
+        changed |= expressions[expressions.length - 1] != blockExpression.getResult();
+
+        if (changed)
+            return Expression.block(blockExpression.getType(), blockExpression.getVariables(), expressions);
+
         return blockExpression;
     }
 
     public Expression visitIndex(IndexExpression indexExpression) {
+        Expression array = visit(indexExpression.getArray());
+        Expression index = visit(indexExpression.getIndex());
+
+        if (array != indexExpression.getArray() || index != indexExpression.getIndex())
+            return Expression.arrayAccess(array, index);
+
         return indexExpression;
     }
 
     public Expression visitNewArrayInit(NewArrayExpression newArrayExpression) {
+        Expression[] expressions = visit(newArrayExpression.getExpressions());
+
+        if (expressions != newArrayExpression.getExpressions())
+            return Expression.newArray(newArrayExpression.getElementType(), expressions);
+
         return newArrayExpression;
     }
+
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        Expression body = visit(lambdaExpression.getBody());
+
+        if (body != lambdaExpression.getBody()) {
+            ParameterExpression[] parameters = lambdaExpression.getParameters().toArray(new ParameterExpression[0]);
+            return Expression.lambda(lambdaExpression.getType(), body, parameters);
+        }
+
+        return lambdaExpression;
+    }
 }
@@ -0,0 +1,884 @@
+package linq4j.visitors;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the types of the locals and of the operand stack while a method is written, to emit its
+ * stack map frames and max stack and locals without ASM computing them in passes of its own.
+ *
+ * Types come from the instructions themselves, except where the paths of a branch merge: there
+ * {@link ByteCodeGenerator} declares the static type of the value on the stack with
+ * {@link #declare}, and the locals each loop writes with {@link #backwardTarget}, so the frames of
+ * the paths agree without looking up common super classes. Code no path reaches is left out.
+ * Flows whose frames still disagree are bugs of the generator and fail with
+ * {@link IllegalStateException}.
+ */
+public final class FrameTracker extends MethodVisitor {
+    private static final ClassValue<Object> TYPES = new ClassValue<Object>() {
+        @Override
+        protected Object computeValue(Class<?> type) {
+            return typeOf(Type.getType(type));
+        }
+    };
+
+    private final String owner;
+
+    private Object[] locals;
+    private final List<Object> stack = new ArrayList<>();
+    private int stackSize;
+    private int maxStack;
+    private int maxLocals;
+    private boolean reachable = true;
+
+    private final List<Label> pending = new ArrayList<>();
+    private final Map<Label, Frame> incoming = new HashMap<>();
+    private final Map<Label, Frame> placed = new HashMap<>();
+    private final Map<Label, Map<Integer, Object>> backwardTargets = new HashMap<>();
+    private final List<Label> placing = new ArrayList<>();
+    private boolean frameDue;
+
+    public FrameTracker(MethodVisitor method, int access, String owner, String name, String desc) {
+        super(Opcodes.ASM5, method);
+        this.owner = owner;
+
+        List<Object> initial = new ArrayList<>();
+        if ((access & Opcodes.ACC_STATIC) == 0)
+            initial.add("<init>".equals(name) ? Opcodes.UNINITIALIZED_THIS : owner);
+
+        for (Type type : Type.getArgumentTypes(desc)) {
+            initial.add(typeOf(type));
+            if (type.getSize() == 2)
+                initial.add(Opcodes.TOP);
+        }
+
+        locals = initial.toArray();
+        maxLocals = locals.length;
+    }
+
+    /**
+     * Declares the value on top of the stack to be of static type {@code type}, which it must be
+     * assignable to.
+     */
+    public void declare(Class<?> type) {
+        if (type == null || type == Void.TYPE || type.isPrimitive())
+            return;
+
+        //the paths merging at pending labels agree on the narrower types they have
+        if (!place() || stack.isEmpty())
+            return;
+
+        stack.set(stack.size() - 1, TYPES.get(type));
+    }
+
+    /**
+     * Marks {@code label} as a target of backward jumps from code writing the locals
+     * {@code writes}, by slot and static type, or {@code void} for slots written with several types,
+     * such as the body of a loop. Must be called before the label is visited.
+     */
+    public void backwardTarget(Label label, Map<Integer, Class<?>> writes) {
+        Map<Integer, Object> types = new HashMap<>();
+        for (Map.Entry<Integer, Class<?>> entry : writes.entrySet())
+            types.put(entry.getKey(), entry.getValue() == Void.TYPE ? Opcodes.TOP : TYPES.get(entry.getValue()));
+
+        backwardTargets.put(label, types);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        pending.add(label);
+    }
+
+    @Override
+    public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+        throw new IllegalStateException("Frames are computed by the tracker");
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        throw new IllegalStateException("Exception handlers are not tracked");
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        if (!enter())
+            return;
+
+        super.visitInsn(opcode);
+
+        switch (opcode) {
+            case Opcodes.NOP:
+                break;
+            case Opcodes.ACONST_NULL:
+                push(Opcodes.NULL);
+                break;
+            case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1: case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3: case Opcodes.ICONST_4: case Opcodes.ICONST_5:
+                push(Opcodes.INTEGER);
+                break;
+            case Opcodes.LCONST_0: case Opcodes.LCONST_1:
+                push(Opcodes.LONG);
+                break;
+            case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+                push(Opcodes.FLOAT);
+                break;
+            case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+                push(Opcodes.DOUBLE);
+                break;
+            case Opcodes.IALOAD: case Opcodes.BALOAD: case Opcodes.CALOAD: case Opcodes.SALOAD:
+                pop(2);
+                push(Opcodes.INTEGER);
+                break;
+            case Opcodes.LALOAD:
+                pop(2);
+                push(Opcodes.LONG);
+                break;
+            case Opcodes.FALOAD:
+                pop(2);
+                push(Opcodes.FLOAT);
+                break;
+            case Opcodes.DALOAD:
+                pop(2);
+                push(Opcodes.DOUBLE);
+                break;
+            case Opcodes.AALOAD: {
+                pop();
+                push(elementOf(pop()));
+                break;
+            }
+            case Opcodes.IASTORE: case Opcodes.LASTORE: case Opcodes.FASTORE: case Opcodes.DASTORE:
+            case Opcodes.AASTORE: case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.SASTORE:
+                pop(3);
+                break;
+            case Opcodes.POP:
+                pop();
+                break;
+            case Opcodes.POP2:
+                if (!isWide(pop()))
+                    pop();
+                break;
+            case Opcodes.DUP: {
+                Object value = pop();
+                push(value);
+                push(value);
+                break;
+            }
+            case Opcodes.DUP_X1: {
+                Object value1 = pop();
+                Object value2 = pop();
+                push(value1);
+                push(value2);
+                push(value1);
+                break;
+            }
+            case Opcodes.DUP_X2: {
+                Object value1 = pop();
+                Object value2 = pop();
+                if (isWide(value2)) {
+                    push(value1);
+                    push(value2);
+                } else {
+                    Object value3 = pop();
+                    push(value1);
+                    push(value3);
+                    push(value2);
+                }
+                push(value1);
+                break;
+            }
+            case Opcodes.DUP2: {
+                Object value1 = pop();
+                if (isWide(value1)) {
+                    push(value1);
+                } else {
+                    Object value2 = pop();
+                    push(value2);
+                    push(value1);
+                    push(value2);
+                }
+                push(value1);
+                break;
+            }
+            case Opcodes.DUP2_X1: {
+                Object value1 = pop();
+                if (isWide(value1)) {
+                    Object value2 = pop();
+                    push(value1);
+                    push(value2);
+                    push(value1);
+                } else {
+                    Object value2 = pop();
+                    Object value3 = pop();
+                    push(value2);
+                    push(value1);
+                    push(value3);
+                    push(value2);
+                    push(value1);
+                }
+                break;
+            }
+            case Opcodes.DUP2_X2: {
+                List<Object> top = new ArrayList<>();
+                int size = 0;
+                while (size < 2) {
+                    Object value = pop();
+                    top.add(0, value);
+                    size += isWide(value) ? 2 : 1;
+                }
+                List<Object> below = new ArrayList<>();
+                size = 0;
+                while (size < 2) {
+                    Object value = pop();
+                    below.add(0, value);
+                    size += isWide(value) ? 2 : 1;
+                }
+                for (Object value : top)
+                    push(value);
+                for (Object value : below)
+                    push(value);
+                for (Object value : top)
+                    push(value);
+                break;
+            }
+            case Opcodes.SWAP: {
+                Object value1 = pop();
+                Object value2 = pop();
+                push(value1);
+                push(value2);
+                break;
+            }
+            case Opcodes.IADD: case Opcodes.ISUB: case Opcodes.IMUL: case Opcodes.IDIV: case Opcodes.IREM:
+            case Opcodes.ISHL: case Opcodes.ISHR: case Opcodes.IUSHR: case Opcodes.IAND: case Opcodes.IOR: case Opcodes.IXOR:
+            case Opcodes.LCMP: case Opcodes.FCMPL: case Opcodes.FCMPG: case Opcodes.DCMPL: case Opcodes.DCMPG:
+                pop(2);
+                push(Opcodes.INTEGER);
+                break;
+            case Opcodes.LADD: case Opcodes.LSUB: case Opcodes.LMUL: case Opcodes.LDIV: case Opcodes.LREM:
+            case Opcodes.LSHL: case Opcodes.LSHR: case Opcodes.LUSHR: case Opcodes.LAND: case Opcodes.LOR: case Opcodes.LXOR:
+                pop(2);
+                push(Opcodes.LONG);
+                break;
+            case Opcodes.FADD: case Opcodes.FSUB: case Opcodes.FMUL: case Opcodes.FDIV: case Opcodes.FREM:
+                pop(2);
+                push(Opcodes.FLOAT);
+                break;
+            case Opcodes.DADD: case Opcodes.DSUB: case Opcodes.DMUL: case Opcodes.DDIV: case Opcodes.DREM:
+                pop(2);
+                push(Opcodes.DOUBLE);
+                break;
+            case Opcodes.INEG: case Opcodes.L2I: case Opcodes.F2I: case Opcodes.D2I:
+            case Opcodes.I2B: case Opcodes.I2C: case Opcodes.I2S: case Opcodes.ARRAYLENGTH:
+                pop();
+                push(Opcodes.INTEGER);
+                break;
+            case Opcodes.LNEG: case Opcodes.I2L: case Opcodes.F2L: case Opcodes.D2L:
+                pop();
+                push(Opcodes.LONG);
+                break;
+            case Opcodes.FNEG: case Opcodes.I2F: case Opcodes.L2F: case Opcodes.D2F:
+                pop();
+                push(Opcodes.FLOAT);
+                break;
+            case Opcodes.DNEG: case Opcodes.I2D: case Opcodes.L2D: case Opcodes.F2D:
+                pop();
+                push(Opcodes.DOUBLE);
+                break;
+            case Opcodes.IRETURN: case Opcodes.LRETURN: case Opcodes.FRETURN: case Opcodes.DRETURN:
+            case Opcodes.ARETURN: case Opcodes.ATHROW:
+                pop();
+                reachable = false;
+                break;
+            case Opcodes.RETURN:
+                reachable = false;
+                break;
+            case Opcodes.MONITORENTER: case Opcodes.MONITOREXIT:
+                pop();
+                break;
+            default:
+                throw new IllegalStateException("Cannot track opcode " + opcode);
+        }
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        if (!enter())
+            return;
+
+        super.visitIntInsn(opcode, operand);
+
+        if (opcode == Opcodes.NEWARRAY) {
+            pop();
+            push(primitiveArray(operand));
+        } else {
+            push(Opcodes.INTEGER);
+        }
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        if (!enter())
+            return;
+
+        super.visitVarInsn(opcode, var);
+
+        switch (opcode) {
+            case Opcodes.ILOAD: push(Opcodes.INTEGER); break;
+            case Opcodes.LLOAD: push(Opcodes.LONG); break;
+            case Opcodes.FLOAD: push(Opcodes.FLOAT); break;
+            case Opcodes.DLOAD: push(Opcodes.DOUBLE); break;
+            case Opcodes.ALOAD: push(var < locals.length ? locals[var] : Opcodes.TOP); break;
+            case Opcodes.ISTORE: case Opcodes.LSTORE: case Opcodes.FSTORE: case Opcodes.DSTORE: case Opcodes.ASTORE:
+                store(var, pop());
+                break;
+            default:
+                throw new IllegalStateException("Cannot track opcode " + opcode);
+        }
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        if (!enter())
+            return;
+
+        switch (opcode) {
+            case Opcodes.NEW: {
+                //uninitialized objects are typed by the offset of their NEW instruction
+                Label label = new Label();
+                super.visitLabel(label);
+                super.visitTypeInsn(opcode, type);
+                push(label);
+                return;
+            }
+            case Opcodes.ANEWARRAY:
+                pop();
+                push(type.charAt(0) == '[' ? "[" + type : "[L" + type + ";");
+                break;
+            case Opcodes.CHECKCAST:
+                pop();
+                push(type);
+                break;
+            case Opcodes.INSTANCEOF:
+                pop();
+                push(Opcodes.INTEGER);
+                break;
+            default:
+                throw new IllegalStateException("Cannot track opcode " + opcode);
+        }
+
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        if (!enter())
+            return;
+
+        super.visitFieldInsn(opcode, owner, name, desc);
+
+        switch (opcode) {
+            case Opcodes.GETSTATIC:
+                push(typeOf(desc, 0));
+                break;
+            case Opcodes.PUTSTATIC:
+                pop();
+                break;
+            case Opcodes.GETFIELD:
+                pop();
+                push(typeOf(desc, 0));
+                break;
+            case Opcodes.PUTFIELD:
+                pop(2);
+                break;
+            default:
+                throw new IllegalStateException("Cannot track opcode " + opcode);
+        }
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        if (!enter())
+            return;
+
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+
+        popArguments(desc);
+
+        if (opcode != Opcodes.INVOKESTATIC) {
+            Object receiver = pop();
+
+            if (opcode == Opcodes.INVOKESPECIAL && "<init>".equals(name))
+                initialize(receiver, receiver == Opcodes.UNINITIALIZED_THIS ? this.owner : owner);
+        }
+
+        pushReturn(desc);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        if (!enter())
+            return;
+
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+
+        popArguments(desc);
+        pushReturn(desc);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        if (!enter())
+            return;
+
+        super.visitJumpInsn(opcode, label);
+
+        switch (opcode) {
+            case Opcodes.IFEQ: case Opcodes.IFNE: case Opcodes.IFLT: case Opcodes.IFGE: case Opcodes.IFGT: case Opcodes.IFLE:
+            case Opcodes.IFNULL: case Opcodes.IFNONNULL:
+                pop();
+                break;
+            case Opcodes.IF_ICMPEQ: case Opcodes.IF_ICMPNE: case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+            case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE: case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+                pop(2);
+                break;
+            case Opcodes.GOTO:
+                break;
+            default:
+                throw new IllegalStateException("Cannot track opcode " + opcode);
+        }
+
+        jumpTo(label);
+
+        if (opcode == Opcodes.GOTO)
+            reachable = false;
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        if (!enter())
+            return;
+
+        super.visitLdcInsn(cst);
+
+        if (cst instanceof Integer) {
+            push(Opcodes.INTEGER);
+        } else if (cst instanceof Long) {
+            push(Opcodes.LONG);
+        } else if (cst instanceof Float) {
+            push(Opcodes.FLOAT);
+        } else if (cst instanceof Double) {
+            push(Opcodes.DOUBLE);
+        } else if (cst instanceof String) {
+            push("java/lang/String");
+        } else if (cst instanceof Type) {
+            push(((Type) cst).getSort() == Type.METHOD ? "java/lang/invoke/MethodType" : "java/lang/Class");
+        } else if (cst instanceof Handle) {
+            push("java/lang/invoke/MethodHandle");
+        } else {
+            throw new IllegalStateException("Cannot track constant " + cst);
+        }
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        if (!enter())
+            return;
+
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        if (!enter())
+            return;
+
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+        switchTo(dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        if (!enter())
+            return;
+
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+        switchTo(dflt, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        if (!enter())
+            return;
+
+        super.visitMultiANewArrayInsn(desc, dims);
+
+        pop(dims);
+        push(desc);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        //backward jumps to labels placed without frame, or in code taken as unreachable
+        if (!incoming.isEmpty())
+            throw new IllegalStateException("Jumps to labels without frame");
+
+        super.visitMaxs(this.maxStack, this.maxLocals);
+    }
+
+    private void switchTo(Label dflt, Label[] labels) {
+        pop();
+
+        jumpTo(dflt);
+        for (Label label : labels)
+            jumpTo(label);
+
+        reachable = false;
+    }
+
+    private void jumpTo(Label label) {
+        Frame frame = new Frame(locals, stack);
+
+        Frame target = placed.get(label);
+        if (target != null) {
+            if (!target.accepts(frame))
+                throw new IllegalStateException("Frames of a backward jump do not match");
+            return;
+        }
+
+        incoming.put(label, merge(incoming.get(label), frame));
+    }
+
+    /**
+     * Called before each instruction, returning false when no path reaches it. Writes the frame of
+     * the labels placed at it, once the types of its stack are all declared.
+     */
+    private boolean enter() {
+        if (!place())
+            return false;
+
+        if (frameDue) {
+            Frame frame = new Frame(locals, stack);
+            emit(frame);
+
+            for (Label label : placing)
+                placed.put(label, frame);
+            placing.clear();
+            frameDue = false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Merges the paths reaching the labels visited since the previous instruction, returning false
+     * when there is none.
+     */
+    private boolean place() {
+        if (pending.isEmpty())
+            return reachable;
+
+        Frame frame = reachable ? new Frame(locals, stack) : null;
+        boolean needed = !reachable;
+
+        for (Label label : pending) {
+            Frame in = incoming.remove(label);
+            if (in != null) {
+                frame = merge(frame, in);
+                needed = true;
+            }
+        }
+
+        if (frame == null) {
+            pending.clear();
+            return false;
+        }
+
+        for (Label label : pending) {
+            Map<Integer, Object> writes = backwardTargets.remove(label);
+            if (writes != null) {
+                frame = frame.widen(writes);
+                needed = true;
+                placing.add(label);
+            }
+        }
+
+        locals = frame.locals.clone();
+        stack.clear();
+        stack.addAll(frame.stack);
+        stackSize = frame.stackSize();
+        reachable = true;
+
+        frameDue |= needed;
+        pending.clear();
+
+        return true;
+    }
+
+    private void emit(Frame frame) {
+        int count = frame.locals.length;
+        while (count > 0 && frame.locals[count - 1] == Opcodes.TOP)
+            count--;
+
+        List<Object> local = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            local.add(frame.locals[i]);
+            if (isWide(frame.locals[i]))
+                i++;
+        }
+
+        super.visitFrame(Opcodes.F_NEW, local.size(), local.toArray(), frame.stack.size(), frame.stack.toArray());
+    }
+
+    private static Frame merge(Frame frame, Frame other) {
+        if (frame == null)
+            return other;
+
+        if (frame.stack.size() != other.stack.size())
+            throw new IllegalStateException("Paths merge with different stack heights");
+
+        Object[] locals = new Object[Math.max(frame.locals.length, other.locals.length)];
+        for (int i = 0; i < locals.length; i++) {
+            Object a = i < frame.locals.length ? frame.locals[i] : Opcodes.TOP;
+            Object b = i < other.locals.length ? other.locals[i] : Opcodes.TOP;
+            locals[i] = a.equals(b) ? a : Opcodes.TOP;
+        }
+        clearBrokenPairs(locals);
+
+        List<Object> stack = new ArrayList<>(frame.stack.size());
+        for (int i = 0; i < frame.stack.size(); i++) {
+            Object a = frame.stack.get(i);
+            Object b = other.stack.get(i);
+
+            if (a.equals(b) || b == Opcodes.NULL && isReference(a))
+                stack.add(a);
+            else if (a == Opcodes.NULL && isReference(b))
+                stack.add(b);
+            else
+                throw new IllegalStateException("Paths merge with " + a + " and " + b + " on the stack");
+        }
+
+        return new Frame(locals, stack);
+    }
+
+    /**
+     * A long or double whose second slot was overwritten is no longer readable.
+     */
+    private static void clearBrokenPairs(Object[] locals) {
+        for (int i = 0; i < locals.length; i++) {
+            if (isWide(locals[i]) && (i + 1 >= locals.length || locals[i + 1] != Opcodes.TOP))
+                locals[i] = Opcodes.TOP;
+        }
+    }
+
+    private void store(int var, Object type) {
+        int size = isWide(type) ? 2 : 1;
+        if (var + size > locals.length) {
+            int length = locals.length;
+            locals = Arrays.copyOf(locals, Math.max(var + size, length * 2));
+            Arrays.fill(locals, length, locals.length, Opcodes.TOP);
+        }
+
+        if (var > 0 && isWide(locals[var - 1]))
+            locals[var - 1] = Opcodes.TOP;
+
+        locals[var] = type;
+        if (size == 2)
+            locals[var + 1] = Opcodes.TOP;
+
+        maxLocals = Math.max(maxLocals, var + size);
+    }
+
+    private void initialize(Object uninitialized, String type) {
+        for (int i = 0; i < locals.length; i++) {
+            if (locals[i] == uninitialized)
+                locals[i] = type;
+        }
+        for (int i = 0; i < stack.size(); i++) {
+            if (stack.get(i) == uninitialized)
+                stack.set(i, type);
+        }
+    }
+
+    private void pushReturn(String desc) {
+        int end = desc.indexOf(')') + 1;
+        if (desc.charAt(end) != 'V')
+            push(typeOf(desc, end));
+    }
+
+    private void popArguments(String desc) {
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            while (desc.charAt(i) == '[')
+                i++;
+            if (desc.charAt(i) == 'L')
+                i = desc.indexOf(';', i);
+            i++;
+            pop();
+        }
+    }
+
+    private void push(Object type) {
+        stack.add(type);
+        stackSize += isWide(type) ? 2 : 1;
+        maxStack = Math.max(maxStack, stackSize);
+    }
+
+    private Object pop() {
+        if (stack.isEmpty())
+            throw new IllegalStateException("Operand stack underflow");
+
+        Object type = stack.remove(stack.size() - 1);
+        stackSize -= isWide(type) ? 2 : 1;
+        return type;
+    }
+
+    private void pop(int count) {
+        for (int i = 0; i < count; i++)
+            pop();
+    }
+
+    private static boolean isWide(Object type) {
+        return type == Opcodes.LONG || type == Opcodes.DOUBLE;
+    }
+
+    private static boolean isReference(Object type) {
+        return type instanceof String || type == Opcodes.NULL;
+    }
+
+    private static Object elementOf(Object arrayType) {
+        if (!(arrayType instanceof String) || ((String) arrayType).charAt(0) != '[')
+            return Opcodes.NULL;
+
+        return typeOf((String) arrayType, 1);
+    }
+
+    private static String primitiveArray(int operand) {
+        switch (operand) {
+            case Opcodes.T_BOOLEAN: return "[Z";
+            case Opcodes.T_CHAR: return "[C";
+            case Opcodes.T_FLOAT: return "[F";
+            case Opcodes.T_DOUBLE: return "[D";
+            case Opcodes.T_BYTE: return "[B";
+            case Opcodes.T_SHORT: return "[S";
+            case Opcodes.T_INT: return "[I";
+            case Opcodes.T_LONG: return "[J";
+            default: throw new IllegalStateException("Cannot track array type " + operand);
+        }
+    }
+
+    /**
+     * The verification type of the field descriptor starting at {@code from} in {@code desc}.
+     */
+    private static Object typeOf(String desc, int from) {
+        switch (desc.charAt(from)) {
+            case 'Z': case 'C': case 'B': case 'S': case 'I':
+                return Opcodes.INTEGER;
+            case 'F':
+                return Opcodes.FLOAT;
+            case 'J':
+                return Opcodes.LONG;
+            case 'D':
+                return Opcodes.DOUBLE;
+            case 'L':
+                return desc.substring(from + 1, desc.indexOf(';', from));
+            default: {
+                int end = from;
+                while (desc.charAt(end) == '[')
+                    end++;
+                end = desc.charAt(end) == 'L' ? desc.indexOf(';', end) + 1 : end + 1;
+                return from == 0 && end == desc.length() ? desc : desc.substring(from, end);
+            }
+        }
+    }
+
+    private static Object typeOf(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN: case Type.CHAR: case Type.BYTE: case Type.SHORT: case Type.INT:
+                return Opcodes.INTEGER;
+            case Type.FLOAT:
+                return Opcodes.FLOAT;
+            case Type.LONG:
+                return Opcodes.LONG;
+            case Type.DOUBLE:
+                return Opcodes.DOUBLE;
+            case Type.ARRAY:
+                return type.getDescriptor();
+            default:
+                return type.getInternalName();
+        }
+    }
+
+    private static final class Frame {
+        final Object[] locals;
+        final List<Object> stack;
+
+        Frame(Object[] locals, List<Object> stack) {
+            this.locals = locals.clone();
+            this.stack = new ArrayList<>(stack);
+        }
+
+        int stackSize() {
+            int size = 0;
+            for (Object type : stack)
+                size += isWide(type) ? 2 : 1;
+            return size;
+        }
+
+        /**
+         * Locals written with another type than the one they have on entry are unreadable at a
+         * backward target.
+         */
+        Frame widen(Map<Integer, Object> writes) {
+            Object[] widened = locals.clone();
+
+            for (Map.Entry<Integer, Object> write : writes.entrySet()) {
+                int var = write.getKey();
+                if (var < widened.length && !widened[var].equals(write.getValue())) {
+                    widened[var] = Opcodes.TOP;
+                    if (var + 1 < widened.length && isWide(write.getValue()))
+                        widened[var + 1] = Opcodes.TOP;
+                }
+                if (var > 0 && var - 1 < widened.length && isWide(widened[var - 1]) && !isWide(write.getValue()))
+                    widened[var - 1] = Opcodes.TOP;
+            }
+
+            return new Frame(widened, stack);
+        }
+
+        /**
+         * Whether the verifier takes {@code frame} where this frame is declared, without looking
+         * up class hierarchies.
+         */
+        boolean accepts(Frame frame) {
+            for (int i = 0; i < locals.length; i++) {
+                Object expected = locals[i];
+                Object actual = i < frame.locals.length ? frame.locals[i] : Opcodes.TOP;
+
+                if (expected != Opcodes.TOP && !expected.equals(actual))
+                    return false;
+            }
+
+            if (stack.size() != frame.stack.size())
+                return false;
+
+            for (int i = 0; i < stack.size(); i++) {
+                Object expected = stack.get(i);
+                Object actual = frame.stack.get(i);
+
+                if (!expected.equals(actual) && !(actual == Opcodes.NULL && isReference(expected)))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+}
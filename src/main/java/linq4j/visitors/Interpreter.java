@@ -0,0 +1,618 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evaluates an expression tree directly instead of generating code for it.
+ *
+ * Every visit leaves the value of the visited node in {@link #getValue()}, locals are kept by
+ * parameter index. An interpreter holds the state of one evaluation, so it is not thread-safe;
+ * fields and methods resolved through reflection are kept in a map that can be shared.
+ *
+ * Evaluation recurses once per level of the tree on the calling thread, so trees more than about a
+ * thousand levels deep, such as long chains of operators, need a thread with a larger stack.
+ */
+public class Interpreter extends ExpressionVisitor {
+    private static final MethodHandle CLOSURE;
+
+    static {
+        try {
+            CLOSURE = MethodHandles.lookup().findStatic(Interpreter.class, "closure", MethodType.methodType(Object.class,
+                    ClassLoader.class, Map.class, LambdaExpression.class, List.class, Object[].class, Class.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ClassLoader classLoader;
+    private final Map<Object, AccessibleObject> resolved;
+    private Object[] locals = new Object[4];
+    private Object value;
+    private Map<LabelTarget, Jump> jumps;
+
+    public Interpreter() {
+        this(Members.defaultClassLoader(), new ConcurrentHashMap<Object, AccessibleObject>());
+    }
+
+    public Interpreter(ClassLoader classLoader, Map<Object, AccessibleObject> resolved) {
+        this.classLoader = classLoader;
+        this.resolved = resolved;
+    }
+
+    public static Object invoke(LambdaExpression lambda, Object... arguments) {
+        return new Interpreter().evaluate(lambda, arguments);
+    }
+
+    public Object evaluate(LambdaExpression lambda, Object... arguments) {
+        //an interpreter may be reused, variables read before being assigned start out null
+        Arrays.fill(locals, null);
+        return apply(lambda, arguments);
+    }
+
+    private Object apply(LambdaExpression lambda, Object[] arguments) {
+        List<ParameterExpression> parameters = lambda.getParameters();
+
+        if (parameters.size() != arguments.length)
+            throw new IllegalArgumentException("Lambda has " + parameters.size() + " parameters but got " + arguments.length + " arguments");
+
+        for (int i = 0; i < arguments.length; i++)
+            store(parameters.get(i), TypeUtils.convert(arguments[i], parameters.get(i).getType()));
+
+        return evaluate(lambda.getBody());
+    }
+
+    public Object evaluate(Expression expression) {
+        visit(expression);
+        return value;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public Expression visitBinary(BinaryExpression binaryExpression) {
+        if (binaryExpression.getNodeType() == ExpressionType.Assign) {
+            Expression left = binaryExpression.getLeft();
+
+            if (left.getNodeType() == ExpressionType.MemberAccess) {
+                MemberExpression member = (MemberExpression) left;
+                Object target = member.getExpression() != null ? evaluate(member.getExpression()) : null;
+                Object right = TypeUtils.convert(evaluate(binaryExpression.getRight()), member.getType());
+
+                try {
+                    field(member).set(target, right);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else if (left.getNodeType() == ExpressionType.ArrayIndex) {
+                IndexExpression index = (IndexExpression) left;
+                Object array = evaluate(index.getArray());
+                int i = ((Number) evaluate(index.getIndex())).intValue();
+                Array.set(array, i, TypeUtils.convert(evaluate(binaryExpression.getRight()), index.getType()));
+            } else if (left.getNodeType() == ExpressionType.Parameter) {
+                ParameterExpression parameter = (ParameterExpression) left;
+                store(parameter, TypeUtils.convert(evaluate(binaryExpression.getRight()), parameter.getType()));
+            } else {
+                throw new IllegalStateException("Cannot assign to " + left.getNodeType());
+            }
+
+            value = null;
+            return binaryExpression;
+        }
+
+        switch (binaryExpression.getNodeType()) {
+            case AndAlso:
+                value = (Boolean) evaluate(binaryExpression.getLeft()) && (Boolean) evaluate(binaryExpression.getRight());
+                return binaryExpression;
+            case OrElse:
+                value = (Boolean) evaluate(binaryExpression.getLeft()) || (Boolean) evaluate(binaryExpression.getRight());
+                return binaryExpression;
+            case Coalesce: {
+                Object left = evaluate(binaryExpression.getLeft());
+                Object result = left != null ? left : evaluate(binaryExpression.getRight());
+                value = TypeUtils.convert(result, binaryExpression.getType());
+                return binaryExpression;
+            }
+        }
+
+        Object left = evaluate(binaryExpression.getLeft());
+        Object right = evaluate(binaryExpression.getRight());
+        value = binary(binaryExpression, left, right);
+
+        return binaryExpression;
+    }
+
+    @Override
+    public Expression visitSwitch(SwitchExpression switchExpression) {
+        Object switchValue = evaluate(switchExpression.getSwitchValue());
+
+        if (switchValue == null)
+            throw new NullPointerException("Cannot switch over null");
+
+        Expression body = switchExpression.getBody(switchValue);
+        value = body != null ? TypeUtils.convert(evaluate(body), switchExpression.getType()) : null;
+
+        return switchExpression;
+    }
+
+    @Override
+    public Expression visitConditional(ConditionalExpression conditionalExpression) {
+        Object test = evaluate(conditionalExpression.getTest());
+        Expression branch = (Boolean) test ? conditionalExpression.getIfTrue() : conditionalExpression.getIfFalse();
+        value = TypeUtils.convert(evaluate(branch), conditionalExpression.getType());
+
+        return conditionalExpression;
+    }
+
+    private static Object binary(BinaryExpression binaryExpression, Object left, Object right) {
+        ExpressionType nodeType = binaryExpression.getNodeType();
+        Class<?> leftType = binaryExpression.getLeft().getType();
+        Class<?> rightType = binaryExpression.getRight().getType();
+
+        switch (nodeType) {
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual: {
+                Class<?> type = TypeUtils.comparisonType(leftType, rightType);
+
+                if (type == Object.class) {
+                    if (nodeType != ExpressionType.Equal && nodeType != ExpressionType.NotEqual)
+                        throw new IllegalArgumentException("Cannot order references with " + nodeType);
+                    return (left == right) == (nodeType == ExpressionType.Equal);
+                }
+
+                return compare(nodeType, TypeUtils.convert(left, type), TypeUtils.convert(right, type));
+            }
+            case LeftShift:
+            case RightShift: {
+                Class<?> type = binaryExpression.getType();
+                int distance = (Integer) TypeUtils.convert(right, Integer.TYPE);
+
+                if (type == Long.TYPE) {
+                    long l = (Long) TypeUtils.convert(left, type);
+                    return nodeType == ExpressionType.LeftShift ? l << distance : l >> distance;
+                }
+
+                int i = (Integer) TypeUtils.convert(left, type);
+                return nodeType == ExpressionType.LeftShift ? i << distance : i >> distance;
+            }
+            case Power:
+                return Math.pow((Double) TypeUtils.convert(left, Double.TYPE), (Double) TypeUtils.convert(right, Double.TYPE));
+        }
+
+        Class<?> type = binaryExpression.getType();
+        Object l = TypeUtils.convert(left, type);
+        Object r = TypeUtils.convert(right, type);
+
+        if (type == Boolean.TYPE) {
+            boolean a = (Boolean) l;
+            boolean b = (Boolean) r;
+
+            switch (nodeType) {
+                case And: return a & b;
+                case Or: return a | b;
+                case ExclusiveOr: return a ^ b;
+            }
+        } else if (type == Integer.TYPE) {
+            int a = (Integer) l;
+            int b = (Integer) r;
+
+            switch (nodeType) {
+                case Add: return a + b;
+                case AddChecked: return Math.addExact(a, b);
+                case Subtract: return a - b;
+                case SubtractChecked: return Math.subtractExact(a, b);
+                case Multiply: return a * b;
+                case MultiplyChecked: return Math.multiplyExact(a, b);
+                case Divide: return a / b;
+                case Modulo: return a % b;
+                case And: return a & b;
+                case Or: return a | b;
+                case ExclusiveOr: return a ^ b;
+            }
+        } else if (type == Long.TYPE) {
+            long a = (Long) l;
+            long b = (Long) r;
+
+            switch (nodeType) {
+                case Add: return a + b;
+                case AddChecked: return Math.addExact(a, b);
+                case Subtract: return a - b;
+                case SubtractChecked: return Math.subtractExact(a, b);
+                case Multiply: return a * b;
+                case MultiplyChecked: return Math.multiplyExact(a, b);
+                case Divide: return a / b;
+                case Modulo: return a % b;
+                case And: return a & b;
+                case Or: return a | b;
+                case ExclusiveOr: return a ^ b;
+            }
+        } else if (type == Float.TYPE) {
+            float a = (Float) l;
+            float b = (Float) r;
+
+            switch (nodeType) {
+                case Add: case AddChecked: return a + b;
+                case Subtract: case SubtractChecked: return a - b;
+                case Multiply: case MultiplyChecked: return a * b;
+                case Divide: return a / b;
+                case Modulo: return a % b;
+            }
+        } else if (type == Double.TYPE) {
+            double a = (Double) l;
+            double b = (Double) r;
+
+            switch (nodeType) {
+                case Add: case AddChecked: return a + b;
+                case Subtract: case SubtractChecked: return a - b;
+                case Multiply: case MultiplyChecked: return a * b;
+                case Divide: return a / b;
+                case Modulo: return a % b;
+            }
+        }
+
+        throw new UnsupportedOperationException("Cannot interpret " + nodeType + " on " + type.getName());
+    }
+
+    private static boolean compare(ExpressionType nodeType, Object left, Object right) {
+        if (left instanceof Boolean) {
+            boolean equal = left.equals(right);
+            if (nodeType == ExpressionType.Equal) return equal;
+            if (nodeType == ExpressionType.NotEqual) return !equal;
+            throw new IllegalArgumentException("Cannot order booleans with " + nodeType);
+        }
+
+        if (left instanceof Double || left instanceof Float) {
+            double a = ((Number) left).doubleValue();
+            double b = ((Number) right).doubleValue();
+
+            switch (nodeType) {
+                case Equal: return a == b;
+                case NotEqual: return a != b;
+                case LessThan: return a < b;
+                case LessThanOrEqual: return a <= b;
+                case GreaterThan: return a > b;
+                default: return a >= b;
+            }
+        }
+
+        long a = ((Number) left).longValue();
+        long b = ((Number) right).longValue();
+
+        switch (nodeType) {
+            case Equal: return a == b;
+            case NotEqual: return a != b;
+            case LessThan: return a < b;
+            case LessThanOrEqual: return a <= b;
+            case GreaterThan: return a > b;
+            default: return a >= b;
+        }
+    }
+
+    @Override
+    public Expression visitUnary(UnaryExpression unaryExpression) {
+        Object operand = evaluate(unaryExpression.getOperand());
+
+        Class<?> type = unaryExpression.getType();
+
+        switch (unaryExpression.getNodeType()) {
+            case Convert:
+            case UnaryPlus:
+                value = TypeUtils.convert(operand, type);
+                break;
+            case ArrayLength:
+                value = Array.getLength(operand);
+                break;
+            case Negate:
+            case NegateChecked: {
+                Object o = TypeUtils.convert(operand, type);
+                boolean checked = unaryExpression.getNodeType() == ExpressionType.NegateChecked;
+
+                if (type == Integer.TYPE) value = checked ? Math.negateExact((Integer) o) : -(Integer) o;
+                else if (type == Long.TYPE) value = checked ? Math.negateExact((Long) o) : -(Long) o;
+                else if (type == Float.TYPE) value = -(Float) o;
+                else value = -(Double) o;
+                break;
+            }
+            case Not:
+            case OnesComplement: {
+                Object o = TypeUtils.convert(operand, type);
+
+                if (type == Boolean.TYPE) value = !(Boolean) o;
+                else if (type == Long.TYPE) value = ~(Long) o;
+                else value = ~(Integer) o;
+                break;
+            }
+            default:
+                throw new UnsupportedOperationException("Cannot interpret " + unaryExpression.getNodeType());
+        }
+
+        return unaryExpression;
+    }
+
+    @Override
+    public Expression visitMember(MemberExpression memberExpression) {
+        Object target = memberExpression.getExpression() != null ? evaluate(memberExpression.getExpression()) : null;
+
+        try {
+            value = field(memberExpression).get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return memberExpression;
+    }
+
+    @Override
+    public Expression visitParameter(ParameterExpression parameterExpression) {
+        int index = parameterExpression.getIndex();
+        value = index < locals.length ? locals[index] : null;
+        return parameterExpression;
+    }
+
+    @Override
+    public Expression visitConstant(ConstantExpression constantExpression) {
+        value = constantExpression.getValue();
+        return constantExpression;
+    }
+
+    @Override
+    public Expression visitDefault(DefaultExpression defaultExpression) {
+        Class<?> type = defaultExpression.getType();
+        value = type.isPrimitive() && type != Void.TYPE ? Array.get(Array.newInstance(type, 1), 0) : null;
+        return defaultExpression;
+    }
+
+    @Override
+    public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+        Object target = methodCallExpression.getExpression() != null ? evaluate(methodCallExpression.getExpression()) : null;
+
+        Expression[] parameters = methodCallExpression.getParameters();
+        Object[] arguments = new Object[parameters.length];
+        for (int i = 0; i < parameters.length; i++)
+            arguments[i] = TypeUtils.convert(evaluate(parameters[i]), methodCallExpression.getMethodInfo().getTypes()[i]);
+
+        try {
+            value = method(methodCallExpression.getMethodInfo()).invoke(target, arguments);
+        } catch (InvocationTargetException e) {
+            throw Interpreter.<RuntimeException>rethrow(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return methodCallExpression;
+    }
+
+    @Override
+    public Expression visitDynamic(DynamicExpression dynamicExpression) {
+        Object target = evaluate(dynamicExpression.getExpression());
+        if (target == null)
+            throw new NullPointerException("Cannot read " + dynamicExpression.getName() + " of null");
+
+        Expression[] parameters = dynamicExpression.getArguments();
+        Object[] arguments = new Object[parameters.length + 1];
+        arguments[0] = target;
+        for (int i = 0; i < parameters.length; i++)
+            arguments[i + 1] = TypeUtils.convert(evaluate(parameters[i]), parameters[i].getType());
+
+        MethodType type = DynamicMembers.typeOf(dynamicExpression);
+        try {
+            value = DynamicMembers.member(target.getClass(), dynamicExpression.getName(), type).invokeWithArguments(arguments);
+        } catch (Throwable e) {
+            throw Interpreter.<RuntimeException>rethrow(e);
+        }
+
+        return dynamicExpression;
+    }
+
+    /**
+     * Jumps to a label that is one of the expressions of the block resume after it.
+     */
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        List<Expression> expressions = new ArrayList<>(blockExpression.getExpressions());
+        expressions.add(blockExpression.getResult());
+
+        int i = 0;
+        while (i < expressions.size()) {
+            try {
+                for (; i < expressions.size(); i++)
+                    visit(expressions.get(i));
+            } catch (Jump jump) {
+                i = indexOf(expressions, jump.target);
+
+                if (i < 0)
+                    throw jump;
+
+                value = jump.value;
+                i++;
+            }
+        }
+
+        if (blockExpression.getType() == Void.TYPE)
+            value = null;
+
+        return blockExpression;
+    }
+
+    private static int indexOf(List<Expression> expressions, LabelTarget target) {
+        for (int i = 0; i < expressions.size(); i++) {
+            Expression expression = expressions.get(i);
+
+            if (expression.getNodeType() == ExpressionType.Label && ((LabelExpression) expression).getTarget() == target)
+                return i;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public Expression visitLoop(LoopExpression loopExpression) {
+        while (true) {
+            try {
+                visit(loopExpression.getBody());
+            } catch (Jump jump) {
+                if (jump.target == loopExpression.getBreakLabel()) {
+                    value = jump.value;
+                    return loopExpression;
+                }
+
+                if (jump.target != loopExpression.getContinueLabel())
+                    throw jump;
+            }
+        }
+    }
+
+    @Override
+    public Expression visitGoto(GotoExpression gotoExpression) {
+        Object carried = null;
+
+        if (gotoExpression.getValue() != null)
+            carried = TypeUtils.convert(evaluate(gotoExpression.getValue()), gotoExpression.getTarget().getType());
+
+        if (jumps == null)
+            jumps = new IdentityHashMap<>();
+
+        Jump jump = jumps.get(gotoExpression.getTarget());
+        if (jump == null)
+            jumps.put(gotoExpression.getTarget(), jump = new Jump(gotoExpression.getTarget()));
+
+        jump.value = carried;
+        throw jump;
+    }
+
+    @Override
+    public Expression visitLabel(LabelExpression labelExpression) {
+        value = null;
+
+        if (labelExpression.getDefaultValue() != null)
+            value = TypeUtils.convert(evaluate(labelExpression.getDefaultValue()), labelExpression.getType());
+
+        return labelExpression;
+    }
+
+    @Override
+    public Expression visitIndex(IndexExpression indexExpression) {
+        Object array = evaluate(indexExpression.getArray());
+        int index = ((Number) evaluate(indexExpression.getIndex())).intValue();
+        value = Array.get(array, index);
+        return indexExpression;
+    }
+
+    @Override
+    public Expression visitNewArrayInit(NewArrayExpression newArrayExpression) {
+        Expression[] expressions = newArrayExpression.getExpressions();
+        Object array = Array.newInstance(newArrayExpression.getElementType(), expressions.length);
+
+        for (int i = 0; i < expressions.length; i++)
+            Array.set(array, i, TypeUtils.convert(evaluate(expressions[i]), newArrayExpression.getElementType()));
+
+        value = array;
+        return newArrayExpression;
+    }
+
+    /**
+     * A nested lambda is an instance of its functional interface evaluating the body with an
+     * interpreter of its own, which starts from the values the lambda captured.
+     */
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        Method sam = NestedLambdas.functionalMethod(lambdaExpression);
+        List<ParameterExpression> captures = NestedLambdas.captures(lambdaExpression);
+
+        Object[] captured = new Object[captures.size()];
+        for (int i = 0; i < captured.length; i++)
+            captured[i] = evaluate(captures.get(i));
+
+        MethodHandle closure = MethodHandles.insertArguments(CLOSURE, 0, classLoader, resolved, lambdaExpression, captures, captured, sam.getReturnType())
+                .asCollector(Object[].class, sam.getParameterTypes().length);
+        MethodType type = MethodType.methodType(sam.getReturnType(), sam.getParameterTypes());
+
+        value = MethodHandleProxies.asInterfaceInstance(lambdaExpression.getType(), MethodHandles.explicitCastArguments(closure, type));
+        return lambdaExpression;
+    }
+
+    private static Object closure(ClassLoader classLoader, Map<Object, AccessibleObject> resolved, LambdaExpression lambda,
+                                  List<ParameterExpression> captures, Object[] captured, Class<?> returnType, Object[] arguments) {
+        Interpreter interpreter = new Interpreter(classLoader, resolved);
+        for (int i = 0; i < captured.length; i++)
+            interpreter.store(captures.get(i), captured[i]);
+
+        return TypeUtils.convert(interpreter.apply(lambda, arguments), returnType);
+    }
+
+    private void store(ParameterExpression parameter, Object value) {
+        int index = parameter.getIndex();
+
+        if (index >= locals.length)
+            locals = Arrays.copyOf(locals, Math.max(index + 1, locals.length * 2));
+
+        locals[index] = value;
+    }
+
+    private Field field(MemberExpression memberExpression) {
+        Field field = (Field) resolved.get(memberExpression);
+
+        if (field == null) {
+            field = Members.field(Members.load(classLoader, memberExpression.getOwner()), memberExpression.getMember());
+            resolved.put(memberExpression, field);
+        }
+
+        return field;
+    }
+
+    private Method method(MethodInfo methodInfo) {
+        if (methodInfo.getMethod() != null)
+            return methodInfo.getMethod();
+
+        Method method = (Method) resolved.get(methodInfo);
+
+        if (method == null) {
+            method = Members.method(Members.load(classLoader, methodInfo.getOwner()), methodInfo.getName(), methodInfo.getTypes());
+            resolved.put(methodInfo, method);
+        }
+
+        return method;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T rethrow(Throwable throwable) throws T {
+        throw (T) throwable;
+    }
+
+    /**
+     * Unwinds the interpreter up to the loop or block owning the target of a {@link GotoExpression}.
+     * Each interpreter allocates one per target and rethrows it with the value of every jump.
+     */
+    private static final class Jump extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final LabelTarget target;
+        Object value;
+
+        Jump(LabelTarget target) {
+            super(null, null, false, false);
+            this.target = target;
+        }
+    }
+}
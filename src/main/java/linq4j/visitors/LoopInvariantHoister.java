@@ -0,0 +1,201 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves loop-invariant subtrees out of loops, into temporaries assigned right before the loop.
+ *
+ * A loop may not evaluate its body at all, so only subtrees that can neither throw nor have side
+ * effects are moved: primitive operators over parameters the loop does not assign and reads of
+ * final fields, the fields of {@code this} declared by {@code finalOwner} and static final fields.
+ * Other fields may change through another thread or a call even in loops writing no memory, and a
+ * loop spinning on a volatile flag must read it every time.
+ */
+public final class LoopInvariantHoister extends ExpressionVisitor {
+    private final String finalOwner;
+    private int nextSlot;
+
+    private LoopInvariantHoister(String finalOwner) {
+        this.finalOwner = finalOwner;
+    }
+
+    /**
+     * Hoists the invariants of every loop in {@code body}, a lambda body taking {@code parameters}.
+     * Fields of {@code this} declared by {@code finalOwner}, an internal name, are treated as final.
+     */
+    public static Expression hoist(Expression body, List<ParameterExpression> parameters, String finalOwner) {
+        LoopInvariantHoister hoister = new LoopInvariantHoister(finalOwner);
+        hoister.nextSlot = Slots.firstFree(parameters, body);
+        return hoister.visit(body);
+    }
+
+    @Override
+    public Expression visitLoop(LoopExpression loopExpression) {
+        Invariants invariants = new Invariants(SideEffects.of(loopExpression.getBody()));
+        Expression body = invariants.visit(loopExpression.getBody());
+
+        LoopExpression loop = loopExpression;
+        if (body != loopExpression.getBody())
+            loop = Expression.loop(body, loopExpression.getBreakLabel(), loopExpression.getContinueLabel());
+
+        //what is only invariant in nested loops
+        Expression visited = super.visitLoop(loop);
+
+        if (invariants.temporaries.isEmpty())
+            return visited;
+
+        Expression[] expressions = new Expression[invariants.temporaries.size() + 1];
+        for (int i = 0; i < invariants.temporaries.size(); i++)
+            expressions[i] = Expression.assign(invariants.temporaries.get(i), invariants.values.get(i));
+        expressions[expressions.length - 1] = visited;
+
+        return Expression.block(visited.getType(), invariants.temporaries, expressions);
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return lambdaExpression;
+    }
+
+    /**
+     * Replaces the largest invariant subtrees of one loop body with temporaries.
+     */
+    private final class Invariants extends ExpressionVisitor {
+        private final SideEffects sideEffects;
+        private final List<ParameterExpression> temporaries = new ArrayList<>();
+        private final List<Expression> values = new ArrayList<>();
+        private final Map<String, ParameterExpression> fields = new HashMap<>();
+
+        Invariants(SideEffects sideEffects) {
+            this.sideEffects = sideEffects;
+        }
+
+        @Override
+        public Expression visit(Expression expression) {
+            if (expression.getNodeType() == ExpressionType.Constant || expression.getNodeType() == ExpressionType.Parameter
+                    || expression.getType() == Void.TYPE || !isInvariant(expression))
+                return super.visit(expression);
+
+            //the same field is read into one temporary
+            String field = null;
+            if (expression.getNodeType() == ExpressionType.MemberAccess) {
+                MemberExpression member = (MemberExpression) expression;
+                field = member.getOwner() + '.' + member.getMember();
+
+                if (fields.containsKey(field))
+                    return fields.get(field);
+            }
+
+            ParameterExpression temporary = Expression.parameter(nextSlot, "$invariant" + temporaries.size(), expression.getType());
+            nextSlot += ByteCodeGenerator.typeOf(expression.getType()).getSize();
+
+            temporaries.add(temporary);
+            values.add(expression);
+            if (field != null)
+                fields.put(field, temporary);
+
+            return temporary;
+        }
+
+        @Override
+        public Expression visitBinary(BinaryExpression binaryExpression) {
+            if (binaryExpression.getNodeType() != ExpressionType.Assign)
+                return super.visitBinary(binaryExpression);
+
+            //the target itself is written, not read
+            Expression left = binaryExpression.getLeft();
+            Expression target = left;
+            if (left.getNodeType() == ExpressionType.MemberAccess)
+                target = super.visitMember((MemberExpression) left);
+            else if (left.getNodeType() == ExpressionType.ArrayIndex)
+                target = super.visitIndex((IndexExpression) left);
+
+            Expression value = visit(binaryExpression.getRight());
+
+            if (target != left || value != binaryExpression.getRight())
+                return Expression.assign(target, value);
+
+            return binaryExpression;
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            return lambdaExpression;
+        }
+
+        private boolean isInvariant(Expression expression) {
+            switch (expression.getNodeType()) {
+                case Constant:
+                    return true;
+                case Parameter:
+                    return !sideEffects.writes(((ParameterExpression) expression).getIndex());
+                case MemberAccess: {
+                    MemberExpression member = (MemberExpression) expression;
+                    Expression target = member.getExpression();
+
+                    if (target == null)
+                        return isStaticFinal(member);
+                    if (target.getNodeType() != ExpressionType.Parameter || ((ParameterExpression) target).getIndex() != 0)
+                        return false;
+
+                    return member.getOwner().equals(finalOwner);
+                }
+                case Convert:
+                case UnaryPlus:
+                case Negate:
+                case Not:
+                case OnesComplement: {
+                    UnaryExpression unary = (UnaryExpression) expression;
+                    return unary.getType().isPrimitive() && unary.getOperand().getType().isPrimitive() && isInvariant(unary.getOperand());
+                }
+                case Add:
+                case Subtract:
+                case Multiply:
+                case And:
+                case Or:
+                case ExclusiveOr:
+                case LeftShift:
+                case RightShift:
+                case Equal:
+                case NotEqual:
+                case LessThan:
+                case LessThanOrEqual:
+                case GreaterThan:
+                case GreaterThanOrEqual:
+                case AndAlso:
+                case OrElse: {
+                    BinaryExpression binary = (BinaryExpression) expression;
+                    return binary.getLeft().getType().isPrimitive() && binary.getRight().getType().isPrimitive()
+                            && isInvariant(binary.getLeft()) && isInvariant(binary.getRight());
+                }
+                case Conditional: {
+                    ConditionalExpression conditional = (ConditionalExpression) expression;
+                    return conditional.getType().isPrimitive() && isInvariant(conditional.getTest())
+                            && isInvariant(conditional.getIfTrue()) && isInvariant(conditional.getIfFalse());
+                }
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static boolean isStaticFinal(MemberExpression member) {
+        Field field;
+        try {
+            field = Members.field(Members.load(Members.defaultClassLoader(), member.getOwner()), member.getMember());
+        } catch (IllegalStateException e) {
+            //a field that cannot be resolved here is read where it is
+            return false;
+        }
+
+        int modifiers = field.getModifiers();
+        return Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers);
+    }
+}
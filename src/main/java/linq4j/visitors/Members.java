@@ -0,0 +1,85 @@
+package linq4j.visitors;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Resolves the classes, fields and methods named by expression trees through reflection, for the
+ * backends that do not generate bytecode.
+ */
+final class Members {
+    private Members() {
+    }
+
+    static Class<?> load(ClassLoader classLoader, String internalName) {
+        try {
+            return Class.forName(internalName.replace('/', '.'), false, classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot load " + internalName, e);
+        }
+    }
+
+    static Field field(Class<?> owner, String name) {
+        Field field;
+
+        try {
+            field = findField(owner, name);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Cannot find field " + name + " in " + owner.getName(), e);
+        }
+
+        makeAccessible(field);
+        return field;
+    }
+
+    static Method method(Class<?> owner, String name, Class<?>[] types) {
+        Method method;
+
+        try {
+            method = findMethod(owner, name, types);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Cannot find method " + name + " in " + owner.getName(), e);
+        }
+
+        makeAccessible(method);
+        return method;
+    }
+
+    static ClassLoader defaultClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : Members.class.getClassLoader();
+    }
+
+    private static void makeAccessible(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (RuntimeException e) {
+            //public members are still reachable, everything else fails on use
+        }
+    }
+
+    private static Field findField(Class<?> owner, String name) throws NoSuchFieldException {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                //try the superclass
+            }
+        }
+
+        return owner.getField(name);
+    }
+
+    private static Method findMethod(Class<?> owner, String name, Class<?>[] types) throws NoSuchMethodException {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredMethod(name, types);
+            } catch (NoSuchMethodException e) {
+                //try the superclass
+            }
+        }
+
+        return owner.getMethod(name, types);
+    }
+}
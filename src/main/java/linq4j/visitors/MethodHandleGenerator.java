@@ -0,0 +1,702 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns an expression tree into a tree of method handles instead of bytecode, so no class is
+ * defined for it. Every node becomes a handle taking the frame, an {@code Object[]} holding the
+ * parameters and block variables boxed by parameter index, and returning the value of the node:
+ * operators are {@link Operators} methods whose arguments are filtered by the handles of the
+ * operands, conditionals are {@link MethodHandles#guardWithTest} and statements are sequenced with
+ * {@link MethodHandles#foldArguments}.
+ *
+ * Jumps unwind as exceptions, caught by their loop or by the block ending with their label. Labels
+ * anywhere else are not supported. Nested lambdas are handles of their own behind
+ * {@link MethodHandleProxies}, taking the variables they capture first.
+ */
+public class MethodHandleGenerator extends ExpressionVisitor {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle FRAME = MethodHandles.identity(Object[].class);
+    private static final MethodHandle GET = MethodHandles.arrayElementGetter(Object[].class);
+    private static final MethodHandle SET = MethodHandles.arrayElementSetter(Object[].class);
+    private static final MethodHandle ALLOCATE = helper("allocate", Object[].class, Object[].class, int[].class, Object[].class);
+    private static final MethodHandle LENGTH = helper("length", Integer.TYPE, Object.class);
+    private static final MethodHandle IS_NULL = helper("isNull", Boolean.TYPE, Object.class);
+    private static final MethodHandle CHECK_CAST = helper("checkCast", Object.class, Class.class, Object.class);
+    private static final MethodHandle CONTAINS_INT = helper("contains", Boolean.TYPE, int[].class, Integer.TYPE);
+    private static final MethodHandle CONTAINS_OBJECT = helper("contains", Boolean.TYPE, Object[].class, Object.class);
+    private static final MethodHandle LOOP = helper("loop", Object.class, MethodHandle.class, LabelTarget.class, LabelTarget.class, Object[].class);
+    private static final MethodHandle JUMP = helper("jump", Object.class, LabelTarget.class, Object.class);
+    private static final MethodHandle LAND = helper("land", Object.class, LabelTarget.class, Jump.class);
+    private static final MethodHandle PROXY = helper("proxy", Object.class, Class.class, MethodHandle.class, Object[].class);
+
+    private final ClassLoader classLoader;
+    private final TreeMap<Integer, Class<?>> slots = new TreeMap<>();
+    private Class<?>[] inputs = {Object[].class};
+    private Map<Integer, Integer> arguments;
+    private MethodHandle handle;
+
+    public MethodHandleGenerator() {
+        this(Members.defaultClassLoader());
+    }
+
+    public MethodHandleGenerator(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * A handle taking the parameters of {@code lambda} and returning its value. Lambdas assigning
+     * no parameter nor variable and without loops read their parameters from the arguments of the
+     * handle, the others from a frame allocated by each call.
+     */
+    public MethodHandle generateLambda(LambdaExpression lambda) {
+        List<ParameterExpression> parameters = lambda.getParameters();
+        int[] indexes = new int[parameters.size()];
+        Class<?>[] types = new Class<?>[parameters.size()];
+
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = parameters.get(i).getIndex();
+            types[i] = parameters.get(i).getType();
+            slots.put(indexes[i], types[i]);
+        }
+
+        if (!needsFrame(lambda.getBody())) {
+            inputs = types;
+            arguments = new HashMap<>();
+            for (int i = 0; i < indexes.length; i++)
+                arguments.put(indexes[i], i);
+
+            return generate(lambda.getBody());
+        }
+
+        MethodHandle body = generate(lambda.getBody());
+
+        int size = slots.isEmpty() ? 0 : slots.lastKey() + 1;
+        Object[] template = new Object[size];
+        for (Map.Entry<Integer, Class<?>> slot : slots.entrySet())
+            template[slot.getKey()] = defaultValue(slot.getValue());
+
+        MethodHandle allocate = MethodHandles.insertArguments(ALLOCATE, 0, template, indexes)
+                .asCollector(Object[].class, indexes.length)
+                .asType(MethodType.methodType(Object[].class, types));
+
+        return MethodHandles.filterReturnValue(allocate, body);
+    }
+
+    /**
+     * The handle of {@code expression}, taking the frame or, within {@link #generateLambda}, the
+     * arguments of the lambda.
+     */
+    public MethodHandle generate(Expression expression) {
+        visit(expression);
+        return handle;
+    }
+
+    public MethodHandle getHandle() {
+        return handle;
+    }
+
+    @Override
+    public Expression visitBinary(BinaryExpression binaryExpression) {
+        ExpressionType nodeType = binaryExpression.getNodeType();
+        Expression left = binaryExpression.getLeft();
+        Expression right = binaryExpression.getRight();
+
+        switch (nodeType) {
+            case Assign:
+                handle = assign(left, generate(right));
+                return binaryExpression;
+            case AndAlso:
+                handle = MethodHandles.guardWithTest(convert(generate(left), Boolean.TYPE), convert(generate(right), Boolean.TYPE), constant(Boolean.TYPE, false));
+                return binaryExpression;
+            case OrElse:
+                handle = MethodHandles.guardWithTest(convert(generate(left), Boolean.TYPE), constant(Boolean.TYPE, true), convert(generate(right), Boolean.TYPE));
+                return binaryExpression;
+            case Coalesce: {
+                Class<?> type = binaryExpression.getType();
+                MethodHandle value = generate(left);
+                Class<?> leftType = value.type().returnType();
+
+                //(leftValue, frame) -> leftValue != null ? leftValue : right
+                MethodHandle test = MethodHandles.dropArguments(IS_NULL.asType(MethodType.methodType(Boolean.TYPE, leftType)), 1, inputs);
+                MethodHandle ifNull = MethodHandles.dropArguments(convert(generate(right), type), 0, leftType);
+                MethodHandle identity = MethodHandles.identity(leftType);
+                //Integer ?? Long is a Long, converted through long
+                if (TypeUtils.isWrapper(type) && leftType != type)
+                    identity = cast(identity, MethodType.methodType(TypeUtils.unwrap(type), leftType));
+                MethodHandle ifNotNull = MethodHandles.dropArguments(MethodHandles.explicitCastArguments(identity, identity.type().changeReturnType(type)), 1, inputs);
+                handle = MethodHandles.foldArguments(MethodHandles.guardWithTest(test, ifNull, ifNotNull), value);
+                return binaryExpression;
+            }
+        }
+
+        Class<?> operandType;
+        Class<?> resultType = binaryExpression.getType();
+        Class<?> rightType;
+
+        switch (nodeType) {
+            case Equal:
+            case NotEqual:
+            case LessThan:
+            case LessThanOrEqual:
+            case GreaterThan:
+            case GreaterThanOrEqual:
+                operandType = rightType = TypeUtils.comparisonType(left.getType(), right.getType());
+
+                if (operandType == Object.class && nodeType != ExpressionType.Equal && nodeType != ExpressionType.NotEqual)
+                    throw new IllegalArgumentException("Cannot order references with " + nodeType);
+                break;
+            case LeftShift:
+            case RightShift:
+                operandType = resultType;
+                rightType = Integer.TYPE;
+                break;
+            default:
+                operandType = rightType = resultType;
+        }
+
+        handle = combine(operator(nodeType, resultType, operandType, rightType), generate(left), generate(right));
+        return binaryExpression;
+    }
+
+    @Override
+    public Expression visitUnary(UnaryExpression unaryExpression) {
+        MethodHandle operand = generate(unaryExpression.getOperand());
+        Class<?> type = unaryExpression.getType();
+
+        switch (unaryExpression.getNodeType()) {
+            case Convert:
+            case UnaryPlus:
+                handle = convert(operand, type);
+                break;
+            case ArrayLength:
+                handle = combine(LENGTH, operand);
+                break;
+            default:
+                handle = combine(operator(unaryExpression.getNodeType(), type, type), operand);
+        }
+
+        return unaryExpression;
+    }
+
+    @Override
+    public Expression visitConditional(ConditionalExpression conditionalExpression) {
+        Class<?> type = conditionalExpression.getType();
+
+        handle = MethodHandles.guardWithTest(
+                convert(generate(conditionalExpression.getTest()), Boolean.TYPE),
+                convert(generate(conditionalExpression.getIfTrue()), type),
+                convert(generate(conditionalExpression.getIfFalse()), type));
+
+        return conditionalExpression;
+    }
+
+    /**
+     * The switch value is computed once, then tested against the values of each case in order.
+     */
+    @Override
+    public Expression visitSwitch(SwitchExpression switchExpression) {
+        Class<?> type = switchExpression.getType();
+        MethodHandle value = generate(switchExpression.getSwitchValue());
+        Class<?> valueType = value.type().returnType();
+        boolean integral = valueType.isPrimitive();
+
+        if (integral) {
+            value = convert(value, Integer.TYPE);
+            valueType = Integer.TYPE;
+        }
+
+        Expression defaultBody = switchExpression.getDefaultBody();
+        MethodHandle dispatch = defaultBody != null ? convert(generate(defaultBody), type) : constant(type, defaultValue(type));
+        dispatch = MethodHandles.dropArguments(dispatch, 0, valueType);
+
+        List<SwitchCase> cases = switchExpression.getCases();
+        for (int i = cases.size() - 1; i >= 0; i--) {
+            List<ConstantExpression> testValues = cases.get(i).getTestValues();
+            MethodHandle test;
+
+            if (integral) {
+                int[] keys = new int[testValues.size()];
+                for (int k = 0; k < keys.length; k++)
+                    keys[k] = (Integer) TypeUtils.convert(testValues.get(k).getValue(), Integer.TYPE);
+                test = MethodHandles.insertArguments(CONTAINS_INT, 0, (Object) keys);
+            } else {
+                Object[] keys = new Object[testValues.size()];
+                for (int k = 0; k < keys.length; k++)
+                    keys[k] = testValues.get(k).getValue();
+                test = MethodHandles.insertArguments(CONTAINS_OBJECT, 0, (Object) keys).asType(MethodType.methodType(Boolean.TYPE, valueType));
+            }
+
+            MethodHandle body = MethodHandles.dropArguments(convert(generate(cases.get(i).getBody()), type), 0, valueType);
+            dispatch = MethodHandles.guardWithTest(MethodHandles.dropArguments(test, 1, inputs), body, dispatch);
+        }
+
+        handle = MethodHandles.foldArguments(dispatch, value);
+        return switchExpression;
+    }
+
+    @Override
+    public Expression visitLoop(LoopExpression loopExpression) {
+        MethodHandle body = convert(generate(loopExpression.getBody()), Void.TYPE);
+        MethodHandle loop = MethodHandles.insertArguments(LOOP, 0, body, loopExpression.getBreakLabel(), loopExpression.getContinueLabel());
+        handle = convert(loop, loopExpression.getType());
+        return loopExpression;
+    }
+
+    @Override
+    public Expression visitGoto(GotoExpression gotoExpression) {
+        LabelTarget target = gotoExpression.getTarget();
+        MethodHandle value = gotoExpression.getValue() != null
+                ? convert(generate(gotoExpression.getValue()), target.getType())
+                : constant(Object.class, null);
+
+        handle = convert(combine(MethodHandles.insertArguments(JUMP, 0, target), value), gotoExpression.getType());
+        return gotoExpression;
+    }
+
+    @Override
+    public Expression visitLabel(LabelExpression labelExpression) {
+        throw new UnsupportedOperationException("Labels must end a block");
+    }
+
+    @Override
+    public Expression visitMember(MemberExpression memberExpression) {
+        Field field = field(memberExpression);
+
+        try {
+            MethodHandle getter = LOOKUP.unreflectGetter(field);
+            handle = Modifier.isStatic(field.getModifiers())
+                    ? MethodHandles.dropArguments(getter, 0, inputs)
+                    : combine(getter, generate(memberExpression.getExpression()));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return memberExpression;
+    }
+
+    @Override
+    public Expression visitParameter(ParameterExpression parameterExpression) {
+        int index = slot(parameterExpression);
+
+        if (arguments != null) {
+            Integer argument = arguments.get(index);
+            Class<?> type = parameterExpression.getType();
+
+            //a variable never assigned keeps its default value
+            handle = argument != null
+                    ? MethodHandles.permuteArguments(MethodHandles.identity(inputs[argument]), MethodType.methodType(type, inputs), argument)
+                    : constant(type, defaultValue(type));
+            return parameterExpression;
+        }
+
+        MethodHandle get = MethodHandles.insertArguments(GET, 1, index);
+        handle = MethodHandles.explicitCastArguments(get, MethodType.methodType(parameterExpression.getType(), Object[].class));
+        return parameterExpression;
+    }
+
+    @Override
+    public Expression visitConstant(ConstantExpression constantExpression) {
+        handle = constant(constantExpression.getType(), constantExpression.getValue());
+        return constantExpression;
+    }
+
+    @Override
+    public Expression visitDefault(DefaultExpression defaultExpression) {
+        Class<?> type = defaultExpression.getType();
+        handle = constant(type, defaultValue(type));
+        return defaultExpression;
+    }
+
+    @Override
+    public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+        MethodInfo methodInfo = methodCallExpression.getMethodInfo();
+        Method method = methodInfo.getMethod() != null ? methodInfo.getMethod()
+                : Members.method(Members.load(classLoader, methodInfo.getOwner()), methodInfo.getName(), methodInfo.getTypes());
+        Expression[] parameters = methodCallExpression.getParameters();
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+
+        MethodHandle[] arguments = new MethodHandle[parameters.length + (isStatic ? 0 : 1)];
+        if (!isStatic)
+            arguments[0] = generate(methodCallExpression.getExpression());
+        for (int i = 0; i < parameters.length; i++)
+            arguments[arguments.length - parameters.length + i] = generate(parameters[i]);
+
+        try {
+            handle = combine(LOOKUP.unreflect(method).asFixedArity(), arguments);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return methodCallExpression;
+    }
+
+    @Override
+    public Expression visitDynamic(DynamicExpression dynamicExpression) {
+        Expression[] parameters = dynamicExpression.getArguments();
+        MethodHandle[] arguments = new MethodHandle[parameters.length + 1];
+
+        arguments[0] = generate(dynamicExpression.getExpression());
+        for (int i = 0; i < parameters.length; i++)
+            arguments[i + 1] = generate(parameters[i]);
+
+        MethodType type = DynamicMembers.typeOf(dynamicExpression);
+        handle = combine(DynamicMembers.callSite(dynamicExpression.getName(), type).dynamicInvoker(), arguments);
+        return dynamicExpression;
+    }
+
+    /**
+     * A block ending with a label catches the jumps to that label, their value is the one of the block.
+     */
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        Class<?> type = blockExpression.getType();
+
+        for (ParameterExpression variable : blockExpression.getVariables())
+            slot(variable);
+
+        Expression result = blockExpression.getResult();
+        LabelTarget label = null;
+        MethodHandle sequence;
+
+        if (result.getNodeType() == ExpressionType.Label) {
+            LabelExpression labelExpression = (LabelExpression) result;
+            label = labelExpression.getTarget();
+            sequence = labelExpression.getDefaultValue() != null
+                    ? convert(generate(labelExpression.getDefaultValue()), type)
+                    : constant(type, defaultValue(type));
+        } else {
+            sequence = convert(generate(result), type);
+        }
+
+        List<Expression> expressions = blockExpression.getExpressions();
+        for (int i = expressions.size() - 1; i >= 0; i--)
+            sequence = MethodHandles.foldArguments(sequence, convert(generate(expressions.get(i)), Void.TYPE));
+
+        if (label != null) {
+            MethodHandle land = convert(MethodHandles.insertArguments(LAND, 0, label), type);
+            sequence = MethodHandles.catchException(sequence, Jump.class, MethodHandles.dropArguments(land, 1, inputs));
+        }
+
+        handle = sequence;
+        return blockExpression;
+    }
+
+    @Override
+    public Expression visitIndex(IndexExpression indexExpression) {
+        MethodHandle get = MethodHandles.arrayElementGetter(indexExpression.getArray().getType());
+        handle = combine(get, generate(indexExpression.getArray()), generate(indexExpression.getIndex()));
+        return indexExpression;
+    }
+
+    @Override
+    public Expression visitNewArrayInit(NewArrayExpression newArrayExpression) {
+        Expression[] expressions = newArrayExpression.getExpressions();
+        Class<?> arrayType = Array.newInstance(newArrayExpression.getElementType(), 0).getClass();
+
+        MethodHandle[] elements = new MethodHandle[expressions.length];
+        for (int i = 0; i < expressions.length; i++)
+            elements[i] = generate(expressions[i]);
+
+        handle = combine(MethodHandles.identity(arrayType).asCollector(arrayType, expressions.length), elements);
+        return newArrayExpression;
+    }
+
+    /**
+     * A lambda capturing nothing is created once, the others each time with the captured values
+     * bound to their handle.
+     */
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        Method sam = NestedLambdas.functionalMethod(lambdaExpression);
+        List<ParameterExpression> captures = NestedLambdas.captures(lambdaExpression);
+
+        List<ParameterExpression> parameters = new ArrayList<>(captures);
+        parameters.addAll(lambdaExpression.getParameters());
+        LambdaExpression lambda = Expression.lambda(lambdaExpression.getType(), lambdaExpression.getBody(), parameters.toArray(new ParameterExpression[0]));
+
+        MethodHandle body = new MethodHandleGenerator(classLoader).generateLambda(lambda);
+        MethodType type = MethodType.methodType(sam.getReturnType(), sam.getParameterTypes()).insertParameterTypes(0, body.type().parameterList().subList(0, captures.size()));
+        body = cast(body, type);
+
+        if (captures.isEmpty()) {
+            Object instance = MethodHandleProxies.asInterfaceInstance(lambdaExpression.getType(), body);
+            handle = constant(lambdaExpression.getType(), instance);
+            return lambdaExpression;
+        }
+
+        MethodHandle[] values = new MethodHandle[captures.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = generate(captures.get(i));
+
+        MethodHandle proxy = MethodHandles.insertArguments(PROXY, 0, lambdaExpression.getType(), body).asCollector(Object[].class, values.length);
+        handle = combine(MethodHandles.explicitCastArguments(proxy, proxy.type().changeReturnType(lambdaExpression.getType())), values);
+        return lambdaExpression;
+    }
+
+    private MethodHandle assign(Expression left, MethodHandle value) {
+        try {
+            switch (left.getNodeType()) {
+                case Parameter: {
+                    ParameterExpression parameter = (ParameterExpression) left;
+                    MethodHandle set = MethodHandles.insertArguments(SET, 1, slot(parameter));
+                    return combine(set, FRAME, convert(convert(value, parameter.getType()), Object.class));
+                }
+                case MemberAccess: {
+                    MemberExpression member = (MemberExpression) left;
+                    Field field = field(member);
+                    MethodHandle setter = LOOKUP.unreflectSetter(field);
+
+                    if (Modifier.isStatic(field.getModifiers()))
+                        return combine(setter, value);
+                    return combine(setter, generate(member.getExpression()), value);
+                }
+                case ArrayIndex: {
+                    IndexExpression index = (IndexExpression) left;
+                    MethodHandle set = MethodHandles.arrayElementSetter(index.getArray().getType());
+                    return combine(set, generate(index.getArray()), generate(index.getIndex()), value);
+                }
+                default:
+                    throw new IllegalStateException("Cannot assign to " + left.getNodeType());
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int slot(ParameterExpression parameter) {
+        slots.put(parameter.getIndex(), parameter.getType());
+        return parameter.getIndex();
+    }
+
+    private Field field(MemberExpression memberExpression) {
+        return Members.field(Members.load(classLoader, memberExpression.getOwner()), memberExpression.getMember());
+    }
+
+    /**
+     * {@code target} with each of its parameters computed by one of {@code arguments} from the frame.
+     */
+    private MethodHandle combine(MethodHandle target, MethodHandle... arguments) {
+        if (arguments.length == 0)
+            return MethodHandles.dropArguments(target, 0, inputs);
+
+        MethodHandle[] filters = new MethodHandle[arguments.length];
+        for (int i = 0; i < arguments.length; i++)
+            filters[i] = convert(arguments[i], target.type().parameterType(i));
+
+        //(inputs, inputs, ...) -> (inputs), each filter reading the same inputs, the filter
+        //collected last running first so the arguments are evaluated from left to right
+        MethodHandle filtered = target;
+        for (int i = filters.length - 1; i >= 0; i--)
+            filtered = MethodHandles.collectArguments(filtered, i, filters[i]);
+
+        int[] reorder = new int[arguments.length * inputs.length];
+        for (int i = 0; i < reorder.length; i++)
+            reorder[i] = i % inputs.length;
+
+        MethodType type = MethodType.methodType(target.type().returnType(), inputs);
+        return MethodHandles.permuteArguments(filtered, type, reorder);
+    }
+
+    /**
+     * {@code handle} returning {@code type} as a cast would, dropping its value for void and
+     * returning the default of {@code type} for a void handle.
+     */
+    private static MethodHandle convert(MethodHandle handle, Class<?> type) {
+        Class<?> returnType = handle.type().returnType();
+
+        if (returnType == type)
+            return handle;
+        if (returnType == Void.TYPE)
+            return MethodHandles.filterReturnValue(handle, MethodHandles.constant(type, defaultValue(type)));
+
+        return cast(handle, handle.type().changeReturnType(type));
+    }
+
+    /**
+     * {@code handle} adapted to {@code type} as casts would, like
+     * {@link MethodHandles#explicitCastArguments} except that unboxing null throws a
+     * {@link NullPointerException} instead of producing zero.
+     */
+    public static MethodHandle cast(MethodHandle handle, MethodType type) {
+        for (int i = 0; i < type.parameterCount(); i++) {
+            Class<?> from = type.parameterType(i);
+            Class<?> to = handle.type().parameterType(i);
+
+            if (!from.isPrimitive() && to.isPrimitive()) {
+                Class<?> primitive = TypeUtils.isWrapper(from) ? TypeUtils.unwrap(from) : to;
+                handle = MethodHandles.explicitCastArguments(handle, handle.type().changeParameterType(i, primitive));
+                handle = handle.asType(handle.type().changeParameterType(i, TypeUtils.wrap(primitive)));
+            } else if (isUncheckedCast(from, to)) {
+                handle = MethodHandles.filterArguments(handle, i, checkCast(from, to));
+            }
+        }
+
+        Class<?> from = handle.type().returnType();
+        Class<?> to = type.returnType();
+        if (!from.isPrimitive() && to.isPrimitive() && to != Void.TYPE) {
+            Class<?> primitive = TypeUtils.isWrapper(from) ? TypeUtils.unwrap(from) : to;
+            handle = handle.asType(handle.type().changeReturnType(TypeUtils.wrap(primitive)));
+            handle = handle.asType(handle.type().changeReturnType(primitive));
+        } else if (isUncheckedCast(from, to)) {
+            handle = MethodHandles.filterReturnValue(handle, checkCast(from, to));
+        }
+
+        return MethodHandles.explicitCastArguments(handle, type);
+    }
+
+    /**
+     * Whether adapting a reference of type {@code from} to {@code to} would not check it, which
+     * {@link MethodHandle#asType} does not for interfaces.
+     */
+    private static boolean isUncheckedCast(Class<?> from, Class<?> to) {
+        return !from.isPrimitive() && to.isInterface() && !to.isAssignableFrom(from);
+    }
+
+    private static MethodHandle checkCast(Class<?> from, Class<?> to) {
+        return CHECK_CAST.bindTo(to).asType(MethodType.methodType(to, from));
+    }
+
+    private MethodHandle constant(Class<?> type, Object value) {
+        MethodHandle constant = type == Void.TYPE
+                ? MethodHandles.constant(Object.class, null).asType(MethodType.methodType(Void.TYPE))
+                : MethodHandles.constant(type, value);
+
+        return MethodHandles.dropArguments(constant, 0, inputs);
+    }
+
+    private static MethodHandle operator(ExpressionType nodeType, Class<?> resultType, Class<?>... operandTypes) {
+        String name = Character.toLowerCase(nodeType.name().charAt(0)) + nodeType.name().substring(1);
+
+        try {
+            return LOOKUP.findStatic(Operators.class, name, MethodType.methodType(resultType, operandTypes));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("Cannot compile " + nodeType + " on " + operandTypes[0].getName());
+        }
+    }
+
+    private static boolean needsFrame(Expression body) {
+        if (!SideEffects.of(body).writesNoParameter())
+            return true;
+
+        final boolean[] loops = new boolean[1];
+        new ExpressionVisitor() {
+            @Override
+            public Expression visitLoop(LoopExpression loopExpression) {
+                loops[0] = true;
+                return loopExpression;
+            }
+
+            @Override
+            public Expression visitLambda(LambdaExpression lambdaExpression) {
+                return lambdaExpression;
+            }
+        }.visit(body);
+
+        return loops[0];
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        return type.isPrimitive() && type != Void.TYPE ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+
+    private static MethodHandle helper(String name, Class<?> returnType, Class<?>... types) {
+        try {
+            return LOOKUP.findStatic(MethodHandleGenerator.class, name, MethodType.methodType(returnType, types));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object checkCast(Class<?> type, Object value) {
+        return type.cast(value);
+    }
+
+    private static Object[] allocate(Object[] template, int[] indexes, Object[] arguments) {
+        Object[] frame = template.clone();
+        for (int i = 0; i < indexes.length; i++)
+            frame[indexes[i]] = arguments[i];
+        return frame;
+    }
+
+    private static Object proxy(Class<?> functionalInterface, MethodHandle body, Object[] captured) {
+        return MethodHandleProxies.asInterfaceInstance(functionalInterface, MethodHandles.insertArguments(body, 0, captured));
+    }
+
+    private static int length(Object array) {
+        return Array.getLength(array);
+    }
+
+    private static boolean isNull(Object value) {
+        return value == null;
+    }
+
+    private static boolean contains(int[] keys, int value) {
+        for (int key : keys) {
+            if (key == value)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static boolean contains(Object[] keys, Object value) {
+        for (Object key : keys) {
+            if (value.equals(key))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static Object loop(MethodHandle body, LabelTarget breakLabel, LabelTarget continueLabel, Object[] frame) throws Throwable {
+        while (true) {
+            try {
+                body.invokeExact(frame);
+            } catch (Jump jump) {
+                if (jump.target == breakLabel)
+                    return jump.value;
+                if (jump.target != continueLabel)
+                    throw jump;
+            }
+        }
+    }
+
+    private static Object jump(LabelTarget target, Object value) {
+        throw new Jump(target, value);
+    }
+
+    private static Object land(LabelTarget target, Jump jump) {
+        if (jump.target != target)
+            throw jump;
+
+        return jump.value;
+    }
+
+    private static final class Jump extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final LabelTarget target;
+        final Object value;
+
+        Jump(LabelTarget target, Object value) {
+            super(null, null, false, false);
+            this.target = target;
+            this.value = value;
+        }
+    }
+}
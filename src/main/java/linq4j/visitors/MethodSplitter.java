@@ -0,0 +1,636 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps generated methods small by outlining parts of their tree into private methods of the same
+ * class: HotSpot never compiles methods over {@link #HUGE_METHOD_LIMIT} bytes and only inlines hot
+ * methods up to {@link #FREQ_INLINE_SIZE} bytes.
+ *
+ * Sizes are measured by generating the tree with {@link ByteCodeGenerator}. The largest parts are
+ * outlined first until the method fits its budget. A part is a subtree or a run of statements of a
+ * block that jumps to no label outside it and is jumped into from nowhere else. A subtree may not
+ * write variables declared outside it, a run of statements may write one that is assigned before
+ * it, which is passed in and returned. The variables a part reads become arguments of the outlined
+ * method, which is static unless the part uses {@code this}.
+ */
+public final class MethodSplitter {
+    public static final int HUGE_METHOD_LIMIT = 8000;
+    public static final int FREQ_INLINE_SIZE = 325;
+
+    private static final int MIN_OUTLINED_SIZE = 32;
+    private static final int MAX_ARGUMENT_SLOTS = 64;
+
+    private final String owner;
+    private final String prefix;
+    private final List<Outlined> methods = new ArrayList<>();
+
+    /**
+     * Outlines into methods of {@code owner}, an internal name, named {@code prefix} and a number.
+     */
+    public MethodSplitter(String owner, String prefix) {
+        this.owner = owner;
+        this.prefix = prefix;
+    }
+
+    /**
+     * The budget of an entry method: small enough to be inlined into its caller, unless it loops,
+     * since a loop is compiled on its own once hot and outlining its body only adds calls.
+     */
+    public static int entryBudget(Expression body) {
+        final boolean[] loops = {false};
+
+        new ExpressionVisitor() {
+            @Override
+            public Expression visitLoop(LoopExpression loopExpression) {
+                loops[0] = true;
+                return loopExpression;
+            }
+
+            @Override
+            public Expression visitLambda(LambdaExpression lambdaExpression) {
+                return lambdaExpression;
+            }
+        }.visit(body);
+
+        return loops[0] ? HUGE_METHOD_LIMIT : FREQ_INLINE_SIZE;
+    }
+
+    /**
+     * Outlines parts of {@code body} until its code takes at most {@code budget} bytes, or no part
+     * is left to outline. A chain whose links are each too small to outline, such as a deep
+     * conditional, is split from its far end up: each round outlines the parts that fit, which
+     * leaves the parts above them small enough for the next round.
+     */
+    public Expression split(Expression body, int budget) {
+        while (true) {
+            Map<Expression, Integer> sizes = measure(body);
+            if (sizes.get(body) <= budget)
+                return body;
+
+            Expression split = split(body, sizes, budget);
+            if (split == body)
+                return body;
+            body = split;
+        }
+    }
+
+    private Expression split(Expression body, Map<Expression, Integer> sizes, int budget) {
+        int size = sizes.get(body);
+
+        Tree tree = new Tree();
+        tree.visit(body);
+
+        List<Candidate> candidates = new ArrayList<>();
+        new Collector(body, tree, sizes, candidates).visit(body);
+
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate left, Candidate right) {
+                return Integer.compare(right.size, left.size);
+            }
+        });
+
+        Replacer replacer = new Replacer();
+        for (Candidate candidate : candidates) {
+            if (size <= budget)
+                break;
+            if (candidate.block == null && replacer.calls.containsKey(candidate.expression))
+                continue;
+
+            Expression call = outline(candidate);
+            if (candidate.block == null) {
+                replacer.calls.put(candidate.expression, call);
+            } else {
+                List<Candidate> runs = replacer.runs.get(candidate.block);
+                if (runs == null)
+                    replacer.runs.put(candidate.block, runs = new ArrayList<>());
+                runs.add(candidate.withCall(call));
+            }
+
+            size -= candidate.size - (4 + 2 * candidate.usage.free(candidate.result).size());
+        }
+
+        return replacer.visit(body);
+    }
+
+    /**
+     * Adds the outlined methods to {@code cw}, writing their frames and maxs through a
+     * {@link FrameTracker} if {@code trackFrames}.
+     */
+    public void generate(ClassWriter cw, boolean trackFrames) {
+        for (Outlined outlined : methods) {
+            int access = outlined.usesThis ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC;
+            MethodVisitor method = cw.visitMethod(access, outlined.name, outlined.descriptor(), null, null);
+            if (trackFrames)
+                method = new FrameTracker(method, access, owner, outlined.name, outlined.descriptor());
+            method.visitCode();
+
+            ByteCodeGenerator byteCodeGenerator = new ByteCodeGenerator(cw, method, owner);
+            byteCodeGenerator.visit(SlotAllocator.allocate(outlined.body, outlined.parameters));
+            byteCodeGenerator.emitReturn(outlined.body.getType());
+
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+    }
+
+    private Map<Expression, Integer> measure(Expression body) {
+        final CodeSize codeSize = new CodeSize();
+        final Map<Expression, Integer> sizes = new IdentityHashMap<>();
+
+        new ByteCodeGenerator(null, codeSize, owner) {
+            @Override
+            public Expression visit(Expression expression) {
+                int start = codeSize.getSize();
+                Expression result = super.visit(expression);
+                int size = codeSize.getSize() - start;
+
+                Integer previous = sizes.get(expression);
+                if (previous == null || previous < size)
+                    sizes.put(expression, size);
+
+                return result;
+            }
+        }.visit(body);
+
+        return sizes;
+    }
+
+    private Expression outline(Candidate candidate) {
+        Usage usage = candidate.usage;
+        List<ParameterExpression> parameters = new ArrayList<>();
+        List<Expression> arguments = new ArrayList<>();
+        Map<Integer, Expression> replacements = new HashMap<>();
+
+        int slot = usage.usesThis ? 1 : 0;
+        for (ParameterExpression read : usage.free(candidate.result)) {
+            ParameterExpression parameter = Expression.parameter(slot, read.getName(), read.getType());
+            parameters.add(parameter);
+            arguments.add(read);
+            replacements.put(read.getIndex(), parameter);
+            slot += ByteCodeGenerator.typeOf(read.getType()).getSize();
+        }
+
+        Expression body = candidate.expression;
+        if (candidate.block != null) {
+            List<Expression> statements = new ArrayList<>(candidate.block.getExpressions().subList(candidate.from, candidate.to));
+            Class<?> type = Void.TYPE;
+
+            if (candidate.result != null) {
+                statements.add(candidate.result);
+                type = candidate.result.getType();
+            } else {
+                statements.add(Expression.empty());
+            }
+
+            body = Expression.block(type, statements.toArray(new Expression[0]));
+        }
+
+        body = ParameterRebinder.rebind(body, replacements, slot);
+
+        Outlined outlined = new Outlined(prefix + methods.size(), usage.usesThis, parameters, body);
+        methods.add(outlined);
+
+        Class<?>[] types = new Class<?>[parameters.size()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = parameters.get(i).getType();
+
+        MethodInfo method = new MethodInfo(owner, outlined.name, body.getType(), types);
+        Expression[] values = arguments.toArray(new Expression[0]);
+        Expression call = usage.usesThis ? Expression.call(Expression._this(), method, values) : Expression.call(method, values);
+        return candidate.result != null ? Expression.assign(candidate.result, call) : call;
+    }
+
+    /**
+     * A subtree, or the statements {@code from} to {@code to} of {@code block} assigning
+     * {@code result}, if not null, to be outlined.
+     */
+    private static final class Candidate {
+        final Expression expression;
+        final BlockExpression block;
+        final int from;
+        final int to;
+        final ParameterExpression result;
+        final int size;
+        final Usage usage;
+        final Expression call;
+
+        Candidate(Expression expression, BlockExpression block, int from, int to, ParameterExpression result, int size, Usage usage, Expression call) {
+            this.expression = expression;
+            this.block = block;
+            this.from = from;
+            this.to = to;
+            this.result = result;
+            this.size = size;
+            this.usage = usage;
+            this.call = call;
+        }
+
+        static Candidate subtree(Expression expression, int size, Usage usage) {
+            return new Candidate(expression, null, 0, 0, null, size, usage, null);
+        }
+
+        static Candidate run(BlockExpression block, int from, int to, ParameterExpression result, int size, Usage usage) {
+            return new Candidate(null, block, from, to, result, size, usage, null);
+        }
+
+        Candidate withCall(Expression call) {
+            return new Candidate(expression, block, from, to, result, size, usage, call);
+        }
+    }
+
+    private static final class Outlined {
+        final String name;
+        final boolean usesThis;
+        final List<ParameterExpression> parameters;
+        final Expression body;
+
+        Outlined(String name, boolean usesThis, List<ParameterExpression> parameters, Expression body) {
+            this.name = name;
+            this.usesThis = usesThis;
+            this.parameters = parameters;
+            this.body = body;
+        }
+
+        String descriptor() {
+            Type[] types = new Type[parameters.size()];
+            for (int i = 0; i < types.length; i++)
+                types[i] = ByteCodeGenerator.typeOf(parameters.get(i).getType());
+
+            return Type.getMethodDescriptor(ByteCodeGenerator.typeOf(body.getType()), types);
+        }
+    }
+
+    /**
+     * What the whole tree declares, assigns and jumps to.
+     */
+    private static final class Tree extends ExpressionVisitor {
+        private final Set<Integer> declared = new HashSet<>();
+        private final Map<LabelTarget, Integer> jumps = new HashMap<>();
+        private final Set<Expression> targets = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+        @Override
+        public Expression visitBinary(BinaryExpression binaryExpression) {
+            //a node may be read and assigned, and an assigned one cannot become a call
+            if (binaryExpression.getNodeType() == ExpressionType.Assign)
+                targets.add(binaryExpression.getLeft());
+
+            return super.visitBinary(binaryExpression);
+        }
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            for (ParameterExpression variable : blockExpression.getVariables())
+                declared.add(variable.getIndex());
+
+            return super.visitBlock(blockExpression);
+        }
+
+        @Override
+        public Expression visitGoto(GotoExpression gotoExpression) {
+            Integer count = jumps.get(gotoExpression.getTarget());
+            jumps.put(gotoExpression.getTarget(), count == null ? 1 : count + 1);
+            return super.visitGoto(gotoExpression);
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            return lambdaExpression;
+        }
+    }
+
+    /**
+     * Finds the largest parts that can be outlined into methods the JIT compiles, not descending
+     * into the ones it takes.
+     */
+    private static final class Collector extends ExpressionVisitor {
+        private static final ParameterExpression INVALID = Expression.parameter(-1, "invalid", Void.TYPE);
+
+        private final Expression root;
+        private final Tree tree;
+        private final Map<Expression, Integer> sizes;
+        private final List<Candidate> candidates;
+
+        Collector(Expression root, Tree tree, Map<Expression, Integer> sizes, List<Candidate> candidates) {
+            this.root = root;
+            this.tree = tree;
+            this.sizes = sizes;
+            this.candidates = candidates;
+        }
+
+        @Override
+        public Expression visit(Expression expression) {
+            Integer size = sizes.get(expression);
+
+            if (expression != root && size != null && size >= MIN_OUTLINED_SIZE && size <= HUGE_METHOD_LIMIT && !tree.targets.contains(expression)) {
+                Usage usage = Usage.of(expression);
+
+                if (usage.isSelfContained(tree) && usage.outerWrites().isEmpty()) {
+                    candidates.add(Candidate.subtree(expression, size, usage));
+                    return expression;
+                }
+            }
+
+            return super.visit(expression);
+        }
+
+        /**
+         * Takes runs of statements as long as they fit a method, visits the other statements.
+         */
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            List<Expression> statements = blockExpression.getExpressions();
+            Set<Integer> assigned = new HashSet<>();
+
+            int from = 0;
+            while (from < statements.size()) {
+                int to = from;
+                int size = 0;
+                Usage usage = new Usage();
+                ParameterExpression result = null;
+
+                while (to < statements.size()) {
+                    Integer statementSize = sizes.get(statements.get(to));
+                    if (statementSize == null || size + statementSize > HUGE_METHOD_LIMIT)
+                        break;
+
+                    Usage merged = usage.merge(Usage.of(statements.get(to)));
+                    ParameterExpression write = runResult(merged, assigned);
+                    if (write == INVALID || !merged.isSelfContained(tree) || merged.argumentSlots(write) > MAX_ARGUMENT_SLOTS)
+                        break;
+
+                    usage = merged;
+                    result = write;
+                    size += statementSize;
+                    to++;
+                }
+
+                if (size >= MIN_OUTLINED_SIZE) {
+                    candidates.add(Candidate.run(blockExpression, from, to, result, size, usage));
+                } else {
+                    to = Math.max(to, from + 1);
+                    for (int i = from; i < to; i++)
+                        visit(statements.get(i));
+                }
+
+                for (int i = from; i < to; i++) {
+                    Expression statement = statements.get(i);
+                    if (statement.getNodeType() == ExpressionType.Assign && ((BinaryExpression) statement).getLeft().getNodeType() == ExpressionType.Parameter)
+                        assigned.add(((ParameterExpression) ((BinaryExpression) statement).getLeft()).getIndex());
+                }
+
+                from = to;
+            }
+
+            visit(blockExpression.getResult());
+            return blockExpression;
+        }
+
+        /**
+         * The variable a run writes and returns, null when it writes none, {@link #INVALID} when it
+         * writes more or one that may not be assigned before the run.
+         */
+        private ParameterExpression runResult(Usage usage, Set<Integer> assigned) {
+            List<ParameterExpression> writes = usage.outerWrites();
+
+            if (writes.isEmpty())
+                return null;
+            if (writes.size() > 1)
+                return INVALID;
+
+            //variables declared nowhere are parameters of the method
+            ParameterExpression write = writes.get(0);
+            boolean isAssigned = assigned.contains(write.getIndex()) || !tree.declared.contains(write.getIndex());
+            return isAssigned && write.getType() != null ? write : INVALID;
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            return lambdaExpression;
+        }
+    }
+
+    /**
+     * The variables a part reads and writes, whether it uses {@code this} and the labels it defines
+     * and jumps to.
+     */
+    private static final class Usage extends ExpressionVisitor {
+        private final Map<Integer, ParameterExpression> reads = new LinkedHashMap<>();
+        private final Map<Integer, ParameterExpression> writes = new LinkedHashMap<>();
+        private final Set<Integer> declared = new HashSet<>();
+        private final Set<LabelTarget> labels = new HashSet<>();
+        private final Map<LabelTarget, Integer> jumps = new HashMap<>();
+        private boolean usesThis;
+        private boolean outlinable = true;
+
+        static Usage of(Expression expression) {
+            Usage usage = new Usage();
+            usage.visit(expression);
+            return usage;
+        }
+
+        Usage merge(Usage other) {
+            Usage merged = new Usage();
+            for (Usage usage : new Usage[]{this, other}) {
+                for (Map.Entry<Integer, ParameterExpression> read : usage.reads.entrySet()) {
+                    if (!merged.reads.containsKey(read.getKey()))
+                        merged.reads.put(read.getKey(), read.getValue());
+                }
+                for (Map.Entry<Integer, ParameterExpression> write : usage.writes.entrySet()) {
+                    if (!merged.writes.containsKey(write.getKey()))
+                        merged.writes.put(write.getKey(), write.getValue());
+                }
+                for (Map.Entry<LabelTarget, Integer> jump : usage.jumps.entrySet()) {
+                    Integer count = merged.jumps.get(jump.getKey());
+                    merged.jumps.put(jump.getKey(), count == null ? jump.getValue() : count + jump.getValue());
+                }
+
+                merged.declared.addAll(usage.declared);
+                merged.labels.addAll(usage.labels);
+                merged.usesThis |= usage.usesThis;
+                merged.outlinable &= usage.outlinable;
+            }
+
+            return merged;
+        }
+
+        /**
+         * True when the part only jumps to its own labels, and only from inside.
+         */
+        boolean isSelfContained(Tree tree) {
+            if (!outlinable || !labels.containsAll(jumps.keySet()))
+                return false;
+
+            for (LabelTarget label : labels) {
+                Integer inside = jumps.get(label);
+                Integer all = tree.jumps.get(label);
+                if (all != null && !all.equals(inside))
+                    return false;
+            }
+
+            return argumentSlots(null) <= MAX_ARGUMENT_SLOTS;
+        }
+
+        List<ParameterExpression> outerWrites() {
+            List<ParameterExpression> outer = new ArrayList<>();
+            for (ParameterExpression write : writes.values()) {
+                if (!declared.contains(write.getIndex()))
+                    outer.add(write);
+            }
+
+            return outer;
+        }
+
+        /**
+         * The variables declared outside the part it reads, and {@code result} if not null.
+         */
+        List<ParameterExpression> free(ParameterExpression result) {
+            List<ParameterExpression> free = new ArrayList<>();
+            for (ParameterExpression read : reads.values()) {
+                if (!declared.contains(read.getIndex()))
+                    free.add(read);
+            }
+
+            if (result != null && !reads.containsKey(result.getIndex()))
+                free.add(result);
+
+            return free;
+        }
+
+        int argumentSlots(ParameterExpression result) {
+            int slots = 0;
+            for (ParameterExpression read : free(result))
+                slots += ByteCodeGenerator.typeOf(read.getType()).getSize();
+
+            return slots;
+        }
+
+        @Override
+        public Expression visitParameter(ParameterExpression parameterExpression) {
+            //this is the only parameter without a type
+            if (parameterExpression.getType() == null)
+                usesThis = true;
+            else if (!reads.containsKey(parameterExpression.getIndex()))
+                reads.put(parameterExpression.getIndex(), parameterExpression);
+
+            return parameterExpression;
+        }
+
+        @Override
+        public Expression visitBinary(BinaryExpression binaryExpression) {
+            if (binaryExpression.getNodeType() != ExpressionType.Assign)
+                return super.visitBinary(binaryExpression);
+
+            Expression left = binaryExpression.getLeft();
+            if (left.getNodeType() == ExpressionType.Parameter) {
+                ParameterExpression variable = (ParameterExpression) left;
+                if (!writes.containsKey(variable.getIndex()))
+                    writes.put(variable.getIndex(), variable);
+
+                visit(binaryExpression.getRight());
+                return binaryExpression;
+            }
+
+            return super.visitBinary(binaryExpression);
+        }
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            for (ParameterExpression variable : blockExpression.getVariables())
+                declared.add(variable.getIndex());
+
+            return super.visitBlock(blockExpression);
+        }
+
+        @Override
+        public Expression visitLoop(LoopExpression loopExpression) {
+            if (loopExpression.getBreakLabel() != null)
+                labels.add(loopExpression.getBreakLabel());
+            if (loopExpression.getContinueLabel() != null)
+                labels.add(loopExpression.getContinueLabel());
+
+            return super.visitLoop(loopExpression);
+        }
+
+        @Override
+        public Expression visitLabel(LabelExpression labelExpression) {
+            labels.add(labelExpression.getTarget());
+            return super.visitLabel(labelExpression);
+        }
+
+        @Override
+        public Expression visitGoto(GotoExpression gotoExpression) {
+            Integer count = jumps.get(gotoExpression.getTarget());
+            jumps.put(gotoExpression.getTarget(), count == null ? 1 : count + 1);
+            return super.visitGoto(gotoExpression);
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            outlinable = false;
+            return lambdaExpression;
+        }
+    }
+
+    /**
+     * Replaces the outlined subtrees and runs of statements with calls.
+     */
+    private static final class Replacer extends ExpressionVisitor {
+        private final Map<Expression, Expression> calls = new IdentityHashMap<>();
+        private final Map<BlockExpression, List<Candidate>> runs = new IdentityHashMap<>();
+
+        @Override
+        public Expression visit(Expression expression) {
+            Expression call = calls.get(expression);
+            return call != null ? call : super.visit(expression);
+        }
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            List<Candidate> outlined = runs.get(blockExpression);
+            if (outlined == null)
+                return super.visitBlock(blockExpression);
+
+            Map<Integer, Candidate> starts = new HashMap<>();
+            for (Candidate run : outlined)
+                starts.put(run.from, run);
+
+            List<Expression> statements = blockExpression.getExpressions();
+            List<Expression> expressions = new ArrayList<>();
+            for (int i = 0; i < statements.size(); i++) {
+                Candidate run = starts.get(i);
+
+                if (run != null) {
+                    expressions.add(run.call);
+                    i = run.to - 1;
+                } else {
+                    expressions.add(visit(statements.get(i)));
+                }
+            }
+            expressions.add(visit(blockExpression.getResult()));
+
+            return Expression.block(blockExpression.getType(), blockExpression.getVariables(), expressions.toArray(new Expression[0]));
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            return lambdaExpression;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package linq4j.visitors;
+
+import linq4j.compiler.FunctionalInterfaces;
+import linq4j.expressions.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The variables a lambda nested in a tree captures: the parameters and variables it reads that
+ * are neither its own parameters nor declared by its blocks, {@code this} included. They are
+ * captured by value when the lambda is created, so a lambda may not assign them, which
+ * {@link #checkAssignments} rejects as it is built.
+ */
+public final class NestedLambdas extends ExpressionVisitor {
+    private final Function<ParameterExpression, Expression> rebind;
+    private final Map<Integer, Integer> bound = new HashMap<>();
+    private final Map<Integer, ParameterExpression> captures = new LinkedHashMap<>();
+
+    private NestedLambdas(Function<ParameterExpression, Expression> rebind) {
+        this.rebind = rebind;
+    }
+
+    /**
+     * The method of the functional interface {@code lambda} implements.
+     */
+    static Method functionalMethod(LambdaExpression lambda) {
+        if (lambda.getType() == null)
+            throw new IllegalArgumentException("Nested lambdas need a functional interface");
+
+        Method sam = FunctionalInterfaces.findMethod(lambda.getType());
+        if (sam.getParameterTypes().length != lambda.getParameters().size())
+            throw new IllegalArgumentException("Lambda has " + lambda.getParameters().size() + " parameters but " + sam + " takes " + sam.getParameterTypes().length);
+
+        return sam;
+    }
+
+    /**
+     * Rejects a lambda that assigns a variable it does not declare, which it would capture. The
+     * lambdas nested in it were checked when they were built, so they are not entered, and the
+     * tree is walked without recursion as it may be deeper than the stack allows.
+     */
+    public static void checkAssignments(LambdaExpression lambda) {
+        Set<Integer> declared = new HashSet<>();
+        for (ParameterExpression parameter : lambda.getParameters())
+            declared.add(parameter.getIndex());
+
+        List<ParameterExpression> assigned = new ArrayList<>();
+        Children children = new Children();
+        Deque<Expression> pending = new ArrayDeque<>();
+        pending.push(lambda.getBody());
+
+        while (!pending.isEmpty()) {
+            Expression next = pending.pop();
+
+            if (next.getNodeType() == ExpressionType.Lambda)
+                continue;
+            if (next.getNodeType() == ExpressionType.Block) {
+                for (ParameterExpression variable : ((BlockExpression) next).getVariables())
+                    declared.add(variable.getIndex());
+            }
+            if (next.getNodeType() == ExpressionType.Assign && ((BinaryExpression) next).getLeft().getNodeType() == ExpressionType.Parameter)
+                assigned.add((ParameterExpression) ((BinaryExpression) next).getLeft());
+
+            for (Expression child : children.of(next))
+                pending.push(child);
+        }
+
+        for (ParameterExpression variable : assigned) {
+            if (!declared.contains(variable.getIndex()))
+                throw new IllegalArgumentException("Lambdas cannot assign captured variable " + variable.getName());
+        }
+    }
+
+    /**
+     * The variables {@code lambda} captures, in the order it first reads them.
+     */
+    static List<ParameterExpression> captures(LambdaExpression lambda) {
+        NestedLambdas nested = new NestedLambdas(parameter -> parameter);
+        nested.visitLambda(lambda);
+        return new ArrayList<>(nested.captures.values());
+    }
+
+    /**
+     * {@code lambda} reading {@code rebind} of each variable it captures instead.
+     */
+    static LambdaExpression rebind(LambdaExpression lambda, Function<ParameterExpression, Expression> rebind) {
+        return (LambdaExpression) new NestedLambdas(rebind).visitLambda(lambda);
+    }
+
+    private void bind(List<ParameterExpression> variables, int count) {
+        for (ParameterExpression variable : variables)
+            bound.merge(variable.getIndex(), count, (bindings, change) -> bindings + change > 0 ? bindings + change : null);
+    }
+
+    @Override
+    public Expression visitParameter(ParameterExpression parameterExpression) {
+        if (bound.containsKey(parameterExpression.getIndex()))
+            return parameterExpression;
+
+        captures.putIfAbsent(parameterExpression.getIndex(), parameterExpression);
+        return rebind.apply(parameterExpression);
+    }
+
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        bind(blockExpression.getVariables(), 1);
+        Expression visited = super.visitBlock(blockExpression);
+        bind(blockExpression.getVariables(), -1);
+
+        return visited;
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        bind(lambdaExpression.getParameters(), 1);
+        Expression visited = super.visitLambda(lambdaExpression);
+        bind(lambdaExpression.getParameters(), -1);
+
+        return visited;
+    }
+}
@@ -0,0 +1,109 @@
+package linq4j.visitors;
+
+/**
+ * The operators of expression trees as static methods, found by {@link MethodHandleGenerator} from
+ * the name of the node type and the types of the operands.
+ */
+final class Operators {
+    private Operators() {
+    }
+
+    static int add(int a, int b) { return a + b; }
+    static int subtract(int a, int b) { return a - b; }
+    static int multiply(int a, int b) { return a * b; }
+    static int divide(int a, int b) { return a / b; }
+    static int modulo(int a, int b) { return a % b; }
+    static int and(int a, int b) { return a & b; }
+    static int or(int a, int b) { return a | b; }
+    static int exclusiveOr(int a, int b) { return a ^ b; }
+    static int addChecked(int a, int b) { return Math.addExact(a, b); }
+    static int subtractChecked(int a, int b) { return Math.subtractExact(a, b); }
+    static int multiplyChecked(int a, int b) { return Math.multiplyExact(a, b); }
+    static int leftShift(int a, int b) { return a << b; }
+    static int rightShift(int a, int b) { return a >> b; }
+
+    static long add(long a, long b) { return a + b; }
+    static long subtract(long a, long b) { return a - b; }
+    static long multiply(long a, long b) { return a * b; }
+    static long divide(long a, long b) { return a / b; }
+    static long modulo(long a, long b) { return a % b; }
+    static long and(long a, long b) { return a & b; }
+    static long or(long a, long b) { return a | b; }
+    static long exclusiveOr(long a, long b) { return a ^ b; }
+    static long addChecked(long a, long b) { return Math.addExact(a, b); }
+    static long subtractChecked(long a, long b) { return Math.subtractExact(a, b); }
+    static long multiplyChecked(long a, long b) { return Math.multiplyExact(a, b); }
+    static long leftShift(long a, int b) { return a << b; }
+    static long rightShift(long a, int b) { return a >> b; }
+
+    static float add(float a, float b) { return a + b; }
+    static float addChecked(float a, float b) { return a + b; }
+    static float subtract(float a, float b) { return a - b; }
+    static float subtractChecked(float a, float b) { return a - b; }
+    static float multiply(float a, float b) { return a * b; }
+    static float multiplyChecked(float a, float b) { return a * b; }
+    static float divide(float a, float b) { return a / b; }
+    static float modulo(float a, float b) { return a % b; }
+
+    static double add(double a, double b) { return a + b; }
+    static double addChecked(double a, double b) { return a + b; }
+    static double subtract(double a, double b) { return a - b; }
+    static double subtractChecked(double a, double b) { return a - b; }
+    static double multiply(double a, double b) { return a * b; }
+    static double multiplyChecked(double a, double b) { return a * b; }
+    static double divide(double a, double b) { return a / b; }
+    static double modulo(double a, double b) { return a % b; }
+
+    static double power(double a, double b) { return Math.pow(a, b); }
+
+    static boolean and(boolean a, boolean b) { return a & b; }
+    static boolean or(boolean a, boolean b) { return a | b; }
+    static boolean exclusiveOr(boolean a, boolean b) { return a ^ b; }
+    static boolean equal(boolean a, boolean b) { return a == b; }
+    static boolean notEqual(boolean a, boolean b) { return a != b; }
+
+    static boolean equal(int a, int b) { return a == b; }
+    static boolean notEqual(int a, int b) { return a != b; }
+    static boolean lessThan(int a, int b) { return a < b; }
+    static boolean lessThanOrEqual(int a, int b) { return a <= b; }
+    static boolean greaterThan(int a, int b) { return a > b; }
+    static boolean greaterThanOrEqual(int a, int b) { return a >= b; }
+
+    static boolean equal(long a, long b) { return a == b; }
+    static boolean notEqual(long a, long b) { return a != b; }
+    static boolean lessThan(long a, long b) { return a < b; }
+    static boolean lessThanOrEqual(long a, long b) { return a <= b; }
+    static boolean greaterThan(long a, long b) { return a > b; }
+    static boolean greaterThanOrEqual(long a, long b) { return a >= b; }
+
+    static boolean equal(float a, float b) { return a == b; }
+    static boolean notEqual(float a, float b) { return a != b; }
+    static boolean lessThan(float a, float b) { return a < b; }
+    static boolean lessThanOrEqual(float a, float b) { return a <= b; }
+    static boolean greaterThan(float a, float b) { return a > b; }
+    static boolean greaterThanOrEqual(float a, float b) { return a >= b; }
+
+    static boolean equal(double a, double b) { return a == b; }
+    static boolean notEqual(double a, double b) { return a != b; }
+    static boolean lessThan(double a, double b) { return a < b; }
+    static boolean lessThanOrEqual(double a, double b) { return a <= b; }
+    static boolean greaterThan(double a, double b) { return a > b; }
+    static boolean greaterThanOrEqual(double a, double b) { return a >= b; }
+
+    static boolean equal(Object a, Object b) { return a == b; }
+    static boolean notEqual(Object a, Object b) { return a != b; }
+
+    static int negate(int a) { return -a; }
+    static long negate(long a) { return -a; }
+    static float negate(float a) { return -a; }
+    static double negate(double a) { return -a; }
+    static int negateChecked(int a) { return Math.negateExact(a); }
+    static long negateChecked(long a) { return Math.negateExact(a); }
+    static float negateChecked(float a) { return -a; }
+    static double negateChecked(double a) { return -a; }
+    static boolean not(boolean a) { return !a; }
+    static int not(int a) { return ~a; }
+    static int onesComplement(int a) { return ~a; }
+    static long not(long a) { return ~a; }
+    static long onesComplement(long a) { return ~a; }
+}
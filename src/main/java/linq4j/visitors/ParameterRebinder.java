@@ -0,0 +1,73 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the parameters of a tree, so a lambda body can be inlined into a larger generated method:
+ * parameters found in the replacements are replaced, every other parameter and block variable but
+ * {@code this} moves {@code offset} slots up, past the locals of the enclosing method. Nested
+ * lambdas only have the variables they capture rebound.
+ */
+public final class ParameterRebinder extends ExpressionVisitor {
+    private final Map<Integer, ? extends Expression> replacements;
+    private final int offset;
+    private final Map<Integer, ParameterExpression> moved = new HashMap<>();
+
+    private ParameterRebinder(Map<Integer, ? extends Expression> replacements, int offset) {
+        this.replacements = replacements;
+        this.offset = offset;
+    }
+
+    /**
+     * Replaces the parameters of {@code body} with the index of a key of {@code replacements} and
+     * moves the other ones {@code offset} slots up.
+     */
+    public static Expression rebind(Expression body, Map<Integer, ? extends Expression> replacements, int offset) {
+        return new ParameterRebinder(replacements, offset).visit(body);
+    }
+
+    @Override
+    public Expression visitParameter(ParameterExpression parameterExpression) {
+        int index = parameterExpression.getIndex();
+
+        if (replacements.containsKey(index))
+            return replacements.get(index);
+        if (index == 0 || offset == 0)
+            return parameterExpression;
+
+        ParameterExpression parameter = moved.get(index);
+        if (parameter == null) {
+            parameter = Expression.parameter(index + offset, parameterExpression.getName(), parameterExpression.getType());
+            moved.put(index, parameter);
+        }
+
+        return parameter;
+    }
+
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        BlockExpression visited = (BlockExpression) super.visitBlock(blockExpression);
+
+        if (blockExpression.getVariables().isEmpty() || offset == 0)
+            return visited;
+
+        List<ParameterExpression> variables = new ArrayList<>();
+        for (ParameterExpression variable : blockExpression.getVariables())
+            variables.add((ParameterExpression) visitParameter(variable));
+
+        Expression[] expressions = visited.getExpressions().toArray(new Expression[visited.getExpressions().size() + 1]);
+        expressions[expressions.length - 1] = visited.getResult();
+
+        return Expression.block(visited.getType(), variables, expressions);
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return NestedLambdas.rebind(lambdaExpression, this::visitParameter);
+    }
+}
@@ -0,0 +1,78 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What evaluating a tree may change: the parameters it assigns and whether it writes fields or
+ * array elements, calls to methods not marked pure counting as memory writes.
+ */
+final class SideEffects extends ExpressionVisitor {
+    private final Set<Integer> parameters = new HashSet<>();
+    private boolean writesMemory;
+
+    private SideEffects() {
+    }
+
+    static SideEffects of(Expression expression) {
+        SideEffects sideEffects = new SideEffects();
+        sideEffects.visit(expression);
+        return sideEffects;
+    }
+
+    boolean writes(int parameterIndex) {
+        return parameters.contains(parameterIndex);
+    }
+
+    boolean writesAny(Set<Integer> parameterIndexes) {
+        for (Integer index : parameterIndexes) {
+            if (parameters.contains(index))
+                return true;
+        }
+
+        return false;
+    }
+
+    boolean writesNoParameter() {
+        return parameters.isEmpty();
+    }
+
+    boolean writesMemory() {
+        return writesMemory;
+    }
+
+    @Override
+    public Expression visitBinary(BinaryExpression binaryExpression) {
+        if (binaryExpression.getNodeType() == ExpressionType.Assign) {
+            Expression left = binaryExpression.getLeft();
+
+            if (left.getNodeType() == ExpressionType.Parameter)
+                parameters.add(((ParameterExpression) left).getIndex());
+            else
+                writesMemory = true;
+        }
+
+        return super.visitBinary(binaryExpression);
+    }
+
+    @Override
+    public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+        if (!methodCallExpression.getMethodInfo().isPure())
+            writesMemory = true;
+
+        return super.visitMethodCall(methodCallExpression);
+    }
+
+    @Override
+    public Expression visitDynamic(DynamicExpression dynamicExpression) {
+        writesMemory = true;
+        return super.visitDynamic(dynamicExpression);
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return lambdaExpression;
+    }
+}
@@ -0,0 +1,227 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.util.*;
+
+/**
+ * Assigns the local variable slots of the variables a block declares, the index of a block
+ * variable only naming it within the block, and naming the same variable again in blocks nested in
+ * it, as for the interpreter. A variable takes the lowest free slots, two for {@code long} and
+ * {@code double}, from the first to the last statement of its block using it, so variables whose
+ * ranges do not overlap, in the same or in disjoint blocks, share slots. Trees jumping back to a
+ * label, where a variable could be read again once its slots are taken, do not share slots.
+ * <p>
+ * Parameters and variables no block declares keep their indexes, as do the block variables
+ * redeclaring them. Nested lambdas get slots of their own when generated, here only the variables
+ * they capture are read.
+ */
+public final class SlotAllocator extends ExpressionVisitor {
+    private final BitSet taken = new BitSet();
+    private final boolean reuse;
+    private final Map<Integer, ParameterExpression> scope = new HashMap<>();
+    private final Set<Integer> reserved = new HashSet<>();
+
+    private SlotAllocator(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * Allocates the block variables of the body of a method taking {@code parameters}, slot 0 being
+     * kept for {@code this} or the first parameter.
+     */
+    public static Expression allocate(Expression body, List<ParameterExpression> parameters) {
+        Scan scan = new Scan();
+        scan.visit(body);
+
+        SlotAllocator allocator = new SlotAllocator(!scan.backward);
+        allocator.take(0, 1);
+        for (ParameterExpression parameter : parameters)
+            allocator.reserve(parameter);
+        for (ParameterExpression free : scan.free)
+            allocator.reserve(free);
+
+        return allocator.visit(body);
+    }
+
+    private static int size(ParameterExpression variable) {
+        return ByteCodeGenerator.typeOf(variable.getType()).getSize();
+    }
+
+    private void reserve(ParameterExpression variable) {
+        take(variable.getIndex(), size(variable));
+        reserved.add(variable.getIndex());
+    }
+
+    private void take(int slot, int size) {
+        taken.set(slot, slot + size);
+    }
+
+    private int allocate(int size) {
+        int slot = taken.nextClearBit(0);
+        while (size == 2 && taken.get(slot + 1))
+            slot = taken.nextClearBit(slot + 1);
+
+        take(slot, size);
+        return slot;
+    }
+
+    @Override
+    public Expression visitParameter(ParameterExpression parameterExpression) {
+        ParameterExpression variable = scope.get(parameterExpression.getIndex());
+        return variable != null ? variable : parameterExpression;
+    }
+
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        List<ParameterExpression> variables = blockExpression.getVariables();
+        if (variables.isEmpty())
+            return super.visitBlock(blockExpression);
+
+        List<Expression> statements = new ArrayList<>(blockExpression.getExpressions());
+        statements.add(blockExpression.getResult());
+
+        Usage usage = Usage.of(variables, statements);
+        ParameterExpression[] allocated = new ParameterExpression[variables.size()];
+        boolean[] own = new boolean[variables.size()];
+        for (int v = 0; v < allocated.length; v++) {
+            ParameterExpression variable = variables.get(v);
+            allocated[v] = reserved.contains(variable.getIndex()) ? variable : scope.get(variable.getIndex());
+            own[v] = allocated[v] == null;
+        }
+
+        Expression[] expressions = new Expression[statements.size()];
+        for (int i = 0; i < expressions.length; i++) {
+            for (int v = 0; v < allocated.length; v++) {
+                if (own[v] && usage.first[v] == i)
+                    allocated[v] = bind(variables.get(v));
+            }
+
+            expressions[i] = visit(statements.get(i));
+
+            for (int v = 0; v < allocated.length; v++) {
+                if (own[v] && usage.last[v] == i && reuse)
+                    taken.clear(allocated[v].getIndex(), allocated[v].getIndex() + size(allocated[v]));
+            }
+        }
+
+        for (int v = 0; v < allocated.length; v++) {
+            if (allocated[v] == null) {
+                allocated[v] = bind(variables.get(v));
+                if (reuse)
+                    taken.clear(allocated[v].getIndex(), allocated[v].getIndex() + size(allocated[v]));
+            }
+        }
+
+        for (int v = 0; v < allocated.length; v++) {
+            if (own[v])
+                scope.remove(variables.get(v).getIndex());
+        }
+
+        return Expression.block(blockExpression.getType(), Arrays.asList(allocated), expressions);
+    }
+
+    private ParameterExpression bind(ParameterExpression variable) {
+        int slot = allocate(size(variable));
+        ParameterExpression allocated = Expression.parameter(slot, variable.getName(), variable.getType());
+        scope.put(variable.getIndex(), allocated);
+        return allocated;
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return NestedLambdas.rebind(lambdaExpression, this::visitParameter);
+    }
+
+    /**
+     * The variables no block declares and whether a goto jumps back to a label.
+     */
+    private static final class Scan extends ExpressionVisitor {
+        final List<ParameterExpression> free = new ArrayList<>();
+        final Map<Integer, Integer> declared = new HashMap<>();
+        final Set<LabelTarget> labels = new HashSet<>();
+        boolean backward;
+
+        @Override
+        public Expression visitParameter(ParameterExpression parameterExpression) {
+            if (!declared.containsKey(parameterExpression.getIndex()))
+                free.add(parameterExpression);
+            return parameterExpression;
+        }
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            for (ParameterExpression variable : blockExpression.getVariables())
+                declared.merge(variable.getIndex(), 1, Integer::sum);
+
+            super.visitBlock(blockExpression);
+
+            for (ParameterExpression variable : blockExpression.getVariables())
+                declared.computeIfPresent(variable.getIndex(), (index, count) -> count > 1 ? count - 1 : null);
+            return blockExpression;
+        }
+
+        @Override
+        public Expression visitLabel(LabelExpression labelExpression) {
+            labels.add(labelExpression.getTarget());
+            return super.visitLabel(labelExpression);
+        }
+
+        @Override
+        public Expression visitGoto(GotoExpression gotoExpression) {
+            backward |= labels.contains(gotoExpression.getTarget());
+            return super.visitGoto(gotoExpression);
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            for (ParameterExpression capture : NestedLambdas.captures(lambdaExpression))
+                visitParameter(capture);
+            return lambdaExpression;
+        }
+    }
+
+    /**
+     * The first and last statement using each variable of a block.
+     */
+    private static final class Usage extends ExpressionVisitor {
+        final Map<Integer, Integer> variables = new HashMap<>();
+        final int[] first;
+        final int[] last;
+        int statement;
+
+        private Usage(List<ParameterExpression> variables) {
+            for (int v = 0; v < variables.size(); v++)
+                this.variables.put(variables.get(v).getIndex(), v);
+
+            first = new int[variables.size()];
+            last = new int[variables.size()];
+            Arrays.fill(first, -1);
+        }
+
+        static Usage of(List<ParameterExpression> variables, List<Expression> statements) {
+            Usage usage = new Usage(variables);
+            for (usage.statement = 0; usage.statement < statements.size(); usage.statement++)
+                usage.visit(statements.get(usage.statement));
+            return usage;
+        }
+
+        @Override
+        public Expression visitParameter(ParameterExpression parameterExpression) {
+            Integer v = variables.get(parameterExpression.getIndex());
+            if (v != null) {
+                if (first[v] < 0)
+                    first[v] = statement;
+                last[v] = statement;
+            }
+            return parameterExpression;
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            for (ParameterExpression capture : NestedLambdas.captures(lambdaExpression))
+                visitParameter(capture);
+            return lambdaExpression;
+        }
+    }
+}
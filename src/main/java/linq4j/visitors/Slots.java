@@ -0,0 +1,49 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.util.List;
+
+/**
+ * Finds the first local variable slot not taken by a parameter or block variable of a tree, where
+ * passes can put their temporaries.
+ */
+public final class Slots extends ExpressionVisitor {
+    private int next = 1;
+
+    private Slots() {
+    }
+
+    public static int firstFree(List<ParameterExpression> parameters, Expression body) {
+        Slots slots = new Slots();
+
+        for (ParameterExpression parameter : parameters)
+            slots.reserve(parameter);
+        slots.visit(body);
+
+        return slots.next;
+    }
+
+    private void reserve(ParameterExpression parameter) {
+        next = Math.max(next, parameter.getIndex() + ByteCodeGenerator.typeOf(parameter.getType()).getSize());
+    }
+
+    @Override
+    public Expression visitParameter(ParameterExpression parameterExpression) {
+        reserve(parameterExpression);
+        return parameterExpression;
+    }
+
+    @Override
+    public Expression visitBlock(BlockExpression blockExpression) {
+        for (ParameterExpression variable : blockExpression.getVariables())
+            reserve(variable);
+
+        return super.visitBlock(blockExpression);
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return lambdaExpression;
+    }
+}
@@ -0,0 +1,527 @@
+package linq4j.visitors;
+
+import linq4j.expressions.*;
+
+import java.util.*;
+
+/**
+ * Evaluates structurally equal subtrees once: field and array reads, operators and calls to
+ * {@link MethodInfo#isPure() pure} methods repeated in a tree are stored into a temporary the first
+ * time they are evaluated and read back from it afterwards. Temporaries are declared as variables
+ * of a block wrapping the lambda body.
+ *
+ * The tree is walked in evaluation order, so the temporary is always assigned where the first
+ * occurrence used to be evaluated. Assignments to a parameter forget the values that read it, field
+ * and array writes or calls to other methods forget every value that reads memory, and values first
+ * evaluated where evaluation is conditional, such as the right side of {@code &&} or a branch of a
+ * conditional, are not reused outside of it.
+ */
+final class SubexpressionEliminator extends ExpressionVisitor {
+    private static final Info IMPURE = new Info(null, false, false, Collections.<Integer>emptySet());
+
+    private final Map<Expression, Info> infos = new IdentityHashMap<>();
+    private final Map<Expression, Definition> definitions = new IdentityHashMap<>();
+    private final List<ParameterExpression> temporaries = new ArrayList<>();
+    private final Map<Key, Definition> available = new HashMap<>();
+    private final List<Key> added = new ArrayList<>();
+    private int nextSlot;
+
+    private SubexpressionEliminator() {
+    }
+
+    static LambdaExpression eliminate(LambdaExpression lambda) {
+        SubexpressionEliminator eliminator = new SubexpressionEliminator();
+        eliminator.nextSlot = Slots.firstFree(lambda.getParameters(), lambda.getBody());
+
+        Summarizer summarizer = eliminator.new Summarizer();
+        summarizer.visit(lambda.getBody());
+
+        //jumps to arbitrary labels break the evaluation order the pass relies on
+        if (summarizer.labels)
+            return lambda;
+
+        Expression body = eliminator.visit(lambda.getBody());
+
+        if (eliminator.temporaries.isEmpty())
+            return lambda;
+
+        body = eliminator.new Finisher().visit(body);
+        body = Expression.block(body.getType(), eliminator.temporaries, body);
+
+        ParameterExpression[] parameters = lambda.getParameters().toArray(new ParameterExpression[0]);
+        return Expression.lambda(lambda.getType(), body, parameters);
+    }
+
+    @Override
+    public Expression visit(Expression expression) {
+        Info info = infos.get(expression);
+
+        if (info == null || !info.candidate)
+            return super.visit(expression);
+
+        Definition definition = available.get(info.key);
+        if (definition != null)
+            return definition.use();
+
+        //wrapped so the first occurrence can be told apart from other uses of the same node
+        Expression visited = super.visit(expression);
+        Expression wrapper = Expression.block(visited.getType(), Collections.<ParameterExpression>emptyList(), visited);
+
+        definition = new Definition(info, visited.getType());
+        definitions.put(wrapper, definition);
+        available.put(info.key, definition);
+        added.add(info.key);
+
+        return wrapper;
+    }
+
+    @Override
+    public Expression visitBinary(BinaryExpression binaryExpression) {
+        Expression left = binaryExpression.getLeft();
+        Expression right = binaryExpression.getRight();
+
+        switch (binaryExpression.getNodeType()) {
+            case Assign: {
+                //the target itself is written, not read
+                Expression target = left;
+                if (left.getNodeType() == ExpressionType.MemberAccess)
+                    target = visitMember((MemberExpression) left);
+                else if (left.getNodeType() == ExpressionType.ArrayIndex)
+                    target = visitIndex((IndexExpression) left);
+
+                Expression value = visit(right);
+                forget(left);
+
+                if (target != left || value != right)
+                    return Expression.assign(target, value);
+                return binaryExpression;
+            }
+            case AndAlso:
+            case OrElse:
+            case Coalesce: {
+                Expression test = visit(left);
+                Expression value = visitConditionally(right);
+
+                if (test != left || value != right)
+                    return Expression.makeBinary(binaryExpression.getNodeType(), test, value);
+                return binaryExpression;
+            }
+            default:
+                return super.visitBinary(binaryExpression);
+        }
+    }
+
+    @Override
+    public Expression visitConditional(ConditionalExpression conditionalExpression) {
+        Expression test = visit(conditionalExpression.getTest());
+        Expression ifTrue = visitConditionally(conditionalExpression.getIfTrue());
+        Expression ifFalse = visitConditionally(conditionalExpression.getIfFalse());
+
+        if (test != conditionalExpression.getTest() || ifTrue != conditionalExpression.getIfTrue() || ifFalse != conditionalExpression.getIfFalse())
+            return Expression.condition(test, ifTrue, ifFalse, conditionalExpression.getType(), conditionalExpression.getHint());
+
+        return conditionalExpression;
+    }
+
+    @Override
+    public Expression visitSwitch(SwitchExpression switchExpression) {
+        Expression switchValue = visit(switchExpression.getSwitchValue());
+        boolean changed = switchValue != switchExpression.getSwitchValue();
+
+        List<SwitchCase> cases = switchExpression.getCases();
+        SwitchCase[] visited = new SwitchCase[cases.size()];
+
+        for (int i = 0; i < visited.length; i++) {
+            SwitchCase switchCase = cases.get(i);
+            Expression body = visitConditionally(switchCase.getBody());
+
+            visited[i] = body != switchCase.getBody()
+                    ? Expression.switchCase(body, switchCase.getTestValues().toArray(new ConstantExpression[0]))
+                    : switchCase;
+            changed |= body != switchCase.getBody();
+        }
+
+        Expression defaultBody = switchExpression.getDefaultBody() != null ? visitConditionally(switchExpression.getDefaultBody()) : null;
+        changed |= defaultBody != switchExpression.getDefaultBody();
+
+        if (changed)
+            return Expression.makeSwitch(switchExpression.getType(), switchValue, defaultBody, visited);
+
+        return switchExpression;
+    }
+
+    /**
+     * Values from before the loop that the body changes are forgotten before visiting it, since
+     * the body runs again after its own writes.
+     */
+    @Override
+    public Expression visitLoop(LoopExpression loopExpression) {
+        SideEffects sideEffects = SideEffects.of(loopExpression.getBody());
+        Iterator<Definition> iterator = available.values().iterator();
+
+        while (iterator.hasNext()) {
+            Info info = iterator.next().info;
+
+            if (sideEffects.writesAny(info.parameters) || sideEffects.writesMemory() && info.readsMemory)
+                iterator.remove();
+        }
+
+        Expression body = visitConditionally(loopExpression.getBody());
+
+        if (body != loopExpression.getBody())
+            return Expression.loop(body, loopExpression.getBreakLabel(), loopExpression.getContinueLabel());
+
+        return loopExpression;
+    }
+
+    /**
+     * Visits an expression that may not be evaluated, whose values can't be reused after it. The
+     * values it makes available are undone from a log rather than a copy of those before it, so
+     * deeply nested conditionals take linear space.
+     */
+    private Expression visitConditionally(Expression expression) {
+        int mark = added.size();
+        Expression visited = visit(expression);
+
+        List<Key> undone = added.subList(mark, added.size());
+        for (Key key : undone)
+            available.remove(key);
+        undone.clear();
+
+        return visited;
+    }
+
+    @Override
+    public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+        Expression visited = super.visitMethodCall(methodCallExpression);
+
+        if (!methodCallExpression.getMethodInfo().isPure())
+            forget(null);
+
+        return visited;
+    }
+
+    @Override
+    public Expression visitDynamic(DynamicExpression dynamicExpression) {
+        Expression visited = super.visitDynamic(dynamicExpression);
+        forget(null);
+
+        return visited;
+    }
+
+    @Override
+    public Expression visitLambda(LambdaExpression lambdaExpression) {
+        return lambdaExpression;
+    }
+
+    /**
+     * Forgets the values invalidated by a write to {@code target}, or by an unknown call when null.
+     */
+    private void forget(Expression target) {
+        Iterator<Definition> iterator = available.values().iterator();
+
+        while (iterator.hasNext()) {
+            Info info = iterator.next().info;
+
+            boolean stale = target != null && target.getNodeType() == ExpressionType.Parameter
+                    ? info.parameters.contains(((ParameterExpression) target).getIndex())
+                    : info.readsMemory;
+
+            if (stale)
+                iterator.remove();
+        }
+    }
+
+    private static final class Key {
+        private final Object[] parts;
+        private final int hash;
+
+        Key(Object... parts) {
+            this.parts = parts;
+            this.hash = Arrays.hashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Key && hash == ((Key) o).hash && Arrays.equals(parts, ((Key) o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Info {
+        final Key key;
+        final boolean candidate;
+        final boolean readsMemory;
+        final Set<Integer> parameters;
+
+        Info(Key key, boolean candidate, boolean readsMemory, Set<Integer> parameters) {
+            this.key = key;
+            this.candidate = candidate;
+            this.readsMemory = readsMemory;
+            this.parameters = parameters;
+        }
+    }
+
+    private final class Definition {
+        final Info info;
+        final Class<?> type;
+        ParameterExpression temporary;
+
+        Definition(Info info, Class<?> type) {
+            this.info = info;
+            this.type = type;
+        }
+
+        ParameterExpression use() {
+            if (temporary == null) {
+                temporary = Expression.parameter(nextSlot, "$cse" + temporaries.size(), type);
+                temporaries.add(temporary);
+                nextSlot += ByteCodeGenerator.typeOf(type).getSize();
+            }
+
+            return temporary;
+        }
+    }
+
+    /**
+     * Computes the structural key of every node, which nodes can be reused and what they read.
+     */
+    private final class Summarizer extends ExpressionVisitor {
+        private boolean labels;
+
+        private Info pure(Key key, Class<?> type, boolean readsMemory, Expression... children) {
+            Set<Integer> parameters = new HashSet<>();
+
+            for (Expression child : children) {
+                if (child == null)
+                    continue;
+
+                Info info = infos.get(child);
+                if (info == IMPURE)
+                    return IMPURE;
+
+                readsMemory |= info.readsMemory;
+                parameters.addAll(info.parameters);
+            }
+
+            return new Info(key, type != Void.TYPE, readsMemory, parameters);
+        }
+
+        private Key key(Expression expression) {
+            return expression != null ? infos.get(expression).key : null;
+        }
+
+        @Override
+        public Expression visitBinary(BinaryExpression binaryExpression) {
+            super.visitBinary(binaryExpression);
+
+            Expression left = binaryExpression.getLeft();
+            Expression right = binaryExpression.getRight();
+
+            if (binaryExpression.getNodeType() == ExpressionType.Assign) {
+                infos.put(binaryExpression, IMPURE);
+            } else {
+                Key key = new Key(binaryExpression.getNodeType(), key(left), key(right));
+                infos.put(binaryExpression, pure(key, null, false, left, right));
+            }
+
+            return binaryExpression;
+        }
+
+        @Override
+        public Expression visitConditional(ConditionalExpression conditionalExpression) {
+            super.visitConditional(conditionalExpression);
+
+            Expression test = conditionalExpression.getTest();
+            Expression ifTrue = conditionalExpression.getIfTrue();
+            Expression ifFalse = conditionalExpression.getIfFalse();
+            Key key = new Key(conditionalExpression.getNodeType(), conditionalExpression.getType(), key(test), key(ifTrue), key(ifFalse));
+            infos.put(conditionalExpression, pure(key, conditionalExpression.getType(), false, test, ifTrue, ifFalse));
+
+            return conditionalExpression;
+        }
+
+        @Override
+        public Expression visitUnary(UnaryExpression unaryExpression) {
+            super.visitUnary(unaryExpression);
+
+            Expression operand = unaryExpression.getOperand();
+            Key key = new Key(unaryExpression.getNodeType(), unaryExpression.getType(), key(operand));
+            infos.put(unaryExpression, pure(key, unaryExpression.getType(), false, operand));
+
+            return unaryExpression;
+        }
+
+        @Override
+        public Expression visitMember(MemberExpression memberExpression) {
+            super.visitMember(memberExpression);
+
+            Expression expression = memberExpression.getExpression();
+            Key key = new Key(memberExpression.getNodeType(), memberExpression.getOwner(), memberExpression.getMember(),
+                    memberExpression.getType(), key(expression));
+            infos.put(memberExpression, pure(key, memberExpression.getType(), true, expression));
+
+            return memberExpression;
+        }
+
+        @Override
+        public Expression visitParameter(ParameterExpression parameterExpression) {
+            Key key = new Key(parameterExpression.getNodeType(), parameterExpression.getIndex(), parameterExpression.getType());
+            infos.put(parameterExpression, new Info(key, false, false, Collections.singleton(parameterExpression.getIndex())));
+
+            return parameterExpression;
+        }
+
+        @Override
+        public Expression visitConstant(ConstantExpression constantExpression) {
+            Key key = new Key(constantExpression.getNodeType(), constantExpression.getType(), constantExpression.getValue());
+            infos.put(constantExpression, new Info(key, false, false, Collections.<Integer>emptySet()));
+
+            return constantExpression;
+        }
+
+        @Override
+        public Expression visitDefault(DefaultExpression defaultExpression) {
+            Key key = new Key(defaultExpression.getNodeType(), defaultExpression.getType());
+            infos.put(defaultExpression, new Info(key, false, false, Collections.<Integer>emptySet()));
+
+            return defaultExpression;
+        }
+
+        @Override
+        public Expression visitMethodCall(MethodCallExpression methodCallExpression) {
+            super.visitMethodCall(methodCallExpression);
+
+            MethodInfo methodInfo = methodCallExpression.getMethodInfo();
+            Expression target = methodCallExpression.getExpression();
+            Expression[] parameters = methodCallExpression.getParameters();
+
+            if (!methodInfo.isPure()) {
+                infos.put(methodCallExpression, IMPURE);
+                return methodCallExpression;
+            }
+
+            Object[] parts = new Object[parameters.length + 5];
+            parts[0] = methodCallExpression.getNodeType();
+            parts[1] = methodInfo.getOwner();
+            parts[2] = methodInfo.getName();
+            parts[3] = Arrays.asList(methodInfo.getTypes());
+            parts[4] = key(target);
+
+            //a pure method may still look into the objects it is given
+            boolean readsMemory = target != null;
+            Expression[] children = new Expression[parameters.length + 1];
+            children[0] = target;
+
+            for (int i = 0; i < parameters.length; i++) {
+                parts[i + 5] = key(parameters[i]);
+                children[i + 1] = parameters[i];
+                readsMemory |= !methodInfo.getTypes()[i].isPrimitive();
+            }
+
+            infos.put(methodCallExpression, pure(new Key(parts), methodInfo.getReturnType(), readsMemory, children));
+            return methodCallExpression;
+        }
+
+        @Override
+        public Expression visitDynamic(DynamicExpression dynamicExpression) {
+            super.visitDynamic(dynamicExpression);
+            infos.put(dynamicExpression, IMPURE);
+
+            return dynamicExpression;
+        }
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            super.visitBlock(blockExpression);
+            infos.put(blockExpression, IMPURE);
+
+            return blockExpression;
+        }
+
+        @Override
+        public Expression visitIndex(IndexExpression indexExpression) {
+            super.visitIndex(indexExpression);
+
+            Expression array = indexExpression.getArray();
+            Expression index = indexExpression.getIndex();
+            Key key = new Key(indexExpression.getNodeType(), key(array), key(index));
+            infos.put(indexExpression, pure(key, indexExpression.getType(), true, array, index));
+
+            return indexExpression;
+        }
+
+        @Override
+        public Expression visitSwitch(SwitchExpression switchExpression) {
+            super.visitSwitch(switchExpression);
+            infos.put(switchExpression, IMPURE);
+
+            return switchExpression;
+        }
+
+        @Override
+        public Expression visitLoop(LoopExpression loopExpression) {
+            super.visitLoop(loopExpression);
+            infos.put(loopExpression, IMPURE);
+
+            return loopExpression;
+        }
+
+        @Override
+        public Expression visitGoto(GotoExpression gotoExpression) {
+            super.visitGoto(gotoExpression);
+            infos.put(gotoExpression, IMPURE);
+
+            return gotoExpression;
+        }
+
+        @Override
+        public Expression visitLabel(LabelExpression labelExpression) {
+            super.visitLabel(labelExpression);
+            infos.put(labelExpression, IMPURE);
+            labels = true;
+
+            return labelExpression;
+        }
+
+        @Override
+        public Expression visitNewArrayInit(NewArrayExpression newArrayExpression) {
+            super.visitNewArrayInit(newArrayExpression);
+            infos.put(newArrayExpression, IMPURE);
+
+            return newArrayExpression;
+        }
+
+        @Override
+        public Expression visitLambda(LambdaExpression lambdaExpression) {
+            infos.put(lambdaExpression, IMPURE);
+            return lambdaExpression;
+        }
+    }
+
+    /**
+     * Turns the first occurrence of every reused value into an assignment to its temporary.
+     */
+    private final class Finisher extends ExpressionVisitor {
+
+        @Override
+        public Expression visitBlock(BlockExpression blockExpression) {
+            Definition definition = definitions.get(blockExpression);
+
+            if (definition == null)
+                return super.visitBlock(blockExpression);
+
+            Expression value = visit(blockExpression.getResult());
+
+            if (definition.temporary == null)
+                return value;
+
+            return Expression.block(definition.type, Collections.<ParameterExpression>emptyList(),
+                    Expression.assign(definition.temporary, value), definition.temporary);
+        }
+    }
+}
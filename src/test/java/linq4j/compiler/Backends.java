@@ -0,0 +1,68 @@
+package linq4j.compiler;
+
+import linq4j.expressions.LambdaExpression;
+import linq4j.expressions.TypeUtils;
+import linq4j.visitors.Interpreter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs a lambda through the interpreter and every compiling backend, comparing what they return or
+ * the class of what they throw.
+ */
+final class Backends {
+    private Backends() {
+    }
+
+    /**
+     * A generic functional interface as the class of one of its parameterizations, so tests compile
+     * to {@code Function<Object, Object>} without unchecked conversions.
+     */
+    @SuppressWarnings("unchecked")
+    static <F> Class<F> typed(Class<? super F> functionalInterface) {
+        return (Class<F>) functionalInterface;
+    }
+
+    static void assertAgree(LambdaExpression lambda, Class<?> functionalInterface, Object[]... argumentLists) {
+        Method sam = FunctionalInterfaces.findMethod(functionalInterface);
+
+        Object compiled = LambdaCompiler.compile(lambda, functionalInterface);
+        Object cached = lambda.compile(functionalInterface);
+        Object packed = LambdaCompiler.compileAll(Collections.singletonList(lambda), functionalInterface).get(0);
+        Object handles = MethodHandleCompiler.compile(lambda, functionalInterface);
+
+        for (Object[] arguments : argumentLists) {
+            Object expected = interpret(lambda, sam, arguments);
+            String message = lambda + " on " + Arrays.toString(arguments);
+
+            assertEquals(message + " compiled", expected, call(sam, compiled, arguments));
+            assertEquals(message + " cached", expected, call(sam, cached, arguments));
+            assertEquals(message + " packed", expected, call(sam, packed, arguments));
+            assertEquals(message + " method handles", expected, call(sam, handles, arguments));
+        }
+    }
+
+    static Object interpret(LambdaExpression lambda, Method sam, Object... arguments) {
+        try {
+            Object value = Interpreter.invoke(lambda, arguments);
+            return sam.getReturnType() == Void.TYPE ? null : TypeUtils.convert(value, sam.getReturnType());
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    static Object call(Method sam, Object function, Object... arguments) {
+        try {
+            return sam.invoke(function, arguments);
+        } catch (InvocationTargetException e) {
+            return e.getCause().getClass();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.Interpreter;
+import org.junit.Test;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs filters and projections, branch-free and branching, against the interpreter row by row.
+ */
+public class BatchCompilerTest {
+    private static final int[][] RANGES = {{0, 0}, {0, 1}, {0, 63}, {0, 64}, {0, 65}, {3, 130}, {61, 67}, {64, 200}};
+
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+    private final ParameterExpression y = Expression.parameter(2, "y", Double.TYPE);
+    private final ParameterExpression t = Expression.parameter(3, "t", Double.TYPE);
+
+    private final Random random = new Random(42);
+    private final int[] xs = new int[200];
+    private final double[] ys = new double[200];
+
+    public BatchCompilerTest() {
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = random.nextInt(41) - 20;
+            ys[i] = random.nextInt(200) / 10.0;
+        }
+    }
+
+    private List<LambdaExpression> predicates() throws Exception {
+        return Arrays.asList(
+                Expression.lambda(Expression.andAlso(Expression.greaterThan(x, Expression.constant(3)), Expression.lessThan(y, Expression.constant(10.0))), x, y),
+                Expression.lambda(Expression.orElse(Expression.equal(Expression.modulo(x, Expression.constant(3)), Expression.constant(0)), Expression.greaterThan(y, Expression.constant(15.0))), x, y),
+                Expression.lambda(Expression.greaterThan(Expression.call(new MethodInfo(Math.class.getMethod("abs", int.class)), x), Expression.constant(7)), x, y),
+                Expression.lambda(Expression.andAlso(Expression.greaterThan(x, Expression.constant(0)),
+                        Expression.block(Boolean.TYPE, Arrays.asList(t), Expression.assign(t, Expression.multiply(y, Expression.constant(2.0))), Expression.lessThan(t, Expression.constant(15.0)))), x, y),
+                Expression.lambda(Expression.lessThan(y, Expression.constant(100.0)), x, y));
+    }
+
+    private List<LambdaExpression> projections() throws Exception {
+        return Arrays.asList(
+                Expression.lambda(Expression.add(Expression.convert(x, Long.TYPE), Expression.constant(100L)), x, y),
+                Expression.lambda(Expression.multiply(Expression.convert(x, Double.TYPE), y), x, y),
+                Expression.lambda(Expression.condition(Expression.greaterThan(x, Expression.constant(0)), y, Expression.negate(y)), x, y),
+                Expression.lambda(Expression.call(new MethodInfo(Math.class.getMethod("max", int.class, int.class)), x, Expression.constant(3)), x, y),
+                Expression.lambda(Expression.divide(x, Expression.constant(4)), x, y));
+    }
+
+    private List<long[][]> bitmaps() {
+        long[] sparse = new long[4];
+        long[] dense = new long[4];
+        for (int i = 0; i < 200; i++) {
+            if (random.nextInt(10) == 0)
+                sparse[i >> 6] |= 1L << i;
+            if (random.nextInt(2) == 0)
+                dense[i >> 6] |= 1L << i;
+        }
+
+        List<long[][]> bitmaps = new ArrayList<>();
+        bitmaps.add(null);
+        bitmaps.add(new long[][]{null, null});
+        bitmaps.add(new long[][]{sparse, null});
+        bitmaps.add(new long[][]{null, dense});
+        bitmaps.add(new long[][]{sparse, dense});
+        return bitmaps;
+    }
+
+    private static boolean isNull(long[][] nulls, int row) {
+        if (nulls == null)
+            return false;
+
+        for (long[] bitmap : nulls) {
+            if (bitmap != null && (bitmap[row >> 6] >>> row & 1L) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void filtersMatchTheInterpreter() throws Exception {
+        for (LambdaExpression predicate : predicates()) {
+            SelectionKernel branchFree = BatchCompiler.filter(predicate, true);
+            SelectionKernel branching = BatchCompiler.filter(predicate, false);
+
+            for (long[][] nulls : bitmaps()) {
+                for (int[] range : RANGES) {
+                    List<Integer> expected = new ArrayList<>();
+                    for (int i = range[0]; i < range[1]; i++) {
+                        if (!isNull(nulls, i) && (Boolean) Interpreter.invoke(predicate, xs[i], ys[i]))
+                            expected.add(i);
+                    }
+
+                    assertEquals(expected, select(branchFree, nulls, range));
+                    assertEquals(expected, select(branching, nulls, range));
+                }
+            }
+        }
+    }
+
+    private List<Integer> select(SelectionKernel kernel, long[][] nulls, int[] range) {
+        int[] selection = new int[range[1] - range[0]];
+        int count = kernel.select(new Object[]{xs, ys}, nulls, range[0], range[1], selection);
+
+        List<Integer> selected = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            selected.add(selection[i]);
+        return selected;
+    }
+
+    @Test
+    public void projectionsMatchTheInterpreter() throws Exception {
+        for (LambdaExpression projection : projections()) {
+            Class<?> type = projection.getReturnType();
+            ProjectionKernel branchFree = BatchCompiler.project(projection, true);
+            ProjectionKernel branching = BatchCompiler.project(projection, false);
+
+            for (long[][] nulls : bitmaps()) {
+                for (int[] range : RANGES) {
+                    for (ProjectionKernel kernel : Arrays.asList(branchFree, branching)) {
+                        Object output = Array.newInstance(type, xs.length);
+                        long[] outputNulls = new long[4];
+                        kernel.project(new Object[]{xs, ys}, nulls, range[0], range[1], output, outputNulls);
+
+                        for (int i = 0; i < xs.length; i++) {
+                            boolean inRange = i >= range[0] && i < range[1];
+                            boolean isNull = inRange && isNull(nulls, i);
+
+                            assertEquals("null bit of row " + i, isNull, (outputNulls[i >> 6] >>> i & 1L) != 0);
+                            if (inRange && !isNull)
+                                assertEquals(projection + " row " + i, Interpreter.invoke(projection, xs[i], ys[i]), Array.get(output, i));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void selectionNeedsRoomForTheWholeRange() throws Exception {
+        for (LambdaExpression predicate : predicates()) {
+            for (boolean speculate : new boolean[]{true, false}) {
+                SelectionKernel kernel = BatchCompiler.filter(predicate, speculate);
+
+                assertTrue(kernel.select(new Object[]{xs, ys}, null, 10, 20, new int[10]) <= 10);
+                try {
+                    kernel.select(new Object[]{xs, ys}, null, 10, 20, new int[9]);
+                    fail("selection too small");
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        }
+    }
+
+    @Test
+    public void kernelsDifferingInConstantsShareAClass() {
+        ProjectionKernel plusOne = BatchCompiler.project(Expression.lambda(Expression.add(x, Expression.constant(1)), x));
+        ProjectionKernel plusTwo = BatchCompiler.project(Expression.lambda(Expression.add(x, Expression.constant(2)), x));
+        assertSame(plusOne.getClass(), plusTwo.getClass());
+
+        int[] output = new int[xs.length];
+        plusTwo.project(new Object[]{xs}, null, 0, xs.length, output, new long[4]);
+        for (int i = 0; i < xs.length; i++)
+            assertEquals(xs[i] + 2, output[i]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void filtersMustReturnBoolean() {
+        BatchCompiler.filter(Expression.lambda(x, x));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void projectionsMustReturnAValue() {
+        BatchCompiler.project(Expression.lambda(Expression.empty(), x));
+    }
+}
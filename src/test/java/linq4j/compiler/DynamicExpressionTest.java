@@ -0,0 +1,164 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.DynamicMembers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Members looked up by name on receivers of many classes, through the inline caches of the call
+ * sites, against the interpreter's lookups.
+ */
+public class DynamicExpressionTest {
+    public static class Person {
+        public String getName() {
+            return "person";
+        }
+
+        public int getAge() {
+            return 30;
+        }
+
+        public boolean isActive() {
+            return true;
+        }
+    }
+
+    public static class Student extends Person {
+        @Override
+        public String getName() {
+            return "student";
+        }
+    }
+
+    public static class Animal {
+        public String name = "animal";
+        public long age = 7;
+        public boolean active;
+    }
+
+    public static class Thing {
+        public String name() {
+            return "thing";
+        }
+
+        public Integer age() {
+            return 2;
+        }
+
+        public String greet(String who, int times) {
+            return "thing greets " + who + " " + times;
+        }
+    }
+
+    public static class Greeter {
+        public String greet(Object who, long times) {
+            return "object " + who + " " + times;
+        }
+
+        public String greet(String who, int times) {
+            return "string " + who + " " + times;
+        }
+    }
+
+    private static class Hidden implements Supplier<String> {
+        @Override
+        public String get() {
+            return "hidden";
+        }
+    }
+
+    private static final Object[] RECEIVERS = {null, new Person(), new Student(), new Animal(), new Thing(), new Greeter(), new Hidden(), "text"};
+
+    private final ParameterExpression r = Expression.parameter(1, "r", Object.class);
+    private final ParameterExpression s = Expression.parameter(2, "s", String.class);
+
+    private void assertAgree(Expression body) {
+        List<Object[]> arguments = new ArrayList<>();
+        //three rounds, so that sites go through their fallback, their guards and past their limit
+        for (int round = 0; round < 3; round++) {
+            for (Object receiver : RECEIVERS) {
+                arguments.add(new Object[]{receiver, "s"});
+                arguments.add(new Object[]{receiver, null});
+            }
+        }
+        Backends.assertAgree(Expression.lambda(Expression.convert(body, Object.class), r, s), BiFunction.class, arguments.toArray(new Object[0][]));
+    }
+
+    @Test
+    public void gettersMethodsAndFields() {
+        assertAgree(Expression.dynamic(String.class, r, "name"));
+        assertAgree(Expression.dynamic(Long.TYPE, r, "age"));
+        assertAgree(Expression.dynamic(Boolean.TYPE, r, "active"));
+        assertAgree(Expression.dynamic(Object.class, r, "get"));
+        assertAgree(Expression.dynamic(Integer.TYPE, s, "length"));
+    }
+
+    @Test
+    public void methodsTakingArguments() {
+        assertAgree(Expression.dynamic(String.class, r, "greet", s, Expression.constant(3)));
+        assertAgree(Expression.dynamic(String.class, r, "greet", Expression.convert(s, Object.class), Expression.constant(3L)));
+        assertAgree(Expression.dynamic(Boolean.TYPE, r, "equals", Expression.convert(s, Object.class)));
+    }
+
+    @Test
+    public void oneSiteSeesManyClasses() {
+        Object[] rows = {new Person(), new Animal(), new Thing(), new Student(), new Hidden(), new Person(), new Animal(), new Student()};
+        ParameterExpression i = Expression.parameter(3, "i", Integer.TYPE);
+        ParameterExpression names = Expression.parameter(4, "names", String.class);
+        LabelTarget done = Expression.label("done");
+        MethodInfo concat = new MethodInfo("java/lang/String", "concat", String.class, String.class);
+
+        assertAgree(Expression.block(String.class, Arrays.asList(i, names),
+                Expression.assign(i, Expression.constant(0)),
+                Expression.assign(names, Expression.constant("")),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.greaterThanOrEqual(i, Expression.constant(rows.length)), Expression._break(done), Expression.empty()),
+                        Expression.assign(names, Expression.call(names, concat,
+                                Expression.dynamic(String.class, Expression.arrayAccess(Expression.constant(rows), i), "name"))),
+                        Expression.assign(i, Expression.add(i, Expression.constant(1)))), done),
+                names));
+    }
+
+    @Test
+    public void compiledSitesKeepWorkingPastTheirLimit() {
+        Object[] receivers = {new Person(), new Student(), new Animal(), new Thing(), new Hidden(), "text"};
+        Object[] names = {"person", "student", "animal", "thing", null, null};
+        assertTrue(receivers.length > DynamicMembers.MAX_RECEIVERS);
+
+        Function<Object, Object> name = LambdaCompiler.compile(Expression.lambda(Expression.dynamic(Object.class, r, "name"), r), Backends.typed(Function.class));
+        Function<Object, Object> toString = LambdaCompiler.compile(Expression.lambda(Expression.dynamic(Object.class, r, "toString"), r), Backends.typed(Function.class));
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < receivers.length; i++) {
+                int k = (i + round) % receivers.length;
+                assertEquals(receivers[k].toString(), toString.apply(receivers[k]));
+                if (names[k] != null)
+                    assertEquals(names[k], name.apply(receivers[k]));
+            }
+        }
+    }
+
+    @Test
+    public void namesArePartOfTheShape() {
+        LambdaCache cache = new LambdaCache(ClassDefinition.preferred(), LambdaCache.Retention.STRONG, LambdaCache.DEFAULT_METASPACE_BUDGET);
+        Function<Object, Object> name = cache.compile(Expression.lambda(Expression.dynamic(Object.class, r, "name"), r), Backends.typed(Function.class));
+        Function<Object, Object> age = cache.compile(Expression.lambda(Expression.dynamic(Object.class, r, "age"), r), Backends.typed(Function.class));
+
+        assertEquals(2, cache.size());
+        assertEquals("animal", name.apply(new Animal()));
+        assertEquals(7L, age.apply(new Animal()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void receiversMustBeReferences() {
+        Expression.dynamic(String.class, Expression.constant(1), "toString");
+    }
+}
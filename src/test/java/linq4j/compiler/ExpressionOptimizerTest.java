@@ -0,0 +1,122 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.ExpressionOptimizer;
+import org.junit.Test;
+
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntToLongFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * The trees {@link ExpressionOptimizer} folds and simplifies, and those it must leave alone to
+ * keep their results and exceptions.
+ */
+public class ExpressionOptimizerTest {
+    private static final Object[][] INTS = {{0}, {1}, {-1}, {7}, {-7}, {200}, {1000}, {Integer.MIN_VALUE}, {Integer.MAX_VALUE}};
+
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+
+    private Expression optimize(Expression body) {
+        LambdaExpression lambda = Expression.lambda(Expression.convert(body, Long.TYPE), x);
+        Backends.assertAgree(lambda, IntToLongFunction.class, INTS);
+        return new ExpressionOptimizer().optimize(lambda).getBody();
+    }
+
+    private static Expression operand(Expression expression) {
+        return ((UnaryExpression) expression).getOperand();
+    }
+
+    @Test
+    public void foldsConstants() {
+        Expression folded = optimize(Expression.convert(Expression.add(Expression.constant(1), Expression.constant(2)), Long.TYPE));
+        assertTrue(folded instanceof ConstantExpression);
+        assertEquals(3L, ((ConstantExpression) folded).getValue());
+
+        BinaryExpression partly = (BinaryExpression) operand(optimize(Expression.add(Expression.multiply(Expression.constant(2), Expression.constant(3)), x)));
+        assertEquals(6, ((ConstantExpression) partly.getLeft()).getValue());
+        assertSame(x, partly.getRight());
+    }
+
+    @Test
+    public void dropsIdentities() {
+        assertSame(x, operand(optimize(Expression.multiply(x, Expression.constant(1)))));
+        assertSame(x, operand(optimize(Expression.add(x, Expression.constant(0)))));
+        assertSame(x, operand(optimize(Expression.subtract(x, Expression.constant(0)))));
+        assertSame(x, operand(optimize(Expression.leftShift(x, Expression.constant(0)))));
+        assertSame(x, operand(optimize(Expression.negate(Expression.negate(x)))));
+        assertSame(x, operand(optimize(Expression.onesComplement(Expression.onesComplement(x)))));
+        assertEquals(0L, ((ConstantExpression) optimize(Expression.multiply(x, Expression.constant(0)))).getValue());
+    }
+
+    @Test
+    public void strengthReducesPowersOfTwo() {
+        assertEquals(ExpressionType.LeftShift, operand(optimize(Expression.multiply(x, Expression.constant(8)))).getNodeType());
+
+        //only a known non-negative dividend shifts and masks like it divides
+        Expression masked = Expression.and(x, Expression.constant(0xff));
+        assertEquals(ExpressionType.RightShift, operand(optimize(Expression.divide(masked, Expression.constant(4)))).getNodeType());
+        assertEquals(ExpressionType.And, operand(optimize(Expression.modulo(masked, Expression.constant(16)))).getNodeType());
+        assertEquals(ExpressionType.Divide, operand(optimize(Expression.divide(x, Expression.constant(4)))).getNodeType());
+        assertEquals(ExpressionType.Modulo, operand(optimize(Expression.modulo(x, Expression.constant(16)))).getNodeType());
+    }
+
+    @Test
+    public void leavesDivisionByZeroToRunTime() {
+        assertEquals(ExpressionType.Divide, operand(optimize(Expression.divide(x, Expression.constant(0)))).getNodeType());
+        assertEquals(ExpressionType.Modulo, operand(optimize(Expression.modulo(Expression.constant(1), Expression.constant(0)))).getNodeType());
+    }
+
+    @Test
+    public void invertsIntegralComparisonsOnly() {
+        ParameterExpression a = Expression.parameter(1, "a", Integer.TYPE);
+        ParameterExpression b = Expression.parameter(2, "b", Integer.TYPE);
+        LambdaExpression ints = Expression.lambda(Expression.not(Expression.lessThan(a, b)), a, b);
+        assertEquals(ExpressionType.GreaterThanOrEqual, new ExpressionOptimizer().optimize(ints).getBody().getNodeType());
+
+        //not (NaN < 1) holds while NaN >= 1 does not
+        ParameterExpression d = Expression.parameter(1, "d", Double.TYPE);
+        LambdaExpression doubles = Expression.lambda(Expression.not(Expression.lessThan(d, Expression.constant(1.0))), d);
+        assertEquals(ExpressionType.Not, new ExpressionOptimizer().optimize(doubles).getBody().getNodeType());
+
+        DoublePredicate predicate = LambdaCompiler.compile(doubles, DoublePredicate.class);
+        assertTrue(predicate.test(Double.NaN));
+        assertTrue(predicate.test(2));
+        assertFalse(predicate.test(0));
+        Backends.assertAgree(doubles, DoublePredicate.class, new Object[]{Double.NaN}, new Object[]{1.0});
+    }
+
+    @Test
+    public void keepsSignedZeros() {
+        //-0.0 - -0.0 is 0.0, whose reciprocal is +Infinity
+        ParameterExpression d = Expression.parameter(1, "d", Double.TYPE);
+        LambdaExpression lambda = Expression.lambda(Expression.divide(Expression.constant(1.0), Expression.subtract(d, Expression.constant(-0.0))), d);
+        assertEquals(ExpressionType.Subtract, ((BinaryExpression) new ExpressionOptimizer().optimize(lambda).getBody()).getRight().getNodeType());
+
+        DoubleUnaryOperator compiled = LambdaCompiler.compile(lambda, DoubleUnaryOperator.class);
+        assertEquals(Double.POSITIVE_INFINITY, compiled.applyAsDouble(-0.0), 0);
+        Backends.assertAgree(lambda, DoubleUnaryOperator.class, new Object[]{-0.0}, new Object[]{0.0}, new Object[]{2.0});
+
+        //x - 0.0 is x even for -0.0
+        LambdaExpression positive = Expression.lambda(Expression.subtract(d, Expression.constant(0.0)), d);
+        assertSame(d, new ExpressionOptimizer().optimize(positive).getBody());
+        Backends.assertAgree(positive, DoubleUnaryOperator.class, new Object[]{-0.0}, new Object[]{Double.NaN});
+    }
+
+    @Test
+    public void leavesNullConstantsToRunTime() {
+        Expression none = Expression.constant(null, Integer.class);
+        optimize(Expression.multiply(x, none));
+        optimize(Expression.multiply(none, x));
+        optimize(Expression.modulo(none, x));
+        optimize(Expression.divide(none, x));
+    }
+
+    @Test
+    public void keepsNarrowingConversions() {
+        Expression narrowed = Expression.convert(Expression.convert(Expression.and(x, Expression.constant(0xfff)), Byte.TYPE), Integer.TYPE);
+        assertEquals(ExpressionType.Divide, operand(optimize(Expression.divide(narrowed, Expression.constant(2)))).getNodeType());
+    }
+}
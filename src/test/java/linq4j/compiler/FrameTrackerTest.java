@@ -0,0 +1,83 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Trees whose paths merge with different types on the stack or in the locals, which the generator
+ * writes the frames of without ASM computing them.
+ */
+public class FrameTrackerTest {
+    private final ParameterExpression b = Expression.parameter(1, "b", Boolean.TYPE);
+    private final ParameterExpression o = Expression.parameter(2, "o", Object.class);
+    private final ParameterExpression v = Expression.parameter(3, "v", Object.class);
+
+    private void assertAgree(Expression body) {
+        Backends.assertAgree(Expression.lambda(body, b, o), BiFunction.class,
+                new Object[]{true, null}, new Object[]{false, "z"}, new Object[]{true, 7});
+    }
+
+    @Test
+    public void conditionalsMergeReferenceTypes() {
+        assertAgree(Expression.condition(b, Expression.convert(Expression.constant("s"), Object.class), Expression.convert(Expression.constant(1), Object.class), Object.class, BranchHint.None));
+        assertAgree(Expression.condition(b, Expression.constant(new ArrayList<>(), List.class), Expression.constant(new LinkedList<>(), List.class), Object.class, BranchHint.None));
+        assertAgree(Expression.condition(b, Expression.constant(null, Object.class), o));
+    }
+
+    @Test
+    public void coalesceMergesWithNull() {
+        assertAgree(Expression.coalesce(Expression.convert(o, String.class), Expression.constant("x")));
+        assertAgree(Expression.coalesce(o, Expression.constant(3, Integer.class)));
+    }
+
+    @Test
+    public void localsAssignedOnOnePath() {
+        assertAgree(Expression.block(Object.class, Arrays.asList(v),
+                Expression.assign(v, Expression.constant("a", Object.class)),
+                Expression.condition(b, Expression.assign(v, Expression.constant(2, Object.class)), Expression.empty()),
+                v));
+    }
+
+    @Test
+    public void loopsBreakWithDifferentTypes() {
+        LabelTarget exit = Expression.label(Object.class, "exit");
+        assertAgree(Expression.loop(Expression.condition(b,
+                Expression._break(exit, Expression.constant("a", Object.class)),
+                Expression._break(exit, Expression.convert(Expression.constant(2), Object.class))), exit));
+    }
+
+    @Test
+    public void switchesMergeCases() {
+        assertAgree(Expression.makeSwitch(Object.class, Expression.condition(b, Expression.constant(1), Expression.constant(2)), Expression.constant(null, Object.class),
+                Expression.switchCase(Expression.convert(Expression.constant("one"), Object.class), Expression.constant(1)),
+                Expression.switchCase(Expression.convert(Expression.constant(2L), Object.class), Expression.constant(2))));
+    }
+
+    @Test
+    public void loopsCarryWideLocals() {
+        ParameterExpression n = Expression.parameter(1, "n", Integer.TYPE);
+        ParameterExpression m = Expression.parameter(2, "m", Integer.TYPE);
+        ParameterExpression sum = Expression.parameter(3, "sum", Long.TYPE);
+        ParameterExpression scale = Expression.parameter(5, "scale", Double.TYPE);
+        LabelTarget exit = Expression.label(Void.TYPE, "exit");
+
+        Expression body = Expression.block(Integer.TYPE, Arrays.asList(sum, scale),
+                Expression.assign(sum, Expression.constant(0L)),
+                Expression.assign(scale, Expression.constant(1.5)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.lessThanOrEqual(n, Expression.constant(0)), Expression._break(exit), Expression.empty()),
+                        Expression.assign(sum, Expression.add(sum, Expression.convert(Expression.multiply(Expression.convert(n, Double.TYPE), scale), Long.TYPE))),
+                        Expression.assign(n, Expression.subtract(n, m))), exit),
+                Expression.convert(sum, Integer.TYPE));
+
+        Backends.assertAgree(Expression.lambda(body, n, m), IntBinaryOperator.class,
+                new Object[]{10, 1}, new Object[]{0, 1}, new Object[]{100, 7});
+    }
+}
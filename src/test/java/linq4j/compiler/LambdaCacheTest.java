@@ -0,0 +1,203 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class LambdaCacheTest {
+    private final LambdaCache cache = new LambdaCache(ClassDefinition.preferred(), LambdaCache.Retention.STRONG, LambdaCache.DEFAULT_METASPACE_BUDGET);
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+
+    private LambdaExpression greaterThan(int bound) {
+        return Expression.lambda(Expression.greaterThan(x, Expression.constant(bound)), x);
+    }
+
+    @Test
+    public void treesDifferingInConstantsShareAClass() {
+        IntPredicate five = cache.compile(greaterThan(5), IntPredicate.class);
+        IntPredicate seven = cache.compile(greaterThan(7), IntPredicate.class);
+
+        assertSame(five.getClass(), seven.getClass());
+        assertEquals(1, cache.size());
+        assertTrue(five.test(6));
+        assertFalse(seven.test(6));
+    }
+
+    @Test
+    public void referenceConstantsAreHoisted() {
+        Supplier<Object> a = cache.compile(Expression.lambda(Expression.constant("a", Object.class)), Backends.typed(Supplier.class));
+        Supplier<Object> b = cache.compile(Expression.lambda(Expression.constant("b", Object.class)), Backends.typed(Supplier.class));
+
+        assertSame(a.getClass(), b.getClass());
+        assertEquals("a", a.get());
+        assertEquals("b", b.get());
+    }
+
+    @Test
+    public void shapesAndInterfacesKeepTheirOwnClasses() {
+        IntPredicate greater = cache.compile(greaterThan(5), IntPredicate.class);
+        IntPredicate less = cache.compile(Expression.lambda(Expression.lessThan(x, Expression.constant(5)), x), IntPredicate.class);
+        IntUnaryOperator add = cache.compile(Expression.lambda(Expression.add(x, Expression.constant(5)), x), IntUnaryOperator.class);
+        IntUnaryOperator subtract = cache.compile(Expression.lambda(Expression.subtract(x, Expression.constant(5)), x), IntUnaryOperator.class);
+
+        assertNotSame(greater.getClass(), less.getClass());
+        assertNotSame(add.getClass(), subtract.getClass());
+        assertEquals(4, cache.size());
+        assertEquals(9, add.applyAsInt(4));
+        assertEquals(-1, subtract.applyAsInt(4));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shapesCollectTheConstants() {
+        List<Object> five = new ArrayList<>();
+        List<Object> seven = new ArrayList<>();
+        ExpressionShape a = ExpressionShape.of(greaterThan(5), IntPredicate.class, five);
+        ExpressionShape b = ExpressionShape.of(greaterThan(7), IntPredicate.class, seven);
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(Arrays.<Object>asList(5), five);
+        assertEquals(Arrays.<Object>asList(7), seven);
+        assertNotEquals(a, ExpressionShape.of(greaterThan(5), IntUnaryOperator.class, new ArrayList<>()));
+    }
+
+    @Test
+    public void concurrentCompilationsShareOneClass() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<IntPredicate>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final int bound = i;
+                results.add(pool.submit(new Callable<IntPredicate>() {
+                    @Override
+                    public IntPredicate call() {
+                        return cache.compile(greaterThan(bound), IntPredicate.class);
+                    }
+                }));
+            }
+
+            Set<Class<?>> classes = new HashSet<>();
+            for (int i = 0; i < results.size(); i++) {
+                IntPredicate predicate = results.get(i).get();
+                classes.add(predicate.getClass());
+                assertTrue(predicate.test(i + 1));
+                assertFalse(predicate.test(i));
+            }
+            assertEquals(1, classes.size());
+            assertEquals(1, cache.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A tree of one of 100 shapes, growing with {@code k % 50}.
+     */
+    private LambdaExpression shape(int k) {
+        Expression body = x;
+        for (int i = 0; i <= k % 50; i++)
+            body = Expression.add(Expression.multiply(body, Expression.constant(i + 2)), x);
+        if (k >= 50)
+            body = Expression.subtract(body, Expression.leftShift(x, Expression.constant(k / 50)));
+        return Expression.lambda(body, x);
+    }
+
+    private static boolean collect(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return reference.get() == null;
+    }
+
+    @Test
+    public void hiddenClassesWhenAvailable() {
+        assumeTrue(ClassDefinition.preferred() == ClassDefinition.HIDDEN);
+
+        LambdaCache hidden = new LambdaCache(ClassDefinition.HIDDEN, LambdaCache.Retention.STRONG, LambdaCache.DEFAULT_METASPACE_BUDGET);
+        IntUnaryOperator operator = hidden.compile(shape(3), IntUnaryOperator.class);
+
+        //hidden classes are named after their lookup class and a suffix
+        assertTrue(operator.getClass().getName().contains("/"));
+        assertEquals(LambdaCompiler.compile(shape(3), IntUnaryOperator.class).applyAsInt(2), operator.applyAsInt(2));
+    }
+
+    @Test
+    public void weakCachesLetUnreachableClassesUnload() throws Exception {
+        for (ClassDefinition definition : ClassDefinition.values()) {
+            if (definition == ClassDefinition.HIDDEN && ClassDefinition.preferred() != ClassDefinition.HIDDEN)
+                continue;
+
+            LambdaCache weak = new LambdaCache(definition, LambdaCache.Retention.WEAK, Long.MAX_VALUE);
+            IntUnaryOperator operator = weak.compile(shape(3), IntUnaryOperator.class);
+            int expected = operator.applyAsInt(2);
+            WeakReference<Class<?>> generated = new WeakReference<Class<?>>(operator.getClass());
+            assertSame(operator.getClass(), weak.compile(shape(3), IntUnaryOperator.class).getClass());
+            assertTrue(weak.getClassBytes() > 0);
+
+            operator = null;
+            assertTrue(definition + " unloaded", collect(generated));
+            assertEquals(0, weak.size());
+            assertEquals(0, weak.getClassBytes());
+            assertEquals(expected, weak.compile(shape(3), IntUnaryOperator.class).applyAsInt(2));
+        }
+    }
+
+    @Test
+    public void strongCachesKeepClassesUntilCleared() throws Exception {
+        IntUnaryOperator operator = cache.compile(shape(3), IntUnaryOperator.class);
+        WeakReference<Class<?>> generated = new WeakReference<Class<?>>(operator.getClass());
+
+        operator = null;
+        System.gc();
+        assertNotNull(generated.get());
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertTrue(collect(generated));
+        assertEquals(0, cache.getClassBytes());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedClassesOverBudget() {
+        LambdaCache small = new LambdaCache(ClassDefinition.preferred(), LambdaCache.Retention.STRONG, 20000);
+        IntUnaryOperator hot = small.compile(shape(0), IntUnaryOperator.class);
+
+        for (int k = 1; k < 200; k++) {
+            IntUnaryOperator operator = small.compile(shape(k), IntUnaryOperator.class);
+            small.compile(shape(0), IntUnaryOperator.class);
+
+            assertEquals(LambdaCompiler.compile(shape(k), IntUnaryOperator.class).applyAsInt(7), operator.applyAsInt(7));
+            assertTrue(small.getClassBytes() <= 20000);
+        }
+
+        //the hot shape stayed cached, evicted delegates keep working
+        assertSame(hot.getClass(), small.compile(shape(0), IntUnaryOperator.class).getClass());
+        assertTrue(small.size() < 199);
+        assertEquals(9, hot.applyAsInt(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetsMustNotBeNegative() {
+        new LambdaCache(ClassDefinition.CLASS_LOADER, LambdaCache.Retention.STRONG, -1);
+    }
+}
@@ -0,0 +1,95 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.function.*;
+
+import static org.junit.Assert.*;
+
+public class LambdaCompilerTest {
+    private final ParameterExpression i = Expression.parameter(1, "i", Integer.TYPE);
+    private final ParameterExpression l = Expression.parameter(1, "l", Long.TYPE);
+    private final ParameterExpression d = Expression.parameter(1, "d", Double.TYPE);
+    private final ParameterExpression s = Expression.parameter(1, "s", String.class);
+
+    public static boolean isEven(int value) {
+        return value % 2 == 0;
+    }
+
+    public static long twice(String value) {
+        return value.length() * 2L;
+    }
+
+    private static MethodInfo method(String name, Class<?>... types) throws NoSuchMethodException {
+        return new MethodInfo(LambdaCompilerTest.class.getMethod(name, types));
+    }
+
+    @Test
+    public void compilesPrimitiveInterfaces() throws Exception {
+        IntPredicate even = Expression.lambda(Expression.call(method("isEven", int.class), i), i).compile(IntPredicate.class);
+        assertTrue(even.test(4));
+        assertFalse(even.test(5));
+
+        ToLongFunction<String> twice = Expression.lambda(Expression.call(method("twice", String.class), s), s).compile(Backends.typed(ToLongFunction.class));
+        assertEquals(6L, twice.applyAsLong("abc"));
+
+        DoubleUnaryOperator half = Expression.lambda(Expression.divide(d, Expression.constant(2.0)), d).compile(DoubleUnaryOperator.class);
+        assertEquals(1.5, half.applyAsDouble(3), 0);
+
+        LongUnaryOperator negate = Expression.lambda(Expression.negate(l), l).compile(LongUnaryOperator.class);
+        assertEquals(-5L, negate.applyAsLong(5));
+
+        IntSupplier constant = Expression.lambda(Expression.constant(42)).compile(IntSupplier.class);
+        assertEquals(42, constant.getAsInt());
+    }
+
+    @Test
+    public void boxesAndUnboxesForGenericInterfaces() throws Exception {
+        Function<Object, Object> even = Expression.lambda(Expression.call(method("isEven", int.class), i), i).compile(Backends.typed(Function.class));
+        assertEquals(true, even.apply(8));
+
+        Predicate<Integer> odd = Expression.lambda(Expression.not(Expression.call(method("isEven", int.class), i)), i).compile(Backends.typed(Predicate.class));
+        assertTrue(odd.test(3));
+
+        Supplier<Object> hello = Expression.lambda(Expression.constant("hi")).compile(Backends.typed(Supplier.class));
+        assertEquals("hi", hello.get());
+
+        Backends.assertAgree(Expression.lambda(Expression.add(i, Expression.constant(1)), i), Function.class,
+                new Object[]{1}, new Object[]{Integer.MAX_VALUE}, new Object[]{null});
+    }
+
+    @Test
+    public void compilesVoidInterfaces() {
+        ParameterExpression array = Expression.parameter(1, "array", int[].class);
+        Consumer<int[]> increment = Expression.lambda(
+                Expression.assign(Expression.arrayAccess(array, Expression.constant(0)), Expression.add(Expression.arrayAccess(array, Expression.constant(0)), Expression.constant(1))),
+                array).compile(Backends.typed(Consumer.class));
+
+        int[] values = {41};
+        increment.accept(values);
+        assertEquals(42, values[0]);
+    }
+
+    @Test
+    public void compilesToTheTypeOfTheLambda() {
+        Object compiled = Expression.lambda(IntUnaryOperator.class, Expression.multiply(i, i), i).compile();
+        assertEquals(49, ((IntUnaryOperator) compiled).applyAsInt(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWrongArity() {
+        LambdaCompiler.compile(Expression.lambda(i, i), IntBinaryOperator.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsParametersOutOfTheirSlots() {
+        ParameterExpression misplaced = Expression.parameter(0, "i", Integer.TYPE);
+        LambdaCompiler.compile(Expression.lambda(misplaced, misplaced), IntUnaryOperator.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void untypedLambdasNeedAnInterface() {
+        Expression.lambda(Expression.constant(1)).compile();
+    }
+}
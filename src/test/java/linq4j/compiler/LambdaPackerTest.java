@@ -0,0 +1,164 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.MethodSplitter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rules of mixed shapes packed into few classes, against the same rules compiled one by one.
+ */
+public class LambdaPackerTest {
+    public interface Wide {
+        Object apply(Object a, Object b, Object c, Object d);
+    }
+
+    private final ParameterExpression a = Expression.parameter(1, "a", Integer.TYPE);
+    private final ParameterExpression b = Expression.parameter(2, "b", Integer.TYPE);
+
+    /**
+     * A rule of one of five shapes, with {@code k % 3} alternatives.
+     */
+    private LambdaExpression rule(int k) {
+        Expression body;
+        switch (k % 5) {
+            case 0:
+                body = Expression.greaterThan(Expression.add(a, Expression.constant(k)), b);
+                break;
+            case 1:
+                body = Expression.andAlso(Expression.lessThan(a, Expression.constant(k % 97)),
+                        Expression.notEqual(Expression.modulo(b, Expression.constant(7)), Expression.constant(k % 7)));
+                break;
+            case 2:
+                body = Expression.equal(Expression.constant(k % 300, Object.class), Expression.constant(k % 300, Object.class));
+                break;
+            case 3:
+                body = Expression.greaterThan(Expression.exclusiveOr(a, Expression.constant((long) k * 31)), Expression.convert(b, Long.TYPE));
+                break;
+            default:
+                body = Expression.lessThanOrEqual(Expression.multiply(Expression.convert(a, Double.TYPE), Expression.constant(k * 0.5)), Expression.convert(b, Double.TYPE));
+        }
+        for (int i = 0; i < k % 3; i++)
+            body = Expression.orElse(body, Expression.equal(Expression.subtract(a, b), Expression.constant(i * k)));
+        return Expression.lambda(body, a, b);
+    }
+
+    private List<LambdaExpression> rules(int count) {
+        List<LambdaExpression> rules = new ArrayList<>();
+        for (int k = 0; k < count; k++)
+            rules.add(rule(k));
+        return rules;
+    }
+
+    @Test
+    public void packedRulesMatchSingleCompiles() {
+        List<LambdaExpression> rules = rules(600);
+        List<BiPredicate<Integer, Integer>> packed = LambdaCompiler.compileAll(rules, Backends.typed(BiPredicate.class));
+        assertEquals(rules.size(), packed.size());
+
+        Random random = new Random(19);
+        Set<Class<?>> classes = new HashSet<>();
+        for (int k = 0; k < rules.size(); k++) {
+            BiPredicate<Integer, Integer> single = LambdaCompiler.compile(rules.get(k), Backends.typed(BiPredicate.class));
+            classes.add(packed.get(k).getClass());
+            for (int j = 0; j < 5; j++) {
+                int x = random.nextInt(200) - 100;
+                int y = random.nextInt(200) - 100;
+                assertEquals(rules.get(k) + " on " + x + ", " + y, single.test(x, y), packed.get(k).test(x, y));
+            }
+        }
+
+        assertTrue(classes.size() > 1);
+        assertTrue(classes.size() < rules.size() / 100);
+    }
+
+    @Test
+    public void wideSignaturesKeepTheBridgeCompilable() {
+        ParameterExpression[] parameters = new ParameterExpression[4];
+        for (int i = 0; i < parameters.length; i++)
+            parameters[i] = Expression.parameter(1 + 2 * i, "p" + i, Long.TYPE);
+
+        //each case unboxes four longs and boxes the result
+        List<LambdaExpression> lambdas = new ArrayList<>();
+        for (int k = 0; k < 600; k++) {
+            Expression body = Expression.constant((long) k);
+            for (ParameterExpression parameter : parameters)
+                body = Expression.add(body, parameter);
+            lambdas.add(Expression.lambda(body, parameters));
+        }
+
+        List<Wide> packed = LambdaCompiler.compileAll(lambdas, Wide.class);
+        Map<Class<?>, List<LambdaExpression>> classes = new LinkedHashMap<>();
+        for (int k = 0; k < packed.size(); k++) {
+            assertEquals(k + 10L, packed.get(k).apply(1L, 2L, 3L, 4L));
+            classes.computeIfAbsent(packed.get(k).getClass(), type -> new ArrayList<>()).add(lambdas.get(k));
+        }
+
+        assertTrue(classes.size() > 1);
+        for (List<LambdaExpression> group : classes.values())
+            assertTrue(LambdaPacker.bridgeSize(group, Wide.class) <= MethodSplitter.HUGE_METHOD_LIMIT);
+    }
+
+    @Test
+    public void packedRulesMatchTheInterpreter() {
+        for (int k = 0; k < 15; k++)
+            Backends.assertAgree(rule(k), BiPredicate.class, new Object[]{k, 3}, new Object[]{-4, k}, new Object[]{0, 0});
+    }
+
+    @Test
+    public void largeTreesStartANewClass() {
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        //five nodes a step, which the optimizer cannot fold
+        Expression body = x;
+        int expected = 5;
+        for (int i = 0; i < LambdaPacker.MAX_NODES / 4; i++) {
+            body = Expression.add(body, Expression.multiply(x, Expression.constant(i % 5 + 2)));
+            expected += 5 * (i % 5 + 2);
+        }
+        LambdaExpression large = Expression.lambda(body, x);
+        LambdaExpression small = Expression.lambda(Expression.negate(x), x);
+
+        List<IntUnaryOperator> packed = LambdaCompiler.compileAll(Arrays.asList(small, large, large, small), IntUnaryOperator.class);
+        assertSame(packed.get(0).getClass(), packed.get(1).getClass());
+        assertNotSame(packed.get(1).getClass(), packed.get(2).getClass());
+        assertSame(packed.get(2).getClass(), packed.get(3).getClass());
+        assertEquals(-5, packed.get(3).applyAsInt(5));
+        assertEquals(expected, packed.get(2).applyAsInt(5));
+    }
+
+    @Test
+    public void referenceConstantsStayPerLambda() {
+        List<Object> values = Arrays.<Object>asList(new StringBuilder("a"), "b", null, new int[]{3});
+        List<LambdaExpression> lambdas = new ArrayList<>();
+        for (Object value : values)
+            lambdas.add(Expression.lambda(Expression.constant(value, Object.class)));
+
+        List<Supplier<Object>> packed = LambdaCompiler.compileAll(lambdas, Backends.typed(Supplier.class));
+        for (int i = 0; i < values.size(); i++)
+            assertSame(values.get(i), packed.get(i).get());
+    }
+
+    @Test
+    public void noLambdasNoClasses() {
+        assertTrue(LambdaCompiler.compileAll(Collections.<LambdaExpression>emptyList(), BiPredicate.class).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lambdasMustFitTheInterface() {
+        LambdaCompiler.compileAll(Arrays.asList(rule(0), Expression.lambda(a, a)), BiPredicate.class);
+    }
+}
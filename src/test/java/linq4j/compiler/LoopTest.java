@@ -0,0 +1,166 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToLongFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loops, breaks with values, continues, gotos and returns to labels, and the invariant code moved
+ * out of loops, which must not move what the loop changes.
+ */
+public class LoopTest {
+    private static final String TEST = "linq4j/compiler/LoopTest";
+
+    public static int factor = 7;
+    public static int counter;
+    public static volatile boolean stop;
+
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+    private final ParameterExpression y = Expression.parameter(2, "y", Integer.TYPE);
+
+    @Test
+    public void breakWithAValueAndContinue() {
+        ParameterExpression array = Expression.parameter(1, "array", int[].class);
+        ParameterExpression i = Expression.parameter(2, "i", Integer.TYPE);
+        ParameterExpression sum = Expression.parameter(3, "sum", Long.TYPE);
+        LabelTarget exit = Expression.label(Long.TYPE, "exit");
+        LabelTarget next = Expression.label("next");
+        Expression previous = Expression.arrayAccess(array, Expression.subtract(i, Expression.constant(1)));
+
+        //sums the odd elements times 3 + factor
+        LambdaExpression lambda = Expression.lambda(Expression.block(Long.TYPE, Arrays.asList(i, sum),
+                Expression.assign(i, Expression.constant(0)),
+                Expression.assign(sum, Expression.constant(0L)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.greaterThanOrEqual(i, Expression.arrayLength(array)), Expression._break(exit, sum), Expression.empty()),
+                        Expression.assign(i, Expression.add(i, Expression.constant(1))),
+                        Expression.condition(Expression.equal(Expression.modulo(previous, Expression.constant(2)), Expression.constant(0)), Expression._continue(next), Expression.empty()),
+                        Expression.assign(sum, Expression.add(sum, Expression.multiply(previous,
+                                Expression.add(Expression.constant(3), Expression.makeMemberAccess(null, TEST, "factor", Integer.TYPE)))))),
+                        exit, next)), array);
+
+        ToLongFunction<int[]> compiled = LambdaCompiler.compile(lambda, Backends.typed(ToLongFunction.class));
+        assertEquals(90, compiled.applyAsLong(new int[]{1, 2, 3, 4, 5}));
+        Backends.assertAgree(lambda, ToLongFunction.class, new Object[]{new int[]{1, 2, 3, 4, 5}}, new Object[]{new int[0]}, new Object[]{null});
+    }
+
+    @Test
+    public void returnsToALabelWithADefault() {
+        LabelTarget end = Expression.label(Integer.TYPE, "end");
+        LambdaExpression lambda = Expression.lambda(Expression.block(Integer.TYPE,
+                Expression.condition(Expression.greaterThan(x, Expression.constant(10)), Expression._return(end, Expression.constant(100)), Expression.empty()),
+                Expression.label(end, Expression.multiply(x, Expression.constant(2)))), x);
+
+        IntUnaryOperator compiled = LambdaCompiler.compile(lambda, IntUnaryOperator.class);
+        assertEquals(100, compiled.applyAsInt(20));
+        assertEquals(6, compiled.applyAsInt(3));
+        Backends.assertAgree(lambda, IntUnaryOperator.class, new Object[]{20}, new Object[]{3});
+    }
+
+    @Test
+    public void nestedLoopsBreakTheOuterOne() {
+        ParameterExpression i = Expression.parameter(3, "i", Integer.TYPE);
+        ParameterExpression j = Expression.parameter(4, "j", Integer.TYPE);
+        LabelTarget outer = Expression.label(Integer.TYPE, "outer");
+        LabelTarget inner = Expression.label("inner");
+
+        //the first i * j above y, for i and j counting up from 1 to x
+        LambdaExpression lambda = Expression.lambda(Expression.block(Integer.TYPE, Arrays.asList(i, j),
+                Expression.assign(i, Expression.constant(0)),
+                Expression.loop(Expression.block(
+                        Expression.assign(i, Expression.add(i, Expression.constant(1))),
+                        Expression.condition(Expression.greaterThan(i, x), Expression._break(outer, Expression.constant(-1)), Expression.empty()),
+                        Expression.assign(j, Expression.constant(0)),
+                        Expression.loop(Expression.block(
+                                Expression.assign(j, Expression.add(j, Expression.constant(1))),
+                                Expression.condition(Expression.greaterThan(j, x), Expression._break(inner), Expression.empty()),
+                                Expression.condition(Expression.greaterThan(Expression.multiply(i, j), y), Expression._break(outer, Expression.multiply(i, j)), Expression.empty())),
+                                inner)),
+                        outer)), x, y);
+
+        Backends.assertAgree(lambda, IntBinaryOperator.class, new Object[]{5, 7}, new Object[]{3, 100}, new Object[]{0, 0});
+    }
+
+    @Test
+    public void invariantsStayBehindWritesInTheLoop() {
+        ParameterExpression acc = Expression.parameter(3, "acc", Integer.TYPE);
+        LabelTarget exit = Expression.label(Integer.TYPE, "exit");
+        LambdaExpression parameter = Expression.lambda(Expression.block(Integer.TYPE, Collections.singletonList(acc),
+                Expression.assign(acc, Expression.multiply(x, Expression.constant(3))),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.greaterThan(x, Expression.constant(5)), Expression._break(exit, acc), Expression.empty()),
+                        Expression.assign(acc, Expression.add(acc, Expression.multiply(x, Expression.constant(3)))),
+                        Expression.assign(x, Expression.add(x, Expression.constant(1)))), exit)), x);
+        Backends.assertAgree(parameter, IntUnaryOperator.class, new Object[]{1}, new Object[]{9});
+
+        //the field read is invariant until the loop writes it
+        Expression count = Expression.makeMemberAccess(null, TEST, "counter", Integer.TYPE);
+        LambdaExpression field = Expression.lambda(Expression.block(Integer.TYPE, Collections.singletonList(acc),
+                Expression.assign(count, Expression.constant(0)),
+                Expression.assign(acc, Expression.constant(0)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.greaterThanOrEqual(count, x), Expression._break(exit, acc), Expression.empty()),
+                        Expression.assign(acc, Expression.add(acc, Expression.multiply(y, Expression.makeMemberAccess(null, TEST, "factor", Integer.TYPE)))),
+                        Expression.assign(count, Expression.add(count, Expression.constant(1)))), exit)), x, y);
+
+        IntBinaryOperator compiled = LambdaCompiler.compile(field, IntBinaryOperator.class);
+        assertEquals(4 * 2 * factor, compiled.applyAsInt(4, 2));
+        Backends.assertAgree(field, IntBinaryOperator.class, new Object[]{4, 2}, new Object[]{0, 2});
+    }
+
+    @Test(timeout = 10000)
+    public void volatileFieldsAreReadEveryIteration() throws Exception {
+        ParameterExpression spins = Expression.parameter(2, "spins", Long.TYPE);
+        LabelTarget exit = Expression.label(Long.TYPE, "exit");
+
+        //spins until another thread sets the flag, the loop writing nothing but a local
+        LambdaExpression lambda = Expression.lambda(Expression.block(Long.TYPE, Collections.singletonList(spins),
+                Expression.assign(spins, Expression.constant(0L)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.makeMemberAccess(null, TEST, "stop", Boolean.TYPE), Expression._break(exit, spins), Expression.empty()),
+                        Expression.assign(spins, Expression.add(spins, Expression.convert(x, Long.TYPE)))), exit)), x);
+        IntToLongFunction compiled = LambdaCompiler.compile(lambda, IntToLongFunction.class);
+
+        stop = false;
+        Thread stopper = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stop = true;
+        });
+        stopper.start();
+        assertTrue(compiled.applyAsLong(1) > 0);
+        stopper.join();
+    }
+
+    @Test
+    public void invariantDivisionStillThrowsOnlyWhenReached() {
+        ParameterExpression acc = Expression.parameter(3, "acc", Integer.TYPE);
+        ParameterExpression i = Expression.parameter(4, "i", Integer.TYPE);
+        LabelTarget exit = Expression.label(Integer.TYPE, "exit");
+
+        //the loop never runs its body when x is 0, so 1 / y must not be evaluated
+        LambdaExpression lambda = Expression.lambda(Expression.block(Integer.TYPE, Arrays.asList(acc, i),
+                Expression.assign(acc, Expression.constant(0)),
+                Expression.assign(i, Expression.constant(0)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.greaterThanOrEqual(i, x), Expression._break(exit, acc), Expression.empty()),
+                        Expression.assign(acc, Expression.add(acc, Expression.divide(Expression.constant(100), y))),
+                        Expression.assign(i, Expression.add(i, Expression.constant(1)))), exit)), x, y);
+
+        IntBinaryOperator compiled = LambdaCompiler.compile(lambda, IntBinaryOperator.class);
+        assertEquals(0, compiled.applyAsInt(0, 0));
+        Backends.assertAgree(lambda, IntBinaryOperator.class, new Object[]{0, 0}, new Object[]{3, 0}, new Object[]{3, 7});
+    }
+}
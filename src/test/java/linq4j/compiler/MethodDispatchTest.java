@@ -0,0 +1,123 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Static, virtual and interface calls, named or bound from reflection, on receivers overriding or
+ * implementing the method called.
+ */
+public class MethodDispatchTest {
+    private static final String PERSON = "linq4j/compiler/MethodDispatchTest$Person";
+
+    public static class Person {
+        public String getName() {
+            return "person";
+        }
+
+        public String greet(String who, int times) {
+            return getName() + " greets " + who + " " + times;
+        }
+    }
+
+    public static class Student extends Person {
+        @Override
+        public String getName() {
+            return "student";
+        }
+    }
+
+    public static class Named implements Supplier<String> {
+        @Override
+        public String get() {
+            return "named";
+        }
+    }
+
+    public static String join(String first, String second) {
+        return first + "," + second;
+    }
+
+    private final ParameterExpression p = Expression.parameter(1, "p", Person.class);
+    private final ParameterExpression o = Expression.parameter(1, "o", Object.class);
+    private final ParameterExpression s = Expression.parameter(2, "s", String.class);
+
+    @Test
+    public void virtualCallsReachOverrides() {
+        LambdaExpression name = Expression.lambda(Expression.call(p, new MethodInfo(PERSON, "getName", String.class)), p);
+        Backends.assertAgree(name, Function.class, new Object[]{new Person()}, new Object[]{new Student()}, new Object[]{null});
+        Function<Object, Object> compiled = LambdaCompiler.compile(name, Backends.typed(Function.class));
+        assertEquals("student", compiled.apply(new Student()));
+
+        LambdaExpression greet = Expression.lambda(Expression.call(Expression.convert(o, Person.class),
+                new MethodInfo(PERSON, "greet", String.class, String.class, Integer.TYPE), s, Expression.constant(2)), o, s);
+        Backends.assertAgree(greet, BiFunction.class, new Object[]{new Student(), "x"}, new Object[]{new Person(), null}, new Object[]{"no person", "x"});
+    }
+
+    @Test
+    public void interfaceCallsByName() {
+        ParameterExpression list = Expression.parameter(1, "list", List.class);
+        LambdaExpression size = Expression.lambda(Expression.convert(Expression.call(list, new MethodInfo("java/util/List", "size", Integer.TYPE)), Object.class), list);
+        Backends.assertAgree(size, Function.class, new Object[]{Arrays.asList(1, 2)}, new Object[]{new ArrayList<>()}, new Object[]{Collections.emptyList()});
+
+        ParameterExpression supplier = Expression.parameter(1, "supplier", Supplier.class);
+        LambdaExpression get = Expression.lambda(Expression.call(supplier, new MethodInfo("java/util/function/Supplier", "get", Object.class)), supplier);
+        Backends.assertAgree(get, Function.class, new Object[]{new Named()}, new Object[]{(Supplier<String>) () -> "lambda"});
+    }
+
+    @Test
+    public void reflectedMethodsKeepTheirKind() throws Exception {
+        MethodInfo get = new MethodInfo(Supplier.class.getMethod("get"));
+        MethodInfo getName = new MethodInfo(Person.class.getMethod("getName"));
+        MethodInfo naturalOrder = new MethodInfo(Comparator.class.getMethod("naturalOrder"));
+        MethodInfo join = new MethodInfo(MethodDispatchTest.class.getMethod("join", String.class, String.class));
+
+        assertEquals(InvocationKind.Interface, get.getKind());
+        assertEquals(InvocationKind.Virtual, getName.getKind());
+        assertEquals(InvocationKind.Static, naturalOrder.getKind());
+        assertTrue(naturalOrder.isOnInterface());
+        assertEquals(InvocationKind.Static, join.getKind());
+        assertNull(new MethodInfo(PERSON, "getName", String.class).getKind());
+
+        Backends.assertAgree(Expression.lambda(Expression.call(Expression.convert(o, Supplier.class), get), o), Function.class,
+                new Object[]{new Named()}, new Object[]{new Person()});
+        Backends.assertAgree(Expression.lambda(Expression.call(p, getName), p), Function.class, new Object[]{new Student()});
+
+        LambdaExpression compare = Expression.lambda(Expression.convert(Expression.call(Expression.call(null, naturalOrder),
+                new MethodInfo(Comparator.class.getMethod("compare", Object.class, Object.class)), o, s), Object.class), o, s);
+        Backends.assertAgree(compare, BiFunction.class, new Object[]{"a", "b"}, new Object[]{"b", "a"}, new Object[]{"a", "a"});
+    }
+
+    @Test
+    public void argumentsRunLeftToRight() throws Exception {
+        ParameterExpression v = Expression.parameter(3, "v", String.class);
+        MethodInfo join = new MethodInfo(MethodDispatchTest.class.getMethod("join", String.class, String.class));
+        LambdaExpression lambda = Expression.lambda(Expression.block(String.class, Collections.singletonList(v),
+                Expression.call(null, join, Expression.block(String.class, Collections.<ParameterExpression>emptyList(),
+                        Expression.assign(v, Expression.call(s, new MethodInfo("java/lang/String", "concat", String.class, String.class), s)), v), v)), o, s);
+
+        Backends.assertAgree(lambda, BiFunction.class, new Object[]{null, "ab"}, new Object[]{null, null});
+        BiFunction<Object, Object, Object> compiled = LambdaCompiler.compile(lambda, Backends.typed(BiFunction.class));
+        assertEquals("abab,abab", compiled.apply(null, "ab"));
+    }
+
+    @Test
+    public void descriptorsAreBuiltOnce() {
+        MethodInfo greet = new MethodInfo(PERSON, "greet", String.class, String.class, Integer.TYPE);
+        assertEquals("(Ljava/lang/String;I)Ljava/lang/String;", greet.getDescriptor());
+        assertSame(greet.getDescriptor(), greet.getDescriptor());
+        assertSame(greet.getDescriptor(), new MethodInfo(PERSON, "greet", String.class, String.class, Integer.TYPE).getDescriptor());
+        assertEquals("([[J)V", new MethodInfo(PERSON, "fill", Void.TYPE, long[][].class).getDescriptor());
+    }
+}
@@ -0,0 +1,77 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.*;
+
+public class MethodHandleCompilerTest {
+    private final ParameterExpression a = Expression.parameter(1, "a", Integer.TYPE);
+    private final ParameterExpression b = Expression.parameter(2, "b", Integer.TYPE);
+
+    @Test
+    public void handlesTakeTheParametersOfTheLambda() throws Throwable {
+        MethodHandle handle = MethodHandleCompiler.compile(Expression.lambda(Expression.subtract(a, b), a, b));
+
+        assertEquals(MethodType.methodType(Integer.TYPE, Integer.TYPE, Integer.TYPE), handle.type());
+        assertEquals(-3, (int) handle.invokeExact(2, 5));
+    }
+
+    @Test
+    public void agreesWithTheInterpreter() {
+        ParameterExpression sum = Expression.parameter(3, "sum", Integer.TYPE);
+        LabelTarget exit = Expression.label("exit");
+        //sums a down to 0 in steps of b
+        LambdaExpression loop = Expression.lambda(Expression.block(Integer.TYPE, Collections.singletonList(sum),
+                Expression.assign(sum, Expression.constant(0)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.lessThanOrEqual(a, Expression.constant(0)), Expression._break(exit), Expression.empty()),
+                        Expression.assign(sum, Expression.add(sum, a)),
+                        Expression.assign(a, Expression.subtract(a, b))), exit),
+                sum), a, b);
+        Backends.assertAgree(loop, IntBinaryOperator.class, new Object[]{10, 1}, new Object[]{10, 3}, new Object[]{-1, 1});
+
+        LambdaExpression conditional = Expression.lambda(Expression.condition(Expression.greaterThan(a, b),
+                Expression.divide(a, b), Expression.modulo(b, a)), a, b);
+        Backends.assertAgree(conditional, IntBinaryOperator.class, new Object[]{7, 2}, new Object[]{2, 7}, new Object[]{0, -1}, new Object[]{0, 0});
+    }
+
+    @Test
+    public void unboxingNullThrows() {
+        ParameterExpression boxed = Expression.parameter(1, "boxed", Integer.class);
+        ToIntFunction<Integer> unbox = MethodHandleCompiler.compile(Expression.lambda(boxed, boxed), Backends.typed(ToIntFunction.class));
+        assertEquals(4, unbox.applyAsInt(4));
+        try {
+            unbox.applyAsInt(null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+
+        Function<Integer, Object> increment = MethodHandleCompiler.compile(Expression.lambda(Expression.add(a, Expression.constant(1)), a), Backends.typed(Function.class));
+        assertEquals(2, increment.apply(1));
+        try {
+            increment.apply(null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void boxedNullPassesThroughReferenceTypes() {
+        Supplier<Object> supplier = MethodHandleCompiler.compile(Expression.lambda(Expression.constant(null, Integer.class)), Backends.typed(Supplier.class));
+        assertNull(supplier.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInterfaceOfAnotherArity() {
+        MethodHandleCompiler.compile(Expression.lambda(Expression.add(a, b), a, b), Function.class);
+    }
+}
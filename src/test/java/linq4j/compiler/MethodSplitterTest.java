@@ -0,0 +1,80 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bodies too large for one method, flat and deep.
+ */
+public class MethodSplitterTest {
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+
+    private void assertCompiles(Expression body, int... expected) {
+        LambdaExpression lambda = Expression.lambda(IntUnaryOperator.class, body, x);
+        List<IntUnaryOperator> compiled = Arrays.asList(
+                LambdaCompiler.compile(lambda, IntUnaryOperator.class),
+                lambda.compile(IntUnaryOperator.class),
+                LambdaCompiler.compileAll(Collections.singletonList(lambda), IntUnaryOperator.class).get(0));
+
+        for (IntUnaryOperator operator : compiled) {
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i], operator.applyAsInt(i));
+        }
+    }
+
+    @Test
+    public void flatBlocksSplit() {
+        ParameterExpression sum = Expression.parameter(2, "sum", Integer.TYPE);
+        List<Expression> statements = new ArrayList<>();
+        statements.add(Expression.assign(sum, Expression.constant(0)));
+        for (int i = 0; i < 8000; i++)
+            statements.add(Expression.assign(sum, Expression.add(sum, Expression.multiply(x, Expression.constant(i % 7)))));
+        statements.add(sum);
+
+        Expression body = Expression.block(Integer.TYPE, Collections.singletonList(sum), statements.toArray(new Expression[0]));
+        Backends.assertAgree(Expression.lambda(body, x), IntUnaryOperator.class, new Object[]{0}, new Object[]{1}, new Object[]{5});
+    }
+
+    @Test
+    public void deepOperatorChainsCompile() {
+        Expression body = x;
+        int[] expected = new int[4];
+        for (int i = 0; i < 3000; i++) {
+            body = Expression.add(body, Expression.multiply(x, Expression.constant(i)));
+            for (int k = 0; k < expected.length; k++)
+                expected[k] += k * i;
+        }
+        for (int k = 0; k < expected.length; k++)
+            expected[k] += k;
+
+        assertCompiles(body, expected);
+    }
+
+    @Test
+    public void deepConditionalChainsSplit() {
+        //about 65KB of code in one expression, split from the bottom of the chain up
+        Expression body = Expression.constant(-1);
+        for (int i = 0; i < 5000; i++)
+            body = Expression.condition(Expression.equal(x, Expression.constant(i)), Expression.constant(i * 2), body);
+
+        assertCompiles(body, 0, 2, 4, 6);
+    }
+
+    @Test
+    public void depthIsCountedWithoutRecursion() {
+        Expression body = x;
+        for (int i = 0; i < 100000; i++)
+            body = Expression.negate(body);
+
+        assertEquals(100001, DeepTrees.depth(body));
+        assertEquals(3, DeepTrees.depth(Expression.condition(Expression.equal(x, Expression.constant(0)), x, Expression.constant(1))));
+    }
+}
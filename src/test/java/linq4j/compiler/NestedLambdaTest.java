@@ -0,0 +1,205 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lambdas nested in trees, capturing parameters, block variables and loop counters or nothing,
+ * passed to the methods below.
+ */
+public class NestedLambdaTest {
+    public static Object sorted(List<String> list, Comparator<String> comparator) {
+        List<String> sorted = new ArrayList<>(list);
+        sorted.sort(comparator);
+        return sorted;
+    }
+
+    public static Object map(List<String> list, Function<String, Object> function) {
+        List<Object> mapped = new ArrayList<>();
+        for (String each : list)
+            mapped.add(function.apply(each));
+        return mapped;
+    }
+
+    public static Object filter(List<String> list, Predicate<String> predicate) {
+        List<Object> filtered = new ArrayList<>();
+        for (String each : list) {
+            if (predicate.test(each))
+                filtered.add(each);
+        }
+        return filtered;
+    }
+
+    public static int applyInt(IntUnaryOperator operator, int value) {
+        return operator.applyAsInt(value);
+    }
+
+    public static Object supply(Function<String, Supplier<String>> function, String value) {
+        return function.apply(value).get();
+    }
+
+    public static Object each(List<String> list, Consumer<List<String>> consumer) {
+        List<String> copy = new ArrayList<>(list);
+        consumer.accept(copy);
+        return copy;
+    }
+
+    public static Object apply(Function<Object, Object> function, Object value) {
+        return function.apply(value);
+    }
+
+    public static Object same(Supplier<Object> supplier) {
+        return supplier;
+    }
+
+    private final ParameterExpression r = Expression.parameter(1, "r", Object.class);
+    private final ParameterExpression s = Expression.parameter(2, "s", String.class);
+    private final ParameterExpression a = Expression.parameter(10, "a", String.class);
+    private final ParameterExpression b = Expression.parameter(11, "b", String.class);
+    private final ParameterExpression x = Expression.parameter(12, "x", Integer.TYPE);
+    private final ParameterExpression v = Expression.parameter(5, "v", Integer.TYPE);
+
+    private final MethodInfo length = MethodInfo.pure("java/lang/String", "length", Integer.TYPE);
+    private final MethodInfo concat = MethodInfo.pure("java/lang/String", "concat", String.class, String.class);
+
+    private static MethodInfo method(String name, Class<?>... types) throws Exception {
+        return new MethodInfo(NestedLambdaTest.class.getMethod(name, types));
+    }
+
+    private Expression list() {
+        return Expression.convert(r, List.class);
+    }
+
+    private void assertAgree(Expression body) {
+        List<Object[]> arguments = new ArrayList<>();
+        for (Object list : new Object[]{Arrays.asList("ccc", "a", "bb", "zzzz", "ab"), Collections.emptyList(), Collections.singletonList("x")}) {
+            for (String string : new String[]{"b", "zz", null})
+                arguments.add(new Object[]{list, string});
+        }
+        Backends.assertAgree(Expression.lambda(Expression.convert(body, Object.class), r, s), BiFunction.class, arguments.toArray(new Object[0][]));
+    }
+
+    @Test
+    public void nonCapturingLambdas() throws Exception {
+        assertAgree(Expression.call(method("sorted", List.class, Comparator.class), list(),
+                Expression.lambda(Comparator.class, Expression.subtract(Expression.call(a, length), Expression.call(b, length)), a, b)));
+        assertAgree(Expression.call(method("map", List.class, Function.class), list(), Expression.lambda(Function.class, Expression.call(a, length), a)));
+        assertAgree(Expression.call(method("map", List.class, Function.class), list(),
+                Expression.lambda(Function.class, Expression.call(a, concat, Expression.constant("!")), a)));
+        assertAgree(Expression.call(method("apply", Function.class, Object.class),
+                Expression.lambda(Function.class, Expression.convert(Expression.add(x, Expression.constant(1)), Object.class), x), Expression.constant(41, Object.class)));
+    }
+
+    @Test
+    public void capturingParametersAndVariables() throws Exception {
+        MethodInfo indexOf = MethodInfo.pure("java/lang/String", "indexOf", Integer.TYPE, String.class);
+        MethodInfo compare = MethodInfo.pure("java/lang/Integer", "compare", Integer.TYPE, Integer.TYPE, Integer.TYPE);
+        assertAgree(Expression.call(method("sorted", List.class, Comparator.class), list(),
+                Expression.lambda(Comparator.class, Expression.call(compare, Expression.call(a, indexOf, s), Expression.call(b, indexOf, s)), a, b)));
+
+        ParameterExpression w = Expression.parameter(6, "w", Long.TYPE);
+        assertAgree(Expression.block(Object.class, Arrays.asList(w, v),
+                Expression.assign(w, Expression.constant(7L)),
+                Expression.assign(v, Expression.call(s, length)),
+                Expression.call(method("filter", List.class, Predicate.class), list(),
+                        Expression.lambda(Predicate.class, Expression.greaterThan(Expression.call(a, length), v), a))));
+
+        assertAgree(Expression.block(Integer.TYPE, Collections.singletonList(v),
+                Expression.assign(v, Expression.call(s, length)),
+                Expression.call(method("applyInt", IntUnaryOperator.class, int.class),
+                        Expression.lambda(IntUnaryOperator.class, Expression.multiply(x, v), x), Expression.constant(3))));
+
+        ParameterExpression z = Expression.parameter(14, "z", Object.class);
+        assertAgree(Expression.call(method("each", List.class, Consumer.class), list(),
+                Expression.lambda(Consumer.class, Expression.call(Expression.convert(z, List.class),
+                        new MethodInfo(List.class.getMethod("add", Object.class)), s), z)));
+    }
+
+    @Test
+    public void lambdasInLambdasAndLoops() throws Exception {
+        ParameterExpression y = Expression.parameter(13, "y", String.class);
+        assertAgree(Expression.call(method("supply", Function.class, String.class),
+                Expression.lambda(Function.class, Expression.lambda(Supplier.class, Expression.call(Expression.call(y, concat, s), concat, y)), y),
+                Expression.constant("q")));
+
+        ParameterExpression i = Expression.parameter(3, "i", Integer.TYPE);
+        ParameterExpression sum = Expression.parameter(4, "sum", Integer.TYPE);
+        LabelTarget done = Expression.label("done");
+        assertAgree(Expression.block(Integer.TYPE, Arrays.asList(i, sum),
+                Expression.assign(i, Expression.constant(0)),
+                Expression.assign(sum, Expression.constant(0)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.greaterThanOrEqual(i, Expression.constant(5)), Expression._break(done), Expression.empty()),
+                        Expression.assign(sum, Expression.add(sum, Expression.call(method("applyInt", IntUnaryOperator.class, int.class),
+                                Expression.lambda(IntUnaryOperator.class, Expression.add(x, i), x), sum))),
+                        Expression.assign(i, Expression.add(i, Expression.constant(1)))), done),
+                sum));
+
+        //the lambda's own variables are not captures
+        ParameterExpression t = Expression.parameter(1, "t", String.class);
+        assertAgree(Expression.call(method("map", List.class, Function.class), list(),
+                Expression.lambda(Function.class, Expression.block(Object.class, Collections.singletonList(t),
+                        Expression.assign(t, Expression.call(a, concat, a)),
+                        Expression.convert(Expression.call(t, length), Object.class)), a)));
+    }
+
+    @Test
+    public void nonCapturingLambdasAreCreatedOnce() throws Exception {
+        //constants are fields of the compiled lambda, which a nested lambda reading them captures
+        LambdaExpression none = Expression.lambda(Expression.call(method("same", Supplier.class),
+                Expression.lambda(Supplier.class, Expression.call(new MethodInfo(System.class.getMethod("lineSeparator"))))), r, s);
+        LambdaExpression capturing = Expression.lambda(Expression.call(method("same", Supplier.class),
+                Expression.lambda(Supplier.class, Expression.convert(s, Object.class))), r, s);
+
+        for (LambdaExpression lambda : new LambdaExpression[]{none, capturing}) {
+            Class<BiFunction<Object, Object, Object>> type = Backends.typed(BiFunction.class);
+            List<BiFunction<Object, Object, Object>> functions = Arrays.asList(LambdaCompiler.compile(lambda, type),
+                    LambdaCompiler.compileAll(Collections.singletonList(lambda), type).get(0),
+                    MethodHandleCompiler.compile(lambda, type));
+
+            for (BiFunction<Object, Object, Object> function : functions) {
+                Object first = function.apply(null, "s");
+                assertEquals(lambda == none, first == function.apply(null, "s"));
+                assertEquals(lambda == none ? System.lineSeparator() : "s", ((Supplier<?>) first).get());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capturedVariablesCannotBeAssigned() {
+        //rejected as the nested lambda is built, before any backend sees it
+        Expression.lambda(Supplier.class, Expression.block(Object.class, Collections.<ParameterExpression>emptyList(),
+                Expression.assign(s, Expression.constant("t")), s));
+    }
+
+    @Test
+    public void ownVariablesCanBeAssigned() throws Exception {
+        ParameterExpression t = Expression.parameter(3, "t", Object.class);
+        LambdaExpression lambda = Expression.lambda(Expression.call(method("same", Supplier.class),
+                Expression.lambda(Supplier.class, Expression.block(Object.class, Collections.singletonList(t),
+                        Expression.assign(t, s), t))), r, s);
+
+        BiFunction<Object, Object, Supplier<?>> compiled = LambdaCompiler.compile(lambda, Backends.typed(BiFunction.class));
+        assertEquals("s", compiled.apply(null, "s").get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nestedLambdasNeedAnInterface() throws Exception {
+        LambdaCompiler.compile(Expression.lambda(Expression.call(method("same", Supplier.class),
+                Expression.lambda(Expression.constant(1, Object.class))), r, s), BiFunction.class);
+    }
+}
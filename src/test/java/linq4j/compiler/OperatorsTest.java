@@ -0,0 +1,137 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Arithmetic, bitwise and comparison operators over every pair of numeric types, including the
+ * promotions between them, against the interpreter.
+ */
+public class OperatorsTest {
+    private static final Class<?>[] TYPES = {Integer.TYPE, Long.TYPE, Double.TYPE, Float.TYPE, Short.TYPE, Character.TYPE, Byte.TYPE, Integer.class};
+
+    private static final Object[][] VALUES = {
+            {7, -3, 0, Integer.MIN_VALUE},
+            {Long.MAX_VALUE, 2L, 0L, -5L},
+            {Double.NaN, 1.0, 0.0, -2.5},
+            {1.5f, -2.5f, 0f, Float.POSITIVE_INFINITY},
+            {(short) 5, (short) 3, (short) 0, Short.MIN_VALUE},
+            {'a', 'b', (char) 0, Character.MAX_VALUE},
+            {(byte) 1, (byte) -1, (byte) 0, Byte.MIN_VALUE},
+            {10, 4, 0, null}
+    };
+
+    private static final ExpressionType[] NUMERIC = {
+            ExpressionType.Add, ExpressionType.Subtract, ExpressionType.Multiply, ExpressionType.Divide, ExpressionType.Modulo,
+            ExpressionType.Equal, ExpressionType.NotEqual, ExpressionType.LessThan, ExpressionType.LessThanOrEqual,
+            ExpressionType.GreaterThan, ExpressionType.GreaterThanOrEqual, ExpressionType.Power
+    };
+
+    private static final ExpressionType[] INTEGRAL = {
+            ExpressionType.And, ExpressionType.Or, ExpressionType.ExclusiveOr, ExpressionType.LeftShift, ExpressionType.RightShift,
+            ExpressionType.AddChecked, ExpressionType.SubtractChecked, ExpressionType.MultiplyChecked
+    };
+
+    public interface IntegerComparison {
+        boolean test(Integer a, Integer b);
+    }
+
+    private final ParameterExpression x = Expression.parameter(1, "x", Object.class);
+    private final ParameterExpression y = Expression.parameter(2, "y", Object.class);
+
+    @Test
+    public void binaryOperatorsOverEveryPairOfTypes() {
+        for (int i = 0; i < TYPES.length; i++) {
+            for (int j = 0; j < TYPES.length; j++) {
+                List<ExpressionType> operators = new ArrayList<>(Arrays.asList(NUMERIC));
+                if (TypeUtils.isIntegral(TYPES[i]) && TypeUtils.isIntegral(TYPES[j]))
+                    operators.addAll(Arrays.asList(INTEGRAL));
+
+                List<Object[]> arguments = new ArrayList<>();
+                for (Object left : VALUES[i])
+                    for (Object right : VALUES[j])
+                        arguments.add(new Object[]{left, right});
+
+                for (ExpressionType operator : operators) {
+                    Expression body = Expression.makeBinary(operator, Expression.convert(x, TYPES[i]), Expression.convert(y, TYPES[j]));
+                    Backends.assertAgree(Expression.lambda(Expression.convert(body, Object.class), x, y), BiFunction.class,
+                            arguments.toArray(new Object[0][]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unaryOperators() {
+        for (int i = 0; i < TYPES.length; i++) {
+            Object[][] arguments = new Object[VALUES[i].length][];
+            for (int k = 0; k < arguments.length; k++)
+                arguments[k] = new Object[]{VALUES[i][k]};
+
+            Expression operand = Expression.convert(x, TYPES[i]);
+            Backends.assertAgree(Expression.lambda(Expression.convert(Expression.negate(operand), Object.class), x), Function.class, arguments);
+            if (TypeUtils.isIntegral(TYPES[i]))
+                Backends.assertAgree(Expression.lambda(Expression.convert(Expression.onesComplement(operand), Object.class), x), Function.class, arguments);
+        }
+    }
+
+    @Test
+    public void booleanOperators() {
+        ParameterExpression a = Expression.parameter(1, "a", Boolean.TYPE);
+        ParameterExpression b = Expression.parameter(2, "b", Boolean.TYPE);
+        Object[][] arguments = {{true, true}, {true, false}, {false, true}, {false, false}};
+
+        for (ExpressionType operator : new ExpressionType[]{ExpressionType.And, ExpressionType.Or, ExpressionType.ExclusiveOr, ExpressionType.Equal, ExpressionType.NotEqual})
+            Backends.assertAgree(Expression.lambda(Expression.makeBinary(operator, a, b), a, b), BiFunction.class, arguments);
+        Backends.assertAgree(Expression.lambda(Expression.not(Expression.and(a, b)), a, b), BiFunction.class, arguments);
+    }
+
+    @Test
+    public void notOfAComparison() {
+        ParameterExpression i = Expression.parameter(1, "i", Integer.TYPE);
+        IntPredicate atMostFive = LambdaCompiler.compile(Expression.lambda(Expression.not(Expression.greaterThan(i, Expression.constant(5))), i), IntPredicate.class);
+
+        assertTrue(atMostFive.test(3));
+        assertFalse(atMostFive.test(9));
+    }
+
+    @Test
+    public void boxedNumbersCompareByValue() {
+        ParameterExpression a = Expression.parameter(1, "a", Integer.class);
+        ParameterExpression b = Expression.parameter(2, "b", Integer.class);
+        ParameterExpression l = Expression.parameter(2, "l", Long.class);
+        //1000 is outside the Integer cache, so two boxes of it are distinct references
+        Object[][] arguments = {{1000, Integer.valueOf(1000)}, {1000, 999}, {-1, 1000}, {null, 1}};
+
+        for (ExpressionType operator : new ExpressionType[]{ExpressionType.Equal, ExpressionType.NotEqual, ExpressionType.LessThan, ExpressionType.GreaterThanOrEqual}) {
+            Backends.assertAgree(Expression.lambda(Expression.makeBinary(operator, a, b), a, b), BiFunction.class, arguments);
+            Backends.assertAgree(Expression.lambda(Expression.makeBinary(operator, a, l), a, l), BiFunction.class, new Object[]{1000, 1000L}, new Object[]{5, 4L});
+        }
+
+        IntegerComparison equal = LambdaCompiler.compile(Expression.lambda(Expression.equal(a, b), a, b), IntegerComparison.class);
+        assertTrue(equal.test(1000, Integer.valueOf(1000)));
+        IntegerComparison less = LambdaCompiler.compile(Expression.lambda(Expression.lessThan(a, b), a, b), IntegerComparison.class);
+        assertTrue(less.test(-1000, 1000));
+    }
+
+    @Test
+    public void referencesCompareByIdentity() {
+        ParameterExpression s = Expression.parameter(1, "s", String.class);
+        Predicate<String> isNull = LambdaCompiler.compile(Expression.lambda(Expression.equal(s, Expression.constant(null, String.class)), s), Backends.typed(Predicate.class));
+
+        assertTrue(isNull.test(null));
+        assertFalse(isNull.test("a"));
+        Backends.assertAgree(Expression.lambda(Expression.notEqual(x, y), x, y), BiFunction.class,
+                new Object[]{"a", "a"}, new Object[]{"a", new String("a")}, new Object[]{null, null});
+    }
+}
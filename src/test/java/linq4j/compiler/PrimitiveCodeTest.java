@@ -0,0 +1,102 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Locals, arrays, fields and conversions of every primitive type, which the generator loads and
+ * stores without boxing.
+ */
+public class PrimitiveCodeTest {
+    public static int count = 42;
+    public double weight = 2.5;
+
+    private static final Object[][] VALUES = {
+            {true, false},
+            {(byte) 0, (byte) -128, (byte) 127},
+            {'a', Character.MAX_VALUE},
+            {(short) -1, Short.MIN_VALUE},
+            {0, -7, Integer.MAX_VALUE},
+            {0L, Long.MIN_VALUE, 1L << 40},
+            {0f, -0f, Float.NaN, Float.MAX_VALUE},
+            {0d, -1.5, Double.NaN, Double.NEGATIVE_INFINITY}
+    };
+
+    private static final Class<?>[] TYPES = {Boolean.TYPE, Byte.TYPE, Character.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE};
+
+    private static Object[][] arguments(Object... values) {
+        Object[][] arguments = new Object[values.length][];
+        for (int i = 0; i < values.length; i++)
+            arguments[i] = new Object[]{values[i]};
+        return arguments;
+    }
+
+    @Test
+    public void localsAndArraysOfEveryType() {
+        for (int t = 0; t < TYPES.length; t++) {
+            Class<?> type = TYPES[t];
+            ParameterExpression p = Expression.parameter(1, "p", type);
+            ParameterExpression v = Expression.parameter(2, "v", type);
+            ParameterExpression array = Expression.parameter(3, "array", Array.newInstance(type, 0).getClass());
+
+            LambdaExpression lambda = Expression.lambda(Expression.block(Object.class, Arrays.asList(v, array),
+                    Expression.assign(v, p),
+                    Expression.assign(array, Expression.newArray(type, v, Expression._default(type))),
+                    Expression.assign(Expression.arrayAccess(array, Expression.constant(1)), v),
+                    Expression.convert(Expression.arrayAccess(array, Expression.constant(1)), Object.class)), p);
+
+            Backends.assertAgree(lambda, Function.class, arguments(VALUES[t]));
+        }
+    }
+
+    @Test
+    public void conversionsBetweenNumericTypes() {
+        for (int from = 1; from < TYPES.length; from++) {
+            ParameterExpression p = Expression.parameter(1, "p", TYPES[from]);
+
+            for (int to = 1; to < TYPES.length; to++) {
+                LambdaExpression lambda = Expression.lambda(Expression.convert(Expression.convert(p, TYPES[to]), Object.class), p);
+                Backends.assertAgree(lambda, Function.class, arguments(VALUES[from]));
+            }
+        }
+    }
+
+    @Test
+    public void wideLocalsNextToNarrowOnes() {
+        ParameterExpression x = Expression.parameter(1, "x", Long.TYPE);
+        ParameterExpression d = Expression.parameter(3, "d", Double.TYPE);
+        ParameterExpression i = Expression.parameter(5, "i", Integer.TYPE);
+        ParameterExpression l = Expression.parameter(6, "l", Long.TYPE);
+
+        LambdaExpression lambda = Expression.lambda(Expression.block(Long.TYPE, Arrays.asList(d, i, l),
+                Expression.assign(d, Expression.convert(x, Double.TYPE)),
+                Expression.assign(i, Expression.convert(x, Integer.TYPE)),
+                Expression.assign(l, Expression.add(x, Expression.convert(i, Long.TYPE))),
+                Expression.add(l, Expression.convert(d, Long.TYPE))), x);
+
+        Backends.assertAgree(lambda, LongUnaryOperator.class, new Object[]{7L}, new Object[]{1L << 33}, new Object[]{-1L});
+    }
+
+    @Test
+    public void staticAndInstanceFields() {
+        ParameterExpression o = Expression.parameter(1, "o", Object.class);
+        String owner = "linq4j/compiler/PrimitiveCodeTest";
+        Expression test = Expression.convert(o, PrimitiveCodeTest.class);
+
+        LambdaExpression lambda = Expression.lambda(Expression.add(
+                Expression.makeMemberAccess(test, owner, "weight", Double.TYPE),
+                Expression.convert(Expression.makeMemberAccess(null, owner, "count", Integer.TYPE), Double.TYPE)), o);
+
+        ToDoubleFunction<Object> compiled = LambdaCompiler.compile(lambda, Backends.typed(ToDoubleFunction.class));
+        assertEquals(44.5, compiled.applyAsDouble(new PrimitiveCodeTest()), 0);
+        Backends.assertAgree(lambda, ToDoubleFunction.class, new Object[]{new PrimitiveCodeTest()}, new Object[]{null});
+    }
+}
@@ -0,0 +1,165 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@code &&}, {@code ||}, {@code ??} and conditionals, which compile to jumps and must evaluate
+ * their right side or branches only when the interpreter does.
+ */
+public class ShortCircuitTest {
+    private static final int[] VALUES = {-9, -6, 0, 3, 4, 11, 12, 13};
+
+    public static int calls;
+
+    public static boolean expensive(int value) {
+        calls++;
+        return value % 3 == 0;
+    }
+
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+    private final Expression greater = Expression.greaterThan(x, Expression.constant(10));
+    private final Expression call = Expression.call(new MethodInfo("linq4j/compiler/ShortCircuitTest", "expensive", Boolean.TYPE, Integer.TYPE), x);
+
+    private void assertShortCircuits(Expression body) {
+        LambdaExpression lambda = Expression.lambda(body, x);
+        IntPredicate compiled = LambdaCompiler.compile(lambda, IntPredicate.class);
+
+        Object[][] arguments = new Object[VALUES.length][];
+        for (int i = 0; i < VALUES.length; i++) {
+            calls = 0;
+            Object expected = Backends.interpret(lambda, FunctionalInterfaces.findMethod(IntPredicate.class), VALUES[i]);
+            int expectedCalls = calls;
+
+            calls = 0;
+            assertEquals(expected, compiled.test(VALUES[i]));
+            assertEquals("calls for " + VALUES[i], expectedCalls, calls);
+            arguments[i] = new Object[]{VALUES[i]};
+        }
+
+        Backends.assertAgree(lambda, IntPredicate.class, arguments);
+    }
+
+    @Test
+    public void andAlsoAndOrElse() {
+        assertShortCircuits(Expression.andAlso(greater, call));
+        assertShortCircuits(Expression.orElse(greater, call));
+        assertShortCircuits(Expression.not(Expression.andAlso(greater, call)));
+        assertShortCircuits(Expression.andAlso(Expression.orElse(greater, Expression.lessThan(x, Expression.constant(-5))), call));
+        assertShortCircuits(Expression.orElse(Expression.andAlso(greater, call), Expression.equal(x, Expression.constant(3))));
+        assertShortCircuits(Expression.andAlso(Expression.constant(true), call));
+        assertShortCircuits(Expression.orElse(Expression.constant(false), call));
+        assertShortCircuits(Expression.equal(Expression.andAlso(greater, call), Expression.orElse(greater, call)));
+    }
+
+    @Test
+    public void conditionalPredicates() {
+        assertShortCircuits(Expression.condition(greater, call, Expression.constant(false)));
+        assertShortCircuits(Expression.condition(greater, call, Expression.constant(true), BranchHint.Unlikely));
+        assertShortCircuits(Expression.condition(Expression.not(greater), Expression.constant(true), call, BranchHint.Likely));
+    }
+
+    @Test
+    public void conditionalValues() {
+        Expression value = Expression.condition(greater, Expression.multiply(x, Expression.constant(2L)), Expression.constant(7), BranchHint.Likely);
+        LambdaExpression lambda = Expression.lambda(value, x);
+        IntToLongFunction compiled = LambdaCompiler.compile(lambda, IntToLongFunction.class);
+
+        assertEquals(40, compiled.applyAsLong(20));
+        assertEquals(7, compiled.applyAsLong(1));
+        Backends.assertAgree(lambda, IntToLongFunction.class, new Object[]{20}, new Object[]{1});
+
+        ParameterExpression y = Expression.parameter(2, "y", Integer.TYPE);
+        Expression square = Expression.multiply(y, y);
+        Backends.assertAgree(Expression.lambda(Expression.add(Expression.condition(greater, square, Expression.constant(0)), square), x, y),
+                IntBinaryOperator.class, new Object[]{20, 3}, new Object[]{1, 3});
+    }
+
+    @Test
+    public void conditionalStatements() {
+        ParameterExpression array = Expression.parameter(1, "array", int[].class);
+        Expression first = Expression.arrayAccess(array, Expression.constant(0));
+        LambdaExpression lambda = Expression.lambda(Expression.block(Integer.TYPE,
+                Expression.condition(Expression.greaterThan(Expression.arrayAccess(array, Expression.constant(1)), Expression.constant(0)),
+                        Expression.assign(first, Expression.constant(9)), Expression.assign(first, Expression.constant(-9))),
+                first), array);
+
+        ToIntFunction<int[]> compiled = LambdaCompiler.compile(lambda, Backends.typed(ToIntFunction.class));
+        assertEquals(9, compiled.applyAsInt(new int[]{0, 1}));
+        assertEquals(-9, compiled.applyAsInt(new int[]{0, -1}));
+        Backends.assertAgree(lambda, ToIntFunction.class, new Object[]{new int[]{0, 1}}, new Object[]{new int[]{0, -1}}, new Object[]{new int[0]});
+    }
+
+    @Test
+    public void coalesce() {
+        ParameterExpression o = Expression.parameter(1, "o", Object.class);
+        Expression boxed = Expression.coalesce(Expression.convert(o, Integer.class), Expression.constant(-1));
+        Backends.assertAgree(Expression.lambda(Expression.convert(boxed, Object.class), o), Function.class, new Object[]{5}, new Object[]{null});
+
+        LambdaExpression strings = Expression.lambda(Expression.coalesce(Expression.convert(o, String.class), Expression.constant("none")), o);
+        Function<Object, Object> compiled = LambdaCompiler.compile(strings, Backends.typed(Function.class));
+        assertEquals("a", compiled.apply("a"));
+        assertEquals("none", compiled.apply(null));
+        Backends.assertAgree(strings, Function.class, new Object[]{"a"}, new Object[]{null});
+    }
+
+    @Test
+    public void coalescePromotesToTheWiderType() {
+        ParameterExpression o = Expression.parameter(1, "o", Object.class);
+        Expression integer = Expression.convert(o, Integer.class);
+
+        Expression wide = Expression.coalesce(integer, Expression.constant(5_000_000_000L));
+        assertEquals(Long.TYPE, wide.getType());
+        Backends.assertAgree(Expression.lambda(Expression.convert(wide, Object.class), o), Function.class, new Object[]{7}, new Object[]{null});
+
+        Expression boxed = Expression.coalesce(integer, Expression.constant(2.5, Double.class));
+        assertEquals(Double.class, boxed.getType());
+        Backends.assertAgree(Expression.lambda(Expression.convert(boxed, Object.class), o), Function.class, new Object[]{7}, new Object[]{null});
+
+        //the right side converts to the left one, or the left one to the right one
+        assertEquals(Object.class, Expression.coalesce(o, Expression.constant(3)).getType());
+        assertEquals(Object.class, Expression.coalesce(Expression.convert(o, String.class), o).getType());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void coalesceRejectsUnrelatedTypes() {
+        Expression.coalesce(Expression.constant("a"), Expression.constant(1));
+    }
+
+    @Test
+    public void nullTestsThrowAtRunTime() {
+        Expression nothing = Expression.constant(null, Boolean.class);
+        LambdaExpression direct = Expression.lambda(IntUnaryOperator.class, Expression.condition(nothing, x, Expression.constant(0)), x);
+        LambdaExpression negated = Expression.lambda(IntUnaryOperator.class, Expression.condition(Expression.not(nothing), x, Expression.constant(0)), x);
+
+        for (LambdaExpression lambda : new LambdaExpression[]{direct, negated}) {
+            try {
+                LambdaCompiler.compile(lambda, IntUnaryOperator.class).applyAsInt(1);
+                fail();
+            } catch (NullPointerException expected) {
+            }
+            Backends.assertAgree(lambda, IntUnaryOperator.class, new Object[]{1});
+        }
+
+        //folding the constant away still unboxes the other side
+        ParameterExpression b = Expression.parameter(2, "b", Boolean.class);
+        Expression[] folded = {
+                Expression.andAlso(Expression.constant(true), b),
+                Expression.orElse(b, Expression.constant(false)),
+                Expression.and(b, Expression.constant(true)),
+                Expression.exclusiveOr(Expression.constant(false), b)
+        };
+        for (Expression body : folded)
+            Backends.assertAgree(Expression.lambda(Expression.convert(body, Object.class), x, b), BiFunction.class, new Object[]{1, true}, new Object[]{1, null});
+    }
+}
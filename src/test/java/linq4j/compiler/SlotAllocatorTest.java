@@ -0,0 +1,110 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.SlotAllocator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Block variables named by arbitrary indexes, sharing slots when their statements do not overlap
+ * and taking two slots when wide.
+ */
+public class SlotAllocatorTest {
+    private final ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+    private final ParameterExpression d = Expression.parameter(2, "d", Double.TYPE);
+
+    private final ParameterExpression i = Expression.parameter(40, "i", Integer.TYPE);
+    private final ParameterExpression l = Expression.parameter(41, "l", Long.TYPE);
+    private final ParameterExpression e = Expression.parameter(2, "e", Double.TYPE);
+
+    private void assertAgree(Expression body) {
+        Backends.assertAgree(Expression.lambda(Expression.convert(body, Object.class), x, d), BiFunction.class,
+                new Object[]{3, 1.5}, new Object[]{-7, 0.0}, new Object[]{Integer.MAX_VALUE, -2.25});
+    }
+
+    private static List<ParameterExpression> slots(Expression body, ParameterExpression... parameters) {
+        return ((BlockExpression) SlotAllocator.allocate(body, Arrays.asList(parameters))).getVariables();
+    }
+
+    @Test
+    public void variablesShareSlotsAcrossStatements() {
+        Expression body = Expression.block(Long.TYPE, Arrays.asList(i, l),
+                Expression.assign(i, Expression.add(x, Expression.constant(1))),
+                Expression.assign(l, Expression.convert(x, Long.TYPE)),
+                l);
+
+        //slot 0 holds this, slot 1 the parameter
+        List<ParameterExpression> slots = slots(body, x);
+        assertEquals(2, slots.get(0).getIndex());
+        assertEquals(2, slots.get(1).getIndex());
+        assertAgree(body);
+    }
+
+    @Test
+    public void wideVariablesTakeTwoSlots() {
+        Expression body = Expression.block(Long.TYPE, Arrays.asList(i, l),
+                Expression.assign(i, Expression.add(x, Expression.constant(1))),
+                Expression.assign(l, Expression.convert(i, Long.TYPE)),
+                Expression.add(l, Expression.convert(i, Long.TYPE)));
+
+        //the double parameter takes slots 2 and 3
+        List<ParameterExpression> slots = slots(body, x, d);
+        assertEquals(4, slots.get(0).getIndex());
+        assertEquals(5, slots.get(1).getIndex());
+        assertAgree(body);
+    }
+
+    @Test
+    public void siblingBlocksShareSlots() {
+        Expression first = Expression.block(Long.TYPE, Collections.singletonList(l),
+                Expression.assign(l, Expression.multiply(Expression.convert(x, Long.TYPE), Expression.constant(3L))),
+                Expression.add(l, l));
+        Expression second = Expression.block(Long.TYPE, Collections.singletonList(i),
+                Expression.assign(i, Expression.negate(x)),
+                Expression.convert(Expression.multiply(i, i), Long.TYPE));
+        assertAgree(Expression.add(first, second));
+        assertAgree(Expression.block(Long.TYPE, Collections.<ParameterExpression>emptyList(), first, second));
+    }
+
+    @Test
+    public void variablesMayReuseParameterIndexes() {
+        //e is named by the index of d, which the block redeclares
+        assertAgree(Expression.block(Double.TYPE, Collections.singletonList(e),
+                Expression.assign(e, Expression.multiply(d, Expression.constant(2.0))),
+                Expression.add(e, Expression.convert(x, Double.TYPE))));
+
+        Expression inner = Expression.block(Integer.TYPE, Collections.singletonList(i),
+                Expression.assign(i, Expression.add(i, Expression.constant(5))),
+                i);
+        assertAgree(Expression.block(Integer.TYPE, Collections.singletonList(i),
+                Expression.assign(i, x),
+                Expression.add(inner, i)));
+    }
+
+    @Test
+    public void backwardJumpsKeepSlots() {
+        LabelTarget top = Expression.label("top");
+        Expression body = Expression.block(Long.TYPE, Arrays.asList(i, l),
+                Expression.assign(i, Expression.constant(0)),
+                Expression.label(top),
+                Expression.assign(i, Expression.add(i, Expression.constant(1))),
+                Expression.condition(Expression.lessThan(i, Expression.constant(10)), Expression._goto(top), Expression.empty()),
+                Expression.assign(l, Expression.add(Expression.convert(x, Long.TYPE), Expression.convert(i, Long.TYPE))),
+                l);
+
+        //i is last used before l, but a variable read after a jump back could be overwritten
+        List<ParameterExpression> slots = slots(body, x);
+        assertEquals(2, slots.get(0).getIndex());
+        assertEquals(3, slots.get(1).getIndex());
+
+        //the method handle backend only takes labels ending a block
+        BiFunction<Integer, Double, Long> compiled = LambdaCompiler.compile(Expression.lambda(body, x, d), Backends.typed(BiFunction.class));
+        assertEquals(Long.valueOf(13), compiled.apply(3, 0.0));
+    }
+}
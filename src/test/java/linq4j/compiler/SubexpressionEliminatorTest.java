@@ -0,0 +1,116 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import linq4j.visitors.ExpressionOptimizer;
+import org.junit.Test;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongUnaryOperator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Repeated subtrees evaluated once, and those that must be evaluated again because something in
+ * between may have changed their value.
+ */
+public class SubexpressionEliminatorTest {
+    private static final String TEST = "linq4j/compiler/SubexpressionEliminatorTest";
+    private static final String HOLDER = TEST + "$Holder";
+
+    public static class Inner {
+        public long b = 3;
+    }
+
+    public static class Holder {
+        public Inner a = new Inner();
+        public long x = 5;
+        public int[] array = {1, 2, 3};
+    }
+
+    public static int calls;
+
+    public static int count(int value) {
+        calls++;
+        return value;
+    }
+
+    private final ParameterExpression o = Expression.parameter(1, "o", Object.class);
+    private final Expression holder = Expression.convert(o, Holder.class);
+    private final Expression ab = Expression.makeMemberAccess(Expression.makeMemberAccess(holder, HOLDER, "a", Inner.class), TEST + "$Inner", "b", Long.TYPE);
+    private final Expression x = Expression.makeMemberAccess(holder, HOLDER, "x", Long.TYPE);
+    private final MethodInfo count = new MethodInfo(TEST, "count", Integer.TYPE, Integer.TYPE);
+
+    /**
+     * The temporaries the optimizer introduces, after checking that every backend returns what the
+     * interpreter does and calls {@link #count} as often. Each run gets a holder of its own since
+     * some trees write to it.
+     */
+    @SuppressWarnings("unchecked")
+    private int temporaries(Expression body) {
+        LambdaExpression lambda = Expression.lambda(Expression.convert(body, Object.class), o);
+        Backends.assertAgree(lambda, Function.class, new Object[]{null});
+
+        calls = 0;
+        Object expected = Backends.interpret(lambda, FunctionalInterfaces.findMethod(Function.class), new Holder());
+        int expectedCalls = calls;
+
+        Function<?, ?>[] backends = {
+                LambdaCompiler.compile(lambda, Function.class),
+                lambda.compile(Function.class),
+                MethodHandleCompiler.compile(lambda, Function.class)
+        };
+        for (Function<?, ?> backend : backends) {
+            calls = 0;
+            assertEquals(expected, ((Function<Object, Object>) backend).apply(new Holder()));
+            assertEquals(expectedCalls, calls);
+        }
+
+        Expression optimized = new ExpressionOptimizer().optimize(lambda).getBody();
+        return optimized instanceof BlockExpression ? ((BlockExpression) optimized).getVariables().size() : 0;
+    }
+
+    @Test
+    public void repeatedReadsShareATemporary() {
+        assertEquals(1, temporaries(Expression.add(ab, Expression.multiply(ab, ab))));
+        Expression element = Expression.convert(Expression.arrayAccess(Expression.makeMemberAccess(holder, HOLDER, "array", int[].class), Expression.constant(1)), Long.TYPE);
+        assertTrue(temporaries(Expression.add(element, element)) > 0);
+    }
+
+    @Test
+    public void pureCallsAreShared() {
+        MethodInfo abs = MethodInfo.pure("java/lang/Math", "abs", Long.TYPE, Long.TYPE);
+        assertTrue(temporaries(Expression.add(Expression.call(abs, Expression.negate(x)), Expression.call(abs, Expression.negate(x)))) > 0);
+    }
+
+    @Test
+    public void otherCallsRunEveryTime() {
+        Expression call = Expression.convert(Expression.call(count, Expression.constant(1)), Long.TYPE);
+        assertEquals(0, temporaries(Expression.add(call, call)));
+        temporaries(Expression.add(Expression.add(ab, ab), Expression.add(Expression.convert(Expression.call(count, Expression.constant(2)), Long.TYPE), ab)));
+    }
+
+    @Test
+    public void writesForgetWhatTheyChange() {
+        temporaries(Expression.block(Long.TYPE, Expression.assign(x, Expression.add(x, Expression.constant(1L))), Expression.add(x, x)));
+        temporaries(Expression.add(Expression.add(x, x), Expression.block(Long.TYPE, Expression.assign(x, Expression.constant(10L)), x)));
+
+        ParameterExpression p = Expression.parameter(1, "p", Long.TYPE);
+        Expression triple = Expression.multiply(p, Expression.constant(3L));
+        LambdaExpression lambda = Expression.lambda(Expression.block(Long.TYPE,
+                Expression.assign(p, Expression.add(triple, triple)),
+                Expression.add(p, triple)), p);
+        LongUnaryOperator compiled = LambdaCompiler.compile(lambda, LongUnaryOperator.class);
+        assertEquals(48, compiled.applyAsLong(2));
+        Backends.assertAgree(lambda, LongUnaryOperator.class, new Object[]{2L}, new Object[]{-1L});
+    }
+
+    @Test
+    public void conditionalValuesStayInTheirBranch() {
+        ParameterExpression b = Expression.parameter(2, "b", Boolean.TYPE);
+        Expression body = Expression.add(Expression.condition(b, ab, Expression.constant(0L)), ab);
+        LambdaExpression lambda = Expression.lambda(Expression.convert(body, Object.class), o, b);
+
+        Backends.assertAgree(lambda, BiFunction.class, new Object[]{new Holder(), true}, new Object[]{new Holder(), false}, new Object[]{null, false});
+    }
+}
@@ -0,0 +1,125 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Switches over dense and sparse ints, chars, boxes, enums and strings, including values that
+ * match no case and null.
+ */
+public class SwitchTest {
+    private final ParameterExpression o = Expression.parameter(1, "o", Object.class);
+
+    private static ConstantExpression[] constants(Object... values) {
+        ConstantExpression[] constants = new ConstantExpression[values.length];
+        for (int i = 0; i < values.length; i++)
+            constants[i] = Expression.constant(values[i]);
+        return constants;
+    }
+
+    /**
+     * Switches on {@code o} converted to {@code type}, case {@code i} returning {@code 10 * (i + 1)}
+     * and the default {@code -1}, and checks it against the interpreter on {@code values}.
+     */
+    private void assertSwitches(Class<?> type, Object[][] cases, Object... values) {
+        SwitchCase[] switchCases = new SwitchCase[cases.length];
+        for (int i = 0; i < cases.length; i++)
+            switchCases[i] = Expression.switchCase(Expression.constant((i + 1) * 10L), constants(cases[i]));
+
+        Expression body = Expression.makeSwitch(Expression.convert(o, type), Expression.constant(-1L), switchCases);
+        Object[][] arguments = new Object[values.length][];
+        for (int i = 0; i < values.length; i++)
+            arguments[i] = new Object[]{values[i]};
+
+        Backends.assertAgree(Expression.lambda(Expression.convert(body, Object.class), o), Function.class, arguments);
+    }
+
+    @Test
+    public void denseAndSparseInts() {
+        assertSwitches(Integer.TYPE, new Object[][]{{1, 2}, {3}, {4, 5}}, 0, 1, 2, 3, 4, 5, 6, -1);
+        assertSwitches(Integer.TYPE, new Object[][]{{1}, {1000}, {-50000}, {77}}, 1, 1000, -50000, 77, 5, Integer.MIN_VALUE);
+        assertSwitches(Integer.TYPE, new Object[][]{{Integer.MIN_VALUE}, {Integer.MAX_VALUE}}, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    @Test
+    public void charsAndBoxes() {
+        assertSwitches(Character.TYPE, new Object[][]{{'a', 'b'}, {'z'}}, 'a', 'b', 'z', 'q');
+        assertSwitches(Integer.class, new Object[][]{{1}, {2}}, 1, 2, 3, null);
+    }
+
+    @Test
+    public void enums() {
+        assertSwitches(TimeUnit.class, new Object[][]{{TimeUnit.SECONDS, TimeUnit.MINUTES}, {TimeUnit.DAYS}},
+                TimeUnit.SECONDS, TimeUnit.MINUTES, TimeUnit.DAYS, TimeUnit.HOURS, null);
+    }
+
+    @Test
+    public void stringsWithCollidingHashes() {
+        //"Aa" and "BB" have the same hash code
+        assertSwitches(String.class, new Object[][]{{"Aa"}, {"BB", "x"}, {"hello"}}, "Aa", "BB", "x", "hello", "C#", "", null);
+    }
+
+    @Test
+    public void statementsWithoutADefault() {
+        ParameterExpression array = Expression.parameter(1, "array", int[].class);
+        Expression first = Expression.arrayAccess(array, Expression.constant(0));
+        Expression body = Expression.makeSwitch(Expression.arrayAccess(array, Expression.constant(1)), null,
+                Expression.switchCase(Expression.assign(first, Expression.constant(5)), constants(1)));
+        LambdaExpression lambda = Expression.lambda(Expression.block(Integer.TYPE, body, first), array);
+
+        ToIntFunction<int[]> compiled = LambdaCompiler.compile(lambda, Backends.typed(ToIntFunction.class));
+        assertEquals(5, compiled.applyAsInt(new int[]{0, 1}));
+        assertEquals(0, compiled.applyAsInt(new int[]{0, 2}));
+        Backends.assertAgree(lambda, ToIntFunction.class, new Object[]{new int[]{0, 1}}, new Object[]{new int[]{0, 2}});
+    }
+
+    @Test
+    public void cachedSwitchesKeepTheirCaseValues() {
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        LambdaExpression one = Expression.lambda(Expression.makeSwitch(x, Expression.constant(0), Expression.switchCase(Expression.constant(1), constants(1))), x);
+        LambdaExpression two = Expression.lambda(Expression.makeSwitch(x, Expression.constant(0), Expression.switchCase(Expression.constant(1), constants(2))), x);
+
+        assertEquals(1, one.compile(IntUnaryOperator.class).applyAsInt(1));
+        assertEquals(0, two.compile(IntUnaryOperator.class).applyAsInt(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateCases() {
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        Expression.makeSwitch(x, null, Expression.switchCase(Expression.constant(1), constants(1)), Expression.switchCase(Expression.constant(2), constants(1)));
+    }
+
+    @Test
+    public void rejectsCasesTheSwitchTypeCannotHold() {
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        ParameterExpression b = Expression.parameter(1, "b", Byte.TYPE);
+        ParameterExpression c = Expression.parameter(1, "c", Character.TYPE);
+
+        //4294967297L would be 1 as an int, colliding with the case for 1
+        assertRejected(x, 4294967297L);
+        assertRejected(x, 1L);
+        assertRejected(x, 1.0);
+        assertRejected(b, 300);
+        assertRejected(c, -1);
+
+        Expression.makeSwitch(b, null, Expression.switchCase(Expression.empty(), constants(-128, 127)));
+        Expression.makeSwitch(c, null, Expression.switchCase(Expression.empty(), constants(97, (int) Character.MAX_VALUE)));
+    }
+
+    private static void assertRejected(ParameterExpression switchValue, Object caseValue) {
+        try {
+            Expression.makeSwitch(switchValue, null,
+                    Expression.switchCase(Expression.empty(), constants(1)), Expression.switchCase(Expression.empty(), constants(caseValue)));
+            fail("case " + caseValue + " accepted for " + switchValue.getType());
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package linq4j.compiler;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.Assert.*;
+
+public class TieredLambdaTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final ParameterExpression a = Expression.parameter(1, "a", Integer.TYPE);
+    private final ParameterExpression b = Expression.parameter(2, "b", Integer.TYPE);
+
+    @Test
+    public void interpretsUntilTheThreshold() {
+        LambdaExpression lambda = Expression.lambda(Expression.add(Expression.multiply(a, Expression.constant(3)), b), a, b);
+        TieredLambda<IntBinaryOperator> tiered = TieredLambda.create(lambda, IntBinaryOperator.class, 10, DIRECT);
+        IntBinaryOperator delegate = tiered.getDelegate();
+
+        for (int i = 0; i < 9; i++)
+            assertEquals(3 * i + 1, delegate.applyAsInt(i, 1));
+        assertFalse(tiered.isCompiled());
+
+        assertEquals(31, delegate.applyAsInt(10, 1));
+        assertTrue(tiered.isCompiled());
+        assertNull(tiered.getFailure());
+        assertEquals(61, delegate.applyAsInt(20, 1));
+        assertEquals(10, tiered.getInvocations());
+    }
+
+    @Test
+    public void zeroThresholdCompilesRightAway() {
+        LambdaExpression lambda = Expression.lambda(Expression.subtract(a, b), a, b);
+        TieredLambda<IntBinaryOperator> tiered = TieredLambda.create(lambda, IntBinaryOperator.class, 0, DIRECT);
+
+        assertTrue(tiered.isCompiled());
+        assertEquals(-1, tiered.getDelegate().applyAsInt(1, 2));
+    }
+
+    @Test
+    public void eachLambdaCallsThroughAStubOfItsOwn() {
+        //a stub class shared by lambdas would see all of their compiled classes at its call site
+        TieredLambda<IntBinaryOperator> add = TieredLambda.create(Expression.lambda(Expression.add(a, b), a, b), IntBinaryOperator.class, 0, DIRECT);
+        TieredLambda<IntBinaryOperator> multiply = TieredLambda.create(Expression.lambda(Expression.multiply(a, b), a, b), IntBinaryOperator.class, 0, DIRECT);
+
+        assertNotSame(add.getDelegate().getClass(), multiply.getDelegate().getClass());
+        assertEquals(7, add.getDelegate().applyAsInt(3, 4));
+        assertEquals(12, multiply.getDelegate().applyAsInt(3, 4));
+    }
+
+    @Test
+    public void reusedInterpretersStartWithoutVariables() {
+        ParameterExpression x = Expression.parameter(1, "x", Object.class);
+        ParameterExpression seen = Expression.parameter(2, "seen", Object.class);
+        LambdaExpression lambda = Expression.lambda(Expression.block(Object.class, Collections.singletonList(seen),
+                Expression.condition(Expression.equal(seen, Expression.constant(null, Object.class)),
+                        Expression.block(Object.class, Expression.assign(seen, x), Expression.constant("fresh", Object.class)),
+                        seen)), x);
+
+        TieredLambda<Function<Object, Object>> tiered = TieredLambda.create(lambda, Backends.typed(Function.class), 100, DIRECT);
+        Function<Object, Object> delegate = tiered.getDelegate();
+        assertEquals("fresh", delegate.apply("a"));
+        assertEquals("fresh", delegate.apply("b"));
+    }
+
+    @Test
+    public void interpretedClosuresKeepWhatTheyCaptured() throws Exception {
+        ParameterExpression x = Expression.parameter(3, "x", Integer.TYPE);
+        MethodInfo applyInt = new MethodInfo(TieredLambdaTest.class.getMethod("applyInt", IntUnaryOperator.class, int.class));
+        LambdaExpression lambda = Expression.lambda(Expression.call(applyInt,
+                Expression.lambda(IntUnaryOperator.class, Expression.multiply(x, b), x), a), a, b);
+
+        IntBinaryOperator delegate = TieredLambda.create(lambda, IntBinaryOperator.class, 100, DIRECT).getDelegate();
+        assertEquals(12, delegate.applyAsInt(3, 4));
+        assertEquals(-10, delegate.applyAsInt(5, -2));
+    }
+
+    public static int applyInt(IntUnaryOperator operator, int value) {
+        return operator.applyAsInt(value);
+    }
+
+    @Test
+    public void concurrentCallsGetTheirOwnState() throws Exception {
+        ParameterExpression sum = Expression.parameter(3, "sum", Integer.TYPE);
+        LabelTarget exit = Expression.label("exit");
+        //sums a down to 0 in steps of b
+        LambdaExpression lambda = Expression.lambda(Expression.block(Integer.TYPE, Collections.singletonList(sum),
+                Expression.assign(sum, Expression.constant(0)),
+                Expression.loop(Expression.block(
+                        Expression.condition(Expression.lessThanOrEqual(a, Expression.constant(0)), Expression._break(exit), Expression.empty()),
+                        Expression.assign(sum, Expression.add(sum, a)),
+                        Expression.assign(a, Expression.subtract(a, b))), exit),
+                sum), a, b);
+
+        final IntBinaryOperator delegate = TieredLambda.create(lambda, IntBinaryOperator.class, Integer.MAX_VALUE, DIRECT).getDelegate();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int n = 50 + t;
+                results.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int i = 0; i < 200; i++) {
+                            if (delegate.applyAsInt(n, 1) != n * (n + 1) / 2)
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
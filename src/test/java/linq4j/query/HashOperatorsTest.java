@@ -0,0 +1,190 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Group-by and join over generated key extraction, against the same operations over maps.
+ */
+public class HashOperatorsTest {
+    private static final String ORDER = "linq4j/query/HashOperatorsTest$Order";
+    private static final String CUSTOMER = "linq4j/query/HashOperatorsTest$Customer";
+
+    public static class Order {
+        public int customer;
+        public double amount;
+        public long region;
+
+        public Order(int customer, double amount, long region) {
+            this.customer = customer;
+            this.amount = amount;
+            this.region = region;
+        }
+    }
+
+    public static class Customer {
+        public int id;
+
+        public Customer(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Order[] orders = new Order[20000];
+
+    private final ParameterExpression o = Expression.parameter(1, "o", Order.class);
+    private final ParameterExpression c = Expression.parameter(1, "c", Customer.class);
+    private final LambdaExpression customer = Expression.lambda(Expression.makeMemberAccess(o, ORDER, "customer", Integer.TYPE), o);
+    private final LambdaExpression region = Expression.lambda(Expression.makeMemberAccess(o, ORDER, "region", Long.TYPE), o);
+    private final LambdaExpression amount = Expression.lambda(Expression.makeMemberAccess(o, ORDER, "amount", Double.TYPE), o);
+    private final LambdaExpression id = Expression.lambda(Expression.makeMemberAccess(c, CUSTOMER, "id", Integer.TYPE), c);
+
+    public HashOperatorsTest() {
+        Random random = new Random(5);
+        for (int i = 0; i < orders.length; i++)
+            orders[i] = new Order(random.nextInt(2000), random.nextInt(1000) / 10.0, random.nextInt(7));
+    }
+
+    @Test
+    public void groupsInTheOrderKeysAreFirstSeen() {
+        Map<List<Long>, Double> expected = new LinkedHashMap<>();
+        for (Order order : orders)
+            expected.merge(Arrays.asList((long) order.customer, order.region), order.amount, Double::sum);
+
+        Groups groups = Query.from(orders).groupBy(customer, region).sum(amount);
+        int[] customers = (int[]) groups.getKeys(0);
+        long[] regions = (long[]) groups.getKeys(1);
+        double[] sums = (double[]) groups.getValues();
+
+        assertEquals(expected.size(), groups.size());
+        int i = 0;
+        for (Map.Entry<List<Long>, Double> entry : expected.entrySet()) {
+            assertEquals((long) entry.getKey().get(0), customers[i]);
+            assertEquals((long) entry.getKey().get(1), regions[i]);
+            assertEquals(entry.getValue(), sums[i], 0);
+            i++;
+        }
+    }
+
+    @Test
+    public void parallelCountsMatchSequentialOnes() {
+        Groups sequential = Query.from(orders).groupBy(region).count();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Groups parallel = Query.from(orders).parallel(pool).groupBy(region).count();
+            assertArrayEquals((long[]) sequential.getKeys(0), (long[]) parallel.getKeys(0));
+            assertArrayEquals((int[]) sequential.getValues(), (int[]) parallel.getValues());
+        } finally {
+            pool.shutdown();
+        }
+
+        int total = 0;
+        for (int count : (int[]) sequential.getValues())
+            total += count;
+        assertEquals(orders.length, total);
+    }
+
+    @Test
+    public void parallelGroupsKeepTheOrderKeysWereFirstSeen() {
+        //keys first seen in every morsel, in decreasing order
+        int[] values = new int[64 * MorselExecutor.MORSEL_SIZE + 5];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (values.length - i) / 5000;
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        LambdaExpression key = Expression.lambda(x, x);
+        LambdaExpression half = Expression.lambda(Expression.divide(Expression.convert(x, Double.TYPE), Expression.constant(3.0)), x);
+
+        Groups sequential = Query.from(values).groupBy(key).count();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Groups first = Query.from(values).parallel(pool).groupBy(key).sum(half);
+            for (int run = 0; run < 10; run++) {
+                Groups parallel = Query.from(values).parallel(pool).groupBy(key).count();
+                assertArrayEquals((int[]) sequential.getKeys(0), (int[]) parallel.getKeys(0));
+                assertArrayEquals((int[]) sequential.getValues(), (int[]) parallel.getValues());
+
+                //sums are added in the same order every time
+                Groups sums = Query.from(values).parallel(pool).groupBy(key).sum(half);
+                assertArrayEquals((int[]) first.getKeys(0), (int[]) sums.getKeys(0));
+                assertArrayEquals((double[]) first.getValues(), (double[]) sums.getValues(), 0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void floatingPointKeysGroupLikeEquals() {
+        ParameterExpression d = Expression.parameter(1, "d", Double.TYPE);
+        Groups groups = Query.from(new double[]{1.0, Double.NaN, -0.0, 0.0, Double.NaN, 1.0})
+                .groupBy(Expression.lambda(d, d), Expression.lambda(Expression.greaterThan(d, Expression.constant(0.5)), d)).count();
+
+        assertArrayEquals(new double[]{1.0, Double.NaN, -0.0, 0.0}, (double[]) groups.getKeys(0), 0);
+        assertTrue(Arrays.equals(new boolean[]{true, false, false, false}, (boolean[]) groups.getKeys(1)));
+        assertArrayEquals(new int[]{2, 2, 1, 1}, (int[]) groups.getValues());
+    }
+
+    @Test
+    public void joinsPairEveryMatch() {
+        Customer[] customers = new Customer[1500];
+        for (int i = 0; i < customers.length; i++)
+            customers[i] = new Customer(i * 2);
+
+        ParameterExpression pair = Expression.parameter(1, "o", Order.class);
+        ParameterExpression with = Expression.parameter(2, "c", Customer.class);
+        LambdaExpression result = Expression.lambda(Expression.add(Expression.makeMemberAccess(pair, ORDER, "amount", Double.TYPE),
+                Expression.convert(Expression.makeMemberAccess(with, CUSTOMER, "id", Integer.TYPE), Double.TYPE)), pair, with);
+        Query join = Query.from(orders).join(customers, customer, id, result);
+
+        Map<Integer, List<Customer>> byId = new HashMap<>();
+        for (Customer each : customers)
+            byId.computeIfAbsent(each.id, k -> new ArrayList<>()).add(each);
+        double sum = 0;
+        int count = 0;
+        for (Order order : orders) {
+            for (Customer match : byId.getOrDefault(order.customer, Collections.<Customer>emptyList())) {
+                sum += order.amount + match.id;
+                count++;
+            }
+        }
+
+        assertEquals(count, join.count());
+        assertEquals(sum, join.sum().doubleValue(), 1e-6);
+        assertEquals(count, join.parallel(ForkJoinPool.commonPool()).count());
+    }
+
+    @Test
+    public void joinsKeepDuplicateInnerKeys() {
+        Customer[] duplicates = {new Customer(1), new Customer(2), new Customer(1)};
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        ParameterExpression with = Expression.parameter(2, "c", Customer.class);
+        Query join = Query.from(new int[]{1, 2, 3, 1}).join(duplicates, Expression.lambda(x, x), id,
+                Expression.lambda(Expression.makeMemberAccess(with, CUSTOMER, "id", Integer.TYPE), x, with));
+
+        assertEquals(5, join.count());
+        assertEquals(6, join.sum());
+        assertEquals(2, join.take(2).sum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keysMustBePrimitive() {
+        Query.from(orders).groupBy(Expression.lambda(o, o));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void joinKeysMustBeComparable() {
+        Query.from(orders).join(new Customer[0], amount, id, amount);
+    }
+}
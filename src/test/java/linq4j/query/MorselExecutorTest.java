@@ -0,0 +1,92 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parallel queries over sources around the morsel size, which must aggregate what sequential ones
+ * do.
+ */
+public class MorselExecutorTest {
+    private static final Set<String> THREADS = ConcurrentHashMap.newKeySet();
+
+    public static boolean seen(int value) {
+        THREADS.add(Thread.currentThread().getName());
+        return true;
+    }
+
+    private final ParameterExpression p = Expression.parameter(1, "p", Integer.TYPE);
+
+    private static int[] values(int length) {
+        Random random = new Random(length);
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++)
+            values[i] = random.nextInt(1000);
+        return values;
+    }
+
+    private Query lessThan500(int[] values) {
+        return Query.from(values)
+                .where(Expression.lambda(Expression.lessThan(p, Expression.constant(500)), p))
+                .select(Expression.lambda(Expression.convert(p, Long.TYPE), p));
+    }
+
+    @Test
+    public void parallelAggregatesMatchSequentialOnes() {
+        int morsel = MorselExecutor.MORSEL_SIZE;
+        ForkJoinPool pool = new ForkJoinPool(7);
+        try {
+            for (int length : new int[]{0, 1, morsel - 1, morsel, morsel + 1, 5 * morsel + 3}) {
+                int[] values = values(length);
+                Query query = lessThan500(values);
+                long expected = IntStream.of(values).filter(x -> x < 500).asLongStream().sum();
+
+                assertEquals(expected, query.sum());
+                assertEquals(expected, query.parallel(pool).sum());
+                assertEquals(expected, query.parallel().sum());
+                assertEquals(query.count(), query.parallel(pool).count());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void takeRunsSequentially() {
+        int[] values = values(3 * MorselExecutor.MORSEL_SIZE);
+        long expected = IntStream.of(values).filter(x -> x < 500).limit(10).asLongStream().sum();
+
+        assertEquals(expected, lessThan500(values).parallel().take(10).sum());
+    }
+
+    @Test
+    public void morselsRunOnThePoolThreads() {
+        THREADS.clear();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            MethodInfo seen = new MethodInfo("linq4j/query/MorselExecutorTest", "seen", Boolean.TYPE, Integer.TYPE);
+            int[] values = values(64 * MorselExecutor.MORSEL_SIZE);
+            assertEquals(values.length, Query.from(values).where(Expression.lambda(Expression.call(seen, p), p)).parallel(pool).count());
+        } finally {
+            pool.shutdown();
+        }
+
+        assertFalse(THREADS.contains(Thread.currentThread().getName()));
+        assertFalse(THREADS.isEmpty());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void failuresReachTheCaller() {
+        int[] values = values(4 * MorselExecutor.MORSEL_SIZE);
+        values[3 * MorselExecutor.MORSEL_SIZE + 1] = 0;
+        Query.from(values).select(Expression.lambda(Expression.divide(Expression.constant(1), p), p)).parallel().sum();
+    }
+}
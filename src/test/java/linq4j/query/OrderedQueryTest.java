@@ -0,0 +1,174 @@
+package linq4j.query;
+
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordered queries over primitive keys, which are radix sorted, over reference keys, which use a
+ * generated comparator, and with take, which keeps the top elements, against
+ * {@link Arrays#sort}.
+ */
+public class OrderedQueryTest {
+    private static final String ORDER = "linq4j/query/OrderedQueryTest$Order";
+    private static final String CUSTOMER = "linq4j/query/OrderedQueryTest$Customer";
+
+    public static class Order {
+        public int customer;
+        public double amount;
+        public long region;
+
+        public Order(int customer, double amount, long region) {
+            this.customer = customer;
+            this.amount = amount;
+            this.region = region;
+        }
+    }
+
+    public static class Customer {
+        public int id;
+        public String name;
+
+        public Customer(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private final Random random = new Random(7);
+    private final Order[] orders = new Order[20000];
+
+    private final ParameterExpression o = Expression.parameter(1, "o", Order.class);
+    private final LambdaExpression customer = Expression.lambda(Expression.makeMemberAccess(o, ORDER, "customer", Integer.TYPE), o);
+    private final LambdaExpression region = Expression.lambda(Expression.makeMemberAccess(o, ORDER, "region", Long.TYPE), o);
+    private final LambdaExpression amount = Expression.lambda(Expression.makeMemberAccess(o, ORDER, "amount", Double.TYPE), o);
+
+    public OrderedQueryTest() {
+        for (int i = 0; i < orders.length; i++)
+            orders[i] = new Order(random.nextInt(5000) - 2500, random.nextInt(1000) / 10.0 - 50, random.nextInt(7) - 3);
+    }
+
+    @Test
+    public void primitiveKeysSortStably() {
+        Comparator<Order> byCustomerThenAmount = Comparator.<Order>comparingInt(x -> x.customer)
+                .thenComparing(Comparator.<Order>comparingDouble(x -> x.amount).reversed());
+        Order[] expected = orders.clone();
+        Arrays.sort(expected, byCustomerThenAmount);
+
+        OrderedQuery ordered = Query.from(orders).orderBy(customer).thenByDescending(amount);
+        assertArrayEquals(expected, (Order[]) ordered.toArray());
+        assertArrayEquals(Arrays.copyOf(expected, 25), (Order[]) ordered.take(25).toArray());
+
+        //equal regions keep the order of the source
+        Order[] byRegion = orders.clone();
+        Arrays.sort(byRegion, Comparator.<Order>comparingLong(x -> x.region).reversed());
+        assertArrayEquals(byRegion, (Order[]) Query.from(orders).orderByDescending(region).toArray());
+        assertArrayEquals(Arrays.copyOf(byRegion, 1000), (Order[]) Query.from(orders).orderByDescending(region).take(1000).toArray());
+    }
+
+    @Test
+    public void ordersWhatTheWhereKeeps() {
+        LambdaExpression positive = Expression.lambda(Expression.greaterThan(Expression.makeMemberAccess(o, ORDER, "amount", Double.TYPE), Expression.constant(0.0)), o);
+        List<Order> expected = new ArrayList<>();
+        for (Order order : orders) {
+            if (order.amount > 0)
+                expected.add(order);
+        }
+        expected.sort(Comparator.comparingDouble(x -> x.amount));
+
+        assertArrayEquals(expected.toArray(new Order[0]), (Order[]) Query.from(orders).where(positive).orderBy(amount).toArray());
+    }
+
+    @Test
+    public void referenceKeysPutNullFirst() {
+        Customer[] customers = new Customer[5000];
+        for (int i = 0; i < customers.length; i++)
+            customers[i] = new Customer(random.nextInt(100), random.nextInt(10) == 0 ? null : "c" + random.nextInt(300));
+
+        ParameterExpression c = Expression.parameter(1, "c", Customer.class);
+        LambdaExpression name = Expression.lambda(Expression.makeMemberAccess(c, CUSTOMER, "name", String.class), c);
+        LambdaExpression id = Expression.lambda(Expression.makeMemberAccess(c, CUSTOMER, "id", Integer.TYPE), c);
+
+        Customer[] expected = customers.clone();
+        Arrays.sort(expected, Comparator.<Customer, String>comparing(x -> x.name, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                .thenComparing(Comparator.<Customer>comparingInt(x -> x.id).reversed()));
+
+        OrderedQuery ordered = Query.from(customers).orderBy(name).thenByDescending(id);
+        assertArrayEquals(expected, (Customer[]) ordered.toArray());
+        assertArrayEquals(Arrays.copyOf(expected, 77), (Customer[]) ordered.take(77).toArray());
+    }
+
+    @Test
+    public void floatingPointKeysSortLikeArraysSort() {
+        double[] doubles = new double[1000];
+        for (int i = 0; i < doubles.length; i++)
+            doubles[i] = random.nextInt(20) == 0 ? Double.NaN : random.nextInt(10) == 0 ? (random.nextBoolean() ? -0.0 : 0.0) : random.nextGaussian() * 1e3;
+        ParameterExpression d = Expression.parameter(1, "d", Double.TYPE);
+        double[] expected = doubles.clone();
+        Arrays.sort(expected);
+
+        assertTrue(Arrays.equals(expected, (double[]) Query.from(doubles).orderBy(Expression.lambda(d, d)).toArray()));
+        double[] top = (double[]) Query.from(doubles).orderByDescending(Expression.lambda(d, d)).take(5).toArray();
+        assertTrue(Double.isNaN(top[0]));
+
+        float[] floats = new float[1000];
+        for (int i = 0; i < floats.length; i++)
+            floats[i] = random.nextInt(20) == 0 ? Float.NaN : (float) random.nextGaussian();
+        floats[3] = -0.0f;
+        floats[4] = 0.0f;
+        floats[5] = Float.NEGATIVE_INFINITY;
+        ParameterExpression f = Expression.parameter(1, "f", Float.TYPE);
+        float[] sorted = floats.clone();
+        Arrays.sort(sorted);
+
+        assertTrue(Arrays.equals(sorted, (float[]) Query.from(floats).orderBy(Expression.lambda(f, f)).toArray()));
+    }
+
+    @Test
+    public void primitiveElementsWithReferenceAndNarrowKeys() {
+        int[] ints = new int[500];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = random.nextInt(2000) - 1000;
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+
+        Integer[] boxed = new Integer[ints.length];
+        for (int i = 0; i < ints.length; i++)
+            boxed[i] = ints[i];
+        Arrays.sort(boxed, Comparator.comparing(Object::toString));
+        MethodInfo toString = MethodInfo.pure("java/lang/Integer", "toString", String.class, Integer.TYPE);
+        assertArrayEquals(unbox(boxed), (int[]) Query.from(ints).orderBy(Expression.lambda(Expression.call(toString, x), x)).toArray());
+
+        for (int i = 0; i < ints.length; i++)
+            boxed[i] = ints[i];
+        Arrays.sort(boxed, Comparator.<Integer, Boolean>comparing(v -> v > 0).thenComparing(Comparator.<Integer>comparingInt(v -> (byte) (int) v).reversed()));
+        assertArrayEquals(unbox(boxed), (int[]) Query.from(ints)
+                .orderBy(Expression.lambda(Expression.greaterThan(x, Expression.constant(0)), x))
+                .thenByDescending(Expression.lambda(Expression.convert(x, Byte.TYPE), x)).toArray());
+    }
+
+    @Test
+    public void emptyResults() {
+        ParameterExpression x = Expression.parameter(1, "x", Integer.TYPE);
+        assertEquals(0, ((int[]) Query.from(new int[]{3, 1, 2}).orderBy(Expression.lambda(x, x)).take(0).toArray()).length);
+        assertEquals(0, ((int[]) Query.from(new int[0]).orderBy(Expression.lambda(x, x)).toArray()).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void takeMustNotBeNegative() {
+        Query.from(orders).orderBy(customer).take(-1);
+    }
+
+    private static int[] unbox(Integer[] boxed) {
+        int[] values = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++)
+            values[i] = boxed[i];
+        return values;
+    }
+}
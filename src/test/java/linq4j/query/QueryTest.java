@@ -0,0 +1,92 @@
+package linq4j.query;
+
+import linq4j.compiler.LambdaCache;
+import linq4j.expressions.*;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fused where, select and take chains against the same chains over streams.
+ */
+public class QueryTest {
+    public static int calls;
+
+    public static boolean counted(int value) {
+        calls++;
+        return value % 2 == 0;
+    }
+
+    private final int[] xs = new int[100];
+
+    private final ParameterExpression p = Expression.parameter(1, "p", Integer.TYPE);
+    private final ParameterExpression q = Expression.parameter(1, "q", Long.TYPE);
+    private final ParameterExpression t = Expression.parameter(3, "t", Long.TYPE);
+
+    public QueryTest() {
+        for (int i = 0; i < xs.length; i++)
+            xs[i] = i - 30;
+    }
+
+    private LambdaExpression greaterThan(int bound) {
+        return Expression.lambda(Expression.greaterThan(p, Expression.constant(bound)), p);
+    }
+
+    @Test
+    public void whereSelectAndTake() {
+        Query where = Query.from(xs).where(greaterThan(10));
+        assertEquals(IntStream.of(xs).filter(x -> x > 10).count(), where.count());
+
+        Query select = where.select(Expression.lambda(Expression.multiply(Expression.convert(p, Long.TYPE), Expression.constant(3L)), p));
+        assertEquals(Long.TYPE, select.getElementType());
+        assertEquals(IntStream.of(xs).filter(x -> x > 10).mapToLong(x -> x * 3L).sum(), select.sum());
+
+        Query even = select.where(Expression.lambda(Expression.block(Boolean.TYPE, Collections.singletonList(t),
+                Expression.assign(t, Expression.modulo(q, Expression.constant(2L))),
+                Expression.equal(t, Expression.constant(0L))), q)).take(5);
+        assertEquals(IntStream.of(xs).filter(x -> x > 10).mapToLong(x -> x * 3L).filter(x -> x % 2 == 0).limit(5).sum(), even.sum());
+        assertEquals(5, even.count());
+    }
+
+    @Test
+    public void takeStopsEvaluating() {
+        assertEquals(0, Query.from(xs).take(0).count());
+        assertEquals(-30 - 29 - 28, Query.from(xs).take(3).take(10).sum());
+        assertEquals(100, Query.from(xs).take(1000).count());
+
+        MethodInfo counted = new MethodInfo("linq4j/query/QueryTest", "counted", Boolean.TYPE, Integer.TYPE);
+        calls = 0;
+        assertEquals(4, Query.from(xs).where(Expression.lambda(Expression.call(counted, p), p)).take(4).count());
+        assertEquals(7, calls);
+    }
+
+    @Test
+    public void sumsArePromoted() {
+        assertEquals(4.0, Query.from(new double[]{1.5, 2.5}).sum());
+        assertEquals(6, Query.from(new short[]{1, 2, 3}).sum());
+        assertEquals(Long.MIN_VALUE, Query.from(new long[]{Long.MAX_VALUE, 1}).sum());
+        assertEquals(0, Query.from(new int[0]).sum());
+    }
+
+    @Test
+    public void queriesDifferingInConstantsShareAClass() {
+        Query.from(xs).where(greaterThan(10)).count();
+        int before = LambdaCache.getDefault().size();
+
+        assertEquals(49, Query.from(xs).where(greaterThan(20)).count());
+        assertEquals(before, LambdaCache.getDefault().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void predicatesMustReturnBoolean() {
+        Query.from(xs).where(Expression.lambda(p, p));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sourcesMustBeArrays() {
+        Query.from("not an array");
+    }
+}